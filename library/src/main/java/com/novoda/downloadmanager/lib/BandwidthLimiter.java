@@ -0,0 +1,200 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.v4.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Shares the download bandwidth of this process between the running downloads.
+ * <p/>
+ * The global limit is split between the batches that are downloading, weighted by their priority: a batch
+ * gets one share more than the lowest priority batch running per priority level above it. A batch never
+ * gets more than its own limit, what it leaves goes to the other batches. Each batch splits its rate
+ * evenly between its downloads, which each throttle on their own {@link TokenBucket}.
+ */
+class BandwidthLimiter {
+
+    static final long UNLIMITED = TokenBucket.UNLIMITED;
+
+    private final TokenBucket.Timer timer;
+    private final List<Throttle> throttles = new ArrayList<>();
+    private final LongSparseArray<Long> batchLimits = new LongSparseArray<>();
+
+    private long globalBytesPerSecond = UNLIMITED;
+
+    private static class LazyInitialisationHelper {
+        private static final BandwidthLimiter INSTANCE = new BandwidthLimiter(new TokenBucket.SystemTimer());
+    }
+
+    static BandwidthLimiter getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    BandwidthLimiter(TokenBucket.Timer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @return the throttle of a download starting, to be unregistered once the download stops
+     */
+    synchronized Throttle register(DownloadBatch batch) {
+        BatchInfo info = batch.getInfo();
+        int priority = info == null ? 0 : info.getPriority();
+        Throttle throttle = new Throttle(batch.getBatchId(), priority, new TokenBucket(timer));
+        if (info != null) {
+            batchLimits.put(batch.getBatchId(), info.getMaxBytesPerSecond());
+        }
+        throttles.add(throttle);
+        redistribute();
+        return throttle;
+    }
+
+    synchronized void unregister(Throttle throttle) {
+        throttles.remove(throttle);
+        if (!isRunning(throttle.batchId)) {
+            batchLimits.remove(throttle.batchId);
+        }
+        redistribute();
+    }
+
+    private boolean isRunning(long batchId) {
+        for (Throttle throttle : throttles) {
+            if (throttle.batchId == batchId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void setGlobalLimit(long bytesPerSecond) {
+        globalBytesPerSecond = bytesPerSecond;
+        redistribute();
+    }
+
+    /**
+     * Only applies to the downloads of the batch already running, the following ones read the limit of their batch when they start.
+     */
+    synchronized void setBatchLimit(long batchId, long bytesPerSecond) {
+        if (isRunning(batchId)) {
+            batchLimits.put(batchId, bytesPerSecond);
+            redistribute();
+        }
+    }
+
+    private void redistribute() {
+        List<RunningBatch> runningBatches = runningBatches();
+        Collections.sort(runningBatches, BY_LIMIT_PER_WEIGHT);
+
+        long remainingBytesPerSecond = globalBytesPerSecond;
+        int remainingWeight = 0;
+        for (RunningBatch runningBatch : runningBatches) {
+            remainingWeight += runningBatch.weight;
+        }
+
+        for (RunningBatch runningBatch : runningBatches) {
+            long bytesPerSecond = runningBatch.limit;
+            if (globalBytesPerSecond != UNLIMITED) {
+                long share = Math.max(1, remainingBytesPerSecond * runningBatch.weight / remainingWeight);
+                bytesPerSecond = runningBatch.isLimited() ? Math.min(share, runningBatch.limit) : share;
+                remainingBytesPerSecond -= bytesPerSecond;
+                remainingWeight -= runningBatch.weight;
+            }
+            runningBatch.setRate(bytesPerSecond);
+        }
+    }
+
+    private List<RunningBatch> runningBatches() {
+        LongSparseArray<RunningBatch> runningBatches = new LongSparseArray<>();
+        int lowestPriority = Integer.MAX_VALUE;
+        for (Throttle throttle : throttles) {
+            RunningBatch runningBatch = runningBatches.get(throttle.batchId);
+            if (runningBatch == null) {
+                runningBatch = new RunningBatch(batchLimits.get(throttle.batchId, UNLIMITED), throttle.priority);
+                runningBatches.put(throttle.batchId, runningBatch);
+            }
+            runningBatch.throttles.add(throttle);
+            lowestPriority = Math.min(lowestPriority, throttle.priority);
+        }
+
+        List<RunningBatch> batches = new ArrayList<>(runningBatches.size());
+        for (int i = 0; i < runningBatches.size(); i++) {
+            RunningBatch runningBatch = runningBatches.valueAt(i);
+            runningBatch.weight = runningBatch.priority - lowestPriority + 1;
+            batches.add(runningBatch);
+        }
+        return batches;
+    }
+
+    /**
+     * Batches whose limit is the smallest compared to their share come first, so whatever they
+     * leave unused can be shared by the batches after them.
+     */
+    private static final Comparator<RunningBatch> BY_LIMIT_PER_WEIGHT = new Comparator<RunningBatch>() {
+        @Override
+        public int compare(RunningBatch lhs, RunningBatch rhs) {
+            if (!lhs.isLimited() || !rhs.isLimited()) {
+                return compare(!lhs.isLimited(), !rhs.isLimited());
+            }
+            return Double.compare((double) lhs.limit / lhs.weight, (double) rhs.limit / rhs.weight);
+        }
+
+        private int compare(boolean lhs, boolean rhs) {
+            return lhs == rhs ? 0 : (lhs ? 1 : -1);
+        }
+    };
+
+    private static class RunningBatch {
+
+        private final long limit;
+        private final int priority;
+        private final List<Throttle> throttles = new ArrayList<>();
+        private int weight;
+
+        RunningBatch(long limit, int priority) {
+            this.limit = limit;
+            this.priority = priority;
+        }
+
+        boolean isLimited() {
+            return limit != UNLIMITED;
+        }
+
+        void setRate(long bytesPerSecond) {
+            long throttleBytesPerSecond = bytesPerSecond;
+            if (bytesPerSecond != UNLIMITED) {
+                throttleBytesPerSecond = Math.max(1, bytesPerSecond / throttles.size());
+            }
+            for (Throttle throttle : throttles) {
+                throttle.bucket.setRate(throttleBytesPerSecond);
+            }
+        }
+    }
+
+    static final class Throttle {
+
+        private final long batchId;
+        private final int priority;
+        private final TokenBucket bucket;
+
+        Throttle(long batchId, int priority, TokenBucket bucket) {
+            this.batchId = batchId;
+            this.priority = priority;
+            this.bucket = bucket;
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            bucket.acquire(bytes);
+        }
+
+        /**
+         * @return the rate in bytes per second, or {@link #UNLIMITED}
+         */
+        long getRate() {
+            return bucket.getRate();
+        }
+    }
+
+}
@@ -68,8 +68,9 @@ class BatchDeletionRepository {
     }
 
     private void deleteFileAndDownloadsFor(Collection<FileDownloadInfo> downloads, List<Long> batchIdsToDelete) {
-        for (FileDownloadInfo download : downloads) {
-            if (batchIdsToDelete.contains(download.getBatchId())) {
+        DownloadsByBatch downloadsByBatch = DownloadsByBatch.from(downloads);
+        for (Long batchId : batchIdsToDelete) {
+            for (FileDownloadInfo download : downloadsByBatch.getDownloadsFor(batchId)) {
                 downloadDeleter.deleteFileAndDatabaseRow(download);
             }
         }
@@ -9,17 +9,23 @@ class BatchInfo {
     @NotificationVisibility.Value
     private final int visibility;
     private final String extraData;
+    private final int priority;
+    private final long maxBytesPerSecond;
 
     public BatchInfo(String title,
                      String description,
                      String bigPictureUrl,
                      @NotificationVisibility.Value int visibility,
-                     String extraData) {
+                     String extraData,
+                     int priority,
+                     long maxBytesPerSecond) {
         this.title = title;
         this.description = description;
         this.bigPictureUrl = bigPictureUrl;
         this.visibility = visibility;
         this.extraData = extraData;
+        this.priority = priority;
+        this.maxBytesPerSecond = maxBytesPerSecond;
     }
 
     public String getTitle() {
@@ -43,4 +49,12 @@ class BatchInfo {
         return extraData;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
 }
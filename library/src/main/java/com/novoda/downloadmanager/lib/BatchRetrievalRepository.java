@@ -43,9 +43,11 @@ class BatchRetrievalRepository {
     }
 
     private List<DownloadBatch> marshallDownloadBatches(Collection<FileDownloadInfo> downloads, Cursor batchesCursor) {
+        DownloadsByBatch downloadsByBatch = DownloadsByBatch.from(downloads);
         List<DownloadBatch> batches = new ArrayList<>(batchesCursor.getCount());
         while (batchesCursor.moveToNext()) {
-            batches.add(marshallDownloadBatch(downloads, batchesCursor));
+            long id = batchesCursor.getLong(batchesCursor.getColumnIndexOrThrow(DownloadContract.Batches._ID));
+            batches.add(marshallDownloadBatch(downloadsByBatch.getDownloadsFor(id), batchesCursor));
         }
 
         return batches;
@@ -77,7 +79,7 @@ class BatchRetrievalRepository {
         return cursor;
     }
 
-    private DownloadBatch marshallDownloadBatch(Collection<FileDownloadInfo> downloads, Cursor cursor) {
+    private DownloadBatch marshallDownloadBatch(List<FileDownloadInfo> batchDownloads, Cursor cursor) {
         long id = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.Batches._ID));
         String title = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_TITLE));
         String description = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_DESCRIPTION));
@@ -85,16 +87,11 @@ class BatchRetrievalRepository {
         int status = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_STATUS));
         @NotificationVisibility.Value int visibility = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_VISIBILITY));
         String extraData = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_EXTRA_DATA));
+        int priority = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_PRIORITY));
+        long maxBytesPerSecond = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_MAX_BYTES_PER_SECOND));
         long totalSizeBytes = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.BatchesWithSizes.COLUMN_TOTAL_BYTES));
         long currentSizeBytes = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.BatchesWithSizes.COLUMN_CURRENT_BYTES));
-        BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData);
-
-        List<FileDownloadInfo> batchDownloads = new ArrayList<>(1);
-        for (FileDownloadInfo fileDownloadInfo : downloads) {
-            if (fileDownloadInfo.getBatchId() == id) {
-                batchDownloads.add(fileDownloadInfo);
-            }
-        }
+        BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData, priority, maxBytesPerSecond);
 
         return new DownloadBatch(id, batchInfo, batchDownloads, status, totalSizeBytes, currentSizeBytes);
     }
@@ -0,0 +1,120 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Applies the operations of a batch in a single database transaction, for {@link DownloadProvider#applyBatch}.
+ * <p/>
+ * The change notifications and the start of the {@link DownloadService} the operations trigger are held back until
+ * the transaction has been committed, then each of them is delivered once. They are dropped when it is rolled back.
+ * Outside of a batch they are delivered straight away.
+ * <p/>
+ * The downloads changed by a batch are notified together, so observers of the downloads hear about a batch once
+ * however many rows it touched.
+ */
+class BatchTransaction {
+
+    private final ThreadLocal<PendingNotifications> batchNotifications = new ThreadLocal<>();
+    private final Notifier notifier;
+
+    BatchTransaction(Notifier notifier) {
+        this.notifier = notifier;
+    }
+
+    <T> T apply(SQLiteDatabase db, Operations<T> operations) throws OperationApplicationException {
+        PendingNotifications pendingNotifications = new PendingNotifications();
+        T results;
+
+        batchNotifications.set(pendingNotifications);
+        db.beginTransaction();
+        try {
+            results = operations.apply();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            batchNotifications.remove();
+        }
+
+        notifyDownloadsChanged(pendingNotifications.downloadIds);
+        for (Uri uri : pendingNotifications.uris) {
+            notifier.notifyChange(uri);
+        }
+        if (pendingNotifications.startService) {
+            notifier.startDownloadService();
+        }
+        return results;
+    }
+
+    private void notifyDownloadsChanged(Set<Long> downloadIds) {
+        if (downloadIds.contains(null)) {
+            notifier.notifyDownloadsChanged(null);
+        } else if (downloadIds.size() == 1) {
+            notifier.notifyDownloadsChanged(downloadIds.iterator().next());
+        } else if (downloadIds.size() > 1) {
+            notifier.notifySeveralDownloadsChanged(new TreeSet<>(downloadIds));
+        }
+    }
+
+    /**
+     * @param downloadId the download that changed, or null when it may be any of them
+     */
+    void notifyDownloadsChanged(@Nullable Long downloadId) {
+        PendingNotifications pendingNotifications = batchNotifications.get();
+        if (pendingNotifications == null) {
+            notifier.notifyDownloadsChanged(downloadId);
+        } else {
+            pendingNotifications.downloadIds.add(downloadId);
+        }
+    }
+
+    void notifyChange(Uri uri) {
+        PendingNotifications pendingNotifications = batchNotifications.get();
+        if (pendingNotifications == null) {
+            notifier.notifyChange(uri);
+        } else {
+            pendingNotifications.uris.add(uri);
+        }
+    }
+
+    void startDownloadService() {
+        PendingNotifications pendingNotifications = batchNotifications.get();
+        if (pendingNotifications == null) {
+            notifier.startDownloadService();
+        } else {
+            pendingNotifications.startService = true;
+        }
+    }
+
+    interface Operations<T> {
+
+        T apply() throws OperationApplicationException;
+
+    }
+
+    interface Notifier {
+
+        void notifyDownloadsChanged(@Nullable Long downloadId);
+
+        void notifySeveralDownloadsChanged(Set<Long> downloadIds);
+
+        void notifyChange(Uri uri);
+
+        void startDownloadService();
+
+    }
+
+    private static class PendingNotifications {
+        private final Set<Long> downloadIds = new HashSet<>();
+        private final Set<Uri> uris = new LinkedHashSet<>();
+        private boolean startService;
+    }
+
+}
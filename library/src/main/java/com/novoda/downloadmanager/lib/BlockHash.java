@@ -0,0 +1,120 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * A hash computed over 64 byte blocks, such as SHA-256 and MD5.
+ * <p/>
+ * Unlike a {@link java.security.MessageDigest} its state can be exported after every whole block, so it can be saved
+ * and carried on from later. The bytes of a partial block aren't part of that state, they are hashed again on resume.
+ */
+abstract class BlockHash {
+
+    static final int BLOCK_SIZE = 64;
+
+    private static final int LENGTH_SIZE = 8;
+
+    private final int[] state;
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    private int blockLength;
+    private long hashedBytes;
+
+    /**
+     * @param state       the state to start from, either the initial one or one returned by {@link #getState()}
+     * @param hashedBytes the number of bytes the state covers, a multiple of {@link #BLOCK_SIZE}
+     */
+    BlockHash(int[] state, long hashedBytes) {
+        if (hashedBytes % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("State must end on a whole block: " + hashedBytes);
+        }
+        this.state = state.clone();
+        this.hashedBytes = hashedBytes;
+    }
+
+    void update(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            if (blockLength == 0 && length >= BLOCK_SIZE) {
+                processBlock(state, buffer, offset);
+                hashedBytes += BLOCK_SIZE;
+                offset += BLOCK_SIZE;
+                length -= BLOCK_SIZE;
+                continue;
+            }
+            int count = Math.min(BLOCK_SIZE - blockLength, length);
+            System.arraycopy(buffer, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+            if (blockLength == BLOCK_SIZE) {
+                processBlock(state, block, 0);
+                hashedBytes += BLOCK_SIZE;
+                blockLength = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the state after the last whole block, see {@link #getHashedBytes()}
+     */
+    int[] getState() {
+        return state.clone();
+    }
+
+    /**
+     * @return the number of bytes covered by {@link #getState()}
+     */
+    long getHashedBytes() {
+        return hashedBytes;
+    }
+
+    /**
+     * @return the hash of every byte so far, the hash itself carries on unchanged
+     */
+    byte[] digest() {
+        int[] words = state.clone();
+        int paddedLength = blockLength + 1 + LENGTH_SIZE <= BLOCK_SIZE ? BLOCK_SIZE : 2 * BLOCK_SIZE;
+        byte[] padded = new byte[paddedLength];
+        System.arraycopy(block, 0, padded, 0, blockLength);
+        padded[blockLength] = (byte) 0x80;
+        long bitLength = (hashedBytes + blockLength) * 8;
+        for (int i = 0; i < LENGTH_SIZE; i++) {
+            int shift = isBigEndian() ? (LENGTH_SIZE - 1 - i) * 8 : i * 8;
+            padded[paddedLength - LENGTH_SIZE + i] = (byte) (bitLength >>> shift);
+        }
+        for (int offset = 0; offset < paddedLength; offset += BLOCK_SIZE) {
+            processBlock(words, padded, offset);
+        }
+
+        byte[] digest = new byte[words.length * 4];
+        for (int i = 0; i < words.length; i++) {
+            for (int j = 0; j < 4; j++) {
+                int shift = isBigEndian() ? (3 - j) * 8 : j * 8;
+                digest[i * 4 + j] = (byte) (words[i] >>> shift);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Reads the word at the given offset in the byte order of the hash.
+     */
+    final int wordAt(byte[] buffer, int offset) {
+        if (isBigEndian()) {
+            return (buffer[offset] & 0xFF) << 24
+                    | (buffer[offset + 1] & 0xFF) << 16
+                    | (buffer[offset + 2] & 0xFF) << 8
+                    | (buffer[offset + 3] & 0xFF);
+        }
+        return (buffer[offset] & 0xFF)
+                | (buffer[offset + 1] & 0xFF) << 8
+                | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+
+    abstract boolean isBigEndian();
+
+    /**
+     * Updates the state with the block starting at the given offset.
+     */
+    abstract void processBlock(int[] state, byte[] buffer, int offset);
+
+}
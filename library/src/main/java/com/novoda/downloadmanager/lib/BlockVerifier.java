@@ -0,0 +1,216 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.annotation.Nullable;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Checks a download block by block against its manifest, see {@link Request#setBlockChecksums(String, long, List)}.
+ * <p/>
+ * Blocks are checked in order as they are written. A corrupt block is only recorded so the transfer carries on,
+ * it is fetched again on its own once the transfer is done. The progress is kept in the
+ * {@link DownloadContract.Downloads#COLUMN_BLOCK_STATE} format, {@code checked:corrupt,corrupt}.
+ */
+class BlockVerifier {
+
+    private static final String CHECKSUM_SEPARATOR = ",";
+    private static final String STATE_SEPARATOR = ":";
+    private static final String BLOCK_SEPARATOR = ",";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String algorithm;
+    private final long blockSize;
+    private final List<String> expectedChecksums;
+    private final SortedSet<Integer> corruptBlocks = new TreeSet<>();
+
+    private int checkedBlocks;
+    private DownloadDigest blockDigest;
+
+    static String serializeChecksums(List<String> checksums) {
+        StringBuilder builder = new StringBuilder();
+        for (String checksum : checksums) {
+            if (builder.length() > 0) {
+                builder.append(CHECKSUM_SEPARATOR);
+            }
+            builder.append(checksum.trim().toLowerCase(Locale.US));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param savedState a state returned by {@link #saveState()}, or null to start from the first block
+     */
+    static BlockVerifier resume(String algorithm, long blockSize, String checksums, @Nullable String savedState) {
+        BlockVerifier verifier = new BlockVerifier(algorithm, blockSize, Arrays.asList(checksums.split(CHECKSUM_SEPARATOR)));
+        if (savedState == null) {
+            return verifier;
+        }
+
+        try {
+            String[] parts = savedState.split(STATE_SEPARATOR, -1);
+            verifier.checkedBlocks = Integer.parseInt(parts[0]);
+            if (parts.length > 1 && !parts[1].isEmpty()) {
+                for (String block : parts[1].split(BLOCK_SEPARATOR)) {
+                    verifier.corruptBlocks.add(Integer.parseInt(block));
+                }
+            }
+        } catch (NumberFormatException e) {
+            LLog.w("Ignoring unreadable block state " + savedState);
+            verifier.checkedBlocks = 0;
+            verifier.corruptBlocks.clear();
+        }
+        return verifier;
+    }
+
+    BlockVerifier(String algorithm, long blockSize, List<String> expectedChecksums) {
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+        this.expectedChecksums = expectedChecksums;
+    }
+
+    void update(byte[] buffer, int offset, int count) {
+        int localOffset = offset;
+        int remaining = count;
+        while (remaining > 0) {
+            if (blockDigest == null) {
+                blockDigest = DownloadDigest.newInstance(algorithm);
+            }
+            int countInBlock = (int) Math.min(remaining, blockSize - blockDigest.getDigestedBytes());
+            blockDigest.update(buffer, localOffset, countInBlock);
+            localOffset += countInBlock;
+            remaining -= countInBlock;
+            if (blockDigest.getDigestedBytes() == blockSize) {
+                checkBlock();
+            }
+        }
+    }
+
+    private void checkBlock() {
+        int block = checkedBlocks;
+        if (!matches(block, blockDigest.digest())) {
+            LLog.w("Block " + block + " is corrupt");
+            corruptBlocks.add(block);
+        }
+        checkedBlocks++;
+        blockDigest = null;
+    }
+
+    private boolean matches(int block, String checksum) {
+        return block < expectedChecksums.size() && expectedChecksums.get(block).equals(checksum);
+    }
+
+    /**
+     * Checks the blocks of the file written after the saved state, up to the given length.
+     * Blocks past the end of the file, if it got shorter, are checked again once they are written.
+     */
+    void catchUp(File file, long length) throws IOException {
+        int completeBlocks = (int) (length / blockSize);
+        if (checkedBlocks > completeBlocks) {
+            checkedBlocks = completeBlocks;
+            corruptBlocks.tailSet(completeBlocks).clear();
+        }
+        blockDigest = null;
+
+        long position = checkedBlocks * blockSize;
+        if (position >= length) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(position);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            while (position < length) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+                if (count == -1) {
+                    throw new IOException("Unexpected end of " + file + " at byte " + position);
+                }
+                update(buffer, 0, count);
+                position += count;
+            }
+        } finally {
+            IOHelpers.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Checks the last block when it is shorter than the others, to be called once the whole file is written.
+     *
+     * @return whether the file has as many blocks as the manifest
+     */
+    boolean finish() {
+        if (blockDigest != null && blockDigest.getDigestedBytes() > 0) {
+            checkBlock();
+        }
+        return checkedBlocks == expectedChecksums.size();
+    }
+
+    boolean hasCorruptBlocks() {
+        return !corruptBlocks.isEmpty();
+    }
+
+    /**
+     * @return the byte ranges of the corrupt blocks, to be fetched again
+     */
+    List<DownloadSegment> corruptSegments(long totalBytes) {
+        List<DownloadSegment> segments = new ArrayList<>(corruptBlocks.size());
+        for (int block : corruptBlocks) {
+            long startByte = block * blockSize;
+            long endByte = Math.min(startByte + blockSize, totalBytes) - 1;
+            segments.add(new DownloadSegment(startByte, endByte, 0));
+        }
+        return segments;
+    }
+
+    /**
+     * Reads the corrupt blocks back from the file once they have been fetched again, those that match are no longer corrupt.
+     */
+    void recheckCorruptBlocks(File file, long totalBytes) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            for (Integer block : new ArrayList<>(corruptBlocks)) {
+                long position = block * blockSize;
+                long endByte = Math.min(position + blockSize, totalBytes);
+                DownloadDigest digest = DownloadDigest.newInstance(algorithm);
+                in.seek(position);
+                while (position < endByte) {
+                    int count = in.read(buffer, 0, (int) Math.min(buffer.length, endByte - position));
+                    if (count == -1) {
+                        throw new IOException("Unexpected end of " + file + " at byte " + position);
+                    }
+                    digest.update(buffer, 0, count);
+                    position += count;
+                }
+                if (matches(block, digest.digest())) {
+                    corruptBlocks.remove(block);
+                }
+            }
+        } finally {
+            IOHelpers.closeQuietly(in);
+        }
+    }
+
+    String saveState() {
+        StringBuilder builder = new StringBuilder().append(checkedBlocks).append(STATE_SEPARATOR);
+        boolean first = true;
+        for (int block : corruptBlocks) {
+            if (!first) {
+                builder.append(BLOCK_SEPARATOR);
+            }
+            builder.append(block);
+            first = false;
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the response in large chunks, so the space check, the pause and cancel checks and the progress
+ * reporting of the {@link DataWriter}s run once per chunk instead of every few kilobytes.
+ * <p/>
+ * A chunk is handed over once it is full, once the stream ends, or once it has been filling for
+ * {@link #MAX_CHUNK_DELAY_MILLIS}, so slow downloads still report their progress and notice a pause in time.
+ * Its size grows while the network fills it within that time and shrinks back when it doesn't.
+ * <p/>
+ * A stream failing mid-transfer ends the transfer like the end of the stream would, flagging
+ * {@link DownloadTask.State#streamFailed} so the download can reconnect for the remaining bytes.
+ * A writer flagging it, for a stalled stream, ends the transfer the same way.
+ */
+class BulkDataTransferer implements DataTransferer {
+
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+    static final int MAX_CHUNK_SIZE = 512 * 1024;
+    static final long MAX_CHUNK_DELAY_MILLIS = 500;
+
+    private static final long MAX_CHUNK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(MAX_CHUNK_DELAY_MILLIS);
+
+    private final DataWriter dataWriter;
+    private final TokenBucket.Timer timer;
+
+    private byte[] buffer;
+
+    public BulkDataTransferer(DataWriter dataWriter) {
+        this(dataWriter, new TokenBucket.SystemTimer());
+    }
+
+    BulkDataTransferer(DataWriter dataWriter, TokenBucket.Timer timer) {
+        this.dataWriter = dataWriter;
+        this.timer = timer;
+    }
+
+    @Override
+    public DownloadTask.State transferData(DownloadTask.State state, InputStream in) throws StopRequestException {
+        DownloadTask.State newState = state;
+        newState.streamFailed = false;
+        int chunkSize = MIN_CHUNK_SIZE;
+        ensureBufferOf(chunkSize);
+        int count = 0;
+        long chunkStartNanos = timer.nanoTime();
+        try {
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                int read = in.read(buffer, count, chunkSize - count);
+                if (read == Constants.NO_BYTES_READ) {
+                    endOfStream = true;
+                } else {
+                    count += read;
+                }
+
+                boolean chunkOverdue = timer.nanoTime() - chunkStartNanos >= MAX_CHUNK_DELAY_NANOS;
+                if (count > 0 && (endOfStream || count == chunkSize || chunkOverdue)) {
+                    newState = dataWriter.write(newState, buffer, count);
+                    if (newState.streamFailed) {
+                        return newState;
+                    }
+                    chunkSize = nextChunkSize(chunkSize, count);
+                    ensureBufferOf(chunkSize);
+                    count = 0;
+                    chunkStartNanos = timer.nanoTime();
+                }
+            }
+            return newState;
+        } catch (IOException e) {
+            // Same as the end of the stream, but the data already read still has to be written
+            if (count > 0) {
+                newState = dataWriter.write(newState, buffer, count);
+            }
+            newState.streamFailed = true;
+            return newState;
+        }
+    }
+
+    private static int nextChunkSize(int chunkSize, int count) {
+        if (count == chunkSize) {
+            return Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+        }
+        if (count < chunkSize / 4) {
+            return Math.max(chunkSize / 2, MIN_CHUNK_SIZE);
+        }
+        return chunkSize;
+    }
+
+    private void ensureBufferOf(int size) {
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Feeds the bytes written to the file into the checksum and the block manifest of the download, so they are verified
+ * without reading the file again.
+ */
+class ChecksumWriter implements DataWriter {
+
+    private final DataWriter dataWriter;
+
+    public ChecksumWriter(DataWriter dataWriter) {
+        this.dataWriter = dataWriter;
+    }
+
+    @Override
+    public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+        DownloadTask.State localState = dataWriter.write(state, buffer, count);
+        if (localState.digest != null) {
+            localState.digest.update(buffer, 0, count);
+        }
+        if (localState.blockVerifier != null) {
+            localState.blockVerifier.update(buffer, 0, count);
+        }
+        return localState;
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of downloads allowed to run at the same time to the throughput they achieve, AIMD style.
+ * <p/>
+ * While every slot is in use the limit grows by one download per evaluation, as long as the previous
+ * step paid off. A step that didn't raise the combined throughput by {@link #MIN_GAIN} is taken back,
+ * a throughput drop of more than {@link #MAX_LOSS} halves the limit. The limit stays within the bounds
+ * read from the manifest and starts at the lower one.
+ */
+class ConcurrencyController implements DownloadScheduler.ConcurrencyLimit {
+
+    static final long EVALUATION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final double MIN_GAIN = 0.1;
+    private static final double MAX_LOSS = 0.25;
+    private static final int DECREASE_FACTOR = 2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ThroughputMeter throughputMeter;
+    private final ScheduledExecutorService executor;
+    private final ConcurrencyDecisionListener listener;
+
+    private volatile int limit;
+    private long lastThroughput;
+    private boolean increasedLastTime;
+
+    private final Runnable evaluation = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+        }
+    };
+
+    ConcurrencyController(int minLimit,
+                          int maxLimit,
+                          ThroughputMeter throughputMeter,
+                          ScheduledExecutorService executor,
+                          ConcurrencyDecisionListener listener) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.throughputMeter = throughputMeter;
+        this.executor = executor;
+        this.listener = listener;
+        this.limit = minLimit;
+    }
+
+    void start() {
+        executor.scheduleAtFixedRate(evaluation, EVALUATION_INTERVAL_MILLIS, EVALUATION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getConcurrentDownloadsLimit() {
+        return limit;
+    }
+
+    ConcurrencyDecision evaluate() {
+        ConcurrencyDecision decision;
+        synchronized (this) {
+            int runningDownloads = throughputMeter.getRunningDownloads();
+            long throughput = throughputMeter.getAggregateSpeed();
+            int previousLimit = limit;
+
+            if (runningDownloads < limit || throughput == 0) {
+                increasedLastTime = false;
+            } else if (throughput < lastThroughput * (1 - MAX_LOSS)) {
+                limit = Math.max(minLimit, limit / DECREASE_FACTOR);
+                increasedLastTime = false;
+            } else if (increasedLastTime && throughput < lastThroughput * (1 + MIN_GAIN)) {
+                limit = Math.max(minLimit, limit - 1);
+                increasedLastTime = false;
+            } else {
+                limit = Math.min(maxLimit, limit + 1);
+                increasedLastTime = limit > previousLimit;
+            }
+            lastThroughput = throughput;
+
+            decision = new ConcurrencyDecision(actionFor(previousLimit, limit), previousLimit, limit, runningDownloads, throughput);
+        }
+
+        if (decision.getAction() != ConcurrencyDecision.Action.HOLD) {
+            LLog.d("Concurrent downloads limit " + decision.getPreviousLimit() + " -> " + decision.getLimit()
+                           + " at " + decision.getThroughput() + " B/s");
+        }
+        listener.onConcurrencyDecision(decision);
+        return decision;
+    }
+
+    private static ConcurrencyDecision.Action actionFor(int previousLimit, int limit) {
+        if (limit > previousLimit) {
+            return ConcurrencyDecision.Action.INCREASE;
+        }
+        if (limit < previousLimit) {
+            return ConcurrencyDecision.Action.DECREASE;
+        }
+        return ConcurrencyDecision.Action.HOLD;
+    }
+
+}
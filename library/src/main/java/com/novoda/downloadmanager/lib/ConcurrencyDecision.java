@@ -0,0 +1,64 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * The outcome of one evaluation of the adaptive concurrency controller, as delivered to a {@link ConcurrencyDecisionListener}.
+ */
+public final class ConcurrencyDecision {
+
+    public enum Action {
+        INCREASE,
+        DECREASE,
+        HOLD
+    }
+
+    private final Action action;
+    private final int previousLimit;
+    private final int limit;
+    private final int runningDownloads;
+    private final long throughput;
+
+    ConcurrencyDecision(Action action, int previousLimit, int limit, int runningDownloads, long throughput) {
+        this.action = action;
+        this.previousLimit = previousLimit;
+        this.limit = limit;
+        this.runningDownloads = runningDownloads;
+        this.throughput = throughput;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public int getPreviousLimit() {
+        return previousLimit;
+    }
+
+    /**
+     * @return the number of downloads allowed to run at the same time from now on
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getRunningDownloads() {
+        return runningDownloads;
+    }
+
+    /**
+     * @return the combined speed of the running downloads the decision is based on, in bytes per second
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyDecision{"
+                + "action=" + action
+                + ", previousLimit=" + previousLimit
+                + ", limit=" + limit
+                + ", runningDownloads=" + runningDownloads
+                + ", throughput=" + throughput
+                + '}';
+    }
+}
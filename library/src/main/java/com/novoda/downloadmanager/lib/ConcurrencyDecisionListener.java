@@ -0,0 +1,11 @@
+package com.novoda.downloadmanager.lib;
+
+public interface ConcurrencyDecisionListener {
+
+    /**
+     * Called on a background thread every time the adaptive concurrency controller re-evaluates
+     * the number of downloads allowed to run at the same time, whether it changes it or not.
+     */
+    void onConcurrencyDecision(ConcurrencyDecision decision);
+
+}
@@ -0,0 +1,36 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@link ConcurrencyDecisionListener}s of this process, registered through the {@link DownloadManager}.
+ */
+class ConcurrencyDecisionListeners implements ConcurrencyDecisionListener {
+
+    private final List<ConcurrencyDecisionListener> listeners = new CopyOnWriteArrayList<>();
+
+    private static class LazyInitialisationHelper {
+        private static final ConcurrencyDecisionListeners INSTANCE = new ConcurrencyDecisionListeners();
+    }
+
+    static ConcurrencyDecisionListeners getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    void add(ConcurrencyDecisionListener listener) {
+        listeners.add(listener);
+    }
+
+    void remove(ConcurrencyDecisionListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void onConcurrencyDecision(ConcurrencyDecision decision) {
+        for (ConcurrencyDecisionListener listener : listeners) {
+            listener.onConcurrencyDecision(decision);
+        }
+    }
+
+}
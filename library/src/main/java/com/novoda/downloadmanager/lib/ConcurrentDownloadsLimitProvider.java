@@ -10,6 +10,12 @@ class ConcurrentDownloadsLimitProvider {
 
     private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 5;
     private static final String METADATA_MAX_CONCURRENT_DOWNLOADS = "com.novoda.downloadmanager.MaxConcurrentDownloads";
+    private static final String METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH = "com.novoda.downloadmanager.MaxConcurrentDownloadsPerBatch";
+    private static final String METADATA_MAX_CONNECTIONS_PER_HOST = "com.novoda.downloadmanager.MaxConnectionsPerHost";
+    private static final boolean DEFAULT_ADAPTIVE_CONCURRENCY = false;
+    private static final String METADATA_ADAPTIVE_CONCURRENCY = "com.novoda.downloadmanager.AdaptiveConcurrency";
+    private static final int DEFAULT_MIN_CONCURRENT_DOWNLOADS = 1;
+    private static final String METADATA_MIN_CONCURRENT_DOWNLOADS = "com.novoda.downloadmanager.MinConcurrentDownloads";
 
     private final PackageManager packageManager;
     private final String packageName;
@@ -20,20 +26,69 @@ class ConcurrentDownloadsLimitProvider {
     }
 
     public int getConcurrentDownloadsLimit() {
-        try {
-            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
-            return getMaximumConcurrentDownloads(applicationInfo.metaData);
-        } catch (PackageManager.NameNotFoundException e) {
-            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
             return DEFAULT_MAX_CONCURRENT_DOWNLOADS;
         }
+        return metaData.getInt(METADATA_MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
     }
 
-    private int getMaximumConcurrentDownloads(Bundle bundle) {
-        if (bundle == null) {
-            return DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+    /**
+     * A single batch is allowed to use every download slot unless the application restricts it.
+     */
+    public int getConcurrentDownloadsPerBatchLimit() {
+        int concurrentDownloadsLimit = getConcurrentDownloadsLimit();
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return concurrentDownloadsLimit;
+        }
+        int perBatchLimit = metaData.getInt(METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH, concurrentDownloadsLimit);
+        return Math.max(1, Math.min(perBatchLimit, concurrentDownloadsLimit));
+    }
+
+    /**
+     * Downloads from a single host are allowed to use every download slot unless the application restricts it.
+     */
+    public int getConnectionsPerHostLimit() {
+        int concurrentDownloadsLimit = getConcurrentDownloadsLimit();
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return concurrentDownloadsLimit;
+        }
+        int perHostLimit = metaData.getInt(METADATA_MAX_CONNECTIONS_PER_HOST, concurrentDownloadsLimit);
+        return Math.max(1, Math.min(perHostLimit, concurrentDownloadsLimit));
+    }
+
+    /**
+     * When enabled the number of concurrent downloads adapts to the measured throughput,
+     * between {@link #getMinConcurrentDownloadsLimit()} and {@link #getConcurrentDownloadsLimit()}.
+     */
+    public boolean isAdaptiveConcurrencyEnabled() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return DEFAULT_ADAPTIVE_CONCURRENCY;
+        }
+        return metaData.getBoolean(METADATA_ADAPTIVE_CONCURRENCY, DEFAULT_ADAPTIVE_CONCURRENCY);
+    }
+
+    public int getMinConcurrentDownloadsLimit() {
+        int concurrentDownloadsLimit = getConcurrentDownloadsLimit();
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return Math.min(DEFAULT_MIN_CONCURRENT_DOWNLOADS, concurrentDownloadsLimit);
+        }
+        int minLimit = metaData.getInt(METADATA_MIN_CONCURRENT_DOWNLOADS, DEFAULT_MIN_CONCURRENT_DOWNLOADS);
+        return Math.max(1, Math.min(minLimit, concurrentDownloadsLimit));
+    }
+
+    private Bundle getMetaData() {
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
+            return applicationInfo.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+            return null;
         }
-        return bundle.getInt(METADATA_MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
     }
 
 }
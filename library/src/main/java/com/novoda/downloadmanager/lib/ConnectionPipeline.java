@@ -0,0 +1,260 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the request of the next download of a batch while the current one finishes, so its response headers
+ * are already there when the scheduler starts it and its bytes flow straight away.
+ * <p/>
+ * Only downloads starting from scratch are prepared and only a response ready to be transferred is kept,
+ * redirects and errors are left to the download itself. Revalidations are never prepared, their request
+ * is conditional, and neither are downloads claimed by the {@link SmallFileBundler} or downloads the network
+ * policy or the client rules don't let run yet. A response that isn't picked up within {@link #MAX_WAIT_MILLIS},
+ * or that its download ends without taking, is closed.
+ * <p/>
+ * A prepared response holds an extra connection to its host, see {@link DownloadHosts}, until the download
+ * takes it over. Nothing is prepared when the host has no connection to spare.
+ */
+class ConnectionPipeline {
+
+    static final int MAX_PREPARED_DOWNLOADS = 4;
+    static final long NEAR_COMPLETION_BYTES = 256 * 1024;
+
+    private static final long MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    private final HttpTransport httpTransport;
+    private final HostRttEstimator hostRttEstimator;
+    private final DownloadHosts downloadHosts;
+    private final NetworkChecker networkChecker;
+    private final DownloadReadyChecker downloadReadyChecker;
+    private final SmallFileBundler smallFileBundler;
+    private final ExecutorService executor;
+    private final Clock clock;
+    private final boolean enabled;
+
+    private final Map<Long, PreparedResponse> preparedResponses = new HashMap<>();
+    private final Set<Long> preparingDownloads = new HashSet<>();
+
+    ConnectionPipeline(HttpTransport httpTransport,
+                       HostRttEstimator hostRttEstimator,
+                       DownloadHosts downloadHosts,
+                       NetworkChecker networkChecker,
+                       DownloadReadyChecker downloadReadyChecker,
+                       SmallFileBundler smallFileBundler,
+                       ExecutorService executor,
+                       Clock clock,
+                       boolean enabled) {
+        this.httpTransport = httpTransport;
+        this.hostRttEstimator = hostRttEstimator;
+        this.downloadHosts = downloadHosts;
+        this.networkChecker = networkChecker;
+        this.downloadReadyChecker = downloadReadyChecker;
+        this.smallFileBundler = smallFileBundler;
+        this.executor = executor;
+        this.clock = clock;
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Called by a download nearing its end, prepares the pending download of its batch that is most likely to follow.
+     */
+    void prepareNextOf(DownloadBatch batch, long currentDownloadId) {
+        if (!enabled || !downloadReadyChecker.clientAllowsToDownload(batch)) {
+            return;
+        }
+
+        FileDownloadInfo nextDownload;
+        synchronized (this) {
+            closeExpiredResponses();
+            if (preparedResponses.size() + preparingDownloads.size() >= MAX_PREPARED_DOWNLOADS) {
+                return;
+            }
+            nextDownload = nextDownloadOf(batch, currentDownloadId);
+            if (nextDownload == null) {
+                return;
+            }
+            preparingDownloads.add(nextDownload.getId());
+        }
+
+        try {
+            executor.execute(new Prepare(nextDownload));
+        } catch (RejectedExecutionException e) {
+            LLog.w("Connection pipeline is shut down, not preparing download " + nextDownload.getId());
+            synchronized (this) {
+                preparingDownloads.remove(nextDownload.getId());
+            }
+        }
+    }
+
+    private FileDownloadInfo nextDownloadOf(DownloadBatch batch, long currentDownloadId) {
+        FileDownloadInfo nextDownload = null;
+        for (FileDownloadInfo download : batch.getDownloads()) {
+            if (canPrepare(download, currentDownloadId)
+                    && (nextDownload == null || download.getPriority() > nextDownload.getPriority())) {
+                nextDownload = download;
+            }
+        }
+        return nextDownload;
+    }
+
+    private boolean canPrepare(FileDownloadInfo download, long currentDownloadId) {
+        long downloadId = download.getId();
+        return downloadId != currentDownloadId
+                && !DownloadStatus.isCompleted(download.getStatus())
+                && !download.isSubmittedOrRunning()
+                && download.getCurrentBytes() == 0
+                && download.getFileName() == null
+                && !download.isRevalidated()
+                && !preparedResponses.containsKey(downloadId)
+                && !preparingDownloads.contains(downloadId)
+                && !smallFileBundler.isClaimed(download)
+                && networkChecker.checkCanUseNetwork(download) == FileDownloadInfo.NetworkState.OK;
+    }
+
+    /**
+     * @return the response prepared for the download when it was requested from the given URL, or null
+     */
+    HttpURLConnection take(long downloadId, URL url) {
+        PreparedResponse preparedResponse;
+        synchronized (this) {
+            closeExpiredResponses();
+            preparedResponse = preparedResponses.remove(downloadId);
+        }
+        if (preparedResponse == null) {
+            return null;
+        }
+        downloadHosts.releaseExtraConnectionsTo(preparedResponse.host, 1);
+        if (!preparedResponse.url.toString().equals(url.toString())) {
+            preparedResponse.connection.disconnect();
+            return null;
+        }
+        return preparedResponse.connection;
+    }
+
+    /**
+     * Called when a download ends, closes the response prepared for it if it didn't take it.
+     */
+    void discard(long downloadId) {
+        PreparedResponse preparedResponse;
+        synchronized (this) {
+            preparingDownloads.remove(downloadId);
+            preparedResponse = preparedResponses.remove(downloadId);
+        }
+        if (preparedResponse != null) {
+            close(preparedResponse);
+        }
+    }
+
+    private void closeExpiredResponses() {
+        long now = clock.currentTimeMillis();
+        Iterator<PreparedResponse> iterator = preparedResponses.values().iterator();
+        while (iterator.hasNext()) {
+            PreparedResponse preparedResponse = iterator.next();
+            if (now - preparedResponse.preparedAtMillis > MAX_WAIT_MILLIS) {
+                close(preparedResponse);
+                iterator.remove();
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            for (PreparedResponse preparedResponse : preparedResponses.values()) {
+                close(preparedResponse);
+            }
+            preparedResponses.clear();
+        }
+    }
+
+    private void close(PreparedResponse preparedResponse) {
+        preparedResponse.connection.disconnect();
+        downloadHosts.releaseExtraConnectionsTo(preparedResponse.host, 1);
+    }
+
+    private class Prepare implements Runnable {
+
+        private final FileDownloadInfo download;
+
+        Prepare(FileDownloadInfo download) {
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+            String host = downloadHosts.hostOf(download);
+            if (downloadHosts.acquireExtraConnectionsTo(host, 1) == 0) {
+                onPrepared(null);
+                return;
+            }
+
+            HttpURLConnection connection = null;
+            try {
+                URL url = new URL(download.getUri());
+                connection = httpTransport.open(url);
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(hostRttEstimator.connectTimeoutMillisFor(url.getHost()));
+                connection.setReadTimeout(hostRttEstimator.readTimeoutMillisFor(url.getHost()));
+                RequestHeaders.addCommonTo(connection, download);
+
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    onPrepared(new PreparedResponse(host, url, connection, clock.currentTimeMillis()));
+                    return;
+                }
+            } catch (IOException e) {
+                LLog.w("Couldn't prepare download " + download.getId() + ": " + e.getMessage());
+            }
+
+            if (connection != null) {
+                connection.disconnect();
+            }
+            downloadHosts.releaseExtraConnectionsTo(host, 1);
+            onPrepared(null);
+        }
+
+        private void onPrepared(PreparedResponse preparedResponse) {
+            synchronized (ConnectionPipeline.this) {
+                boolean discarded = !preparingDownloads.remove(download.getId());
+                if (preparedResponse != null && !discarded) {
+                    preparedResponses.put(download.getId(), preparedResponse);
+                    return;
+                }
+            }
+            if (preparedResponse != null) {
+                close(preparedResponse);
+            }
+        }
+    }
+
+    private static class PreparedResponse {
+
+        private final String host;
+        private final URL url;
+        private final HttpURLConnection connection;
+        private final long preparedAtMillis;
+
+        PreparedResponse(String host, URL url, HttpURLConnection connection, long preparedAtMillis) {
+            this.host = host;
+            this.url = url;
+            this.connection = connection;
+            this.preparedAtMillis = preparedAtMillis;
+        }
+    }
+
+}
@@ -175,4 +175,19 @@ class Constants {
      * The size used to represent an unkown byte size.
      */
     public static final int UNKNOWN_BYTE_SIZE = -1;
+
+    /**
+     * The maximum number of parallel connections a single download is split into.
+     */
+    public static final int MAX_DOWNLOAD_SEGMENTS = 4;
+
+    /**
+     * The minimum size of a download segment, smaller downloads use a single connection.
+     */
+    public static final long MIN_DOWNLOAD_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * How many times the corrupt blocks of a download are fetched again before it fails.
+     */
+    public static final int MAX_BLOCK_REFETCHES = 3;
 }
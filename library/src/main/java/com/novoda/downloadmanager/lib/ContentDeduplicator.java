@@ -0,0 +1,168 @@
+package com.novoda.downloadmanager.lib;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static com.novoda.downloadmanager.lib.Constants.UNKNOWN_BYTE_SIZE;
+
+/**
+ * Finds a completed download with the same content as another one, so it is reused instead of transferred again.
+ * <p/>
+ * Content is the same when the URI and a strong ETag match, when the checksum the download expects was verified
+ * on a completed one, or when the server answers a revalidation of an earlier version with 304 Not Modified.
+ * It is materialised as a hard link where the platform allows it, the bytes are then stored once and only freed
+ * once the last download linking to them is deleted. Otherwise, or across file systems, it is copied.
+ */
+class ContentDeduplicator {
+
+    private static final String WEAK_ETAG_PREFIX = "W/";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final DownloadsRepository downloadsRepository;
+
+    ContentDeduplicator(DownloadsRepository downloadsRepository) {
+        this.downloadsRepository = downloadsRepository;
+    }
+
+    /**
+     * @return a completed download of the same URI served with the given ETag, or null when there is none
+     */
+    @Nullable
+    FileDownloadInfo findSameContentAs(FileDownloadInfo download, @Nullable String eTag, long contentLength) {
+        if (eTag == null || eTag.startsWith(WEAK_ETAG_PREFIX)) {
+            return null;
+        }
+        for (FileDownloadInfo candidate : downloadsRepository.getCompletedDownloadsOf(download.getUri())) {
+            if (eTag.equals(candidate.getETag())
+                    && (contentLength == UNKNOWN_BYTE_SIZE || contentLength == candidate.getTotalBytes())
+                    && isReusable(candidate, download)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the download could reuse the content of a completed download of the same URI, as far as it is known
+     * before any response: tar updates, DRM conversions and block repairs never reuse content, and without an expected
+     * checksum it takes a strong ETag, so an ETag already known to be weak never matches.
+     */
+    static boolean mayReuseContentOfSameUri(FileDownloadInfo download) {
+        String mimeType = download.getMimeType() == null ? null : DownloadTask.normalizeMimeType(download.getMimeType());
+        if (download.hasBlockChecksums()
+                || download.shouldAllowTarUpdate(mimeType)
+                || DownloadDrmHelper.isDrmConvertNeeded(mimeType)) {
+            return false;
+        }
+        return download.hasExpectedChecksum() || download.getETag() == null || !download.getETag().startsWith(WEAK_ETAG_PREFIX);
+    }
+
+    /**
+     * @return a completed download whose content was verified against the checksum the given one expects,
+     * or null when there is none
+     */
+    @Nullable
+    FileDownloadInfo findSameChecksumAs(FileDownloadInfo download) {
+        if (!download.hasExpectedChecksum()) {
+            return null;
+        }
+        for (FileDownloadInfo candidate : downloadsRepository.getCompletedDownloadsWithChecksum(download.getExpectedChecksum())) {
+            if (download.getChecksumAlgorithm().equals(candidate.getChecksumAlgorithm()) && isReusable(candidate, download)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the most recent completed download of the same URI and destination that has a validator
+     * to revalidate it with, or null when there is none
+     */
+    @Nullable
+    FileDownloadInfo findEarlierVersionOf(FileDownloadInfo download) {
+        for (FileDownloadInfo candidate : downloadsRepository.getCompletedDownloadsOf(download.getUri())) {
+            if (candidate.getDestination() == download.getDestination()
+                    && equals(candidate.getHint(), download.getHint())
+                    && (candidate.getETag() != null || candidate.getHeaderLastModified() != null)
+                    && isReusable(candidate, download)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean equals(@Nullable String lhs, @Nullable String rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
+
+    private static boolean isReusable(FileDownloadInfo candidate, FileDownloadInfo download) {
+        if (candidate.getId() == download.getId() || candidate.getFileName() == null) {
+            return false;
+        }
+        File file = new File(candidate.getFileName());
+        return file.isFile() && file.length() == candidate.getTotalBytes();
+    }
+
+    /**
+     * Replaces the destination with the content of the source download, the destination is left out when it fails.
+     */
+    void materialise(FileDownloadInfo source, String destination) throws IOException {
+        File target = new File(destination);
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Couldn't replace " + destination);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && link(source.getFileName(), destination)) {
+            return;
+        }
+        try {
+            copy(new File(source.getFileName()), target);
+        } catch (IOException e) {
+            if (!target.delete()) {
+                LLog.w("Couldn't delete the partial copy " + destination);
+            }
+            throw e;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean link(String source, String destination) {
+        try {
+            Os.link(source, destination);
+            return true;
+        } catch (ErrnoException e) {
+            LLog.w("Couldn't link " + destination + " to " + source + ", copying it instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(target);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+        } finally {
+            IOHelpers.closeQuietly(in);
+            IOHelpers.closeQuietly(out);
+        }
+    }
+
+}
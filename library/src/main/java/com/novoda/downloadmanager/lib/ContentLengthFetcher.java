@@ -2,14 +2,16 @@ package com.novoda.downloadmanager.lib;
 
 import android.util.Pair;
 
-import com.novoda.downloadmanager.lib.logger.LLog;
-
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.concurrent.TimeUnit;
 
+import static com.novoda.downloadmanager.lib.IOHelpers.closeQuietly;
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED;
 import static java.net.HttpURLConnection.HTTP_OK;
 
 class ContentLengthFetcher {
@@ -20,31 +22,60 @@ class ContentLengthFetcher {
     private static final String HEADER_USER_AGENT = "User-Agent";
     private static final String METHOD_HEAD = "HEAD";
 
-    public long fetchContentLengthFor(FileDownloadInfo info) {
+    private final HttpTransport httpTransport;
+
+    ContentLengthFetcher(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    /**
+     * @return the content length, or {@link Constants#UNKNOWN_BYTE_SIZE} when the server doesn't support HEAD requests
+     * or answers them without one
+     * @throws IOException when the server couldn't be reached or answered with any other error, such as a 503 or a 429
+     */
+    public long fetchContentLengthFor(FileDownloadInfo info) throws IOException {
         HttpURLConnection conn = null;
         try {
-            conn = (HttpURLConnection) new URL(info.getUri()).openConnection();
+            conn = httpTransport.open(new URL(info.getUri()));
             conn.setInstanceFollowRedirects(true);
             conn.setConnectTimeout(TIMEOUT_MILLIS);
             conn.setReadTimeout(TIMEOUT_MILLIS);
             conn.setRequestMethod(METHOD_HEAD);
             addRequestHeaders(info, conn);
 
-            if (conn.getResponseCode() == HTTP_OK) {
-                return getHeaderFieldLong(conn, HEADER_CONTENT_LENGTH, UNKNOWN_CONTENT_LENGTH);
-            } else {
-                return UNKNOWN_CONTENT_LENGTH;
+            int responseCode = conn.getResponseCode();
+            closeResponseBody(conn, responseCode);
+            switch (responseCode) {
+                case HTTP_OK:
+                    return getHeaderFieldLong(conn, HEADER_CONTENT_LENGTH, UNKNOWN_CONTENT_LENGTH);
+                case HTTP_BAD_METHOD:
+                case HTTP_NOT_IMPLEMENTED:
+                    return UNKNOWN_CONTENT_LENGTH;
+                default:
+                    throw new IOException("HEAD request answered with " + responseCode);
             }
-
-        } catch (IOException e) {
-            LLog.e("Could not fetch content length.");
         } finally {
             if (conn != null) {
                 conn.disconnect();
             }
         }
+    }
 
-        return UNKNOWN_CONTENT_LENGTH;
+    /**
+     * A HEAD response has no body, but the connection only goes back to the pool once its body stream is closed,
+     * {@link HttpURLConnection#disconnect()} on its own closes the socket.
+     */
+    private static void closeResponseBody(HttpURLConnection conn, int responseCode) {
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            closeQuietly(conn.getErrorStream());
+            return;
+        }
+        try {
+            InputStream body = conn.getInputStream();
+            closeQuietly(body);
+        } catch (IOException e) {
+            // nothing to release
+        }
     }
 
     private static long getHeaderFieldLong(URLConnection conn, String field, long defaultValue) {
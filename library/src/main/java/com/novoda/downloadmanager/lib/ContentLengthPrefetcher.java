@@ -0,0 +1,162 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Fetches the size of the downloads that don't know it yet with a few HEAD requests in parallel,
+ * without ever making the update thread wait for them.
+ * <p/>
+ * The sizes are written in a single transaction once the running fetches are done, or every
+ * {@link #MAX_RESULTS_PER_COMMIT} sizes while many downloads are being fetched.
+ * <p/>
+ * A HEAD request holds an extra connection to its host, see {@link DownloadHosts}. A download whose host has
+ * no connection to spare is fetched on a later pass.
+ */
+class ContentLengthPrefetcher {
+
+    static final int MAX_PARALLEL_FETCHES = 4;
+    static final int MAX_RESULTS_PER_COMMIT = 50;
+
+    private final ContentLengthFetcher contentLengthFetcher;
+    private final DownloadsRepository downloadsRepository;
+    private final HeadUnsupportedHosts headUnsupportedHosts;
+    private final DownloadHosts downloadHosts;
+    private final ExecutorService executor;
+
+    private final Set<Long> fetchedDownloadIds = new HashSet<>();
+    private LongSparseArray<Long> pendingTotalBytes = new LongSparseArray<>();
+    private int runningFetches;
+
+    ContentLengthPrefetcher(ContentLengthFetcher contentLengthFetcher,
+                            DownloadsRepository downloadsRepository,
+                            HeadUnsupportedHosts headUnsupportedHosts,
+                            DownloadHosts downloadHosts,
+                            ExecutorService executor) {
+        this.contentLengthFetcher = contentLengthFetcher;
+        this.downloadsRepository = downloadsRepository;
+        this.headUnsupportedHosts = headUnsupportedHosts;
+        this.downloadHosts = downloadHosts;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts fetching the size of the downloads not fetched yet, each download is only fetched once unless its fetch failed.
+     * The downloads that have ended since the last pass are forgotten.
+     */
+    void prefetchFor(Collection<FileDownloadInfo> downloads) {
+        Set<Long> waitingDownloadIds = new HashSet<>();
+        for (FileDownloadInfo downloadInfo : downloads) {
+            if (!hasEnded(downloadInfo)) {
+                waitingDownloadIds.add(downloadInfo.getId());
+            }
+        }
+        synchronized (this) {
+            fetchedDownloadIds.retainAll(waitingDownloadIds);
+        }
+
+        for (FileDownloadInfo downloadInfo : downloads) {
+            if (downloadInfo.hasTotalBytes() || hasEnded(downloadInfo)) {
+                continue;
+            }
+            String host = hostOf(downloadInfo);
+            if (host == null || headUnsupportedHosts.contains(host)) {
+                continue;
+            }
+            synchronized (this) {
+                if (!fetchedDownloadIds.add(downloadInfo.getId())) {
+                    continue;
+                }
+                runningFetches++;
+            }
+            executor.execute(new Fetch(downloadInfo, host));
+        }
+    }
+
+    private static boolean hasEnded(FileDownloadInfo downloadInfo) {
+        int status = downloadInfo.getStatus();
+        return DownloadStatus.isCompleted(status) || DownloadStatus.isCancelled(status) || DownloadStatus.isDeleting(status);
+    }
+
+    private static String hostOf(FileDownloadInfo downloadInfo) {
+        try {
+            return new URL(downloadInfo.getUri()).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    private void onFetched(long downloadId, long totalBytes) {
+        LongSparseArray<Long> totalBytesToWrite = null;
+        synchronized (this) {
+            runningFetches--;
+            if (totalBytes != Constants.UNKNOWN_BYTE_SIZE) {
+                pendingTotalBytes.put(downloadId, totalBytes);
+            }
+            boolean commitDue = runningFetches == 0 || pendingTotalBytes.size() >= MAX_RESULTS_PER_COMMIT;
+            if (commitDue && pendingTotalBytes.size() > 0) {
+                totalBytesToWrite = pendingTotalBytes;
+                pendingTotalBytes = new LongSparseArray<>();
+            }
+        }
+
+        if (totalBytesToWrite != null) {
+            downloadsRepository.updateTotalBytes(totalBytesToWrite);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class Fetch implements Runnable {
+
+        private final FileDownloadInfo downloadInfo;
+        private final String host;
+
+        Fetch(FileDownloadInfo downloadInfo, String host) {
+            this.downloadInfo = downloadInfo;
+            this.host = host;
+        }
+
+        @Override
+        public void run() {
+            String connectedHost = downloadHosts.hostOf(downloadInfo);
+            if (downloadHosts.acquireExtraConnectionsTo(connectedHost, 1) == 0) {
+                fetchOnALaterPass();
+                onFetched(downloadInfo.getId(), Constants.UNKNOWN_BYTE_SIZE);
+                return;
+            }
+
+            long totalBytes = Constants.UNKNOWN_BYTE_SIZE;
+            try {
+                totalBytes = contentLengthFetcher.fetchContentLengthFor(downloadInfo);
+                if (totalBytes == Constants.UNKNOWN_BYTE_SIZE) {
+                    headUnsupportedHosts.add(host);
+                }
+            } catch (IOException e) {
+                LLog.w("Could not fetch content length of download " + downloadInfo.getId() + ": " + e.getMessage());
+                fetchOnALaterPass();
+            } finally {
+                downloadHosts.releaseExtraConnectionsTo(connectedHost, 1);
+                onFetched(downloadInfo.getId(), totalBytes);
+            }
+        }
+
+        private void fetchOnALaterPass() {
+            synchronized (ContentLengthPrefetcher.this) {
+                fetchedDownloadIds.remove(downloadInfo.getId());
+            }
+        }
+    }
+
+}
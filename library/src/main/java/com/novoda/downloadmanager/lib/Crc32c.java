@@ -0,0 +1,63 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), which {@link java.util.zip} only provides from Java 9.
+ * <p/>
+ * Unlike a {@link java.security.MessageDigest} its whole state is its value, so it can be saved
+ * and carried on from later.
+ */
+class Crc32c implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int crc;
+
+    Crc32c() {
+        this(0);
+    }
+
+    /**
+     * @param value a value returned by {@link #getValue()}, to carry on from
+     */
+    Crc32c(long value) {
+        crc = ~(int) value;
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        int localCrc = crc;
+        for (int i = offset; i < offset + length; i++) {
+            localCrc = (localCrc >>> 8) ^ TABLE[(localCrc ^ buffer[i]) & 0xFF];
+        }
+        crc = localCrc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = ~0;
+    }
+
+}
@@ -133,6 +133,9 @@ class CursorTranslator extends CursorWrapper {
             case DownloadStatus.FILE_ALREADY_EXISTS_ERROR:
                 return DownloadManager.ERROR_FILE_ALREADY_EXISTS;
 
+            case DownloadStatus.CHECKSUM_MISMATCH:
+                return DownloadManager.ERROR_CHECKSUM_MISMATCH;
+
             default:
                 return DownloadManager.ERROR_UNKNOWN;
         }
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.support.annotation.NonNull;
 
 import com.novoda.downloadmanager.lib.logger.LLog;
@@ -20,13 +21,162 @@ final class DatabaseHelper extends SQLiteOpenHelper {
     /**
      * Current database version
      */
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 10;
 
     private static final String VERSION_ONE_TO_VERSION_TWO_MIGRATION_SCRIPT = "ALTER TABLE "
             + DownloadContract.Batches.BATCHES_TABLE_NAME
             + " ADD "
             + DownloadContract.Batches.COLUMN_HAS_STARTED + " BOOLEAN NOT NULL DEFAULT 0;";
 
+    private static final String[] VERSION_TWO_TO_VERSION_THREE_MIGRATION_SCRIPTS = new String[]{
+            "ALTER TABLE "
+                    + DownloadContract.Batches.BATCHES_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Batches.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0;"
+    };
+
+    private static final String VERSION_THREE_TO_VERSION_FOUR_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_SEGMENTS + " TEXT;";
+
+    /**
+     * Indexes for the columns the download service and the batch queries filter and group on.
+     * The batch id index also covers the byte counts summed up by the batches with sizes view.
+     */
+    private static final String[] CREATE_INDEXES_SCRIPTS = new String[]{
+            "CREATE INDEX IF NOT EXISTS downloads_batch_id_index ON "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "("
+                    + DownloadContract.Downloads.COLUMN_BATCH_ID + ", "
+                    + DownloadContract.Downloads.COLUMN_CURRENT_BYTES + ", "
+                    + DownloadContract.Downloads.COLUMN_TOTAL_BYTES + ");",
+            "CREATE INDEX IF NOT EXISTS downloads_status_index ON "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "("
+                    + DownloadContract.Downloads.COLUMN_STATUS + ", "
+                    + DownloadContract.Downloads.COLUMN_CONTROL + ", "
+                    + DownloadContract.Downloads.COLUMN_BATCH_ID + ");",
+            "CREATE INDEX IF NOT EXISTS downloads_deleted_index ON "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "("
+                    + DownloadContract.Downloads.COLUMN_DELETED + ");",
+            "CREATE INDEX IF NOT EXISTS batches_deleted_index ON "
+                    + DownloadContract.Batches.BATCHES_TABLE_NAME + "("
+                    + DownloadContract.Batches.COLUMN_DELETED + ");",
+            "CREATE INDEX IF NOT EXISTS request_headers_download_id_index ON "
+                    + DownloadContract.RequestHeaders.HEADERS_DB_TABLE + "("
+                    + DownloadContract.RequestHeaders.COLUMN_DOWNLOAD_ID + ");"
+    };
+
+    private static final String[] VERSION_FIVE_TO_VERSION_SIX_MIGRATION_SCRIPTS = new String[]{
+            "ALTER TABLE "
+                    + DownloadContract.Batches.BATCHES_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Batches.COLUMN_DOWNLOADS_CURRENT_BYTES + " INTEGER NOT NULL DEFAULT 0;",
+            "ALTER TABLE "
+                    + DownloadContract.Batches.BATCHES_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Batches.COLUMN_DOWNLOADS_TOTAL_BYTES + " INTEGER NOT NULL DEFAULT 0;",
+            "UPDATE " + DownloadContract.Batches.BATCHES_TABLE_NAME + " SET "
+                    + DownloadContract.Batches.COLUMN_DOWNLOADS_CURRENT_BYTES + " = "
+                    + "(SELECT IFNULL(SUM(" + DownloadContract.Downloads.COLUMN_CURRENT_BYTES + "), 0)"
+                    + " FROM " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " WHERE " + DownloadContract.Downloads.COLUMN_BATCH_ID + " = " + DownloadContract.Batches.BATCHES_TABLE_NAME + "." + DownloadContract.Batches._ID + "), "
+                    + DownloadContract.Batches.COLUMN_DOWNLOADS_TOTAL_BYTES + " = "
+                    + "(SELECT IFNULL(SUM(" + DownloadContract.Downloads.COLUMN_TOTAL_BYTES + "), 0)"
+                    + " FROM " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " WHERE " + DownloadContract.Downloads.COLUMN_BATCH_ID + " = " + DownloadContract.Batches.BATCHES_TABLE_NAME + "." + DownloadContract.Batches._ID + ");"
+    };
+
+    private static final String VERSION_SIX_TO_VERSION_SEVEN_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Batches.BATCHES_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Batches.COLUMN_MAX_BYTES_PER_SECOND + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String[] VERSION_SEVEN_TO_VERSION_EIGHT_MIGRATION_SCRIPTS = new String[]{
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM + " TEXT;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM + " TEXT;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_CHECKSUM + " TEXT;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_CHECKSUM_STATE + " TEXT;"
+    };
+
+    private static final String[] VERSION_EIGHT_TO_VERSION_NINE_MIGRATION_SCRIPTS = new String[]{
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUM_ALGORITHM + " TEXT;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_BLOCK_SIZE + " INTEGER NOT NULL DEFAULT 0;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUMS + " TEXT;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_BLOCK_STATE + " TEXT;"
+    };
+
+    private static final String[] VERSION_NINE_TO_VERSION_TEN_MIGRATION_SCRIPTS = new String[]{
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_REVALIDATE + " INTEGER NOT NULL DEFAULT 0;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_HEADER_LAST_MODIFIED + " TEXT;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_BYTES_SAVED + " INTEGER NOT NULL DEFAULT 0;"
+    };
+
+    /**
+     * Keep the byte counts of every batch in step with its downloads, so reading the
+     * batch sizes doesn't have to sum up the downloads table.
+     */
+    private static final String[] CREATE_BATCH_SIZES_TRIGGERS_SCRIPTS = new String[]{
+            "CREATE TRIGGER IF NOT EXISTS downloads_insert_batch_sizes AFTER INSERT ON "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " BEGIN "
+                    + updateBatchSizesBy("+", "NEW")
+                    + " END;",
+            "CREATE TRIGGER IF NOT EXISTS downloads_delete_batch_sizes AFTER DELETE ON "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " BEGIN "
+                    + updateBatchSizesBy("-", "OLD")
+                    + " END;",
+            "CREATE TRIGGER IF NOT EXISTS downloads_update_batch_sizes AFTER UPDATE OF "
+                    + DownloadContract.Downloads.COLUMN_CURRENT_BYTES + ", "
+                    + DownloadContract.Downloads.COLUMN_TOTAL_BYTES + ", "
+                    + DownloadContract.Downloads.COLUMN_BATCH_ID
+                    + " ON " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " WHEN OLD." + DownloadContract.Downloads.COLUMN_CURRENT_BYTES + " != NEW." + DownloadContract.Downloads.COLUMN_CURRENT_BYTES
+                    + " OR OLD." + DownloadContract.Downloads.COLUMN_TOTAL_BYTES + " != NEW." + DownloadContract.Downloads.COLUMN_TOTAL_BYTES
+                    + " OR OLD." + DownloadContract.Downloads.COLUMN_BATCH_ID + " IS NOT NEW." + DownloadContract.Downloads.COLUMN_BATCH_ID
+                    + " BEGIN "
+                    + updateBatchSizesBy("-", "OLD")
+                    + updateBatchSizesBy("+", "NEW")
+                    + " END;"
+    };
+
     /**
      * columns to request from DownloadProvider.
      */
@@ -46,6 +196,8 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             DownloadContract.Downloads.COLUMN_NOTIFICATION_EXTRAS,
             DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "." + DownloadContract.Downloads.COLUMN_EXTRA_DATA,
             DownloadContract.Downloads.COLUMN_BATCH_ID,
+            DownloadContract.Downloads.COLUMN_CHECKSUM,
+            DownloadContract.Downloads.COLUMN_BYTES_SAVED,
             DownloadContract.Batches.COLUMN_TITLE,
             DownloadContract.Batches.COLUMN_DESCRIPTION,
             DownloadContract.Batches.COLUMN_BIG_PICTURE,
@@ -86,6 +238,20 @@ final class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context, String dbName) {
         super(context, dbName, null, DB_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Write-ahead logging lets the download threads keep writing progress while other threads read.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     /**
@@ -101,6 +267,8 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         createDownloadsByBatchView(db);
         createDownloadsWithoutProgressView(db);
         createBatchesWithoutProgressView(db);
+        createIndexes(db);
+        createBatchSizesTriggers(db);
         makeCacheDownloadsInvisible(db);
     }
 
@@ -113,9 +281,33 @@ final class DatabaseHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, final int newVersion) {
-        if (oldVersion == 1 && newVersion == 2) {
+        if (oldVersion < 2 && newVersion >= 2) {
             upgradeFromVersionOneToVersionTwo(db);
         }
+        if (oldVersion < 3 && newVersion >= 3) {
+            upgradeFromVersionTwoToVersionThree(db);
+        }
+        if (oldVersion < 4 && newVersion >= 4) {
+            upgradeFromVersionThreeToVersionFour(db);
+        }
+        if (oldVersion < 5 && newVersion >= 5) {
+            upgradeFromVersionFourToVersionFive(db);
+        }
+        if (oldVersion < 6 && newVersion >= 6) {
+            upgradeFromVersionFiveToVersionSix(db);
+        }
+        if (oldVersion < 7 && newVersion >= 7) {
+            upgradeFromVersionSixToVersionSeven(db);
+        }
+        if (oldVersion < 8 && newVersion >= 8) {
+            upgradeFromVersionSevenToVersionEight(db);
+        }
+        if (oldVersion < 9 && newVersion >= 9) {
+            upgradeFromVersionEightToVersionNine(db);
+        }
+        if (oldVersion < 10 && newVersion >= 10) {
+            upgradeFromVersionNineToVersionTen(db);
+        }
     }
 
     private void upgradeFromVersionOneToVersionTwo(@NonNull SQLiteDatabase db) {
@@ -127,6 +319,101 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void upgradeFromVersionTwoToVersionThree(@NonNull SQLiteDatabase db) {
+        try {
+            for (String script : VERSION_TWO_TO_VERSION_THREE_MIGRATION_SCRIPTS) {
+                db.execSQL(script);
+            }
+        } catch (SQLException ex) {
+            LLog.e("couldn't update tables in downloads database to v3");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionThreeToVersionFour(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_THREE_TO_VERSION_FOUR_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v4");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionFourToVersionFive(@NonNull SQLiteDatabase db) {
+        try {
+            createIndexes(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't create indexes in downloads database for v5");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionFiveToVersionSix(@NonNull SQLiteDatabase db) {
+        try {
+            for (String script : VERSION_FIVE_TO_VERSION_SIX_MIGRATION_SCRIPTS) {
+                db.execSQL(script);
+            }
+            createBatchSizesTriggers(db);
+            createBatchesWithSizesView(db);
+            createDownloadsByBatchView(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update tables in downloads database to v6");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionSixToVersionSeven(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_SIX_TO_VERSION_SEVEN_MIGRATION_SCRIPT);
+            createBatchesWithSizesView(db);
+            createDownloadsByBatchView(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v7");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionSevenToVersionEight(@NonNull SQLiteDatabase db) {
+        try {
+            for (String script : VERSION_SEVEN_TO_VERSION_EIGHT_MIGRATION_SCRIPTS) {
+                db.execSQL(script);
+            }
+            createDownloadsByBatchView(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v8");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionEightToVersionNine(@NonNull SQLiteDatabase db) {
+        try {
+            for (String script : VERSION_EIGHT_TO_VERSION_NINE_MIGRATION_SCRIPTS) {
+                db.execSQL(script);
+            }
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v9");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionNineToVersionTen(@NonNull SQLiteDatabase db) {
+        try {
+            for (String script : VERSION_NINE_TO_VERSION_TEN_MIGRATION_SCRIPTS) {
+                db.execSQL(script);
+            }
+            createDownloadsByBatchView(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v10");
+            throw ex;
+        }
+    }
+
+    private void createIndexes(SQLiteDatabase db) {
+        for (String script : CREATE_INDEXES_SCRIPTS) {
+            db.execSQL(script);
+        }
+    }
+
     /**
      * Creates the table that'll hold the download information.
      */
@@ -171,6 +458,19 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                             + DownloadContract.Downloads.COLUMN_EXTRA_DATA + " TEXT, "
                             + DownloadContract.Downloads.COLUMN_ALWAYS_RESUME + " INTEGER NOT NULL DEFAULT 0, "
                             + DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_SEGMENTS + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_CHECKSUM + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_CHECKSUM_STATE + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUM_ALGORITHM + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_BLOCK_SIZE + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUMS + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_BLOCK_STATE + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_REVALIDATE + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_HEADER_LAST_MODIFIED + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_BYTES_SAVED + " INTEGER NOT NULL DEFAULT 0, "
                             + Constants.MEDIA_SCANNED + " BOOLEAN);"
             );
         } catch (SQLException ex) {
@@ -214,7 +514,11 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                         + DownloadContract.Batches.COLUMN_DELETED + " BOOLEAN NOT NULL DEFAULT 0,"
                         + DownloadContract.Batches.COLUMN_EXTRA_DATA + " TEXT,"
                         + DownloadContract.Batches.COLUMN_LAST_MODIFICATION + " TEXT,"
-                        + DownloadContract.Batches.COLUMN_HAS_STARTED + " BOOLEAN NOT NULL DEFAULT 0"
+                        + DownloadContract.Batches.COLUMN_HAS_STARTED + " BOOLEAN NOT NULL DEFAULT 0,"
+                        + DownloadContract.Batches.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0,"
+                        + DownloadContract.Batches.COLUMN_MAX_BYTES_PER_SECOND + " INTEGER NOT NULL DEFAULT 0,"
+                        + DownloadContract.Batches.COLUMN_DOWNLOADS_CURRENT_BYTES + " INTEGER NOT NULL DEFAULT 0,"
+                        + DownloadContract.Batches.COLUMN_DOWNLOADS_TOTAL_BYTES + " INTEGER NOT NULL DEFAULT 0"
                         + ");"
         );
     }
@@ -232,28 +536,40 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         );
     }
 
+    /**
+     * Only batches with downloads are listed, their sizes are read from the counters kept by the batch sizes triggers.
+     */
     private void createBatchesWithSizesView(SQLiteDatabase db) {
         db.execSQL("DROP VIEW IF EXISTS " + DownloadContract.BatchesWithSizes.VIEW_NAME_BATCHES_WITH_SIZES);
         db.execSQL(
                 "CREATE VIEW " + DownloadContract.BatchesWithSizes.VIEW_NAME_BATCHES_WITH_SIZES
-                        + " AS SELECT DISTINCT "
+                        + " AS SELECT "
                         + DownloadContract.Batches.BATCHES_TABLE_NAME + ".*, "
-                        + DownloadContract.BatchesWithSizes.COLUMN_CURRENT_BYTES + ", "
-                        + DownloadContract.BatchesWithSizes.COLUMN_TOTAL_BYTES
+                        + DownloadContract.Batches.COLUMN_DOWNLOADS_CURRENT_BYTES + " AS " + DownloadContract.BatchesWithSizes.COLUMN_CURRENT_BYTES + ", "
+                        + "MAX(" + DownloadContract.Batches.COLUMN_DOWNLOADS_TOTAL_BYTES + ", -1) AS " + DownloadContract.BatchesWithSizes.COLUMN_TOTAL_BYTES
                         + " FROM " + DownloadContract.Batches.BATCHES_TABLE_NAME
-                        + " INNER JOIN "
-                        + "  (SELECT "
-                        + "    " + DownloadContract.Downloads.COLUMN_BATCH_ID + ","
-                        + "    SUM(" + DownloadContract.Downloads.COLUMN_CURRENT_BYTES + ") AS " + DownloadContract.BatchesWithSizes.COLUMN_CURRENT_BYTES + ","
-                        + "    MAX(SUM(" + DownloadContract.Downloads.COLUMN_TOTAL_BYTES + "), -1) AS " + DownloadContract.BatchesWithSizes.COLUMN_TOTAL_BYTES
-                        + "    FROM " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
-                        + "    GROUP BY " + DownloadContract.Downloads.COLUMN_BATCH_ID
-                        + "  ) " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
-                        + " ON " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "." + DownloadContract.Downloads.COLUMN_BATCH_ID
-                        + " = " + DownloadContract.Batches.BATCHES_TABLE_NAME + "." + DownloadContract.Batches._ID + ";"
+                        + " WHERE EXISTS "
+                        + "  (SELECT 1 FROM " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                        + "    WHERE " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "." + DownloadContract.Downloads.COLUMN_BATCH_ID
+                        + "    = " + DownloadContract.Batches.BATCHES_TABLE_NAME + "." + DownloadContract.Batches._ID + ");"
         );
     }
 
+    private void createBatchSizesTriggers(SQLiteDatabase db) {
+        for (String script : CREATE_BATCH_SIZES_TRIGGERS_SCRIPTS) {
+            db.execSQL(script);
+        }
+    }
+
+    private static String updateBatchSizesBy(String operator, String row) {
+        return "UPDATE " + DownloadContract.Batches.BATCHES_TABLE_NAME + " SET "
+                + DownloadContract.Batches.COLUMN_DOWNLOADS_CURRENT_BYTES + " = " + DownloadContract.Batches.COLUMN_DOWNLOADS_CURRENT_BYTES
+                + " " + operator + " " + row + "." + DownloadContract.Downloads.COLUMN_CURRENT_BYTES + ", "
+                + DownloadContract.Batches.COLUMN_DOWNLOADS_TOTAL_BYTES + " = " + DownloadContract.Batches.COLUMN_DOWNLOADS_TOTAL_BYTES
+                + " " + operator + " " + row + "." + DownloadContract.Downloads.COLUMN_TOTAL_BYTES
+                + " WHERE " + DownloadContract.Batches._ID + " = " + row + "." + DownloadContract.Downloads.COLUMN_BATCH_ID + ";";
+    }
+
     private void createDownloadsWithoutProgressView(SQLiteDatabase db) {
         db.execSQL("DROP VIEW IF EXISTS " + DownloadContract.DownloadsWithoutProgress.VIEW_NAME_DOWNLOADS_WITHOUT_PROGRESS);
         db.execSQL(
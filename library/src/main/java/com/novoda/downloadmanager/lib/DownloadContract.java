@@ -78,7 +78,7 @@ final class DownloadContract {
          * The name of the column containing the date at which some interesting
          * status changed in the download. Stored as a System.currentTimeMillis()
          * value.
-         * <P>Type: BIGINT</P>
+         * <P>Type: INTEGER</P>
          * <P>Owner can Read</P>
          */
         public static final String COLUMN_LAST_MODIFICATION = "last_modified_timestamp";
@@ -259,6 +259,92 @@ final class DownloadContract {
          */
         public static final String COLUMN_ALLOW_TAR_UPDATES = "allow_tar_updates";
 
+        /**
+         * The scheduling priority of this download within its batch, higher values are started first.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_PRIORITY = "priority";
+
+        /**
+         * The byte ranges this download is being fetched in, with the progress of each one,
+         * encoded as {@code start-end:current} separated by commas. Null for single connection downloads.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_SEGMENTS = "segments";
+
+        /**
+         * The algorithm of {@link #COLUMN_EXPECTED_CHECKSUM}, one of the {@code DownloadManager.CHECKSUM_*} values.
+         * Null when the download isn't verified.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_CHECKSUM_ALGORITHM = "checksum_algorithm";
+
+        /**
+         * The checksum the downloaded file must match, as lowercase hex.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_EXPECTED_CHECKSUM = "expected_checksum";
+
+        /**
+         * The checksum computed while downloading, as lowercase hex. Set once the download is verified.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_CHECKSUM = "checksum";
+
+        /**
+         * The state of the checksum computed so far, encoded as {@code bytes:value}, so a resumed
+         * download carries on hashing from there. Null when the state can't be saved.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_CHECKSUM_STATE = "checksum_state";
+
+        /**
+         * The algorithm of {@link #COLUMN_BLOCK_CHECKSUMS}, one of the {@code DownloadManager.CHECKSUM_*} values.
+         * Null when the download has no block manifest.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_BLOCK_CHECKSUM_ALGORITHM = "block_checksum_algorithm";
+
+        /**
+         * The size of the blocks of {@link #COLUMN_BLOCK_CHECKSUMS}, only the last block can be shorter.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_BLOCK_SIZE = "block_size";
+
+        /**
+         * The checksum of every block of the download in order, as lowercase hex separated by commas.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_BLOCK_CHECKSUMS = "block_checksums";
+
+        /**
+         * The number of blocks checked so far and the ones found corrupt,
+         * encoded as {@code checked:corrupt,corrupt}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_BLOCK_STATE = "block_state";
+
+        /**
+         * Whether the download is sent as a conditional request against an earlier completed download
+         * of the same URI and destination, taking its content when the server answers it is unchanged.
+         * <P>Type: BOOLEAN</P>
+         */
+        public static final String COLUMN_REVALIDATE = "revalidate";
+
+        /**
+         * The Last-Modified header of the response, sent back as If-Modified-Since when revalidating.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_HEADER_LAST_MODIFIED = "header_last_modified";
+
+        /**
+         * The number of bytes that didn't have to be transferred because the content of a completed
+         * download was reused.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_BYTES_SAVED = "bytes_saved";
+
         private Downloads() {
             // non-instantiable class
         }
@@ -327,7 +413,7 @@ final class DownloadContract {
          * The name of the column containing the date at which some interesting
          * status changed in the batch. Stored as a System.currentTimeMillis()
          * value.
-         * <P>Type: BIGINT</P>
+         * <P>Type: INTEGER</P>
          * <P>Owner can Read</P>
          */
         public static final String COLUMN_LAST_MODIFICATION = "last_modified_timestamp";
@@ -339,6 +425,34 @@ final class DownloadContract {
          */
         public static final String COLUMN_HAS_STARTED = "batch_has_started";
 
+        /**
+         * The scheduling priority of this batch, higher values are started first.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_PRIORITY = "batch_priority";
+
+        /**
+         * The maximum download speed of this batch in bytes per second, 0 when it isn't limited.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read/Write</P>
+         */
+        public static final String COLUMN_MAX_BYTES_PER_SECOND = "batch_max_bytes_per_second";
+
+        /**
+         * The sum of the current bytes of the downloads in this batch, kept up to date by the database.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Read</P>
+         */
+        public static final String COLUMN_DOWNLOADS_CURRENT_BYTES = "downloads_current_bytes";
+
+        /**
+         * The sum of the total bytes of the downloads in this batch, kept up to date by the database.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Read</P>
+         */
+        public static final String COLUMN_DOWNLOADS_TOTAL_BYTES = "downloads_total_bytes";
+
         /**
          * One of the values taken by {@link DownloadContract.Batches#COLUMN_DELETED}.
          * This value is used when the batch is marked as deleted and will be actually removed soon.
@@ -0,0 +1,110 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the pause and cancel requests of the downloads running in this process, so running tasks
+ * can check them on every chunk they write without querying the database.
+ * <p/>
+ * The {@link DownloadProvider} updates it whenever the control, status or deleted flag of a running download is written,
+ * and cancels running downloads before their rows are deleted.
+ */
+class DownloadControlRegistry {
+
+    private final ConcurrentHashMap<Long, Control> runningDownloads = new ConcurrentHashMap<>();
+
+    private static class LazyInitialisationHelper {
+        private static final DownloadControlRegistry INSTANCE = new DownloadControlRegistry();
+    }
+
+    static DownloadControlRegistry getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    /**
+     * @return the control of the download, to be polled until the download is unregistered
+     */
+    Control register(long downloadId) {
+        Control control = new Control();
+        runningDownloads.put(downloadId, control);
+        return control;
+    }
+
+    void unregister(long downloadId, Control control) {
+        runningDownloads.remove(downloadId, control);
+    }
+
+    boolean hasRunningDownloads() {
+        return !runningDownloads.isEmpty();
+    }
+
+    void pause(long downloadId) {
+        Control control = runningDownloads.get(downloadId);
+        if (control != null) {
+            control.paused = true;
+        }
+    }
+
+    void resume(long downloadId) {
+        Control control = runningDownloads.get(downloadId);
+        if (control != null) {
+            control.paused = false;
+        }
+    }
+
+    /**
+     * Applies a write of the control, status or deleted flag of a download, canceling it when
+     * it is canceled, deleted or being deleted.
+     */
+    void update(long downloadId, @Nullable Integer control, @Nullable Integer status, @Nullable Integer deleted) {
+        if (control != null) {
+            if (control == DownloadsControl.CONTROL_PAUSED) {
+                pause(downloadId);
+            } else {
+                resume(downloadId);
+            }
+        }
+        if (cancels(status, deleted)) {
+            cancel(downloadId);
+        }
+    }
+
+    static boolean changesControl(@Nullable Integer control, @Nullable Integer status, @Nullable Integer deleted) {
+        return control != null || cancels(status, deleted);
+    }
+
+    private static boolean cancels(@Nullable Integer status, @Nullable Integer deleted) {
+        return (status != null && (status == DownloadStatus.CANCELED || status == DownloadStatus.DELETING))
+                || (deleted != null && deleted == 1);
+    }
+
+    void cancel(long downloadId) {
+        Control control = runningDownloads.get(downloadId);
+        if (control != null) {
+            control.canceled = true;
+        }
+    }
+
+    static final class Control {
+
+        private volatile boolean paused;
+        private volatile boolean canceled;
+
+        boolean isPaused() {
+            return paused;
+        }
+
+        boolean isCanceled() {
+            return canceled;
+        }
+
+        void update(FileDownloadInfo.ControlStatus controlStatus) {
+            paused = paused || controlStatus.isPaused();
+            canceled = canceled || controlStatus.isCanceled();
+        }
+
+    }
+
+}
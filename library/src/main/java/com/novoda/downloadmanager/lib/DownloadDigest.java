@@ -0,0 +1,175 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * The checksum of the bytes of a download written so far, for {@link Request#setExpectedChecksum(String, String)}.
+ * <p/>
+ * Its state can be saved at progress checkpoints and carried on from there when the download resumes, whatever
+ * the algorithm: a CRC32C is saved as it is, a SHA-256 or MD5 up to its last whole block, see {@link BlockHash}.
+ * Whatever the saved state doesn't cover is read back from the file, see {@link #catchUp(File, long)}.
+ */
+class DownloadDigest {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int CATCH_UP_BUFFER_SIZE = 64 * 1024;
+    private static final String STATE_SEPARATOR = ":";
+    private static final String WORD_SEPARATOR = ",";
+
+    private final Crc32c crc32c;
+    private final BlockHash blockHash;
+
+    private long digestedBytes;
+
+    static boolean isSupported(String algorithm) {
+        return DownloadManager.CHECKSUM_SHA_256.equals(algorithm)
+                || DownloadManager.CHECKSUM_MD5.equals(algorithm)
+                || DownloadManager.CHECKSUM_CRC32C.equals(algorithm);
+    }
+
+    static DownloadDigest newInstance(String algorithm) {
+        if (DownloadManager.CHECKSUM_CRC32C.equals(algorithm)) {
+            return new DownloadDigest(new Crc32c(), null, 0);
+        }
+        if (DownloadManager.CHECKSUM_SHA_256.equals(algorithm)) {
+            return new DownloadDigest(null, new Sha256(), 0);
+        }
+        if (DownloadManager.CHECKSUM_MD5.equals(algorithm)) {
+            return new DownloadDigest(null, new Md5(), 0);
+        }
+        throw new IllegalStateException("Checksum algorithm not available: " + algorithm);
+    }
+
+    /**
+     * @param savedState a state returned by {@link #saveState()}, or null
+     * @return the digest carrying on from the saved state, or starting over when there's no usable state
+     */
+    static DownloadDigest resume(String algorithm, String savedState) {
+        if (savedState == null) {
+            return newInstance(algorithm);
+        }
+        String[] parts = savedState.split(STATE_SEPARATOR);
+        try {
+            long digestedBytes = Long.parseLong(parts[0]);
+            if (parts.length == 2 && digestedBytes >= 0) {
+                DownloadDigest digest = resume(algorithm, digestedBytes, parts[1]);
+                if (digest != null) {
+                    return digest;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        LLog.w("Ignoring unreadable checksum state " + savedState);
+        return newInstance(algorithm);
+    }
+
+    private static DownloadDigest resume(String algorithm, long digestedBytes, String value) {
+        if (DownloadManager.CHECKSUM_CRC32C.equals(algorithm)) {
+            return new DownloadDigest(new Crc32c(Long.parseLong(value)), null, digestedBytes);
+        }
+        if (digestedBytes % BlockHash.BLOCK_SIZE != 0) {
+            return null;
+        }
+        String[] words = value.split(WORD_SEPARATOR);
+        int[] state = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            state[i] = (int) Long.parseLong(words[i], 16);
+        }
+        if (DownloadManager.CHECKSUM_SHA_256.equals(algorithm) && state.length == Sha256.INITIAL_STATE.length) {
+            return new DownloadDigest(null, new Sha256(state, digestedBytes), digestedBytes);
+        }
+        if (DownloadManager.CHECKSUM_MD5.equals(algorithm) && state.length == Md5.INITIAL_STATE.length) {
+            return new DownloadDigest(null, new Md5(state, digestedBytes), digestedBytes);
+        }
+        return null;
+    }
+
+    private DownloadDigest(Crc32c crc32c, BlockHash blockHash, long digestedBytes) {
+        this.crc32c = crc32c;
+        this.blockHash = blockHash;
+        this.digestedBytes = digestedBytes;
+    }
+
+    void update(byte[] buffer, int offset, int count) {
+        if (crc32c != null) {
+            crc32c.update(buffer, offset, count);
+        } else {
+            blockHash.update(buffer, offset, count);
+        }
+        digestedBytes += count;
+    }
+
+    long getDigestedBytes() {
+        return digestedBytes;
+    }
+
+    /**
+     * Digests the bytes of the file this digest hasn't seen yet, up to the given length.
+     */
+    void catchUp(File file, long length) throws IOException {
+        if (digestedBytes >= length) {
+            return;
+        }
+        LLog.d("Reading back " + (length - digestedBytes) + " bytes of " + file + " to resume its checksum");
+        byte[] buffer = new byte[CATCH_UP_BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            long skipped = in.skip(digestedBytes);
+            if (skipped != digestedBytes) {
+                throw new IOException("Couldn't skip to byte " + digestedBytes + " of " + file);
+            }
+            while (digestedBytes < length) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, length - digestedBytes));
+                if (count == -1) {
+                    throw new IOException("Unexpected end of " + file + " at byte " + digestedBytes);
+                }
+                update(buffer, 0, count);
+            }
+        } finally {
+            IOHelpers.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the state to resume from, encoded as {@code bytes:value} where the value of a SHA-256 or MD5 is
+     * its state words in hex
+     */
+    String saveState() {
+        if (crc32c != null) {
+            return digestedBytes + STATE_SEPARATOR + crc32c.getValue();
+        }
+        StringBuilder state = new StringBuilder().append(blockHash.getHashedBytes()).append(STATE_SEPARATOR);
+        int[] words = blockHash.getState();
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) {
+                state.append(WORD_SEPARATOR);
+            }
+            state.append(Integer.toHexString(words[i]));
+        }
+        return state.toString();
+    }
+
+    /**
+     * @return the checksum as lowercase hex
+     */
+    String digest() {
+        if (crc32c != null) {
+            return String.format(Locale.US, "%08x", crc32c.getValue());
+        }
+        byte[] bytes = blockHash.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.novoda.downloadmanager.lib;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Knows which host a download will connect to and which hosts have a kept-alive connection waiting
+ * to be reused, so the {@link DownloadScheduler} can limit the connections per host and hand those
+ * connections to the next download of the same host.
+ * <p/>
+ * A host that redirected a download is assumed to redirect the following ones to the same host.
+ * <p/>
+ * It also counts the connections open to each host at runtime: one per running download, plus the extra
+ * connections of segmented downloads, prepared responses and HEAD requests. Extra connections are only
+ * granted within the connections per host limit, which the scheduler applies to the downloads it starts.
+ */
+class DownloadHosts {
+
+    private final Clock clock;
+    private final Map<String, String> redirectedHosts = new ConcurrentHashMap<>();
+    private final Map<String, Deque<Long>> idleConnections = new HashMap<>();
+    private final Map<String, Integer> downloadConnections = new HashMap<>();
+    private final Map<String, Integer> extraConnections = new HashMap<>();
+
+    private int maxConnectionsPerHost = Integer.MAX_VALUE;
+
+    private static class LazyInitialisationHelper {
+        private static final DownloadHosts INSTANCE = new DownloadHosts(new Clock());
+    }
+
+    static DownloadHosts getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    DownloadHosts(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return the host the download will end up connecting to, or null when its URI has none
+     */
+    String hostOf(FileDownloadInfo download) {
+        String host = hostOf(download.getUri());
+        if (host == null) {
+            return null;
+        }
+        String redirectedHost = redirectedHosts.get(host);
+        return redirectedHost == null ? host : redirectedHost;
+    }
+
+    private static String hostOf(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        try {
+            return new URL(uri).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    void onRedirected(String originalUri, URL redirectedUrl) {
+        String host = hostOf(originalUri);
+        if (host == null) {
+            return;
+        }
+        if (host.equals(redirectedUrl.getHost())) {
+            redirectedHosts.remove(host);
+        } else {
+            redirectedHosts.put(host, redirectedUrl.getHost());
+        }
+    }
+
+    synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Counts the connection of a download started by the scheduler, to be released with {@link #onDownloadStopped(String)}.
+     */
+    synchronized void onDownloadStarted(String host) {
+        if (host == null) {
+            return;
+        }
+        increment(downloadConnections, host, 1);
+    }
+
+    synchronized void onDownloadStopped(String host) {
+        if (host == null) {
+            return;
+        }
+        increment(downloadConnections, host, -1);
+    }
+
+    /**
+     * @return how many of the wanted connections can be opened to the host without going over the limit,
+     * to be released with {@link #releaseExtraConnectionsTo(String, int)}
+     */
+    synchronized int acquireExtraConnectionsTo(String host, int wanted) {
+        if (host == null) {
+            return wanted;
+        }
+        int free = maxConnectionsPerHost - count(downloadConnections, host) - count(extraConnections, host);
+        int granted = Math.max(0, Math.min(wanted, free));
+        increment(extraConnections, host, granted);
+        return granted;
+    }
+
+    synchronized void releaseExtraConnectionsTo(String host, int count) {
+        if (host == null) {
+            return;
+        }
+        increment(extraConnections, host, -count);
+    }
+
+    /**
+     * @return the connections open to the host besides the one of each running download
+     */
+    synchronized int extraConnectionsTo(String host) {
+        return count(extraConnections, host);
+    }
+
+    private static int count(Map<String, Integer> connections, String host) {
+        Integer count = connections.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> connections, String host, int delta) {
+        int count = count(connections, host) + delta;
+        if (count <= 0) {
+            connections.remove(host);
+        } else {
+            connections.put(host, count);
+        }
+    }
+
+    /**
+     * Called once a download is done with its connection, which stays in the pool for
+     * {@link PooledHttpTransport#KEEP_ALIVE_DURATION_MILLIS}.
+     */
+    synchronized void onConnectionReleased(String host) {
+        Deque<Long> releaseTimes = idleConnections.get(host);
+        if (releaseTimes == null) {
+            releaseTimes = new ArrayDeque<>();
+            idleConnections.put(host, releaseTimes);
+        }
+        releaseTimes.addLast(clock.currentTimeMillis());
+    }
+
+    synchronized boolean hasIdleConnectionTo(String host) {
+        Deque<Long> releaseTimes = idleConnections.get(host);
+        if (releaseTimes == null) {
+            return false;
+        }
+        long oldestAlive = clock.currentTimeMillis() - PooledHttpTransport.KEEP_ALIVE_DURATION_MILLIS;
+        while (!releaseTimes.isEmpty() && releaseTimes.peekFirst() < oldestAlive) {
+            releaseTimes.removeFirst();
+        }
+        if (releaseTimes.isEmpty()) {
+            idleConnections.remove(host);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the most recently released connection to the host, so it is offered to a single download.
+     */
+    synchronized void claimIdleConnectionTo(String host) {
+        if (hasIdleConnectionTo(host)) {
+            idleConnections.get(host).removeLast();
+        }
+    }
+
+}
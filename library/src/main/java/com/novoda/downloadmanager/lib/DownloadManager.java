@@ -17,15 +17,19 @@
 package com.novoda.downloadmanager.lib;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
 import android.text.TextUtils;
@@ -37,6 +41,8 @@ import com.novoda.downloadmanager.notifications.NotificationVisibility;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The download manager is a system service that handles long-running HTTP downloads. Clients may
@@ -186,6 +192,33 @@ public class DownloadManager {
      */
     public static final String COLUMN_MEDIAPROVIDER_URI = DownloadContract.Downloads.COLUMN_MEDIAPROVIDER_URI;
 
+    /**
+     * The checksum computed while downloading, as lowercase hex. Null unless the download was
+     * requested with {@link Request#setExpectedChecksum(String, String)} and has completed.
+     */
+    public static final String COLUMN_CHECKSUM = DownloadContract.Downloads.COLUMN_CHECKSUM;
+
+    /**
+     * The number of bytes that didn't have to be downloaded because the content of an earlier
+     * download was reused, see {@link Request#revalidate()}.
+     */
+    public static final String COLUMN_BYTES_SAVED = DownloadContract.Downloads.COLUMN_BYTES_SAVED;
+
+    /**
+     * SHA-256 algorithm for {@link Request#setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_SHA_256 = "SHA-256";
+
+    /**
+     * MD5 algorithm for {@link Request#setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_MD5 = "MD5";
+
+    /**
+     * CRC32C algorithm for {@link Request#setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_CRC32C = "CRC32C";
+
     /**
      * Value of {@link #COLUMN_STATUS} when the download is waiting to start.
      */
@@ -275,6 +308,12 @@ public class DownloadManager {
      */
     public static final int ERROR_FILE_ALREADY_EXISTS = 1009;
 
+    /**
+     * Value of {@link #COLUMN_REASON} when the downloaded file doesn't match the checksum it was
+     * requested with.
+     */
+    public static final int ERROR_CHECKSUM_MISMATCH = 1010;
+
     /**
      * Value of {@link #COLUMN_REASON} when the download is paused because some network error
      * occurred and the download manager is waiting before retrying the request.
@@ -393,6 +432,8 @@ public class DownloadManager {
             DownloadContract.Downloads.COLUMN_BATCH_ID,
             DownloadContract.Downloads.COLUMN_EXTRA_DATA,
             DownloadContract.Downloads.COLUMN_NOTIFICATION_EXTRAS,
+            DownloadContract.Downloads.COLUMN_CHECKSUM,
+            DownloadContract.Downloads.COLUMN_BYTES_SAVED,
             DownloadContract.Batches.COLUMN_TITLE,
             DownloadContract.Batches.COLUMN_DESCRIPTION,
             DownloadContract.Batches.COLUMN_BIG_PICTURE,
@@ -408,8 +449,21 @@ public class DownloadManager {
             "'placeholder' AS " + COLUMN_REASON
     };
 
+    /**
+     * The default minimum time between two progress updates of a {@link DownloadProgressListener}.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 500;
+
+    /**
+     * The value of a download speed limit that doesn't limit anything.
+     */
+    public static final long UNLIMITED_BYTES_PER_SECOND = BandwidthLimiter.UNLIMITED;
+
     //CHECKSTYLE END IGNORE MagicNumber
 
+    private static final int BATCH_OPERATION_INDEX = 0;
+    private static final int FIRST_DOWNLOAD_OPERATION_INDEX = 1;
+
     private final ContentResolver contentResolver;
     private final DownloadsUriProvider downloadsUriProvider;
     private final SystemFacade systemFacade;
@@ -545,16 +599,8 @@ public class DownloadManager {
      * calls related to this download.
      */
     public long enqueue(Request request) {
-        RequestBatch batch = request.asBatch();
-        long batchId = insert(batch);
-        request.setBatchId(batchId);
-        return insert(request);
-    }
-
-    private long insert(Request request) {
-        ContentValues values = request.toContentValues();
-        Uri downloadUri = contentResolver.insert(downloadsUriProvider.getContentUri(), values);
-        return ContentUris.parseId(downloadUri);
+        ContentProviderResult[] results = insert(request.asBatch());
+        return ContentUris.parseId(results[FIRST_DOWNLOAD_OPERATION_INDEX].uri);
     }
 
     /**
@@ -695,6 +741,68 @@ public class DownloadManager {
         return new CursorTranslator(cursor, downloadsUriProvider.getBatchesUri(), statusTranslator);
     }
 
+    /**
+     * Receive the progress of running downloads as it happens, without querying the database.
+     * Updates are delivered on the main thread, at most once per download every {@link #DEFAULT_PROGRESS_INTERVAL_MILLIS}.
+     *
+     * @param listener the listener to notify, until it is removed with {@link #removeProgressListener(DownloadProgressListener)}
+     */
+    public void addProgressListener(DownloadProgressListener listener) {
+        addProgressListener(listener, DEFAULT_PROGRESS_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Receive the progress of running downloads as it happens, without querying the database.
+     * Updates are delivered on the main thread, progress reported in between is coalesced to the latest one.
+     *
+     * @param listener          the listener to notify, until it is removed with {@link #removeProgressListener(DownloadProgressListener)}
+     * @param minIntervalMillis the minimum time between two updates of the same listener
+     */
+    public void addProgressListener(DownloadProgressListener listener, long minIntervalMillis) {
+        DownloadProgressStream.getInstance().subscribe(listener, minIntervalMillis);
+    }
+
+    public void removeProgressListener(DownloadProgressListener listener) {
+        DownloadProgressStream.getInstance().unsubscribe(listener);
+    }
+
+    /**
+     * Observe the adaptive concurrency controller, enabled with the {@code com.novoda.downloadmanager.AdaptiveConcurrency}
+     * manifest meta-data. The listener receives every decision, including the ones leaving the limit unchanged.
+     *
+     * @param listener the listener to notify, until it is removed with {@link #removeConcurrencyDecisionListener(ConcurrencyDecisionListener)}
+     */
+    public void addConcurrencyDecisionListener(ConcurrencyDecisionListener listener) {
+        ConcurrencyDecisionListeners.getInstance().add(listener);
+    }
+
+    public void removeConcurrencyDecisionListener(ConcurrencyDecisionListener listener) {
+        ConcurrencyDecisionListeners.getInstance().remove(listener);
+    }
+
+    /**
+     * Limits the combined download speed of every download, the running downloads slow down straight away.
+     * The bandwidth is shared between the batches downloading, batches with a higher priority get a larger share.
+     *
+     * @param bytesPerSecond the maximum speed, or {@link #UNLIMITED_BYTES_PER_SECOND}
+     */
+    public void setMaxBytesPerSecond(long bytesPerSecond) {
+        BandwidthLimiter.getInstance().setGlobalLimit(bytesPerSecond);
+    }
+
+    /**
+     * Changes the limit set with {@link RequestBatch.Builder#withMaxBytesPerSecond(long)},
+     * the running downloads of the batch slow down straight away.
+     *
+     * @param bytesPerSecond the maximum speed of the batch, or {@link #UNLIMITED_BYTES_PER_SECOND}
+     */
+    public void setBatchMaxBytesPerSecond(long batchId, long bytesPerSecond) {
+        ContentValues values = new ContentValues(1);
+        values.put(DownloadContract.Batches.COLUMN_MAX_BYTES_PER_SECOND, bytesPerSecond);
+        contentResolver.update(downloadsUriProvider.getSingleBatchUri(batchId), values, null, null);
+        BandwidthLimiter.getInstance().setBatchLimit(batchId, bytesPerSecond);
+    }
+
     /**
      * Open a downloaded file for reading.  The download must have completed.
      *
@@ -819,6 +927,7 @@ public class DownloadManager {
         values.put(DownloadContract.Downloads.COLUMN_CURRENT_BYTES, 0);
         values.put(DownloadContract.Downloads.COLUMN_TOTAL_BYTES, -1);
         values.putNull(DownloadContract.Downloads.COLUMN_DATA);
+        values.putNull(DownloadContract.Downloads.COLUMN_SEGMENTS);
         values.put(DownloadContract.Downloads.COLUMN_STATUS, DownloadStatus.PENDING);
         values.put(DownloadContract.Downloads.COLUMN_FAILED_CONNECTIONS, 0);
         contentResolver.update(baseUri, values, getWhereClauseFor(ids, DownloadContract.Downloads._ID), longArrayToStringArray(ids));
@@ -1002,33 +1111,55 @@ public class DownloadManager {
 
     /**
      * Enqueue a new download batch.
+     * <p/>
+     * The batch, its downloads and their headers are inserted in a single transaction, observers are notified
+     * once it has been committed, so batches of thousands of downloads can be enqueued at once.
      *
      * @param batch the parameters specifying this batch
      * @return an ID for the batch, unique across the system.  This ID is used to make future
      * calls related to this batch.
      */
     public long enqueue(RequestBatch batch) {
-        long batchId = insert(batch);
-        for (Request request : batch.getRequests()) {
-            request.setBatchId(batchId);
-            insert(request);
-        }
-        notifyBatchesHaveChanged();
-
-        return batchId;
+        ContentProviderResult[] results = insert(batch);
+        return ContentUris.parseId(results[BATCH_OPERATION_INDEX].uri);
     }
 
-    private void notifyBatchesHaveChanged() {
-        contentResolver.notifyChange(getBatchesUri(), null);
-        contentResolver.notifyChange(getBatchesWithoutProgressUri(), null);
-    }
+    /**
+     * @return the result of the batch insert followed by the results of the download inserts, in request order
+     */
+    private ContentProviderResult[] insert(RequestBatch batch) {
+        List<Request> requests = batch.getRequests();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(requests.size() + 1);
 
-    private long insert(RequestBatch batch) {
-        ContentValues values = batch.toContentValues();
-        values.put(DownloadContract.Batches.COLUMN_STATUS, DownloadStatus.PENDING);
-        values.put(DownloadContract.Batches.COLUMN_LAST_MODIFICATION, systemFacade.currentTimeMillis());
-        Uri batchUri = contentResolver.insert(downloadsUriProvider.getBatchesUri(), values);
-        return ContentUris.parseId(batchUri);
+        ContentValues batchValues = batch.toContentValues();
+        batchValues.put(DownloadContract.Batches.COLUMN_STATUS, DownloadStatus.PENDING);
+        batchValues.put(DownloadContract.Batches.COLUMN_LAST_MODIFICATION, systemFacade.currentTimeMillis());
+        operations.add(ContentProviderOperation.newInsert(downloadsUriProvider.getBatchesUri()).withValues(batchValues).build());
+        for (Request request : requests) {
+            ContentValues downloadValues = request.toContentValues();
+            if (batch.isRevalidated()) {
+                downloadValues.put(DownloadContract.Downloads.COLUMN_REVALIDATE, true);
+            }
+            operations.add(
+                    ContentProviderOperation.newInsert(downloadsUriProvider.getContentUri())
+                            .withValues(downloadValues)
+                            .withValueBackReference(DownloadContract.Downloads.COLUMN_BATCH_ID, BATCH_OPERATION_INDEX)
+                            .build()
+            );
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = contentResolver.applyBatch(DownloadProvider.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IllegalStateException("Failed to enqueue a batch of " + requests.size() + " downloads", e);
+        }
+
+        long batchId = ContentUris.parseId(results[BATCH_OPERATION_INDEX].uri);
+        for (Request request : requests) {
+            request.setBatchId(batchId);
+        }
+        return results;
     }
 
     public Uri getDownloadsWithoutProgressUri() {
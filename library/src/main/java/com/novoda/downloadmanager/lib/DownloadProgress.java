@@ -0,0 +1,68 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * The latest known progress of a download, as delivered to a {@link DownloadProgressListener}.
+ */
+public final class DownloadProgress {
+
+    private final long batchId;
+    private final long downloadId;
+    private final long currentBytes;
+    private final long totalBytes;
+    private final long speed;
+    private final int status;
+
+    DownloadProgress(long batchId, long downloadId, long currentBytes, long totalBytes, long speed, int status) {
+        this.batchId = batchId;
+        this.downloadId = downloadId;
+        this.currentBytes = currentBytes;
+        this.totalBytes = totalBytes;
+        this.speed = speed;
+        this.status = status;
+    }
+
+    public long getBatchId() {
+        return batchId;
+    }
+
+    public long getDownloadId() {
+        return downloadId;
+    }
+
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return the size of the download in bytes, or -1 when it isn't known yet
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the current download speed in bytes per second
+     */
+    public long getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return one of the {@link DownloadManager} {@code STATUS_} values
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadProgress{"
+                + "batchId=" + batchId
+                + ", downloadId=" + downloadId
+                + ", currentBytes=" + currentBytes
+                + ", totalBytes=" + totalBytes
+                + ", speed=" + speed
+                + ", status=" + status
+                + '}';
+    }
+}
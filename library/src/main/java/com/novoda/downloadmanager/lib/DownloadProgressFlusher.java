@@ -0,0 +1,146 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the progress of all the running downloads and writes it to the database from a single
+ * background thread, so downloading threads never wait on the database.
+ * <p/>
+ * Progress reported within a tick is coalesced to the latest value per download and written in one
+ * transaction, observers are notified once for all of its downloads after it is committed.
+ */
+class DownloadProgressFlusher {
+
+    static final long FLUSH_INTERVAL_MILLIS = Constants.MIN_PROGRESS_TIME;
+
+    private final DownloadsRepository downloadsRepository;
+    private final ScheduledExecutorService executor;
+    private final Object writeLock = new Object();
+
+    private LongSparseArray<Long> pendingCurrentBytes = new LongSparseArray<>();
+    private LongSparseArray<String> pendingChecksumStates = new LongSparseArray<>();
+    private LongSparseArray<String> pendingBlockStates = new LongSparseArray<>();
+    private boolean flushScheduled;
+    private boolean shutDown;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    DownloadProgressFlusher(DownloadsRepository downloadsRepository, ScheduledExecutorService executor) {
+        this.downloadsRepository = downloadsRepository;
+        this.executor = executor;
+    }
+
+    /**
+     * Can be called from any thread, it replaces any progress of the same download not written yet.
+     */
+    void offer(long downloadId, long currentBytes) {
+        synchronized (this) {
+            pendingCurrentBytes.put(downloadId, currentBytes);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        scheduleFlush(downloadId);
+    }
+
+    /**
+     * Same as {@link #offer(long, long)} for the saved state of the checksum of a download.
+     */
+    void offerChecksumState(long downloadId, String checksumState) {
+        synchronized (this) {
+            pendingChecksumStates.put(downloadId, checksumState);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        scheduleFlush(downloadId);
+    }
+
+    /**
+     * Same as {@link #offer(long, long)} for the checked blocks of a download.
+     */
+    void offerBlockState(long downloadId, String blockState) {
+        synchronized (this) {
+            pendingBlockStates.put(downloadId, blockState);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        scheduleFlush(downloadId);
+    }
+
+    private void scheduleFlush(long downloadId) {
+        try {
+            executor.schedule(flush, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LLog.w("Progress flusher is shut down, dropping progress of download " + downloadId);
+        }
+    }
+
+    private void flush() {
+        synchronized (writeLock) {
+            LongSparseArray<Long> currentBytesToWrite;
+            LongSparseArray<String> checksumStatesToWrite;
+            LongSparseArray<String> blockStatesToWrite;
+            synchronized (this) {
+                currentBytesToWrite = pendingCurrentBytes;
+                checksumStatesToWrite = pendingChecksumStates;
+                blockStatesToWrite = pendingBlockStates;
+                pendingCurrentBytes = new LongSparseArray<>();
+                pendingChecksumStates = new LongSparseArray<>();
+                pendingBlockStates = new LongSparseArray<>();
+                flushScheduled = false;
+            }
+
+            if (currentBytesToWrite.size() > 0 || checksumStatesToWrite.size() > 0 || blockStatesToWrite.size() > 0) {
+                downloadsRepository.updateProgress(currentBytesToWrite, checksumStatesToWrite, blockStatesToWrite);
+            }
+        }
+    }
+
+    /**
+     * Drops the progress of a download not written yet, waiting for a write already in progress, so the state
+     * a download writes when it stops is never overwritten by older progress. Called from the downloading thread.
+     */
+    void discard(long downloadId) {
+        synchronized (writeLock) {
+            synchronized (this) {
+                pendingCurrentBytes.remove(downloadId);
+                pendingChecksumStates.remove(downloadId);
+                pendingBlockStates.remove(downloadId);
+            }
+        }
+    }
+
+    /**
+     * Writes the progress not written yet and stops the background thread. Calling it again does nothing.
+     */
+    void shutdown() {
+        synchronized (this) {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+        }
+        executor.execute(flush);
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,11 @@
+package com.novoda.downloadmanager.lib;
+
+public interface DownloadProgressListener {
+
+    /**
+     * Called on the main thread with the latest progress of a download, progress reported since
+     * the previous call for the same download is coalesced into this one.
+     */
+    void onDownloadProgress(DownloadProgress progress);
+
+}
@@ -0,0 +1,148 @@
+package com.novoda.downloadmanager.lib;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers the progress reported by the running downloads to the {@link DownloadProgressListener}s
+ * of this process, without going through the database.
+ * <p/>
+ * Every listener receives at most one update per download per interval, carrying the latest progress.
+ */
+class DownloadProgressStream {
+
+    private final Scheduler scheduler;
+    private final PublicFacingStatusTranslator statusTranslator;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private static class LazyInitialisationHelper {
+        private static final DownloadProgressStream INSTANCE = new DownloadProgressStream(
+                new MainThreadScheduler(),
+                new PublicFacingStatusTranslator()
+        );
+    }
+
+    static DownloadProgressStream getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    DownloadProgressStream(Scheduler scheduler, PublicFacingStatusTranslator statusTranslator) {
+        this.scheduler = scheduler;
+        this.statusTranslator = statusTranslator;
+    }
+
+    void subscribe(DownloadProgressListener listener, long minIntervalMillis) {
+        unsubscribe(listener);
+        subscriptions.add(new Subscription(listener, minIntervalMillis));
+    }
+
+    void unsubscribe(DownloadProgressListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscription.cancelled = true;
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Can be called from any thread, it does nothing when there are no listeners.
+     *
+     * @param status one of the {@link DownloadStatus} values
+     */
+    void publish(FileDownloadInfo downloadInfo, long currentBytes, long totalBytes, long speed, int status) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        DownloadProgress progress = new DownloadProgress(
+                downloadInfo.getBatchId(),
+                downloadInfo.getId(),
+                currentBytes,
+                totalBytes,
+                speed,
+                statusTranslator.translate(status)
+        );
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(progress);
+        }
+    }
+
+    private class Subscription implements Runnable {
+
+        private final DownloadProgressListener listener;
+        private final long minIntervalMillis;
+        private final LongSparseArray<DownloadProgress> pendingProgress = new LongSparseArray<>();
+
+        private volatile boolean cancelled;
+        private boolean deliveryScheduled;
+        private long lastDeliveryMillis;
+
+        Subscription(DownloadProgressListener listener, long minIntervalMillis) {
+            this.listener = listener;
+            this.minIntervalMillis = minIntervalMillis;
+            this.lastDeliveryMillis = scheduler.now() - minIntervalMillis;
+        }
+
+        synchronized void offer(DownloadProgress progress) {
+            pendingProgress.put(progress.getDownloadId(), progress);
+            if (deliveryScheduled) {
+                return;
+            }
+            deliveryScheduled = true;
+            long delayMillis = Math.max(0, lastDeliveryMillis + minIntervalMillis - scheduler.now());
+            scheduler.schedule(this, delayMillis);
+        }
+
+        @Override
+        public void run() {
+            List<DownloadProgress> progressToDeliver;
+            synchronized (this) {
+                progressToDeliver = new ArrayList<>(pendingProgress.size());
+                for (int i = 0; i < pendingProgress.size(); i++) {
+                    progressToDeliver.add(pendingProgress.valueAt(i));
+                }
+                pendingProgress.clear();
+                deliveryScheduled = false;
+                lastDeliveryMillis = scheduler.now();
+            }
+
+            for (DownloadProgress progress : progressToDeliver) {
+                if (cancelled) {
+                    return;
+                }
+                listener.onDownloadProgress(progress);
+            }
+        }
+    }
+
+    interface Scheduler {
+
+        long now();
+
+        void schedule(Runnable runnable, long delayMillis);
+
+    }
+
+    private static class MainThreadScheduler implements Scheduler {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void schedule(Runnable runnable, long delayMillis) {
+            handler.postDelayed(runnable, delayMillis);
+        }
+    }
+
+}
@@ -17,10 +17,13 @@
 package com.novoda.downloadmanager.lib;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -64,6 +67,11 @@ public final class DownloadProvider extends ContentProvider {
      */
     public static final String AUTHORITY = Reflector.reflectAuthority();
 
+    /**
+     * Lists the ids of the downloads a batch changed, comma separated, on the single notification sent for them
+     */
+    static final String QUERY_PARAMETER_CHANGED_DOWNLOADS = "changed_downloads";
+
     /**
      * Database filename
      */
@@ -134,6 +142,10 @@ public final class DownloadProvider extends ContentProvider {
      * URI matcher constant for the URI of downloads with their batch data
      */
     private static final int DOWNLOADS_BY_BATCH = 9;
+    /**
+     * URI matcher constant for the URI of the request headers of several downloads
+     */
+    private static final int ALL_REQUEST_HEADERS = 10;
 
     private static final String[] APP_READABLE_COLUMNS_ARRAY = new String[]{
             DownloadContract.Downloads._ID,
@@ -156,6 +168,8 @@ public final class DownloadProvider extends ContentProvider {
             DownloadContract.Downloads.COLUMN_BATCH_ID,
             DownloadContract.Downloads.COLUMN_ALWAYS_RESUME,
             DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES,
+            DownloadContract.Downloads.COLUMN_CHECKSUM,
+            DownloadContract.Downloads.COLUMN_BYTES_SAVED,
             DownloadContract.Batches._ID,
             DownloadContract.Batches.COLUMN_STATUS,
             DownloadContract.Batches.COLUMN_TITLE,
@@ -175,6 +189,42 @@ public final class DownloadProvider extends ContentProvider {
     private static final List<String> DOWNLOAD_MANAGER_COLUMNS_LIST = Arrays.asList(DownloadManager.UNDERLYING_COLUMNS);
 
     private final DownloadsUriProvider downloadsUriProvider;
+    private final DownloadControlRegistry controlRegistry;
+    private final BatchTransaction batchTransaction = new BatchTransaction(new BatchTransaction.Notifier() {
+        @Override
+        public void notifyDownloadsChanged(@Nullable Long downloadId) {
+            for (Uri uriToNotify : baseUris) {
+                if (downloadId != null) {
+                    uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
+                }
+                getContext().getContentResolver().notifyChange(uriToNotify, null);
+            }
+        }
+
+        @Override
+        public void notifySeveralDownloadsChanged(Set<Long> downloadIds) {
+            if (downloadIds.size() > DownloadStateCache.MAX_CHANGED_DOWNLOADS) {
+                notifyDownloadsChanged(null);
+                return;
+            }
+            String changedDownloads = TextUtils.join(",", downloadIds);
+            for (Uri uriToNotify : baseUris) {
+                Uri uri = uriToNotify.buildUpon().appendQueryParameter(QUERY_PARAMETER_CHANGED_DOWNLOADS, changedDownloads).build();
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+
+        @Override
+        public void notifyChange(Uri uri) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
+        @Override
+        public void startDownloadService() {
+            Context context = getContext();
+            context.startService(new Intent(context, DownloadService.class));
+        }
+    });
 
     /**
      * Different base URIs that could be used to access an individual download
@@ -207,6 +257,7 @@ public final class DownloadProvider extends ContentProvider {
         URI_MATCHER.addURI(AUTHORITY, "downloads_by_batch", DOWNLOADS_BY_BATCH);
         URI_MATCHER.addURI(AUTHORITY, "my_downloads/#/" + DownloadContract.RequestHeaders.URI_SEGMENT, REQUEST_HEADERS_URI);
         URI_MATCHER.addURI(AUTHORITY, "all_downloads/#/" + DownloadContract.RequestHeaders.URI_SEGMENT, REQUEST_HEADERS_URI);
+        URI_MATCHER.addURI(AUTHORITY, "all_downloads/" + DownloadContract.RequestHeaders.URI_SEGMENT, ALL_REQUEST_HEADERS);
         // temporary, for backwards compatibility
         URI_MATCHER.addURI(AUTHORITY, "download", MY_DOWNLOADS);
         URI_MATCHER.addURI(AUTHORITY, "download/#", MY_DOWNLOADS_ID);
@@ -223,6 +274,7 @@ public final class DownloadProvider extends ContentProvider {
 
     public DownloadProvider() {
         downloadsUriProvider = DownloadsUriProvider.getInstance();
+        controlRegistry = DownloadControlRegistry.getInstance();
 
         baseUris = new Uri[]{
                 downloadsUriProvider.getContentUri(),
@@ -367,7 +419,7 @@ public final class DownloadProvider extends ContentProvider {
         // note we disallow inserting into ALL_DOWNLOADS
         int match = URI_MATCHER.match(uri);
         if (match == MY_DOWNLOADS) {
-            return insertDownload(uri, values, db, match);
+            return insertDownload(uri, values, db);
         }
         if (match == BATCHES) {
             long rowId = db.insert(DownloadContract.Batches.BATCHES_TABLE_NAME, null, values);
@@ -380,7 +432,7 @@ public final class DownloadProvider extends ContentProvider {
     }
 
     @Nullable
-    private Uri insertDownload(Uri uri, ContentValues values, SQLiteDatabase db, int match) {
+    private Uri insertDownload(Uri uri, ContentValues values, SQLiteDatabase db) {
         // copy some of the input values as it
         ContentValues filteredValues = new ContentValues();
         copyString(DownloadContract.Downloads.COLUMN_URI, values, filteredValues);
@@ -467,6 +519,11 @@ public final class DownloadProvider extends ContentProvider {
         copyString(DownloadContract.Downloads.COLUMN_COOKIE_DATA, values, filteredValues);
         copyString(DownloadContract.Downloads.COLUMN_USER_AGENT, values, filteredValues);
         copyString(DownloadContract.Downloads.COLUMN_REFERER, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUM_ALGORITHM, values, filteredValues);
+        copyLong(DownloadContract.Downloads.COLUMN_BLOCK_SIZE, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUMS, values, filteredValues);
 
         // UID, PID columns
         if (getContext().checkCallingPermission(DownloadsPermission.PERMISSION_ACCESS_ADVANCED) == PackageManager.PERMISSION_GRANTED) {
@@ -492,6 +549,8 @@ public final class DownloadProvider extends ContentProvider {
         copyBoolean(DownloadContract.Downloads.COLUMN_ALLOW_METERED, values, filteredValues);
         copyBoolean(DownloadContract.Downloads.COLUMN_ALWAYS_RESUME, values, filteredValues);
         copyBoolean(DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES, values, filteredValues);
+        copyBoolean(DownloadContract.Downloads.COLUMN_REVALIDATE, values, filteredValues);
+        copyInteger(DownloadContract.Downloads.COLUMN_PRIORITY, values, filteredValues);
 
         copyInteger(DownloadContract.Downloads.COLUMN_BATCH_ID, values, filteredValues);
 
@@ -512,20 +571,27 @@ public final class DownloadProvider extends ContentProvider {
          * DownloadManager.addCompletedDownload(String, String, String,
          * boolean, String, String, long) need special treatment
          */
-        Context context = getContext();
-        context.startService(new Intent(context, DownloadService.class));
-        notifyContentChanged(uri, match);
+        startDownloadService();
+        notifyContentChanged(ContentUris.withAppendedId(uri, rowID), MY_DOWNLOADS_ID);
         notifyDownloadStatusChanged();
         return ContentUris.withAppendedId(downloadsUriProvider.getContentUri(), rowID);
     }
 
     private void notifyDownloadStatusChanged() {
-        getContext().getContentResolver().notifyChange(downloadsUriProvider.getDownloadsWithoutProgressUri(), null);
+        notifyChange(downloadsUriProvider.getDownloadsWithoutProgressUri());
     }
 
     private void notifyBatchesChanged() {
-        getContext().getContentResolver().notifyChange(downloadsUriProvider.getBatchesWithoutProgressUri(), null);
-        getContext().getContentResolver().notifyChange(downloadsUriProvider.getBatchesUri(), null);
+        notifyChange(downloadsUriProvider.getBatchesWithoutProgressUri());
+        notifyChange(downloadsUriProvider.getBatchesUri());
+    }
+
+    private void startDownloadService() {
+        batchTransaction.startDownloadService();
+    }
+
+    private void notifyChange(Uri uri) {
+        batchTransaction.notifyChange(uri);
     }
 
     /**
@@ -582,6 +648,13 @@ public final class DownloadProvider extends ContentProvider {
                                     + "projections, selections or sorting");
                 }
                 return queryRequestHeaders(db, uri);
+            case ALL_REQUEST_HEADERS:
+                if (projection != null || sort != null) {
+                    throw new UnsupportedOperationException(
+                            "Request header queries do not support "
+                                    + "projections or sorting");
+                }
+                return queryRequestHeadersOfDownloads(db, uri, selection, selectionArgs);
             default:
                 LLog.v("querying unknown URI: " + uri);
                 throw new IllegalArgumentException("Unknown URI: " + uri);
@@ -715,6 +788,24 @@ public final class DownloadProvider extends ContentProvider {
                 null, null, null, null);
     }
 
+    /**
+     * Handle a query for the custom request headers of the downloads matching the given selection, in a single query.
+     * Each row also holds the id of its download.
+     */
+    private Cursor queryRequestHeadersOfDownloads(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+        SqlSelection downloadsSelection = getWhereClause(uri, selection, selectionArgs, ALL_DOWNLOADS);
+        String downloadIds = "SELECT " + DownloadContract.Downloads._ID + " FROM " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME;
+        if (downloadsSelection.whereClause.length() > 0) {
+            downloadIds += " WHERE " + downloadsSelection.getSelection();
+        }
+        String where = DownloadContract.RequestHeaders.COLUMN_DOWNLOAD_ID + " IN (" + downloadIds + ")";
+        String[] projection = new String[]{DownloadContract.RequestHeaders.COLUMN_DOWNLOAD_ID,
+                DownloadContract.RequestHeaders.COLUMN_HEADER, DownloadContract.RequestHeaders.COLUMN_VALUE};
+        return db.query(
+                DownloadContract.RequestHeaders.HEADERS_DB_TABLE, projection, where,
+                downloadsSelection.getParameters(), null, null, DownloadContract.RequestHeaders._ID + " ASC");
+    }
+
     /**
      * Delete request headers for downloads matching the given query.
      */
@@ -794,6 +885,7 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS:
             case ALL_DOWNLOADS_ID:
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
+                updateRunningDownloadsControl(db, selection, filteredValues);
                 if (filteredValues.size() > 0) {
                     count = db.update(DownloadContract.Downloads.DOWNLOADS_TABLE_NAME, filteredValues, selection.getSelection(), selection.getParameters());
                 } else {
@@ -817,12 +909,80 @@ public final class DownloadProvider extends ContentProvider {
         notifyContentChanged(uri, match);
 
         if (startService) {
-            Context context = getContext();
-            context.startService(new Intent(context, DownloadService.class));
+            startDownloadService();
         }
         return count;
     }
 
+    /**
+     * Forward pause, cancel and delete requests to the downloads running in this process.
+     */
+    private void updateRunningDownloadsControl(SQLiteDatabase db, SqlSelection selection, ContentValues values) {
+        if (!controlRegistry.hasRunningDownloads() || !changesControl(values)) {
+            return;
+        }
+
+        Cursor cursor = db.query(
+                DownloadContract.Downloads.DOWNLOADS_TABLE_NAME,
+                new String[]{DownloadContract.Downloads._ID},
+                selection.getSelection(),
+                selection.getParameters(),
+                null,
+                null,
+                null
+        );
+        try {
+            while (cursor.moveToNext()) {
+                updateRunningDownloadControl(cursor.getLong(0), values);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private boolean changesControl(ContentValues values) {
+        return DownloadControlRegistry.changesControl(
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_CONTROL),
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_STATUS),
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_DELETED)
+        );
+    }
+
+    private void updateRunningDownloadControl(long downloadId, ContentValues values) {
+        controlRegistry.update(
+                downloadId,
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_CONTROL),
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_STATUS),
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_DELETED)
+        );
+    }
+
+    /**
+     * A running download would otherwise carry on writing to a row and file that no longer exist.
+     */
+    private void cancelRunningDownloads(SQLiteDatabase db, SqlSelection selection) {
+        if (!controlRegistry.hasRunningDownloads()) {
+            return;
+        }
+
+        Cursor cursor = db.query(
+                DownloadContract.Downloads.DOWNLOADS_TABLE_NAME,
+                new String[]{DownloadContract.Downloads._ID},
+                selection.getSelection(),
+                selection.getParameters(),
+                null,
+                null,
+                null
+        );
+        try {
+            while (cursor.moveToNext()) {
+                controlRegistry.cancel(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void notifyStatusIfDownloadStatusChanged(ContentValues values) {
         if (values.containsKey(DownloadContract.Downloads.COLUMN_STATUS)) {
             notifyDownloadStatusChanged();
@@ -841,12 +1001,30 @@ public final class DownloadProvider extends ContentProvider {
         if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
             downloadId = Long.parseLong(getDownloadIdFromUri(uri));
         }
-        for (Uri uriToNotify : baseUris) {
-            if (downloadId != null) {
-                uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
+
+        batchTransaction.notifyDownloadsChanged(downloadId);
+    }
+
+    /**
+     * Applies all the operations in a single transaction, observers are notified once it has been committed.
+     * The changed downloads are notified together, listing their ids in {@link #QUERY_PARAMETER_CHANGED_DOWNLOADS},
+     * so observers only reload the downloads that changed.
+     * The {@link DownloadService} is started at most once, after the commit.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return batchTransaction.apply(openHelper.getWritableDatabase(), new BatchTransaction.Operations<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] apply() throws OperationApplicationException {
+                return applyInTransaction(operations);
             }
-            getContext().getContentResolver().notifyChange(uriToNotify, null);
-        }
+        });
+    }
+
+    private ContentProviderResult[] applyInTransaction(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        return super.applyBatch(operations);
     }
 
     private SqlSelection getWhereClause(final Uri uri, final String where, final String[] whereArgs,
@@ -888,6 +1066,7 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS:
             case ALL_DOWNLOADS_ID:
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
+                cancelRunningDownloads(db, selection);
                 deleteRequestHeaders(db, selection.getSelection(), selection.getParameters());
                 count = db.delete(DownloadContract.Downloads.DOWNLOADS_TABLE_NAME, selection.getSelection(), selection.getParameters());
                 notifyDownloadStatusChanged();
@@ -1003,6 +1182,13 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
+    private static void copyLong(String key, ContentValues from, ContentValues to) {
+        Long l = from.getAsLong(key);
+        if (l != null) {
+            to.put(key, l);
+        }
+    }
+
     private static void copyBoolean(String key, ContentValues from, ContentValues to) {
         Boolean b = from.getAsBoolean(key);
         if (b != null) {
@@ -0,0 +1,357 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the downloads that should be submitted to fill every free download slot.
+ * <p/>
+ * Batches with a higher priority are served first. Batches sharing a priority take turns,
+ * one download each per round, starting after the batch that was served last so a long
+ * batch can't starve the ones queued behind it. Each batch is bounded by the per batch limit.
+ * <p/>
+ * Downloads whose host already has as many connections as allowed per host are skipped, counting the extra
+ * connections of segmented downloads, prepared responses and HEAD requests. Among the downloads of the same
+ * priority, one whose host has a kept-alive connection waiting is picked first.
+ * <p/>
+ * Downloads claimed by a bundle of small files are left alone, the bundle holds a single slot.
+ * <p/>
+ * A download of a URI that is already being fetched waits for that transfer rather than starting its own,
+ * once it completes the content is reused, see {@link ContentDeduplicator}.
+ */
+class DownloadScheduler {
+
+    private static final long NO_BATCH = -1;
+
+    private static final Comparator<BatchQueue> BY_BATCH_PRIORITY = new Comparator<BatchQueue>() {
+        @Override
+        public int compare(BatchQueue lhs, BatchQueue rhs) {
+            return compareDescending(lhs.priority, rhs.priority);
+        }
+    };
+
+    private static final Comparator<FileDownloadInfo> BY_DOWNLOAD_PRIORITY = new Comparator<FileDownloadInfo>() {
+        @Override
+        public int compare(FileDownloadInfo lhs, FileDownloadInfo rhs) {
+            return compareDescending(lhs.getPriority(), rhs.getPriority());
+        }
+    };
+
+    private final ConcurrencyLimit concurrencyLimit;
+    private final int maxConcurrentDownloadsPerBatch;
+    private final int maxConnectionsPerHost;
+    private final DownloadHosts downloadHosts;
+    private final SmallFileBundler smallFileBundler;
+
+    private long lastScheduledBatchId = NO_BATCH;
+
+    DownloadScheduler(int maxConcurrentDownloads, int maxConcurrentDownloadsPerBatch) {
+        this(
+                new FixedConcurrencyLimit(maxConcurrentDownloads),
+                maxConcurrentDownloadsPerBatch,
+                maxConcurrentDownloads,
+                new DownloadHosts(new Clock()),
+                new SmallFileBundler(0)
+        );
+    }
+
+    DownloadScheduler(ConcurrencyLimit concurrencyLimit,
+                      int maxConcurrentDownloadsPerBatch,
+                      int maxConnectionsPerHost,
+                      DownloadHosts downloadHosts,
+                      SmallFileBundler smallFileBundler) {
+        this.concurrencyLimit = concurrencyLimit;
+        this.maxConcurrentDownloadsPerBatch = maxConcurrentDownloadsPerBatch;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.downloadHosts = downloadHosts;
+        this.smallFileBundler = smallFileBundler;
+    }
+
+    /**
+     * @param allBatches   every known batch, used to count the downloads already occupying a slot
+     * @param readyBatches the batches that are currently allowed to download
+     * @return the downloads to submit, in submission order
+     */
+    List<FileDownloadInfo> scheduleDownloads(List<DownloadBatch> allBatches, List<DownloadBatch> readyBatches) {
+        List<FileDownloadInfo> scheduledDownloads = new ArrayList<>();
+        int freeSlots = concurrencyLimit.getConcurrentDownloadsLimit() - countSubmittedOrRunning(allBatches);
+        if (freeSlots <= 0 || readyBatches.isEmpty()) {
+            return scheduledDownloads;
+        }
+
+        HostConnections hostConnections = new HostConnections(allBatches);
+        InFlightUris inFlightUris = new InFlightUris(allBatches);
+        List<BatchQueue> queues = createQueuesFor(readyBatches);
+        int groupStart = 0;
+        while (groupStart < queues.size() && freeSlots > 0) {
+            int groupEnd = endOfPriorityGroup(queues, groupStart);
+            List<BatchQueue> priorityGroup = rotateAfterLastScheduledBatch(queues.subList(groupStart, groupEnd));
+            freeSlots = scheduleRoundRobin(priorityGroup, freeSlots, hostConnections, inFlightUris, scheduledDownloads);
+            groupStart = groupEnd;
+        }
+        return scheduledDownloads;
+    }
+
+    private int countSubmittedOrRunning(List<DownloadBatch> batches) {
+        int count = 0;
+        for (DownloadBatch batch : batches) {
+            count += countSubmittedOrRunning(batch);
+        }
+        return count;
+    }
+
+    private static int countSubmittedOrRunning(DownloadBatch batch) {
+        int count = 0;
+        for (FileDownloadInfo download : batch.getDownloads()) {
+            if (download.isSubmittedOrRunning()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<BatchQueue> createQueuesFor(List<DownloadBatch> batches) {
+        List<BatchQueue> queues = new ArrayList<>(batches.size());
+        for (DownloadBatch batch : batches) {
+            int allowance = maxConcurrentDownloadsPerBatch - countSubmittedOrRunning(batch);
+            queues.add(new BatchQueue(batch.getBatchId(), batch.getInfo().getPriority(), pendingDownloadsOf(batch), allowance));
+        }
+        Collections.sort(queues, BY_BATCH_PRIORITY);
+        return queues;
+    }
+
+    private List<FileDownloadInfo> pendingDownloadsOf(DownloadBatch batch) {
+        List<FileDownloadInfo> pendingDownloads = new ArrayList<>();
+        for (FileDownloadInfo download : batch.getDownloads()) {
+            if (!DownloadStatus.isCompleted(download.getStatus())
+                    && !download.isSubmittedOrRunning()
+                    && !smallFileBundler.isClaimed(download)) {
+                pendingDownloads.add(download);
+            }
+        }
+        Collections.sort(pendingDownloads, BY_DOWNLOAD_PRIORITY);
+        return pendingDownloads;
+    }
+
+    private static int endOfPriorityGroup(List<BatchQueue> queues, int groupStart) {
+        int priority = queues.get(groupStart).priority;
+        int groupEnd = groupStart + 1;
+        while (groupEnd < queues.size() && queues.get(groupEnd).priority == priority) {
+            groupEnd++;
+        }
+        return groupEnd;
+    }
+
+    private List<BatchQueue> rotateAfterLastScheduledBatch(List<BatchQueue> priorityGroup) {
+        List<BatchQueue> rotatedGroup = new ArrayList<>(priorityGroup);
+        for (int i = 0; i < rotatedGroup.size(); i++) {
+            if (rotatedGroup.get(i).batchId == lastScheduledBatchId) {
+                Collections.rotate(rotatedGroup, -(i + 1));
+                break;
+            }
+        }
+        return rotatedGroup;
+    }
+
+    private int scheduleRoundRobin(List<BatchQueue> priorityGroup,
+                                   int freeSlots,
+                                   HostConnections hostConnections,
+                                   InFlightUris inFlightUris,
+                                   List<FileDownloadInfo> scheduledDownloads) {
+        int remainingSlots = freeSlots;
+        boolean scheduledInLastRound = true;
+        while (remainingSlots > 0 && scheduledInLastRound) {
+            scheduledInLastRound = false;
+            for (BatchQueue queue : priorityGroup) {
+                if (remainingSlots == 0) {
+                    break;
+                }
+                FileDownloadInfo download = queue.poll(hostConnections, inFlightUris);
+                if (download != null) {
+                    scheduledDownloads.add(download);
+                    lastScheduledBatchId = queue.batchId;
+                    remainingSlots--;
+                    scheduledInLastRound = true;
+                }
+            }
+        }
+        return remainingSlots;
+    }
+
+    private static int compareDescending(int lhs, int rhs) {
+        return lhs > rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    private static class BatchQueue {
+
+        private static final int NONE = -1;
+
+        private final long batchId;
+        private final int priority;
+        private final List<FileDownloadInfo> pendingDownloads;
+
+        private int allowance;
+
+        BatchQueue(long batchId, int priority, List<FileDownloadInfo> pendingDownloads, int allowance) {
+            this.batchId = batchId;
+            this.priority = priority;
+            this.pendingDownloads = pendingDownloads;
+            this.allowance = allowance;
+        }
+
+        /**
+         * @return the next download whose host can take another connection and whose URI isn't already
+         * being fetched, or null when there is none
+         */
+        FileDownloadInfo poll(HostConnections hostConnections, InFlightUris inFlightUris) {
+            if (allowance == 0) {
+                return null;
+            }
+
+            int next = NONE;
+            for (int i = 0; i < pendingDownloads.size(); i++) {
+                FileDownloadInfo download = pendingDownloads.get(i);
+                if (next != NONE && download.getPriority() != pendingDownloads.get(next).getPriority()) {
+                    break;
+                }
+                if (!hostConnections.hasFreeConnectionFor(download) || inFlightUris.contains(download)) {
+                    continue;
+                }
+                if (next == NONE) {
+                    next = i;
+                }
+                if (hostConnections.hasIdleConnectionFor(download)) {
+                    next = i;
+                    break;
+                }
+            }
+
+            if (next == NONE) {
+                return null;
+            }
+            allowance--;
+            FileDownloadInfo download = pendingDownloads.remove(next);
+            hostConnections.acquire(download);
+            inFlightUris.add(download);
+            return download;
+        }
+
+    }
+
+    /**
+     * The connections in use per host during a scheduling pass, starting from the downloads already submitted or running
+     * and the extra connections open at runtime, see {@link DownloadHosts#extraConnectionsTo(String)}.
+     */
+    private class HostConnections {
+
+        private final Map<String, Integer> connections = new HashMap<>();
+
+        HostConnections(List<DownloadBatch> allBatches) {
+            for (DownloadBatch batch : allBatches) {
+                for (FileDownloadInfo download : batch.getDownloads()) {
+                    if (download.isSubmittedOrRunning()) {
+                        acquire(downloadHosts.hostOf(download), 1);
+                    }
+                }
+            }
+        }
+
+        boolean hasFreeConnectionFor(FileDownloadInfo download) {
+            String host = downloadHosts.hostOf(download);
+            return host == null || connectionsTo(host) < maxConnectionsPerHost;
+        }
+
+        boolean hasIdleConnectionFor(FileDownloadInfo download) {
+            String host = downloadHosts.hostOf(download);
+            return host != null && downloadHosts.hasIdleConnectionTo(host);
+        }
+
+        /**
+         * A download resuming its segments will open a connection per incomplete segment, as far as the host allows.
+         */
+        void acquire(FileDownloadInfo download) {
+            String host = downloadHosts.hostOf(download);
+            int incompleteSegments = DownloadSegments.countIncomplete(DownloadSegments.parse(download.getSegments()));
+            acquire(host, Math.max(1, incompleteSegments));
+            if (host != null) {
+                downloadHosts.claimIdleConnectionTo(host);
+            }
+        }
+
+        private void acquire(String host, int count) {
+            if (host != null) {
+                Integer current = connections.get(host);
+                connections.put(host, (current == null ? 0 : current) + count);
+            }
+        }
+
+        private int connectionsTo(String host) {
+            Integer count = connections.get(host);
+            return (count == null ? 0 : count) + downloadHosts.extraConnectionsTo(host);
+        }
+    }
+
+    /**
+     * The URIs being fetched during a scheduling pass, starting from the downloads already submitted or running.
+     * Only downloads that could reuse the content of another one of the same URI are tracked, see
+     * {@link ContentDeduplicator#mayReuseContentOfSameUri(FileDownloadInfo)}, the others never wait.
+     */
+    private static class InFlightUris {
+
+        private final Set<String> uris = new HashSet<>();
+
+        InFlightUris(List<DownloadBatch> allBatches) {
+            for (DownloadBatch batch : allBatches) {
+                for (FileDownloadInfo download : batch.getDownloads()) {
+                    if (download.isSubmittedOrRunning()) {
+                        add(download);
+                    }
+                }
+            }
+        }
+
+        boolean contains(FileDownloadInfo download) {
+            return isTracked(download) && uris.contains(download.getUri());
+        }
+
+        void add(FileDownloadInfo download) {
+            if (isTracked(download)) {
+                uris.add(download.getUri());
+            }
+        }
+
+        private static boolean isTracked(FileDownloadInfo download) {
+            return download.getUri() != null && ContentDeduplicator.mayReuseContentOfSameUri(download);
+        }
+    }
+
+    /**
+     * The number of downloads allowed to run at the same time, read on every scheduling pass.
+     */
+    interface ConcurrencyLimit {
+
+        int getConcurrentDownloadsLimit();
+
+    }
+
+    static class FixedConcurrencyLimit implements ConcurrencyLimit {
+
+        private final int limit;
+
+        FixedConcurrencyLimit(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int getConcurrentDownloadsLimit() {
+            return limit;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte range of a download fetched over its own connection, from {@code startByte} to {@code endByte} inclusive.
+ */
+class DownloadSegment {
+
+    private final long startByte;
+    private final long endByte;
+    private final AtomicLong currentBytes;
+
+    DownloadSegment(long startByte, long endByte, long currentBytes) {
+        this.startByte = startByte;
+        this.endByte = endByte;
+        this.currentBytes = new AtomicLong(currentBytes);
+    }
+
+    public long getStartByte() {
+        return startByte;
+    }
+
+    public long getEndByte() {
+        return endByte;
+    }
+
+    public long getCurrentBytes() {
+        return currentBytes.get();
+    }
+
+    public long length() {
+        return endByte - startByte + 1;
+    }
+
+    public long remainingBytes() {
+        return length() - getCurrentBytes();
+    }
+
+    /**
+     * @return the offset in the file of the first byte that still has to be fetched
+     */
+    public long nextByte() {
+        return startByte + getCurrentBytes();
+    }
+
+    public boolean isComplete() {
+        return remainingBytes() <= 0;
+    }
+
+    void addBytes(long count) {
+        currentBytes.addAndGet(count);
+    }
+
+}
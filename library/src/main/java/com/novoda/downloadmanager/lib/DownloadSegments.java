@@ -0,0 +1,114 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.annotation.Nullable;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits downloads into {@link DownloadSegment}s and converts them from and to
+ * the {@link DownloadContract.Downloads#COLUMN_SEGMENTS} format.
+ */
+final class DownloadSegments {
+
+    private static final String SEGMENT_SEPARATOR = ",";
+    private static final String RANGE_SEPARATOR = "-";
+    private static final String PROGRESS_SEPARATOR = ":";
+
+    private DownloadSegments() {
+    }
+
+    /**
+     * @return the segments to fetch the given size in, or an empty list when it is too small to be worth splitting
+     */
+    static List<DownloadSegment> split(long totalBytes) {
+        return split(totalBytes, Constants.MAX_DOWNLOAD_SEGMENTS);
+    }
+
+    /**
+     * @return the segments to fetch the given size in, at most {@code maxSegments} of them, or an empty list
+     * when it is too small to be worth splitting
+     */
+    static List<DownloadSegment> split(long totalBytes, int maxSegments) {
+        int count = (int) Math.min(maxSegments, totalBytes / Constants.MIN_DOWNLOAD_SEGMENT_SIZE);
+        if (count < 2) {
+            return Collections.emptyList();
+        }
+
+        List<DownloadSegment> segments = new ArrayList<>(count);
+        long segmentSize = totalBytes / count;
+        for (int i = 0; i < count; i++) {
+            long startByte = i * segmentSize;
+            long endByte = (i == count - 1) ? totalBytes - 1 : startByte + segmentSize - 1;
+            segments.add(new DownloadSegment(startByte, endByte, 0));
+        }
+        return segments;
+    }
+
+    static int countIncomplete(List<DownloadSegment> segments) {
+        int count = 0;
+        for (DownloadSegment segment : segments) {
+            if (!segment.isComplete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static long currentBytesOf(List<DownloadSegment> segments) {
+        long currentBytes = 0;
+        for (DownloadSegment segment : segments) {
+            currentBytes += segment.getCurrentBytes();
+        }
+        return currentBytes;
+    }
+
+    static String serialize(List<DownloadSegment> segments) {
+        StringBuilder builder = new StringBuilder();
+        for (DownloadSegment segment : segments) {
+            if (builder.length() > 0) {
+                builder.append(SEGMENT_SEPARATOR);
+            }
+            builder.append(segment.getStartByte())
+                    .append(RANGE_SEPARATOR)
+                    .append(segment.getEndByte())
+                    .append(PROGRESS_SEPARATOR)
+                    .append(segment.getCurrentBytes());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the persisted segments, or an empty list when there are none or they can't be read
+     */
+    static List<DownloadSegment> parse(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String[] encodedSegments = value.split(SEGMENT_SEPARATOR);
+        List<DownloadSegment> segments = new ArrayList<>(encodedSegments.length);
+        try {
+            for (String encodedSegment : encodedSegments) {
+                segments.add(parseSegment(encodedSegment));
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            LLog.e("Ignoring malformed download segments: " + value);
+            return Collections.emptyList();
+        }
+        return segments;
+    }
+
+    private static DownloadSegment parseSegment(String encodedSegment) {
+        int rangeSeparator = encodedSegment.indexOf(RANGE_SEPARATOR);
+        int progressSeparator = encodedSegment.indexOf(PROGRESS_SEPARATOR);
+        long startByte = Long.parseLong(encodedSegment.substring(0, rangeSeparator));
+        long endByte = Long.parseLong(encodedSegment.substring(rangeSeparator + 1, progressSeparator));
+        long currentBytes = Long.parseLong(encodedSegment.substring(progressSeparator + 1));
+        return new DownloadSegment(startByte, endByte, currentBytes);
+    }
+
+}
@@ -21,7 +21,6 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -46,9 +45,12 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
@@ -66,7 +68,7 @@ public class DownloadService extends Service {
     // DownloadReceiver to protect our entire workflow.
 
     private static final boolean DEBUG_LIFECYCLE = false;
-    private final ContentLengthFetcher contentLengthFetcher = new ContentLengthFetcher();
+    private static final long NO_DOWNLOAD_ID = -1;
 
     private SystemFacade systemFacade;
     private AlarmManager alarmManager;
@@ -74,6 +76,8 @@ public class DownloadService extends Service {
     private DownloadManagerContentObserver downloadManagerContentObserver;
     private DownloadNotifier downloadNotifier;
     private ExecutorService executor;
+    private DownloadScheduler downloadScheduler;
+    private ConcurrencyController concurrencyController;
     private DownloadScanner downloadScanner;
 
     private HandlerThread updateThread;
@@ -82,6 +86,15 @@ public class DownloadService extends Service {
     private volatile int lastStartId;
     private BatchRepository batchRepository;
     private DownloadsRepository downloadsRepository;
+    private DownloadStateCache downloadStateCache;
+    private DownloadProgressFlusher progressFlusher;
+    private HttpTransport httpTransport;
+    private ConnectionPipeline connectionPipeline;
+    private ContentDeduplicator contentDeduplicator;
+    private ExecutorService segmentExecutor;
+    private DownloadTransferModules transferModules;
+    private SmallFileBundler smallFileBundler;
+    private ContentLengthPrefetcher contentLengthPrefetcher;
     private DownloadDeleter downloadDeleter;
     private DownloadReadyChecker downloadReadyChecker;
     private DownloadsUriProvider downloadsUriProvider;
@@ -100,8 +113,53 @@ public class DownloadService extends Service {
 
         @Override
         public void onChange(final boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        /**
+         * Changes to a single download are notified with its id, changes to several downloads list their ids,
+         * anything else could have changed any download.
+         */
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            List<Long> changedDownloadIds = getChangedDownloadIdsFrom(uri);
+            long downloadId = getDownloadIdFrom(uri);
+            if (changedDownloadIds != null) {
+                downloadStateCache.invalidate(changedDownloadIds);
+            } else if (downloadId == NO_DOWNLOAD_ID) {
+                downloadStateCache.invalidateAll();
+            } else {
+                downloadStateCache.invalidate(downloadId);
+            }
             enqueueUpdate();
         }
+
+        private List<Long> getChangedDownloadIdsFrom(Uri uri) {
+            String changedDownloads = uri == null ? null : uri.getQueryParameter(DownloadProvider.QUERY_PARAMETER_CHANGED_DOWNLOADS);
+            if (changedDownloads == null) {
+                return null;
+            }
+            List<Long> changedDownloadIds = new ArrayList<>();
+            try {
+                for (String downloadId : changedDownloads.split(",")) {
+                    changedDownloadIds.add(Long.parseLong(downloadId));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return changedDownloadIds;
+        }
+
+        private long getDownloadIdFrom(Uri uri) {
+            if (uri == null || uri.getPathSegments().size() != 2) {
+                return NO_DOWNLOAD_ID;
+            }
+            try {
+                return Long.parseLong(uri.getLastPathSegment());
+            } catch (NumberFormatException e) {
+                return NO_DOWNLOAD_ID;
+            }
+        }
     }
 
     /**
@@ -167,6 +225,41 @@ public class DownloadService extends Service {
         ConcurrentDownloadsLimitProvider concurrentDownloadsLimitProvider = new ConcurrentDownloadsLimitProvider(packageManager, packageName);
         DownloadExecutorFactory factory = new DownloadExecutorFactory(concurrentDownloadsLimitProvider);
         executor = factory.createExecutor();
+        DownloadScheduler.ConcurrencyLimit concurrencyLimit = new DownloadScheduler.FixedConcurrencyLimit(
+                concurrentDownloadsLimitProvider.getConcurrentDownloadsLimit()
+        );
+        if (concurrentDownloadsLimitProvider.isAdaptiveConcurrencyEnabled()) {
+            concurrencyController = new ConcurrencyController(
+                    concurrentDownloadsLimitProvider.getMinConcurrentDownloadsLimit(),
+                    concurrentDownloadsLimitProvider.getConcurrentDownloadsLimit(),
+                    ThroughputMeter.getInstance(),
+                    Executors.newSingleThreadScheduledExecutor(),
+                    concurrencyDecisionListener
+            );
+            concurrencyLimit = concurrencyController;
+        }
+        DownloadHosts.getInstance().setMaxConnectionsPerHost(concurrentDownloadsLimitProvider.getConnectionsPerHostLimit());
+        smallFileBundler = new SmallFileBundler(new SmallFileThresholdProvider(packageManager, packageName).getSmallFileThresholdBytes());
+        downloadScheduler = new DownloadScheduler(
+                concurrencyLimit,
+                concurrentDownloadsLimitProvider.getConcurrentDownloadsPerBatchLimit(),
+                concurrentDownloadsLimitProvider.getConnectionsPerHostLimit(),
+                DownloadHosts.getInstance(),
+                smallFileBundler
+        );
+        HttpTransportProvider httpTransportProvider = new HttpTransportProvider(packageManager, packageName);
+        httpTransport = httpTransportProvider.getHttpTransport(concurrentDownloadsLimitProvider.getConcurrentDownloadsLimit());
+        connectionPipeline = new ConnectionPipeline(
+                httpTransport,
+                HostRttEstimator.getInstance(),
+                DownloadHosts.getInstance(),
+                networkChecker,
+                downloadReadyChecker,
+                smallFileBundler,
+                Executors.newFixedThreadPool(ConnectionPipeline.MAX_PREPARED_DOWNLOADS),
+                new Clock(),
+                httpTransportProvider.isPipeliningEnabled()
+        );
 
         this.downloadsRepository = new DownloadsRepository(
                 systemFacade, getContentResolver(), new DownloadsRepository.DownloadInfoCreator() {
@@ -176,6 +269,27 @@ public class DownloadService extends Service {
             }
         }, downloadsUriProvider
         );
+        this.downloadStateCache = new DownloadStateCache(downloadsRepository);
+        this.contentDeduplicator = new ContentDeduplicator(downloadsRepository);
+        this.segmentExecutor = SegmentedDownloader.newSharedExecutor(
+                concurrentDownloadsLimitProvider.getConcurrentDownloadsLimit() * Constants.MAX_DOWNLOAD_SEGMENTS
+        );
+        this.progressFlusher = new DownloadProgressFlusher(downloadsRepository, Executors.newSingleThreadScheduledExecutor());
+        this.transferModules = new DownloadTransferModules.Builder()
+                .withHttpTransport(httpTransport)
+                .withConnectionPipeline(connectionPipeline)
+                .withContentDeduplicator(contentDeduplicator)
+                .withSegmentExecutor(segmentExecutor)
+                .withStallThreshold(new StallThresholdProvider(packageManager, packageName).getStallThreshold())
+                .withBulkTransferEnabled(httpTransportProvider.isBulkTransferEnabled())
+                .build();
+        this.contentLengthPrefetcher = new ContentLengthPrefetcher(
+                new ContentLengthFetcher(httpTransport),
+                downloadsRepository,
+                HeadUnsupportedHosts.from(this, systemFacade),
+                DownloadHosts.getInstance(),
+                Executors.newFixedThreadPool(ContentLengthPrefetcher.MAX_PARALLEL_FETCHES)
+        );
 
         unlockStaleDownloads();
 
@@ -184,8 +298,22 @@ public class DownloadService extends Service {
         updateThread = new HandlerThread("DownloadManager-UpdateThread");
         updateThread.start();
         updateHandler = new Handler(updateThread.getLooper(), updateCallback);
+
+        if (concurrencyController != null) {
+            concurrencyController.start();
+        }
     }
 
+    private final ConcurrencyDecisionListener concurrencyDecisionListener = new ConcurrencyDecisionListener() {
+        @Override
+        public void onConcurrencyDecision(ConcurrencyDecision decision) {
+            ConcurrencyDecisionListeners.getInstance().onConcurrencyDecision(decision);
+            if (decision.getAction() == ConcurrencyDecision.Action.INCREASE) {
+                enqueueUpdate();
+            }
+        }
+    };
+
     private void unlockStaleDownloads() {
         List<String> batchesToBeUnlocked = downloadsRepository.getCurrentDownloadingOrSubmittedBatchIds();
         if (batchesToBeUnlocked.isEmpty()) {
@@ -235,6 +363,13 @@ public class DownloadService extends Service {
         getContentResolver().unregisterContentObserver(downloadManagerContentObserver);
         downloadScanner.shutdown();
         executor.shutdownNow();
+        progressFlusher.shutdown();
+        contentLengthPrefetcher.shutdown();
+        connectionPipeline.shutdown();
+        segmentExecutor.shutdownNow();
+        if (concurrencyController != null) {
+            concurrencyController.shutdown();
+        }
         updateThread.quit();
     }
 
@@ -337,8 +472,11 @@ public class DownloadService extends Service {
         long nextRetryTimeMillis = Long.MAX_VALUE;
         long now = systemFacade.currentTimeMillis();
 
-        Collection<FileDownloadInfo> allDownloads = downloadsRepository.getAllDownloads();
-        updateTotalBytesFor(allDownloads);
+        List<Long> completedSmallFileIds = smallFileBundler.takeCompletedDownloadIds();
+        downloadStateCache.invalidate(completedSmallFileIds);
+        Collection<FileDownloadInfo> allDownloads = downloadStateCache.getDownloads();
+        smallFileBundler.release(completedSmallFileIds);
+        contentLengthPrefetcher.prefetchFor(allDownloads);
 
         List<DownloadBatch> downloadBatches = batchRepository.retrieveBatchesFor(allDownloads);
         for (DownloadBatch downloadBatch : downloadBatches) {
@@ -348,18 +486,14 @@ public class DownloadService extends Service {
             }
         }
 
+        List<DownloadBatch> batchesReadyToDownload = new ArrayList<>();
         for (DownloadBatch downloadBatch : downloadBatches) {
             if (downloadBatch.isDeleted() || downloadBatch.prune(downloadDeleter)) {
                 continue;
             }
 
-            if (!isActive && downloadReadyChecker.canDownload(downloadBatch)) {
-                boolean isBatchStartingForTheFirstTime = batchRepository.isBatchStartingForTheFirstTime(downloadBatch.getBatchId());
-                if (isBatchStartingForTheFirstTime) {
-                    handleBatchStartingForTheFirstTime(downloadBatch);
-                }
-
-                downloadOrContinueBatch(downloadBatch.getDownloads());
+            if (downloadReadyChecker.canDownload(downloadBatch)) {
+                batchesReadyToDownload.add(downloadBatch);
                 isActive = true;
             } else if (downloadBatch.scanCompletedMediaIfReady(downloadScanner)) {
                 isActive = true;
@@ -368,6 +502,8 @@ public class DownloadService extends Service {
             nextRetryTimeMillis = downloadBatch.nextActionMillis(now, nextRetryTimeMillis);
         }
 
+        downloadScheduledFrom(downloadBatches, batchesReadyToDownload);
+
         batchRepository.deleteMarkedBatchesFor(allDownloads);
         updateUserVisibleNotification(downloadBatches);
 
@@ -388,13 +524,44 @@ public class DownloadService extends Service {
         return isActive;
     }
 
-    private void handleBatchStartingForTheFirstTime(DownloadBatch downloadBatch) {
-        batchRepository.markBatchAsStarted(downloadBatch.getBatchId());
-        batchInformationBroadcaster.notifyBatchStartedFor(downloadBatch.getBatchId());
+    private void downloadScheduledFrom(List<DownloadBatch> allBatches, List<DownloadBatch> batchesReadyToDownload) {
+        List<FileDownloadInfo> scheduledDownloads = downloadScheduler.scheduleDownloads(allBatches, batchesReadyToDownload);
+        Set<Long> startedBatchIds = new HashSet<>();
+        for (FileDownloadInfo info : scheduledDownloads) {
+            if (smallFileBundler.isClaimed(info)) {
+                // already taken by a bundle started from this pass
+                continue;
+            }
+            long batchId = info.getBatchId();
+            if (startedBatchIds.add(batchId) && batchRepository.isBatchStartingForTheFirstTime(batchId)) {
+                handleBatchStartingForTheFirstTime(batchId);
+            }
+            DownloadBatch downloadBatch = findBatch(batchesReadyToDownload, batchId);
+            List<FileDownloadInfo> smallFiles = smallFileBundler.bundle(info, downloadBatch);
+            if (smallFiles.isEmpty()) {
+                download(info);
+            } else {
+                downloadSmallFiles(downloadBatch, smallFiles);
+            }
+        }
+    }
+
+    private static DownloadBatch findBatch(List<DownloadBatch> batches, long batchId) {
+        for (DownloadBatch batch : batches) {
+            if (batch.getBatchId() == batchId) {
+                return batch;
+            }
+        }
+        throw new IllegalStateException("Scheduled a download of batch " + batchId + " which isn't ready to download");
+    }
+
+    private void handleBatchStartingForTheFirstTime(long batchId) {
+        batchRepository.markBatchAsStarted(batchId);
+        batchInformationBroadcaster.notifyBatchStartedFor(batchId);
     }
 
     private void moveSubmittedTasksToBatchStatusIfNecessary() {
-        List<FileDownloadInfo> allDownloads = downloadsRepository.getAllDownloads();
+        List<FileDownloadInfo> allDownloads = downloadStateCache.getDownloads();
         List<DownloadBatch> downloadBatches = batchRepository.retrieveBatchesFor(allDownloads);
 
         for (DownloadBatch downloadBatch : downloadBatches) {
@@ -414,15 +581,6 @@ public class DownloadService extends Service {
         return ids;
     }
 
-    private void downloadOrContinueBatch(List<FileDownloadInfo> downloads) {
-        for (FileDownloadInfo info : downloads) {
-            if (!DownloadStatus.isCompleted(info.getStatus()) && !info.isSubmittedOrRunning()) {
-                download(info);
-                return;
-            }
-        }
-    }
-
     private void download(FileDownloadInfo info) {
         Uri downloadUri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), info.getId());
         FileDownloadInfo.ControlStatus.Reader controlReader = new FileDownloadInfo.ControlStatus.Reader(getContentResolver(), downloadUri);
@@ -431,10 +589,12 @@ public class DownloadService extends Service {
                 this, systemFacade, info, downloadBatch, storageManager, downloadNotifier,
                 batchInformationBroadcaster, batchRepository, downloadsUriProvider,
                 controlReader, networkChecker, downloadReadyChecker, new Clock(),
-                downloadsRepository
+                downloadsRepository, DownloadProgressStream.getInstance(), DownloadControlRegistry.getInstance(),
+                progressFlusher, transferModules
         );
 
         downloadsRepository.setDownloadSubmitted(info);
+        downloadStateCache.invalidate(info.getId());
 
         int batchStatus = batchRepository.calculateBatchStatus(info.getBatchId());
         batchRepository.updateBatchStatus(info.getBatchId(), batchStatus);
@@ -442,15 +602,24 @@ public class DownloadService extends Service {
         executor.submit(downloadTask);
     }
 
-    private void updateTotalBytesFor(Collection<FileDownloadInfo> downloadInfos) {
-        ContentValues values = new ContentValues(1);
-        for (FileDownloadInfo downloadInfo : downloadInfos) {
-            if (downloadInfo.hasUnknownTotalBytes()) {
-                long totalBytes = contentLengthFetcher.fetchContentLengthFor(downloadInfo);
-                values.put(DownloadContract.Downloads.COLUMN_TOTAL_BYTES, totalBytes);
-                getContentResolver().update(downloadInfo.getAllDownloadsUri(), values, null, null);
-            }
-        }
+    /**
+     * Only the first download of the bundle is marked as submitted, it holds the download slot of the whole bundle.
+     */
+    private void downloadSmallFiles(DownloadBatch downloadBatch, List<FileDownloadInfo> smallFiles) {
+        SmallFilesTask smallFilesTask = new SmallFilesTask(
+                downloadBatch, smallFiles, smallFileBundler, httpTransport, HostRttEstimator.getInstance(),
+                DownloadHosts.getInstance(), BandwidthLimiter.getInstance(), storageManager,
+                downloadsRepository, batchRepository, batchInformationBroadcaster, DownloadProgressStream.getInstance(),
+                networkChecker, downloadReadyChecker, DownloadControlRegistry.getInstance()
+        );
+
+        downloadsRepository.setDownloadSubmitted(smallFiles.get(0));
+        downloadStateCache.invalidate(smallFiles.get(0).getId());
+
+        int batchStatus = batchRepository.calculateBatchStatus(downloadBatch.getBatchId());
+        batchRepository.updateBatchStatus(downloadBatch.getBatchId(), batchStatus);
+
+        executor.submit(smallFilesTask);
     }
 
     private void updateUserVisibleNotification(Collection<DownloadBatch> batches) {
@@ -0,0 +1,98 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps the state of every download in memory so an update pass only reads back the rows that changed.
+ * <p/>
+ * Changes are reported from any thread through {@link #invalidate(long)}, or {@link #invalidateAll()} when
+ * the changed rows aren't known, and are applied the next time {@link #getDownloads()} is called.
+ * <p/>
+ * The content observer only hears about a change later, on the main thread. So whoever writes a change the next
+ * update pass depends on, such as a submitted download, also reports it straight away.
+ */
+class DownloadStateCache {
+
+    /**
+     * Above this many changed rows a single full reload is cheaper than selecting them by id,
+     * it also keeps the query well under the SQLite bound arguments limit.
+     */
+    static final int MAX_CHANGED_DOWNLOADS = 250;
+
+    private final DownloadsRepository downloadsRepository;
+    private final TreeMap<Long, FileDownloadInfo> downloads = new TreeMap<>();
+
+    private final Object lock = new Object();
+    private Set<Long> changedDownloadIds = new HashSet<>();
+    private boolean reloadRequired = true;
+
+    DownloadStateCache(DownloadsRepository downloadsRepository) {
+        this.downloadsRepository = downloadsRepository;
+    }
+
+    void invalidate(long downloadId) {
+        synchronized (lock) {
+            changedDownloadIds.add(downloadId);
+        }
+    }
+
+    void invalidate(Collection<Long> downloadIds) {
+        synchronized (lock) {
+            changedDownloadIds.addAll(downloadIds);
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (lock) {
+            reloadRequired = true;
+        }
+    }
+
+    /**
+     * Should only be called from a single thread.
+     *
+     * @return every download ordered by id, including the changes reported since the last call
+     */
+    List<FileDownloadInfo> getDownloads() {
+        Set<Long> changedIds;
+        boolean reload;
+        synchronized (lock) {
+            changedIds = changedDownloadIds;
+            reload = reloadRequired || changedIds.size() > MAX_CHANGED_DOWNLOADS;
+            changedDownloadIds = new HashSet<>();
+            reloadRequired = false;
+        }
+
+        if (reload) {
+            reloadAll();
+        } else if (!changedIds.isEmpty()) {
+            reload(changedIds);
+        }
+        return new ArrayList<>(downloads.values());
+    }
+
+    private void reloadAll() {
+        downloads.clear();
+        for (FileDownloadInfo download : downloadsRepository.getAllDownloads()) {
+            downloads.put(download.getId(), download);
+        }
+        LLog.v("Reloaded the state of " + downloads.size() + " downloads");
+    }
+
+    private void reload(Set<Long> changedIds) {
+        for (Long id : changedIds) {
+            downloads.remove(id);
+        }
+        for (FileDownloadInfo download : downloadsRepository.getDownloadsFor(changedIds)) {
+            downloads.put(download.getId(), download);
+        }
+    }
+
+}
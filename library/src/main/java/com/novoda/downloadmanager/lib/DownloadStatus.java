@@ -155,6 +155,11 @@ public final class DownloadStatus {
      * This download couldn't be completed because another download in the batch failed.
      */
     public static final int BATCH_FAILED = 498;
+    /**
+     * This download couldn't be completed because the downloaded file doesn't match
+     * the checksum it was requested with.
+     */
+    public static final int CHECKSUM_MISMATCH = 499;
 
     /**
      * Returns whether the status is informational (i.e. 1xx).
@@ -295,6 +300,8 @@ public final class DownloadStatus {
                 return "HTTP_EXCEPTION";
             case TOO_MANY_REDIRECTS:
                 return "TOO_MANY_REDIRECTS";
+            case CHECKSUM_MISMATCH:
+                return "CHECKSUM_MISMATCH";
             default:
                 return Integer.toString(status);
         }
@@ -16,7 +16,6 @@
 
 package com.novoda.downloadmanager.lib;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.drm.DrmManagerClient;
@@ -24,29 +23,32 @@ import android.net.NetworkInfo;
 import android.net.TrafficStats;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Pair;
 
 import com.novoda.downloadmanager.lib.logger.LLog;
 import com.novoda.downloadmanager.notifications.DownloadNotifier;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
 
-import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 import static com.novoda.downloadmanager.lib.Constants.UNKNOWN_BYTE_SIZE;
 import static com.novoda.downloadmanager.lib.DownloadStatus.HTTP_DATA_ERROR;
 import static com.novoda.downloadmanager.lib.DownloadStatus.QUEUED_DUE_CLIENT_RESTRICTIONS;
@@ -73,8 +75,8 @@ class DownloadTask implements Runnable {
 
     private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
     private static final int HTTP_TEMP_REDIRECT = 307;
+    private static final String WEAK_ETAG_PREFIX = "W/";
 
-    private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
 
     private final Context context;
     private final FileDownloadInfo originalDownloadInfo;
@@ -90,6 +92,26 @@ class DownloadTask implements Runnable {
     private final DownloadReadyChecker downloadReadyChecker;
     private final Clock clock;
     private final DownloadsRepository downloadsRepository;
+    private final DownloadProgressStream progressStream;
+    private final DownloadControlRegistry controlRegistry;
+    private final DownloadProgressFlusher progressFlusher;
+    private final HttpTransport httpTransport;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final ThroughputMeter throughputMeter;
+    private final DownloadHosts downloadHosts;
+    private final HostRttEstimator hostRttEstimator;
+    private final float stallThreshold;
+    private final ConnectionPipeline connectionPipeline;
+    private final ContentDeduplicator contentDeduplicator;
+    private final ExecutorService segmentExecutor;
+    private final boolean bulkTransferEnabled;
+
+    private DownloadControlRegistry.Control control;
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff(Helpers.sRandom);
+
+    private BandwidthLimiter.Throttle throttle;
+    private String connectedHost;
+    private String scheduledHost;
 
     public DownloadTask(Context context,
                         SystemFacade systemFacade,
@@ -104,7 +126,11 @@ class DownloadTask implements Runnable {
                         NetworkChecker networkChecker,
                         DownloadReadyChecker downloadReadyChecker,
                         Clock clock,
-                        DownloadsRepository downloadsRepository) {
+                        DownloadsRepository downloadsRepository,
+                        DownloadProgressStream progressStream,
+                        DownloadControlRegistry controlRegistry,
+                        DownloadProgressFlusher progressFlusher,
+                        DownloadTransferModules transferModules) {
         this.context = context;
         this.systemFacade = systemFacade;
         this.originalDownloadInfo = originalDownloadInfo;
@@ -119,17 +145,19 @@ class DownloadTask implements Runnable {
         this.downloadReadyChecker = downloadReadyChecker;
         this.clock = clock;
         this.downloadsRepository = downloadsRepository;
-    }
-
-    /**
-     * Returns the user agent provided by the initiating app, or use the default one
-     */
-    private String userAgent() {
-        String userAgent = originalDownloadInfo.getUserAgent();
-        if (userAgent == null) {
-            userAgent = Constants.DEFAULT_USER_AGENT;
-        }
-        return userAgent;
+        this.progressStream = progressStream;
+        this.controlRegistry = controlRegistry;
+        this.progressFlusher = progressFlusher;
+        this.httpTransport = transferModules.getHttpTransport();
+        this.bandwidthLimiter = transferModules.getBandwidthLimiter();
+        this.throughputMeter = transferModules.getThroughputMeter();
+        this.downloadHosts = transferModules.getDownloadHosts();
+        this.hostRttEstimator = transferModules.getHostRttEstimator();
+        this.stallThreshold = transferModules.getStallThreshold();
+        this.connectionPipeline = transferModules.getConnectionPipeline();
+        this.contentDeduplicator = transferModules.getContentDeduplicator();
+        this.segmentExecutor = transferModules.getSegmentExecutor();
+        this.bulkTransferEnabled = transferModules.isBulkTransferEnabled();
     }
 
     /**
@@ -144,6 +172,7 @@ class DownloadTask implements Runnable {
         public long totalBytes = UNKNOWN_BYTE_SIZE;
         public long currentBytes = 0;
         public String headerETag;
+        public String headerLastModified;
         public boolean continuingDownload = false;
         public long bytesNotified = 0;
         public long timeLastNotification = 0;
@@ -169,6 +198,30 @@ class DownloadTask implements Runnable {
         public int redirectionCount;
         public URL url;
         public boolean shouldPause;
+        /**
+         * Whether the last transfer stopped because the response stream failed or stalled, rather than at its end.
+         */
+        public boolean streamFailed;
+
+        /**
+         * Byte ranges fetched in parallel, empty when downloading over a single connection.
+         */
+        public List<DownloadSegment> segments;
+
+        /**
+         * Checksum of the bytes written so far, null when the download isn't verified.
+         */
+        public DownloadDigest digest;
+
+        /**
+         * Checks the blocks written so far against the block manifest, null when the download has none.
+         */
+        public BlockVerifier blockVerifier;
+
+        /**
+         * The completed download this one revalidates, null unless the request is conditional.
+         */
+        public FileDownloadInfo earlierVersion;
 
         public State(FileDownloadInfo info) {
             mimeType = normalizeMimeType(info.getMimeType());
@@ -176,10 +229,12 @@ class DownloadTask implements Runnable {
             filename = info.getFileName();
             totalBytes = info.getTotalBytes();
             currentBytes = info.getCurrentBytes();
+            segments = DownloadSegments.parse(info.getSegments());
         }
 
         State() {
-            // This constructor is intentionally empty. Only used for tests.
+            // This constructor is intentionally empty. Used for tests and to track a single download segment.
+            segments = Collections.emptyList();
         }
 
         public void resetBeforeExecute() {
@@ -191,7 +246,7 @@ class DownloadTask implements Runnable {
         }
     }
 
-    private static String normalizeMimeType(String type) {
+    static String normalizeMimeType(String type) {
         if (type == null) {
             return null;
         }
@@ -208,9 +263,21 @@ class DownloadTask implements Runnable {
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        control = controlRegistry.register(originalDownloadInfo.getId());
+        throttle = bandwidthLimiter.register(originalDownloadBatch);
+        scheduledHost = downloadHosts.hostOf(originalDownloadInfo);
+        downloadHosts.onDownloadStarted(scheduledHost);
         try {
             runInternal();
         } finally {
+            connectionPipeline.discard(originalDownloadInfo.getId());
+            downloadHosts.onDownloadStopped(scheduledHost);
+            bandwidthLimiter.unregister(throttle);
+            controlRegistry.unregister(originalDownloadInfo.getId(), control);
+            throughputMeter.remove(originalDownloadInfo.getId());
+            if (connectedHost != null) {
+                downloadHosts.onConnectionReleased(connectedHost);
+            }
             downloadNotifier.notifyDownloadSpeed(originalDownloadInfo.getId(), 0);
         }
     }
@@ -243,6 +310,7 @@ class DownloadTask implements Runnable {
 
         try {
 
+            control.update(controlReader.newControlStatus());
             checkDownloadCanProceed();
 
             if (downloadStatus != DownloadStatus.RUNNING) {
@@ -330,6 +398,7 @@ class DownloadTask implements Runnable {
 
             cleanupDestination(state, finalStatus);
 
+            progressFlusher.discard(originalDownloadInfo.getId());
             notifyDownloadCompleted(state, finalStatus, errorMsg, numFailed);
             hackToForceClientsRefreshRulesIfConnectionDropped(finalStatus);
 
@@ -387,36 +456,91 @@ class DownloadTask implements Runnable {
         // skip when already finished; remove after fixing race in 5217390
         if (downloadAlreadyFinished(state)) {
             LLog.i("Skipping initiating request for download " + originalDownloadInfo.getId() + "; already completed");
+            if (state.filename != null) {
+                openVerifiers(state);
+                verifyIntegrity(state);
+            }
             return;
         }
 
+        if (state.continuingDownload && !state.segments.isEmpty()) {
+            checkConnectivity();
+            int extraConnections = downloadHosts.acquireExtraConnectionsTo(scheduledHost, DownloadSegments.countIncomplete(state.segments) - 1);
+            try {
+                downloadInSegments(state, extraConnections);
+            } finally {
+                downloadHosts.releaseExtraConnectionsTo(scheduledHost, extraConnections);
+            }
+            return;
+        }
+
+        if (!state.continuingDownload && canReuseCompletedContent(state) && reuseContentWithSameChecksum(state)) {
+            return;
+        }
+
+        if (!state.continuingDownload && originalDownloadInfo.isRevalidated() && canReuseCompletedContent(state)) {
+            state.earlierVersion = contentDeduplicator.findEarlierVersionOf(originalDownloadInfo);
+        }
+
         while (state.redirectionCount++ < Constants.MAX_REDIRECTS) {
             // Open connection and follow any redirects until we have a useful
             // response with body.
             HttpURLConnection conn = null;
             try {
                 checkConnectivity();
-                conn = (HttpURLConnection) state.url.openConnection();
-                conn.setInstanceFollowRedirects(false);
-                conn.setConnectTimeout(DEFAULT_TIMEOUT);
-                conn.setReadTimeout(DEFAULT_TIMEOUT);
+                conn = state.continuingDownload ? null : connectionPipeline.take(originalDownloadInfo.getId(), state.url);
+                final int responseCode;
+                if (conn != null) {
+                    LLog.v("Download " + originalDownloadInfo.getId() + " picking up its prepared response");
+                    responseCode = conn.getResponseCode();
+                } else {
+                    conn = httpTransport.open(state.url);
+                    conn.setInstanceFollowRedirects(false);
+                    setTimeouts(conn);
 
-                addRequestHeaders(state, conn);
+                    addRequestHeaders(state, conn);
+
+                    responseCode = getResponseCode(conn);
+                }
+                connectedHost = state.url.getHost();
 
-                final int responseCode = conn.getResponseCode();
                 switch (responseCode) {
                     case HTTP_OK:
                         if (state.continuingDownload) {
-                            throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Expected partial, but received OK");
+                            startOverPartialFile(state);
                         }
                         processResponseHeaders(state, conn);
+                        if (canReuseCompletedContent(state) && reuseContentWithSameETag(state)) {
+                            return;
+                        }
+                        if (canDownloadInSegments(state, conn)) {
+                            int extraConnections = downloadHosts.acquireExtraConnectionsTo(scheduledHost, Constants.MAX_DOWNLOAD_SEGMENTS - 1);
+                            if (extraConnections > 0) {
+                                conn.disconnect();
+                                startDownloadInSegments(state, extraConnections);
+                                return;
+                            }
+                        }
                         transferData(state, conn);
                         return;
 
+                    case HTTP_NOT_MODIFIED:
+                        if (state.earlierVersion == null) {
+                            StopRequestException.throwUnhandledHttpError(responseCode, conn.getResponseMessage());
+                        } else if (reuseUnchangedContent(state, conn)) {
+                            return;
+                        }
+                        LLog.w("Download " + originalDownloadInfo.getId() + " is unchanged but its earlier version can't be reused, requesting it again");
+                        state.earlierVersion = null;
+                        continue;
+
                     case HTTP_PARTIAL:
                         if (!state.continuingDownload) {
                             throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Expected OK, but received partial");
                         }
+                        if (getContentRangeStart(conn) > state.currentBytes) {
+                            throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Received a range starting after the bytes already written");
+                        }
                         transferData(state, conn);
                         return;
 
@@ -426,6 +550,7 @@ class DownloadTask implements Runnable {
                     case HTTP_TEMP_REDIRECT:
                         final String location = conn.getHeaderField("Location");
                         state.url = new URL(state.url, location);
+                        downloadHosts.onRedirected(originalDownloadInfo.getUri(), state.url);
                         if (responseCode == HTTP_MOVED_PERM) {
                             // Push updated URL back to database
                             state.requestUri = state.url.toString();
@@ -466,27 +591,25 @@ class DownloadTask implements Runnable {
 
     /**
      * Check if the download has been paused or canceled, stopping the request appropriately if it
-     * has been.
+     * has been. Pause and cancel requests are checked every time, the client rules at most once per second.
      */
     private void checkDownloadCanProceed() throws StopRequestException {
+        checkIsPausedOrCanceled();
+
         if (clock.intervalLessThan(Clock.Interval.ONE_SECOND)) {
             return;
         }
 
         clock.startInterval();
 
-        checkIsPausedOrCanceled();
-
         checkClientRules();
     }
 
     private void checkIsPausedOrCanceled() throws StopRequestException {
-        FileDownloadInfo.ControlStatus controlStatus = controlReader.newControlStatus();
-
-        if (controlStatus.isPaused()) {
+        if (control.isPaused()) {
             throw new StopRequestException(DownloadStatus.PAUSED_BY_APP, "download paused by owner");
         }
-        if (controlStatus.isCanceled()) {
+        if (control.isCanceled()) {
             throw new StopRequestException(DownloadStatus.CANCELED, "download canceled");
         }
     }
@@ -511,7 +634,7 @@ class DownloadTask implements Runnable {
         FileDescriptor outFd = null;
         try {
             try {
-                in = conn.getInputStream();
+                in = openAt(state.currentBytes, conn);
             } catch (IOException e) {
                 throw new StopRequestException(HTTP_DATA_ERROR, e);
             }
@@ -598,25 +721,312 @@ class DownloadTask implements Runnable {
     private void transferData(State state, InputStream in, OutputStream out) throws StopRequestException {
         StorageSpaceVerifier spaceVerifier = new StorageSpaceVerifier(storageManager, originalDownloadInfo.getDestination(), state.filename);
         DataWriter checkedWriter = new CheckedWriter(spaceVerifier, out);
-        DataWriter dataWriter = new NotifierWriter(
-                getContentResolver(),
+        openVerifiers(state);
+        if (state.digest != null || state.blockVerifier != null) {
+            checkedWriter = new ChecksumWriter(checkedWriter);
+        }
+        StallDetector stallDetector = canReconnect(state) ? new StallDetector(stallThreshold) : StallDetector.disabled();
+        DataWriter notifierWriter = new NotifierWriter(
+                progressFlusher,
                 checkedWriter,
                 downloadNotifier,
+                progressStream,
+                throughputMeter,
+                stallDetector,
+                throttle,
                 originalDownloadInfo,
                 checkOnWrite
         );
+        DataWriter dataWriter = new ThrottledWriter(throttle, notifierWriter);
+        if (connectionPipeline.isEnabled()) {
+            dataWriter = new PipeliningWriter(connectionPipeline, originalDownloadBatch, originalDownloadInfo.getId(), dataWriter);
+        }
 
         DataTransferer dataTransferer;
         if (originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)) {
             dataTransferer = new TarTruncator(dataWriter);
+        } else if (bulkTransferEnabled) {
+            dataTransferer = new BulkDataTransferer(dataWriter);
         } else {
             dataTransferer = new RegularDataTransferer(dataWriter);
         }
 
         State newState = dataTransferer.transferData(state, in);
+        int attempt = 0;
+        while (shouldReconnect(newState) && reconnectBackoff.canReconnect(attempt)) {
+            HttpURLConnection conn = reconnectAfter(reconnectBackoff.delayMillisFor(attempt), newState);
+            attempt++;
+            if (conn == null) {
+                continue;
+            }
+            long bytesBeforeReconnect = newState.currentBytes;
+            stallDetector.reset();
+            InputStream reconnectedIn = null;
+            try {
+                reconnectedIn = openAt(newState.currentBytes, conn);
+                newState = dataTransferer.transferData(newState, reconnectedIn);
+                if (newState.currentBytes > bytesBeforeReconnect) {
+                    attempt = 0;
+                }
+            } catch (IOException e) {
+                LLog.w("Download " + originalDownloadInfo.getId() + " failed to read the reconnected stream: " + e.getMessage());
+            } finally {
+                closeQuietly(reconnectedIn);
+                conn.disconnect();
+            }
+        }
         handleEndOfStream(newState);
     }
 
+    /**
+     * Tar updates and DRM conversions change the bytes written, so they are never verified.
+     */
+    private void openVerifiers(State state) throws StopRequestException {
+        if (originalDownloadInfo.shouldAllowTarUpdate(state.mimeType) || DownloadDrmHelper.isDrmConvertNeeded(state.mimeType)) {
+            return;
+        }
+        if (originalDownloadInfo.hasExpectedChecksum()) {
+            state.digest = digestOf(state);
+        }
+        if (originalDownloadInfo.hasBlockChecksums()) {
+            state.blockVerifier = blockVerifierOf(state);
+        }
+    }
+
+    /**
+     * Carries on from the checksum saved at the last progress checkpoint, reading back from the file
+     * whatever was written after it.
+     */
+    private DownloadDigest digestOf(State state) throws StopRequestException {
+        String algorithm = originalDownloadInfo.getChecksumAlgorithm();
+        DownloadDigest digest = state.digest;
+        if (digest == null || digest.getDigestedBytes() > state.currentBytes) {
+            digest = DownloadDigest.resume(algorithm, originalDownloadInfo.getChecksumState());
+        }
+        if (digest.getDigestedBytes() > state.currentBytes) {
+            LLog.d("Download " + originalDownloadInfo.getId() + " restarted, dropping its saved checksum");
+            digest = DownloadDigest.newInstance(algorithm);
+            downloadsRepository.updateChecksumState(originalDownloadInfo, digest.saveState());
+        }
+        try {
+            digest.catchUp(new File(state.filename), state.currentBytes);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        }
+        return digest;
+    }
+
+    /**
+     * Carries on from the blocks checked at the last progress checkpoint, reading back from the file
+     * whatever was written after it.
+     */
+    private BlockVerifier blockVerifierOf(State state) throws StopRequestException {
+        BlockVerifier blockVerifier = state.blockVerifier;
+        if (blockVerifier == null) {
+            blockVerifier = BlockVerifier.resume(
+                    originalDownloadInfo.getBlockChecksumAlgorithm(),
+                    originalDownloadInfo.getBlockSize(),
+                    originalDownloadInfo.getBlockChecksums(),
+                    originalDownloadInfo.getBlockState()
+            );
+        }
+        try {
+            blockVerifier.catchUp(new File(state.filename), state.currentBytes);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        }
+        return blockVerifier;
+    }
+
+    private void verifyIntegrity(State state) throws StopRequestException {
+        if (state.blockVerifier != null) {
+            repairCorruptBlocks(state);
+        }
+        if (state.digest != null) {
+            verifyChecksum(state);
+        }
+    }
+
+    /**
+     * Fetches the corrupt blocks again with range requests, keeping the rest of the file.
+     */
+    private void repairCorruptBlocks(State state) throws StopRequestException {
+        BlockVerifier blockVerifier = state.blockVerifier;
+        if (!blockVerifier.finish()) {
+            throw new StopRequestException(DownloadStatus.CHECKSUM_MISMATCH, "block manifest doesn't match a file of " + state.currentBytes + " bytes");
+        }
+
+        boolean refetched = false;
+        for (int attempt = 0; blockVerifier.hasCorruptBlocks(); attempt++) {
+            downloadsRepository.updateBlockState(originalDownloadInfo, blockVerifier.saveState());
+            if (attempt == Constants.MAX_BLOCK_REFETCHES) {
+                throw new StopRequestException(DownloadStatus.CHECKSUM_MISMATCH, "corrupt blocks after " + attempt + " attempts: " + blockVerifier.saveState());
+            }
+            refetchBlocks(state, blockVerifier.corruptSegments(state.currentBytes));
+            try {
+                blockVerifier.recheckCorruptBlocks(new File(state.filename), state.currentBytes);
+            } catch (IOException e) {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+            }
+            refetched = true;
+        }
+        downloadsRepository.updateBlockState(originalDownloadInfo, blockVerifier.saveState());
+
+        if (refetched && state.digest != null) {
+            state.digest = DownloadDigest.newInstance(originalDownloadInfo.getChecksumAlgorithm());
+            try {
+                state.digest.catchUp(new File(state.filename), state.currentBytes);
+            } catch (IOException e) {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+            }
+        }
+    }
+
+    /**
+     * Fetches the given blocks over as many connections as a segmented download would use, as far as the host allows.
+     */
+    private void refetchBlocks(State state, List<DownloadSegment> blocks) throws StopRequestException {
+        LLog.w("Download " + originalDownloadInfo.getId() + " fetching " + blocks.size() + " corrupt blocks again");
+        SegmentedDownloader segmentedDownloader = new SegmentedDownloader(
+                new RangeConnector(state),
+                new StorageSpaceVerifier(storageManager, originalDownloadInfo.getDestination(), state.filename),
+                throttle,
+                checkOnRefetch,
+                segmentExecutor,
+                bulkTransferEnabled
+        );
+        int wantedConnections = Math.min(blocks.size(), Constants.MAX_DOWNLOAD_SEGMENTS);
+        int extraConnections = downloadHosts.acquireExtraConnectionsTo(scheduledHost, wantedConnections - 1);
+        try {
+            segmentedDownloader.download(state.filename, blocks, 1 + extraConnections);
+        } finally {
+            downloadHosts.releaseExtraConnectionsTo(scheduledHost, extraConnections);
+        }
+    }
+
+    private final SegmentedDownloader.ProgressListener checkOnRefetch = new SegmentedDownloader.ProgressListener() {
+        @Override
+        public void onProgress(List<DownloadSegment> segments) throws StopRequestException {
+            checkDownloadCanProceed();
+        }
+    };
+
+    private void verifyChecksum(State state) throws StopRequestException {
+        String checksum = state.digest.digest();
+        downloadsRepository.updateChecksum(originalDownloadInfo, checksum);
+        if (!checksum.equals(originalDownloadInfo.getExpectedChecksum())) {
+            throw new StopRequestException(
+                    DownloadStatus.CHECKSUM_MISMATCH,
+                    "expected " + originalDownloadInfo.getChecksumAlgorithm() + " " + originalDownloadInfo.getExpectedChecksum() + " but got " + checksum
+            );
+        }
+    }
+
+    /**
+     * A failed stream is picked up from where it stopped without going through the persisted retry,
+     * as long as the server can tell us the file didn't change in between.
+     */
+    private boolean shouldReconnect(State state) {
+        return state.streamFailed && !state.shouldPause && canReconnect(state);
+    }
+
+    /**
+     * Stalls are only flagged when the connection can be replaced, otherwise ending the stream early
+     * would fail the download or leave it truncated, so the read timeout is left in charge.
+     */
+    private boolean canReconnect(State state) {
+        return ifRangeValidatorOf(state) != null
+                && !originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)
+                && !DownloadDrmHelper.isDrmConvertNeeded(state.mimeType);
+    }
+
+    /**
+     * @return the connection serving the remaining bytes, or null when this attempt failed
+     */
+    private HttpURLConnection reconnectAfter(long delayMillis, State state) throws StopRequestException {
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(HTTP_DATA_ERROR, "interrupted while reconnecting", e);
+        }
+        checkDownloadCanProceed();
+        checkConnectivity();
+
+        LLog.i("Download " + originalDownloadInfo.getId() + " reconnecting at byte " + state.currentBytes);
+        HttpURLConnection conn = null;
+        try {
+            conn = httpTransport.open(state.url);
+            conn.setInstanceFollowRedirects(false);
+            setTimeouts(conn);
+            addCommonRequestHeaders(conn);
+            conn.addRequestProperty("If-Range", ifRangeValidatorOf(state));
+            conn.addRequestProperty("Range", "bytes=" + state.currentBytes + "-");
+
+            if (getResponseCode(conn) == HTTP_PARTIAL && coversFrom(state.currentBytes, conn)) {
+                return conn;
+            }
+            LLog.w("Download " + originalDownloadInfo.getId() + " can't continue, got " + conn.getResponseCode());
+        } catch (IOException e) {
+            LLog.w("Download " + originalDownloadInfo.getId() + " failed to reconnect: " + e.getMessage());
+        }
+        if (conn != null) {
+            conn.disconnect();
+        }
+        return null;
+    }
+
+    /**
+     * The timeouts follow how quickly the host answered the previous requests.
+     */
+    private void setTimeouts(HttpURLConnection conn) {
+        String host = conn.getURL().getHost();
+        conn.setConnectTimeout(hostRttEstimator.connectTimeoutMillisFor(host));
+        conn.setReadTimeout(hostRttEstimator.readTimeoutMillisFor(host));
+    }
+
+    private int getResponseCode(HttpURLConnection conn) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        int responseCode = conn.getResponseCode();
+        hostRttEstimator.sample(conn.getURL().getHost(), SystemClock.elapsedRealtime() - start);
+        return responseCode;
+    }
+
+    /**
+     * A range starting earlier than requested is fine, the bytes already written are skipped.
+     */
+    private static boolean coversFrom(long currentBytes, HttpURLConnection conn) {
+        long rangeStart = getContentRangeStart(conn);
+        return rangeStart != UNKNOWN_BYTE_SIZE && rangeStart <= currentBytes;
+    }
+
+    /**
+     * @return the response body positioned at the first byte this download is missing
+     */
+    InputStream openAt(long currentBytes, HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        long rangeStart = getContentRangeStart(conn);
+        if (rangeStart != UNKNOWN_BYTE_SIZE && rangeStart < currentBytes) {
+            LLog.i("Download " + originalDownloadInfo.getId() + " skipping " + (currentBytes - rangeStart) + " bytes it already has");
+            skipFully(in, currentBytes - rangeStart);
+        }
+        return in;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Response ended " + remaining + " bytes before the requested range");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
     private final NotifierWriter.WriteChunkListener checkOnWrite = new NotifierWriter.WriteChunkListener() {
         @Override
         public void chunkWritten(FileDownloadInfo downloadInfo) throws StopRequestException {
@@ -624,6 +1034,324 @@ class DownloadTask implements Runnable {
         }
     };
 
+    /**
+     * Reused content is shared with the download it comes from, so downloads that are written to in place
+     * once complete, tar updates, DRM conversions and block repairs, never reuse it.
+     */
+    private boolean canReuseCompletedContent(State state) {
+        return !originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)
+                && !DownloadDrmHelper.isDrmConvertNeeded(state.mimeType)
+                && !originalDownloadInfo.hasBlockChecksums();
+    }
+
+    /**
+     * Takes the content of a completed download verified against the checksum this one expects, without any request.
+     */
+    private boolean reuseContentWithSameChecksum(State state) throws StopRequestException {
+        FileDownloadInfo source = contentDeduplicator.findSameChecksumAs(originalDownloadInfo);
+        return source != null && reuseContentOf(source, state);
+    }
+
+    /**
+     * The server answered the earlier version is unchanged, its content is taken as it is and keeps its validators
+     * unless the response sent new ones.
+     */
+    private boolean reuseUnchangedContent(State state, HttpURLConnection conn) throws StopRequestException {
+        FileDownloadInfo earlierVersion = state.earlierVersion;
+        String eTag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        state.headerETag = eTag == null ? earlierVersion.getETag() : eTag;
+        state.headerLastModified = lastModified == null ? earlierVersion.getHeaderLastModified() : lastModified;
+        return reuseContentOf(earlierVersion, state);
+    }
+
+    /**
+     * Materialises the content of the source at a destination file of this download's own, before any response
+     * told us its name.
+     */
+    private boolean reuseContentOf(FileDownloadInfo source, State state) throws StopRequestException {
+        String mimeType = state.mimeType == null ? normalizeMimeType(source.getMimeType()) : state.mimeType;
+        String filename = Helpers.generateSaveFile(
+                originalDownloadInfo.getUri(),
+                originalDownloadInfo.getHint(),
+                null,
+                null,
+                mimeType,
+                originalDownloadInfo.getDestination(),
+                source.getTotalBytes(),
+                storageManager
+        );
+        if (!materialiseContentOf(source, filename)) {
+            return false;
+        }
+
+        state.filename = filename;
+        state.mimeType = mimeType;
+        state.totalBytes = source.getTotalBytes();
+        updateDownloadInfoFieldsFrom(state);
+        downloadsRepository.updateDatabaseFromHeaders(
+                originalDownloadInfo,
+                state.filename,
+                state.headerETag,
+                state.headerLastModified,
+                state.mimeType,
+                state.totalBytes
+        );
+        completeWithContentOf(source, state);
+        return true;
+    }
+
+    /**
+     * Takes the content of a completed download the server tagged with the same ETag, instead of reading the response body.
+     */
+    private boolean reuseContentWithSameETag(State state) throws StopRequestException {
+        FileDownloadInfo source = contentDeduplicator.findSameContentAs(originalDownloadInfo, state.headerETag, state.contentLength);
+        if (source == null || !materialiseContentOf(source, state.filename)) {
+            return false;
+        }
+        completeWithContentOf(source, state);
+        return true;
+    }
+
+    private boolean materialiseContentOf(FileDownloadInfo source, String filename) {
+        try {
+            contentDeduplicator.materialise(source, filename);
+            LLog.i("Download " + originalDownloadInfo.getId() + " reusing the content of download " + source.getId());
+            return true;
+        } catch (IOException e) {
+            LLog.w(e, "Download " + originalDownloadInfo.getId() + " couldn't reuse the content of download " + source.getId());
+            return false;
+        }
+    }
+
+    private void completeWithContentOf(FileDownloadInfo source, State state) throws StopRequestException {
+        state.currentBytes = source.getTotalBytes();
+        state.totalBytes = state.currentBytes;
+        openVerifiers(state);
+        handleEndOfStream(state);
+        downloadsRepository.updateBytesSaved(originalDownloadInfo, state.currentBytes);
+    }
+
+    /**
+     * A download is split into segments fetched in parallel when the server accepts byte ranges
+     * and the file is large enough for the extra connections to pay off.
+     */
+    private boolean canDownloadInSegments(State state, HttpURLConnection conn) {
+        if (!"bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"))) {
+            return false;
+        }
+        if (state.contentLength == UNKNOWN_BYTE_SIZE
+                || originalDownloadInfo.hasExpectedChecksum()
+                || originalDownloadInfo.hasBlockChecksums()
+                || originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)
+                || DownloadDrmHelper.isDrmConvertNeeded(state.mimeType)) {
+            return false;
+        }
+        return !DownloadSegments.split(state.contentLength).isEmpty();
+    }
+
+    /**
+     * Allocate the whole destination file and persist the segments before fetching any of them,
+     * so an interrupted download can resume every segment. There is a segment per connection
+     * the host allows, the extra connections are released once the segments are done.
+     */
+    private void startDownloadInSegments(State state, int extraConnections) throws StopRequestException {
+        try {
+            storageManager.verifySpace(originalDownloadInfo.getDestination(), state.filename, state.contentLength);
+
+            state.segments = DownloadSegments.split(state.contentLength, 1 + extraConnections);
+            downloadsRepository.updateDownloadSegments(originalDownloadInfo, DownloadSegments.serialize(state.segments), 0);
+
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(state.filename, "rw");
+                file.setLength(state.contentLength);
+            } catch (IOException e) {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+            } finally {
+                closeQuietly(file);
+            }
+
+            downloadInSegments(state, extraConnections);
+        } finally {
+            downloadHosts.releaseExtraConnectionsTo(scheduledHost, extraConnections);
+        }
+    }
+
+    /**
+     * @param extraConnections the connections acquired besides the one of this download, bounding how many segments are fetched at once
+     */
+    private void downloadInSegments(State state, int extraConnections) throws StopRequestException {
+        LLog.i("Download " + originalDownloadInfo.getId() + " fetching " + state.segments.size() + " segments in parallel");
+        SegmentedDownloader segmentedDownloader = new SegmentedDownloader(
+                new RangeConnector(state),
+                new StorageSpaceVerifier(storageManager, originalDownloadInfo.getDestination(), state.filename),
+                throttle,
+                new SegmentProgressListener(state),
+                segmentExecutor,
+                bulkTransferEnabled
+        );
+
+        try {
+            segmentedDownloader.download(state.filename, state.segments, 1 + extraConnections);
+        } catch (StopRequestException exception) {
+            checkpointSegments(state);
+            if (exception.getFinalStatus() == DownloadStatus.PAUSED_BY_APP) {
+                notifyThroughDatabase(state, DownloadStatus.PAUSING, exception.getMessage(), 0);
+            }
+            throw exception;
+        }
+
+        state.currentBytes = DownloadSegments.currentBytesOf(state.segments);
+        state.segments = Collections.emptyList();
+        downloadsRepository.updateDownloadSegments(originalDownloadInfo, null, state.currentBytes);
+        handleEndOfStream(state);
+    }
+
+    private void checkpointSegments(State state) {
+        state.currentBytes = DownloadSegments.currentBytesOf(state.segments);
+        downloadsRepository.updateDownloadSegments(originalDownloadInfo, DownloadSegments.serialize(state.segments), state.currentBytes);
+    }
+
+    /**
+     * Runs on the downloading thread while the segments are transferred, it mirrors what
+     * {@link NotifierWriter} does for single connection downloads.
+     */
+    private class SegmentProgressListener implements SegmentedDownloader.ProgressListener {
+
+        private final State state;
+
+        SegmentProgressListener(State state) {
+            this.state = state;
+        }
+
+        @Override
+        public void onProgress(List<DownloadSegment> segments) throws StopRequestException {
+            long currentBytes = DownloadSegments.currentBytesOf(segments);
+            if (currentBytes > state.currentBytes) {
+                state.gotData = true;
+            }
+            state.currentBytes = currentBytes;
+            reportSpeed();
+            progressStream.publish(originalDownloadInfo, state.currentBytes, state.totalBytes, state.speed, DownloadStatus.RUNNING);
+
+            long now = SystemClock.elapsedRealtime();
+            if (state.currentBytes - state.bytesNotified > Constants.MIN_PROGRESS_STEP
+                    && now - state.timeLastNotification > Constants.MIN_PROGRESS_TIME) {
+                checkpointSegments(state);
+                state.bytesNotified = state.currentBytes;
+                state.timeLastNotification = now;
+            }
+
+            checkDownloadCanProceed();
+        }
+
+        private void reportSpeed() {
+            long now = SystemClock.elapsedRealtime();
+            long sampleDelta = now - state.speedSampleStart;
+            if (sampleDelta > 500) {
+                long sampleSpeed = ((state.currentBytes - state.speedSampleBytes) * 1000) / sampleDelta;
+                state.speed = state.speed == 0 ? sampleSpeed : ((state.speed * 3) + sampleSpeed) / 4;
+                if (state.speedSampleStart != 0) {
+                    downloadNotifier.notifyDownloadSpeed(originalDownloadInfo.getId(), state.speed);
+                    throughputMeter.update(originalDownloadInfo.getId(), state.speed);
+                }
+                state.speedSampleStart = now;
+                state.speedSampleBytes = state.currentBytes;
+            }
+        }
+    }
+
+    /**
+     * Opens the ranged request of a single segment, following redirects from the download URL.
+     * Called concurrently from every segment.
+     */
+    private class RangeConnector implements SegmentedDownloader.SegmentConnector {
+
+        private final State state;
+
+        RangeConnector(State state) {
+            this.state = state;
+        }
+
+        @Override
+        public HttpURLConnection open(DownloadSegment segment) throws StopRequestException {
+            URL url = state.url;
+            for (int redirectionCount = 0; redirectionCount < Constants.MAX_REDIRECTS; redirectionCount++) {
+                HttpURLConnection conn = null;
+                boolean connected = false;
+                try {
+                    conn = httpTransport.open(url);
+                    conn.setInstanceFollowRedirects(false);
+                    setTimeouts(conn);
+
+                    addSegmentRequestHeaders(state, segment, conn);
+
+                    final int responseCode = getResponseCode(conn);
+                    switch (responseCode) {
+                        case HTTP_PARTIAL:
+                            if (getContentRangeStart(conn) != segment.nextByte()) {
+                                throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Received a different range than requested");
+                            }
+                            connected = true;
+                            return conn;
+
+                        case HTTP_OK:
+                            throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Expected partial, but received OK");
+
+                        case HTTP_MOVED_PERM:
+                        case HTTP_MOVED_TEMP:
+                        case HTTP_SEE_OTHER:
+                        case HTTP_TEMP_REDIRECT:
+                            url = new URL(url, conn.getHeaderField("Location"));
+                            continue;
+
+                        case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+                            throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Requested range not satisfiable");
+
+                        case HTTP_UNAVAILABLE:
+                            throw new StopRequestException(HTTP_UNAVAILABLE, conn.getResponseMessage());
+
+                        case HTTP_INTERNAL_ERROR:
+                            throw new StopRequestException(HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+
+                        default:
+                            StopRequestException.throwUnhandledHttpError(responseCode, conn.getResponseMessage());
+                    }
+                } catch (UnknownHostException e) {
+                    throw new StopRequestException(HTTP_NOT_FOUND, e);
+                } catch (IOException e) {
+                    throw new StopRequestException(HTTP_DATA_ERROR, e);
+                } finally {
+                    if (conn != null && !connected) {
+                        conn.disconnect();
+                    }
+                }
+            }
+
+            throw new StopRequestException(DownloadStatus.TOO_MANY_REDIRECTS, "Too many redirects");
+        }
+    }
+
+    /**
+     * @return the first byte of a {@code Content-Range: bytes start-end/total} response, or {@link Constants#UNKNOWN_BYTE_SIZE}
+     */
+    private static long getContentRangeStart(HttpURLConnection conn) {
+        String contentRange = conn.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return UNKNOWN_BYTE_SIZE;
+        }
+        int rangeSeparator = contentRange.indexOf('-');
+        if (rangeSeparator == -1) {
+            return UNKNOWN_BYTE_SIZE;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), rangeSeparator).trim());
+        } catch (NumberFormatException e) {
+            return UNKNOWN_BYTE_SIZE;
+        }
+    }
+
     /**
      * Called after a successful completion to take any necessary action on the downloaded file.
      */
@@ -656,6 +1384,7 @@ class DownloadTask implements Runnable {
      * check for consistency.
      */
     private void handleEndOfStream(State state) throws StopRequestException {
+        progressFlusher.discard(originalDownloadInfo.getId());
         if (state.shouldPause) {
             updateStatusAndPause(state);
             return;
@@ -671,6 +1400,8 @@ class DownloadTask implements Runnable {
                 throw new StopRequestException(HTTP_DATA_ERROR, "closed socket before end of file");
             }
         }
+
+        verifyIntegrity(state);
     }
 
     private void updateStatusAndPause(State state) throws StopRequestException {
@@ -682,6 +1413,28 @@ class DownloadTask implements Runnable {
         return (state.currentBytes > 0 && !originalDownloadInfo.isResumable() || DownloadDrmHelper.isDrmConvertNeeded(state.mimeType));
     }
 
+    /**
+     * The server ignored the range because the file changed, or doesn't support ranges, and sent the whole file.
+     * The download carries on from scratch with this response, writing over its partial file.
+     */
+    void startOverPartialFile(State state) throws StopRequestException {
+        LLog.i("Download " + originalDownloadInfo.getId() + " received the whole file instead of the range from " + state.currentBytes + ", starting over");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(state.filename, "rw");
+            file.setLength(0);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        } finally {
+            closeQuietly(file);
+        }
+        progressFlusher.discard(originalDownloadInfo.getId());
+        state.continuingDownload = false;
+        state.currentBytes = 0;
+        state.digest = null;
+        state.blockVerifier = null;
+    }
+
     /**
      * Prepare target file based on given network response. Derives filename and
      * target size as needed.
@@ -691,19 +1444,30 @@ class DownloadTask implements Runnable {
 
         readResponseHeaders(state, conn);
 
-        state.filename = Helpers.generateSaveFile(
-                originalDownloadInfo.getUri(),
-                originalDownloadInfo.getHint(),
-                state.contentDisposition,
-                state.contentLocation,
-                state.mimeType,
-                originalDownloadInfo.getDestination(),
-                state.contentLength,
-                storageManager
-        );
+        if (state.filename == null) {
+            state.filename = Helpers.generateSaveFile(
+                    originalDownloadInfo.getUri(),
+                    originalDownloadInfo.getHint(),
+                    state.contentDisposition,
+                    state.contentLocation,
+                    state.mimeType,
+                    originalDownloadInfo.getDestination(),
+                    state.contentLength,
+                    storageManager
+            );
+        } else {
+            storageManager.verifySpace(originalDownloadInfo.getDestination(), state.filename, state.contentLength);
+        }
 
         updateDownloadInfoFieldsFrom(state);
-        downloadsRepository.updateDatabaseFromHeaders(originalDownloadInfo, state.filename, state.headerETag, state.mimeType, state.totalBytes);
+        downloadsRepository.updateDatabaseFromHeaders(
+                originalDownloadInfo,
+                state.filename,
+                state.headerETag,
+                state.headerLastModified,
+                state.mimeType,
+                state.totalBytes
+        );
         // check connectivity again now that we know the total size
         checkConnectivity();
     }
@@ -725,6 +1489,7 @@ class DownloadTask implements Runnable {
         }
 
         state.headerETag = conn.getHeaderField("ETag");
+        state.headerLastModified = conn.getHeaderField("Last-Modified");
 
         final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
         if (transferEncoding == null) {
@@ -737,7 +1502,7 @@ class DownloadTask implements Runnable {
         state.totalBytes = state.contentLength;
 
         final boolean noSizeInfo = state.contentLength == UNKNOWN_BYTE_SIZE && (transferEncoding == null || !transferEncoding.equalsIgnoreCase("chunked"));
-        if (!originalDownloadInfo.isNoIntegrity() && noSizeInfo) {
+        if (!originalDownloadInfo.isNoIntegrity() && !originalDownloadInfo.hasExpectedChecksum() && noSizeInfo) {
             throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "can't know size of download, giving up");
         }
     }
@@ -781,6 +1546,7 @@ class DownloadTask implements Runnable {
                 LLog.d("setupDestinationFile() found fileLength=0, deleting " + state.filename);
                 destinationFile.delete();
                 state.filename = null;
+                state.segments = Collections.<DownloadSegment>emptyList();
                 LLog.i("resuming download for id: " + originalDownloadInfo.getId() + ", BUT starting from scratch again: ");
             } else if (!originalDownloadInfo.isResumable()) {
                 // This should've been caught upon failure
@@ -790,42 +1556,87 @@ class DownloadTask implements Runnable {
             } else {
                 // All right, we'll be able to resume this download
                 LLog.i("resuming download for id: " + originalDownloadInfo.getId() + ", and starting with file of length: " + fileLength);
-                state.currentBytes = (int) fileLength;
+                if (state.segments.isEmpty()) {
+                    state.currentBytes = (int) fileLength;
+                } else {
+                    // A segmented download allocates the whole file upfront, its progress is kept per segment
+                    state.currentBytes = DownloadSegments.currentBytesOf(state.segments);
+                }
                 if (originalDownloadInfo.getTotalBytes() != UNKNOWN_BYTE_SIZE) {
                     state.contentLength = originalDownloadInfo.getTotalBytes();
                 }
                 state.headerETag = originalDownloadInfo.getETag();
+                state.headerLastModified = originalDownloadInfo.getHeaderLastModified();
                 state.continuingDownload = true;
                 LLog.i("resuming download for id: " + originalDownloadInfo.getId() + ", state.currentBytes: " + state.currentBytes + ", and setting continuingDownload to true: ");
             }
+        } else if (!state.segments.isEmpty()) {
+            LLog.i("segmented download for id: " + originalDownloadInfo.getId() + " lost its file, starting from scratch again");
+            state.segments = Collections.<DownloadSegment>emptyList();
+            state.currentBytes = 0;
         }
     }
 
     /**
      * Add custom headers for this download to the HTTP request.
      */
-    private void addRequestHeaders(State state, HttpURLConnection conn) {
-        for (Pair<String, String> header : originalDownloadInfo.getHeaders()) {
-            conn.addRequestProperty(header.first, header.second);
-        }
-
-        // Only splice in user agent when not already defined
-        if (conn.getRequestProperty("User-Agent") == null) {
-            conn.addRequestProperty("User-Agent", userAgent());
-        }
-
-        // Defeat transparent gzip compression, since it doesn't allow us to
-        // easily resume partial downloads.
-        conn.setRequestProperty("Accept-Encoding", "identity");
+    void addRequestHeaders(State state, HttpURLConnection conn) {
+        addCommonRequestHeaders(conn);
 
         if (state.continuingDownload) {
-            if (state.headerETag != null) {
+            String validator = ifRangeValidatorOf(state);
+            if (validator != null) {
+                conn.addRequestProperty("If-Range", validator);
+            } else if (state.headerETag != null) {
                 conn.addRequestProperty("If-Match", state.headerETag);
             }
             conn.addRequestProperty("Range", "bytes=" + state.currentBytes + "-");
+        } else if (state.earlierVersion != null) {
+            addRevalidationHeaders(state.earlierVersion, conn);
         }
     }
 
+    /**
+     * If-Range only takes a strong ETag, with a weak one the Last-Modified date is used instead. When there's no date
+     * either, the weak ETag is left to If-Match, which fails rather than sending another file.
+     *
+     * @return the strong ETag, or else the Last-Modified date, the range is conditional on, or null when there's none
+     */
+    private static String ifRangeValidatorOf(State state) {
+        if (state.headerETag != null && !state.headerETag.startsWith(WEAK_ETAG_PREFIX)) {
+            return state.headerETag;
+        }
+        return state.headerLastModified;
+    }
+
+    /**
+     * Asks the server to answer 304 Not Modified rather than send the content again when it hasn't changed.
+     */
+    private void addRevalidationHeaders(FileDownloadInfo earlierVersion, HttpURLConnection conn) {
+        if (earlierVersion.getETag() != null) {
+            conn.addRequestProperty("If-None-Match", earlierVersion.getETag());
+        }
+        if (earlierVersion.getHeaderLastModified() != null) {
+            conn.addRequestProperty("If-Modified-Since", earlierVersion.getHeaderLastModified());
+        }
+    }
+
+    /**
+     * Add the headers requesting the remaining bytes of a single segment of this download.
+     */
+    private void addSegmentRequestHeaders(State state, DownloadSegment segment, HttpURLConnection conn) {
+        addCommonRequestHeaders(conn);
+
+        if (state.headerETag != null) {
+            conn.addRequestProperty("If-Match", state.headerETag);
+        }
+        conn.addRequestProperty("Range", "bytes=" + segment.nextByte() + "-" + segment.getEndByte());
+    }
+
+    private void addCommonRequestHeaders(HttpURLConnection conn) {
+        RequestHeaders.addCommonTo(conn, originalDownloadInfo);
+    }
+
     /**
      * Stores information about the completed download, and notifies the initiating application.
      */
@@ -871,10 +1682,7 @@ class DownloadTask implements Runnable {
         );
 
         updateBatchStatus(originalDownloadInfo.getBatchId(), originalDownloadInfo.getId());
-    }
-
-    private ContentResolver getContentResolver() {
-        return context.getContentResolver();
+        progressStream.publish(originalDownloadInfo, state.currentBytes, state.totalBytes, state.speed, finalStatus);
     }
 
     private void updateBatchStatus(long batchId, long downloadId) {
@@ -0,0 +1,167 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The collaborators a {@link DownloadTask} transfers its data with: the transport, the hosts, the throttling
+ * and the pipeline. They live as long as the {@link DownloadService} and are shared by all of its downloads.
+ */
+class DownloadTransferModules {
+
+    private final HttpTransport httpTransport;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final ThroughputMeter throughputMeter;
+    private final DownloadHosts downloadHosts;
+    private final HostRttEstimator hostRttEstimator;
+    private final ConnectionPipeline connectionPipeline;
+    private final ContentDeduplicator contentDeduplicator;
+    private final ExecutorService segmentExecutor;
+    private final float stallThreshold;
+    private final boolean bulkTransferEnabled;
+
+    DownloadTransferModules(HttpTransport httpTransport,
+                            BandwidthLimiter bandwidthLimiter,
+                            ThroughputMeter throughputMeter,
+                            DownloadHosts downloadHosts,
+                            HostRttEstimator hostRttEstimator,
+                            ConnectionPipeline connectionPipeline,
+                            ContentDeduplicator contentDeduplicator,
+                            ExecutorService segmentExecutor,
+                            float stallThreshold,
+                            boolean bulkTransferEnabled) {
+        this.httpTransport = httpTransport;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.throughputMeter = throughputMeter;
+        this.downloadHosts = downloadHosts;
+        this.hostRttEstimator = hostRttEstimator;
+        this.connectionPipeline = connectionPipeline;
+        this.contentDeduplicator = contentDeduplicator;
+        this.segmentExecutor = segmentExecutor;
+        this.stallThreshold = stallThreshold;
+        this.bulkTransferEnabled = bulkTransferEnabled;
+    }
+
+    HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    ThroughputMeter getThroughputMeter() {
+        return throughputMeter;
+    }
+
+    DownloadHosts getDownloadHosts() {
+        return downloadHosts;
+    }
+
+    HostRttEstimator getHostRttEstimator() {
+        return hostRttEstimator;
+    }
+
+    ConnectionPipeline getConnectionPipeline() {
+        return connectionPipeline;
+    }
+
+    ContentDeduplicator getContentDeduplicator() {
+        return contentDeduplicator;
+    }
+
+    ExecutorService getSegmentExecutor() {
+        return segmentExecutor;
+    }
+
+    float getStallThreshold() {
+        return stallThreshold;
+    }
+
+    boolean isBulkTransferEnabled() {
+        return bulkTransferEnabled;
+    }
+
+    static class Builder {
+
+        private HttpTransport httpTransport;
+        private BandwidthLimiter bandwidthLimiter;
+        private ThroughputMeter throughputMeter;
+        private DownloadHosts downloadHosts;
+        private HostRttEstimator hostRttEstimator;
+        private ConnectionPipeline connectionPipeline;
+        private ContentDeduplicator contentDeduplicator;
+        private ExecutorService segmentExecutor;
+        private float stallThreshold;
+        private boolean bulkTransferEnabled = true;
+
+        Builder withHttpTransport(HttpTransport httpTransport) {
+            this.httpTransport = httpTransport;
+            return this;
+        }
+
+        Builder withBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+            this.bandwidthLimiter = bandwidthLimiter;
+            return this;
+        }
+
+        Builder withThroughputMeter(ThroughputMeter throughputMeter) {
+            this.throughputMeter = throughputMeter;
+            return this;
+        }
+
+        Builder withDownloadHosts(DownloadHosts downloadHosts) {
+            this.downloadHosts = downloadHosts;
+            return this;
+        }
+
+        Builder withHostRttEstimator(HostRttEstimator hostRttEstimator) {
+            this.hostRttEstimator = hostRttEstimator;
+            return this;
+        }
+
+        Builder withConnectionPipeline(ConnectionPipeline connectionPipeline) {
+            this.connectionPipeline = connectionPipeline;
+            return this;
+        }
+
+        Builder withContentDeduplicator(ContentDeduplicator contentDeduplicator) {
+            this.contentDeduplicator = contentDeduplicator;
+            return this;
+        }
+
+        Builder withSegmentExecutor(ExecutorService segmentExecutor) {
+            this.segmentExecutor = segmentExecutor;
+            return this;
+        }
+
+        Builder withStallThreshold(float stallThreshold) {
+            this.stallThreshold = stallThreshold;
+            return this;
+        }
+
+        Builder withBulkTransferEnabled(boolean bulkTransferEnabled) {
+            this.bulkTransferEnabled = bulkTransferEnabled;
+            return this;
+        }
+
+        /**
+         * The limiter, the meter and the host trackers default to the instances shared by the whole process.
+         */
+        DownloadTransferModules build() {
+            return new DownloadTransferModules(
+                    httpTransport,
+                    bandwidthLimiter == null ? BandwidthLimiter.getInstance() : bandwidthLimiter,
+                    throughputMeter == null ? ThroughputMeter.getInstance() : throughputMeter,
+                    downloadHosts == null ? DownloadHosts.getInstance() : downloadHosts,
+                    hostRttEstimator == null ? HostRttEstimator.getInstance() : hostRttEstimator,
+                    connectionPipeline,
+                    contentDeduplicator,
+                    segmentExecutor,
+                    stallThreshold,
+                    bulkTransferEnabled
+            );
+        }
+
+    }
+
+}
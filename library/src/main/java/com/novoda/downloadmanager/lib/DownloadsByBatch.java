@@ -0,0 +1,46 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.v4.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Groups downloads by their batch id in a single pass, so assembling every batch
+ * costs as much as reading the downloads once.
+ */
+final class DownloadsByBatch {
+
+    private final LongSparseArray<List<FileDownloadInfo>> downloadsByBatchId;
+
+    static DownloadsByBatch from(Collection<FileDownloadInfo> downloads) {
+        LongSparseArray<List<FileDownloadInfo>> downloadsByBatchId = new LongSparseArray<>();
+        for (FileDownloadInfo download : downloads) {
+            long batchId = download.getBatchId();
+            List<FileDownloadInfo> batchDownloads = downloadsByBatchId.get(batchId);
+            if (batchDownloads == null) {
+                batchDownloads = new ArrayList<>(1);
+                downloadsByBatchId.put(batchId, batchDownloads);
+            }
+            batchDownloads.add(download);
+        }
+        return new DownloadsByBatch(downloadsByBatchId);
+    }
+
+    private DownloadsByBatch(LongSparseArray<List<FileDownloadInfo>> downloadsByBatchId) {
+        this.downloadsByBatchId = downloadsByBatchId;
+    }
+
+    /**
+     * @return the downloads of the batch in the order they were given, a batch without downloads has an empty list
+     */
+    List<FileDownloadInfo> getDownloadsFor(long batchId) {
+        List<FileDownloadInfo> batchDownloads = downloadsByBatchId.get(batchId);
+        if (batchDownloads == null) {
+            return new ArrayList<>(0);
+        }
+        return batchDownloads;
+    }
+
+}
@@ -1,18 +1,25 @@
 package com.novoda.downloadmanager.lib;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
+import android.util.Pair;
 
 import com.novoda.downloadmanager.lib.logger.LLog;
 import com.novoda.notils.string.QueryUtils;
 import com.novoda.notils.string.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -38,12 +45,110 @@ class DownloadsRepository {
     }
 
     public List<FileDownloadInfo> getAllDownloadsFor(long batchId) {
+        return queryDownloadsWithHeaders(
+                batchId == NO_BATCH_ID ? null : DownloadContract.Downloads.COLUMN_BATCH_ID + " = ?",
+                batchId == NO_BATCH_ID ? null : new String[] { String.valueOf(batchId) }
+        );
+    }
+
+    public List<FileDownloadInfo> getAllDownloads() {
+        return getAllDownloadsFor(NO_BATCH_ID);
+    }
+
+    /**
+     * @return the downloads that still exist among the given ids, in a single query
+     */
+    public List<FileDownloadInfo> getDownloadsFor(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String selectionPlaceholders = QueryUtils.createSelectionPlaceholdersOfSize(ids.size());
+        return queryDownloadsWithHeaders(
+                DownloadContract.Downloads._ID + " IN (" + selectionPlaceholders + ")",
+                StringUtils.toStringArray(ids.toArray())
+        );
+    }
+
+    /**
+     * Reads the downloads matching the selection ordered by id, then the request headers of all of them in a second query
+     * instead of one query per download. The downloads are read first so none of them misses the headers inserted with it.
+     */
+    private List<FileDownloadInfo> queryDownloadsWithHeaders(@Nullable String selection, @Nullable String[] selectionArgs) {
         Cursor downloadsCursor = contentResolver.query(
                 downloadsUriProvider.getAllDownloadsUri(),
                 null,
-                batchId == NO_BATCH_ID ? null : DownloadContract.Downloads.COLUMN_BATCH_ID + " = ?",
-                batchId == NO_BATCH_ID ? null : new String[] { String.valueOf(batchId) },
-                DownloadContract.Batches._ID + " ASC"
+                selection,
+                selectionArgs,
+                DownloadContract.Downloads._ID + " ASC"
+        );
+        if (downloadsCursor == null) {
+            return Collections.emptyList();
+        }
+
+        try {
+            List<FileDownloadInfo> downloads = new ArrayList<>(downloadsCursor.getCount());
+            LongSparseArray<List<Pair<String, String>>> requestHeaders = getRequestHeadersOf(selection, selectionArgs);
+            FileDownloadInfo.Reader reader = new FileDownloadInfo.Reader(contentResolver, downloadsCursor, requestHeaders);
+
+            while (downloadsCursor.moveToNext()) {
+                downloads.add(downloadInfoCreator.create(reader));
+            }
+
+            return downloads;
+        } finally {
+            downloadsCursor.close();
+        }
+    }
+
+    private LongSparseArray<List<Pair<String, String>>> getRequestHeadersOf(@Nullable String selection, @Nullable String[] selectionArgs) {
+        LongSparseArray<List<Pair<String, String>>> requestHeaders = new LongSparseArray<>();
+        Uri headersUri = Uri.withAppendedPath(downloadsUriProvider.getAllDownloadsUri(), DownloadContract.RequestHeaders.URI_SEGMENT);
+        Cursor cursor = contentResolver.query(headersUri, null, selection, selectionArgs, null);
+        if (cursor == null) {
+            return requestHeaders;
+        }
+
+        try {
+            int downloadIdIndex = cursor.getColumnIndexOrThrow(DownloadContract.RequestHeaders.COLUMN_DOWNLOAD_ID);
+            int headerIndex = cursor.getColumnIndexOrThrow(DownloadContract.RequestHeaders.COLUMN_HEADER);
+            int valueIndex = cursor.getColumnIndexOrThrow(DownloadContract.RequestHeaders.COLUMN_VALUE);
+            while (cursor.moveToNext()) {
+                long downloadId = cursor.getLong(downloadIdIndex);
+                List<Pair<String, String>> headersOfDownload = requestHeaders.get(downloadId);
+                if (headersOfDownload == null) {
+                    headersOfDownload = new ArrayList<>();
+                    requestHeaders.put(downloadId, headersOfDownload);
+                }
+                headersOfDownload.add(Pair.create(cursor.getString(headerIndex), cursor.getString(valueIndex)));
+            }
+            return requestHeaders;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the downloads of the given URI that completed successfully and weren't deleted, most recent first
+     */
+    public List<FileDownloadInfo> getCompletedDownloadsOf(String uri) {
+        return getCompletedDownloads(DownloadContract.Downloads.COLUMN_URI + " = ?", uri);
+    }
+
+    /**
+     * @return the downloads whose content was verified against the given checksum, most recent first
+     */
+    public List<FileDownloadInfo> getCompletedDownloadsWithChecksum(String checksum) {
+        return getCompletedDownloads(DownloadContract.Downloads.COLUMN_CHECKSUM + " = ?", checksum);
+    }
+
+    private List<FileDownloadInfo> getCompletedDownloads(String selection, String selectionArg) {
+        Cursor downloadsCursor = contentResolver.query(
+                downloadsUriProvider.getAllDownloadsUri(),
+                null,
+                COLUMN_STATUS + " = " + DownloadStatus.SUCCESS + " AND " + COLUMN_DELETED + " = 0 AND " + selection,
+                new String[]{selectionArg},
+                DownloadContract.Downloads._ID + " DESC"
         );
 
         try {
@@ -62,10 +167,6 @@ class DownloadsRepository {
         }
     }
 
-    public List<FileDownloadInfo> getAllDownloads() {
-        return getAllDownloadsFor(NO_BATCH_ID);
-    }
-
     @Nullable
     public FileDownloadInfo getDownloadFor(long id) {
         Uri uri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), id);
@@ -187,12 +288,151 @@ class DownloadsRepository {
         contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
     }
 
-    public void updateDatabaseFromHeaders(FileDownloadInfo downloadInfo, String filename, String headerETag, String mimeType, long totalBytes) {
-        ContentValues values = new ContentValues(4);
+    public void updateDownloadSegments(FileDownloadInfo downloadInfo, @Nullable String segments, long currentBytes) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_SEGMENTS, segments);
+        values.put(COLUMN_CURRENT_BYTES, currentBytes);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    /**
+     * Writes the progress, the checksum states and the block states of several downloads in a single transaction,
+     * so observers are notified once for all of them. Rows that are no longer running are left untouched.
+     */
+    public void updateProgress(LongSparseArray<Long> currentBytesByDownloadId,
+                               LongSparseArray<String> checksumStatesByDownloadId,
+                               LongSparseArray<String> blockStatesByDownloadId) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(
+                currentBytesByDownloadId.size() + checksumStatesByDownloadId.size() + blockStatesByDownloadId.size()
+        );
+        addRunningDownloadUpdates(operations, COLUMN_CURRENT_BYTES, currentBytesByDownloadId);
+        addRunningDownloadUpdates(operations, COLUMN_CHECKSUM_STATE, checksumStatesByDownloadId);
+        addRunningDownloadUpdates(operations, COLUMN_BLOCK_STATE, blockStatesByDownloadId);
+
+        applyBatch(operations);
+    }
+
+    private void addRunningDownloadUpdates(List<ContentProviderOperation> operations, String column, LongSparseArray<?> valuesByDownloadId) {
+        String[] runningStatus = {String.valueOf(DownloadStatus.RUNNING)};
+        for (int i = 0; i < valuesByDownloadId.size(); i++) {
+            Uri uri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), valuesByDownloadId.keyAt(i));
+            operations.add(
+                    ContentProviderOperation.newUpdate(uri)
+                            .withValue(column, valuesByDownloadId.valueAt(i))
+                            .withSelection(COLUMN_STATUS + " = ?", runningStatus)
+                            .build()
+            );
+        }
+    }
+
+    public void updateChecksumState(FileDownloadInfo downloadInfo, @Nullable String checksumState) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_CHECKSUM_STATE, checksumState);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateBlockState(FileDownloadInfo downloadInfo, String blockState) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_BLOCK_STATE, blockState);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    /**
+     * Stores the checksum computed for a download, its saved state isn't needed anymore.
+     */
+    public void updateChecksum(FileDownloadInfo downloadInfo, String checksum) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_CHECKSUM, checksum);
+        values.putNull(COLUMN_CHECKSUM_STATE);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    /**
+     * Writes the sizes of several downloads in a single transaction, sizes already known are left untouched.
+     */
+    public void updateTotalBytes(LongSparseArray<Long> totalBytesByDownloadId) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(totalBytesByDownloadId.size());
+        String[] unknownSize = {String.valueOf(UNKNOWN_BYTE_SIZE)};
+        for (int i = 0; i < totalBytesByDownloadId.size(); i++) {
+            Uri uri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), totalBytesByDownloadId.keyAt(i));
+            operations.add(
+                    ContentProviderOperation.newUpdate(uri)
+                            .withValue(COLUMN_TOTAL_BYTES, totalBytesByDownloadId.valueAt(i))
+                            .withSelection(COLUMN_TOTAL_BYTES + " = ?", unknownSize)
+                            .build()
+            );
+        }
+
+        applyBatch(operations);
+    }
+
+    /**
+     * Marks several downloads as successful and puts the unfinished ones back to pending, in a single transaction.
+     * Downloads paused, canceled or deleted in the meantime are left untouched.
+     *
+     * @return the completed downloads that were written
+     */
+    public List<CompletedDownload> completeDownloads(List<CompletedDownload> completedDownloads, List<Long> unfinishedDownloadIds) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(completedDownloads.size() + unfinishedDownloadIds.size());
+        String[] stillRunnable = {String.valueOf(DownloadStatus.PENDING), String.valueOf(DownloadStatus.SUBMITTED), String.valueOf(DownloadsControl.CONTROL_RUN)};
+        long now = systemFacade.currentTimeMillis();
+        for (CompletedDownload completedDownload : completedDownloads) {
+            operations.add(
+                    ContentProviderOperation.newUpdate(completedDownload.downloadInfo.getAllDownloadsUri())
+                            .withValue(COLUMN_STATUS, DownloadStatus.SUCCESS)
+                            .withValue(COLUMN_DATA, completedDownload.filename)
+                            .withValue(COLUMN_MIME_TYPE, completedDownload.mimeType)
+                            .withValue(COLUMN_CURRENT_BYTES, completedDownload.totalBytes)
+                            .withValue(COLUMN_TOTAL_BYTES, completedDownload.totalBytes)
+                            .withValue(COLUMN_LAST_MODIFICATION, now)
+                            .withSelection(COLUMN_STATUS + " IN (?, ?) AND " + COLUMN_CONTROL + " = ? AND " + COLUMN_DELETED + " = 0", stillRunnable)
+                            .build()
+            );
+        }
+        String[] submittedStatus = {String.valueOf(DownloadStatus.SUBMITTED)};
+        for (long downloadId : unfinishedDownloadIds) {
+            Uri uri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), downloadId);
+            operations.add(
+                    ContentProviderOperation.newUpdate(uri)
+                            .withValue(COLUMN_STATUS, DownloadStatus.PENDING)
+                            .withSelection(COLUMN_STATUS + " = ?", submittedStatus)
+                            .build()
+            );
+        }
+
+        ContentProviderResult[] results = applyBatch(operations);
+        List<CompletedDownload> writtenDownloads = new ArrayList<>(completedDownloads.size());
+        for (int i = 0; i < results.length && i < completedDownloads.size(); i++) {
+            if (results[i].count != null && results[i].count > 0) {
+                writtenDownloads.add(completedDownloads.get(i));
+            }
+        }
+        return writtenDownloads;
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+        try {
+            return contentResolver.applyBatch(DownloadProvider.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            LLog.e(e, "Failed to update " + operations.size() + " downloads");
+            return new ContentProviderResult[0];
+        }
+    }
+
+    public void updateDatabaseFromHeaders(FileDownloadInfo downloadInfo,
+                                          String filename,
+                                          String headerETag,
+                                          String headerLastModified,
+                                          String mimeType,
+                                          long totalBytes) {
+        ContentValues values = new ContentValues(5);
         values.put(DownloadContract.Downloads.COLUMN_DATA, filename);
         if (headerETag != null) {
             values.put(Constants.ETAG, headerETag);
         }
+        if (headerLastModified != null) {
+            values.put(DownloadContract.Downloads.COLUMN_HEADER_LAST_MODIFIED, headerLastModified);
+        }
         if (mimeType != null) {
             values.put(DownloadContract.Downloads.COLUMN_MIME_TYPE, mimeType);
         }
@@ -201,6 +441,12 @@ class DownloadsRepository {
         contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
     }
 
+    public void updateBytesSaved(FileDownloadInfo downloadInfo, long bytesSaved) {
+        ContentValues values = new ContentValues(1);
+        values.put(DownloadContract.Downloads.COLUMN_BYTES_SAVED, bytesSaved);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
     public void deleteDownload(Uri downloadUri) {
         ContentValues values = new ContentValues(1);
         values.put(DownloadContract.Downloads.COLUMN_DELETED, TRUE_THIS_IS_CLEARER_NOW);
@@ -279,6 +525,33 @@ class DownloadsRepository {
         return contentResolver.update(downloadsUriProvider.getAllDownloadsUri(), values, where, selectionArgs);
     }
 
+    static class CompletedDownload {
+
+        private final FileDownloadInfo downloadInfo;
+        private final String filename;
+        private final String mimeType;
+        private final long totalBytes;
+
+        CompletedDownload(FileDownloadInfo downloadInfo, String filename, String mimeType, long totalBytes) {
+            this.downloadInfo = downloadInfo;
+            this.filename = filename;
+            this.mimeType = mimeType;
+            this.totalBytes = totalBytes;
+        }
+
+        FileDownloadInfo getDownloadInfo() {
+            return downloadInfo;
+        }
+
+        String getFilename() {
+            return filename;
+        }
+
+        long getTotalBytes() {
+            return totalBytes;
+        }
+    }
+
     interface DownloadInfoCreator {
 
         DownloadInfoCreator NON_FUNCTIONAL = new NonFunctional();
@@ -5,6 +5,8 @@ import android.content.ContentUris;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -100,6 +102,17 @@ class FileDownloadInfo {
     private long batchId;
     private boolean alwaysResume;
     private boolean allowTarUpdates;
+    private int priority;
+    private String segments;
+    private String checksumAlgorithm;
+    private String expectedChecksum;
+    private String checksumState;
+    private String blockChecksumAlgorithm;
+    private long blockSize;
+    private String blockChecksums;
+    private String blockState;
+    private boolean revalidate;
+    private String headerLastModified;
 
     private final List<Pair<String, String>> requestHeaders = new ArrayList<>();
     private final SystemFacade systemFacade;
@@ -196,6 +209,58 @@ class FileDownloadInfo {
         return batchId;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getSegments() {
+        return segments;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public String getExpectedChecksum() {
+        return expectedChecksum;
+    }
+
+    public boolean hasExpectedChecksum() {
+        return expectedChecksum != null;
+    }
+
+    public String getChecksumState() {
+        return checksumState;
+    }
+
+    public String getBlockChecksumAlgorithm() {
+        return blockChecksumAlgorithm;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public String getBlockChecksums() {
+        return blockChecksums;
+    }
+
+    public boolean hasBlockChecksums() {
+        return blockChecksums != null && blockSize > 0;
+    }
+
+    public String getBlockState() {
+        return blockState;
+    }
+
+    public boolean isRevalidated() {
+        return revalidate;
+    }
+
+    public String getHeaderLastModified() {
+        return headerLastModified;
+    }
+
     public boolean allowMetered() {
         return allowMetered;
     }
@@ -339,7 +404,7 @@ class FileDownloadInfo {
     }
 
     public boolean isResumable() {
-        return alwaysResume || (eTag != null && isNoIntegrity());
+        return alwaysResume || ((eTag != null || headerLastModified != null) && isNoIntegrity());
     }
 
     public boolean shouldAllowTarUpdate(String mimeType) {
@@ -358,10 +423,21 @@ class FileDownloadInfo {
     public static class Reader {
         private final ContentResolver resolver;
         private final Cursor cursor;
+        @Nullable
+        private final LongSparseArray<List<Pair<String, String>>> requestHeadersByDownloadId;
 
         public Reader(ContentResolver resolver, Cursor cursor) {
+            this(resolver, cursor, null);
+        }
+
+        /**
+         * @param requestHeadersByDownloadId the custom request headers of every download of the cursor, loaded upfront
+         *                                   so they aren't queried for each download
+         */
+        public Reader(ContentResolver resolver, Cursor cursor, @Nullable LongSparseArray<List<Pair<String, String>>> requestHeadersByDownloadId) {
             this.resolver = resolver;
             this.cursor = cursor;
+            this.requestHeadersByDownloadId = requestHeadersByDownloadId;
         }
 
         public FileDownloadInfo newDownloadInfo(SystemFacade systemFacade, DownloadsUriProvider downloadsUriProvider) {
@@ -406,6 +482,17 @@ class FileDownloadInfo {
             info.batchId = getLong(DownloadContract.Downloads.COLUMN_BATCH_ID);
             info.alwaysResume = getInt(DownloadContract.Downloads.COLUMN_ALWAYS_RESUME) != 0;
             info.allowTarUpdates = getInt(DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES) != 0;
+            info.priority = getInt(DownloadContract.Downloads.COLUMN_PRIORITY);
+            info.segments = getString(DownloadContract.Downloads.COLUMN_SEGMENTS);
+            info.checksumAlgorithm = getString(DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM);
+            info.expectedChecksum = getString(DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM);
+            info.checksumState = getString(DownloadContract.Downloads.COLUMN_CHECKSUM_STATE);
+            info.blockChecksumAlgorithm = getString(DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUM_ALGORITHM);
+            info.blockSize = getLong(DownloadContract.Downloads.COLUMN_BLOCK_SIZE);
+            info.blockChecksums = getString(DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUMS);
+            info.blockState = getString(DownloadContract.Downloads.COLUMN_BLOCK_STATE);
+            info.revalidate = getInt(DownloadContract.Downloads.COLUMN_REVALIDATE) != 0;
+            info.headerLastModified = getString(DownloadContract.Downloads.COLUMN_HEADER_LAST_MODIFIED);
 
             synchronized (this) {
                 info.control = getInt(DownloadContract.Downloads.COLUMN_CONTROL);
@@ -414,6 +501,24 @@ class FileDownloadInfo {
 
         private void readRequestHeaders(FileDownloadInfo info) {
             info.clearHeaders();
+            if (requestHeadersByDownloadId == null) {
+                queryRequestHeaders(info);
+            } else {
+                List<Pair<String, String>> requestHeaders = requestHeadersByDownloadId.get(info.getId());
+                if (requestHeaders != null) {
+                    info.requestHeaders.addAll(requestHeaders);
+                }
+            }
+
+            if (info.cookies != null) {
+                info.addHeader("Cookie", info.cookies);
+            }
+            if (info.referer != null) {
+                info.addHeader("Referer", info.referer);
+            }
+        }
+
+        private void queryRequestHeaders(FileDownloadInfo info) {
             Uri headerUri = Uri.withAppendedPath(info.getAllDownloadsUri(), DownloadContract.RequestHeaders.URI_SEGMENT);
             Cursor cursor = resolver.query(headerUri, null, null, null, null);
             try {
@@ -427,13 +532,6 @@ class FileDownloadInfo {
             } finally {
                 cursor.close();
             }
-
-            if (info.cookies != null) {
-                info.addHeader("Cookie", info.cookies);
-            }
-            if (info.referer != null) {
-                info.addHeader("Referer", info.referer);
-            }
         }
 
         private String getString(String column) {
@@ -0,0 +1,39 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers across restarts the hosts that didn't answer a HEAD request with a content length,
+ * so their downloads aren't asked again for a while.
+ */
+class HeadUnsupportedHosts {
+
+    private static final String PREFERENCES_NAME = "com.novoda.downloadmanager.HeadUnsupportedHosts";
+    private static final long EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final SharedPreferences preferences;
+    private final SystemFacade systemFacade;
+
+    static HeadUnsupportedHosts from(Context context, SystemFacade systemFacade) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return new HeadUnsupportedHosts(preferences, systemFacade);
+    }
+
+    HeadUnsupportedHosts(SharedPreferences preferences, SystemFacade systemFacade) {
+        this.preferences = preferences;
+        this.systemFacade = systemFacade;
+    }
+
+    boolean contains(String host) {
+        long addedMillis = preferences.getLong(host, 0);
+        return addedMillis > 0 && systemFacade.currentTimeMillis() - addedMillis < EXPIRY_MILLIS;
+    }
+
+    void add(String host) {
+        preferences.edit().putLong(host, systemFacade.currentTimeMillis()).apply();
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives the connect and read timeouts of a host from how long it took to respond to the previous requests.
+ * <p/>
+ * The response time is smoothed per host the way TCP estimates its retransmission timeout, the timeouts are
+ * a multiple of that estimate. Hosts without any measurement yet get {@link #MAX_TIMEOUT_MILLIS}.
+ */
+class HostRttEstimator {
+
+    static final int MAX_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(20);
+
+    private static final int MIN_CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(3);
+    private static final int MIN_READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+    private static final int CONNECT_TIMEOUT_ESTIMATES = 4;
+    private static final int READ_TIMEOUT_ESTIMATES = 8;
+
+    private final ConcurrentHashMap<String, Rtt> rtts = new ConcurrentHashMap<>();
+
+    private static class LazyInitialisationHelper {
+        private static final HostRttEstimator INSTANCE = new HostRttEstimator();
+    }
+
+    static HostRttEstimator getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    /**
+     * @param rttMillis the time from opening the request to receiving the response headers
+     */
+    void sample(String host, long rttMillis) {
+        Rtt rtt = rtts.get(host);
+        if (rtt == null) {
+            Rtt newRtt = new Rtt();
+            rtt = rtts.putIfAbsent(host, newRtt);
+            if (rtt == null) {
+                rtt = newRtt;
+            }
+        }
+        rtt.update(rttMillis);
+    }
+
+    int connectTimeoutMillisFor(String host) {
+        return timeoutMillisFor(host, CONNECT_TIMEOUT_ESTIMATES, MIN_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    int readTimeoutMillisFor(String host) {
+        return timeoutMillisFor(host, READ_TIMEOUT_ESTIMATES, MIN_READ_TIMEOUT_MILLIS);
+    }
+
+    private int timeoutMillisFor(String host, int estimates, int minTimeoutMillis) {
+        Rtt rtt = rtts.get(host);
+        if (rtt == null) {
+            return MAX_TIMEOUT_MILLIS;
+        }
+        long timeoutMillis = rtt.timeoutMillis() * estimates;
+        return (int) Math.max(minTimeoutMillis, Math.min(timeoutMillis, MAX_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Smoothed round trip time and its variation, as in RFC 6298.
+     */
+    private static class Rtt {
+
+        private long smoothedMillis = -1;
+        private long variationMillis;
+
+        synchronized void update(long rttMillis) {
+            if (smoothedMillis == -1) {
+                smoothedMillis = rttMillis;
+                variationMillis = rttMillis / 2;
+            } else {
+                variationMillis = (3 * variationMillis + Math.abs(smoothedMillis - rttMillis)) / 4;
+                smoothedMillis = (7 * smoothedMillis + rttMillis) / 8;
+            }
+        }
+
+        synchronized long timeoutMillis() {
+            return smoothedMillis + 4 * variationMillis;
+        }
+    }
+
+}
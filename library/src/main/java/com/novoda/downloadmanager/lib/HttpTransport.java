@@ -0,0 +1,17 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections of the downloads.
+ * <p/>
+ * A connection can only be reused by the following requests to the same host when its response
+ * body has been read to the end and closed before {@link HttpURLConnection#disconnect()} is called.
+ */
+interface HttpTransport {
+
+    HttpURLConnection open(URL url) throws IOException;
+
+}
@@ -0,0 +1,80 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+class HttpTransportProvider {
+
+    private static final boolean DEFAULT_POOLED_CONNECTIONS = true;
+    private static final String METADATA_POOLED_CONNECTIONS = "com.novoda.downloadmanager.PooledConnections";
+    private static final boolean DEFAULT_PIPELINING = false;
+    private static final String METADATA_PIPELINING = "com.novoda.downloadmanager.Pipelining";
+    private static final boolean DEFAULT_BULK_TRANSFER = true;
+    private static final String METADATA_BULK_TRANSFER = "com.novoda.downloadmanager.BulkTransfer";
+
+    private final PackageManager packageManager;
+    private final String packageName;
+
+    HttpTransportProvider(PackageManager packageManager, String packageName) {
+        this.packageManager = packageManager;
+        this.packageName = packageName;
+    }
+
+    /**
+     * Connections are pooled unless the application opts out, falling back to a new {@link java.net.HttpURLConnection}
+     * per request.
+     *
+     * @param maxIdleConnections the number of idle connections kept alive for reuse
+     */
+    public HttpTransport getHttpTransport(int maxIdleConnections) {
+        if (usePooledConnections()) {
+            return new PooledHttpTransport(maxIdleConnections);
+        }
+        return new UrlConnectionHttpTransport();
+    }
+
+    private boolean usePooledConnections() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return DEFAULT_POOLED_CONNECTIONS;
+        }
+        return metaData.getBoolean(METADATA_POOLED_CONNECTIONS, DEFAULT_POOLED_CONNECTIONS);
+    }
+
+    /**
+     * When enabled, the next download of a batch sends its request while the current one finishes.
+     */
+    public boolean isPipeliningEnabled() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return DEFAULT_PIPELINING;
+        }
+        return metaData.getBoolean(METADATA_PIPELINING, DEFAULT_PIPELINING);
+    }
+
+    /**
+     * Responses are read in large chunks by {@link BulkDataTransferer} unless the application opts out,
+     * falling back to {@link RegularDataTransferer}.
+     */
+    public boolean isBulkTransferEnabled() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return DEFAULT_BULK_TRANSFER;
+        }
+        return metaData.getBoolean(METADATA_BULK_TRANSFER, DEFAULT_BULK_TRANSFER);
+    }
+
+    private Bundle getMetaData() {
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
+            return applicationInfo.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+            return null;
+        }
+    }
+
+}
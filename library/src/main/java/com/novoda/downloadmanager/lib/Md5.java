@@ -0,0 +1,79 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * MD5, as specified in RFC 1321, with a state that can be saved, see {@link BlockHash}.
+ */
+class Md5 extends BlockHash {
+
+    static final int[] INITIAL_STATE = {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476};
+
+    private static final int[] SHIFTS = {
+            7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+            5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+            4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+            6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+
+    private static final int[] K = new int[64];
+
+    static {
+        for (int i = 0; i < K.length; i++) {
+            K[i] = (int) (long) (Math.abs(Math.sin(i + 1)) * 4294967296.0);
+        }
+    }
+
+    private final int[] words = new int[16];
+
+    Md5() {
+        this(INITIAL_STATE, 0);
+    }
+
+    Md5(int[] state, long hashedBytes) {
+        super(state, hashedBytes);
+    }
+
+    @Override
+    boolean isBigEndian() {
+        return false;
+    }
+
+    @Override
+    void processBlock(int[] state, byte[] buffer, int offset) {
+        int[] m = words;
+        for (int i = 0; i < 16; i++) {
+            m[i] = wordAt(buffer, offset + i * 4);
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        for (int i = 0; i < 64; i++) {
+            int f;
+            int g;
+            if (i < 16) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if (i < 32) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) % 16;
+            } else if (i < 48) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) % 16;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) % 16;
+            }
+            int temp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + K[i] + m[g], SHIFTS[i]);
+            a = temp;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+    }
+
+}
@@ -1,31 +1,38 @@
 package com.novoda.downloadmanager.lib;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.os.SystemClock;
 
+import com.novoda.downloadmanager.lib.logger.LLog;
 import com.novoda.downloadmanager.notifications.DownloadNotifier;
 
-import static com.novoda.downloadmanager.lib.DownloadContract.Downloads.COLUMN_CURRENT_BYTES;
-
 class NotifierWriter implements DataWriter {
 
-    private final ContentResolver contentResolver;
+    private final DownloadProgressFlusher progressFlusher;
     private final DataWriter dataWriter;
     private final DownloadNotifier downloadNotifier;
+    private final DownloadProgressStream progressStream;
+    private final ThroughputMeter throughputMeter;
+    private final StallDetector stallDetector;
+    private final BandwidthLimiter.Throttle throttle;
     private final FileDownloadInfo downloadInfo;
     private final WriteChunkListener writeChunkListener;
 
-    private final ContentValues values = new ContentValues();
-
-    public NotifierWriter(ContentResolver contentResolver,
+    public NotifierWriter(DownloadProgressFlusher progressFlusher,
                           DataWriter dataWriter,
                           DownloadNotifier downloadNotifier,
+                          DownloadProgressStream progressStream,
+                          ThroughputMeter throughputMeter,
+                          StallDetector stallDetector,
+                          BandwidthLimiter.Throttle throttle,
                           FileDownloadInfo downloadInfo,
                           WriteChunkListener writeChunkListener) {
-        this.contentResolver = contentResolver;
+        this.progressFlusher = progressFlusher;
         this.dataWriter = dataWriter;
         this.downloadNotifier = downloadNotifier;
+        this.progressStream = progressStream;
+        this.throughputMeter = throughputMeter;
+        this.stallDetector = stallDetector;
+        this.throttle = throttle;
         this.downloadInfo = downloadInfo;
         this.writeChunkListener = writeChunkListener;
     }
@@ -55,26 +62,36 @@ class NotifierWriter implements DataWriter {
             // Only notify once we have a full sample window
             if (state.speedSampleStart != 0) {
                 downloadNotifier.notifyDownloadSpeed(downloadInfo.getId(), state.speed);
+                throughputMeter.update(downloadInfo.getId(), state.speed);
             }
 
             state.speedSampleStart = now;
             state.speedSampleBytes = state.currentBytes;
+
+            stallDetector.sample(now, state.currentBytes, throttle.getRate());
+            if (stallDetector.isStalled()) {
+                LLog.w("Download " + downloadInfo.getId() + " stalled at " + state.speed + " B/s, dropping the connection");
+                state.streamFailed = true;
+            }
         }
 
+        progressStream.publish(downloadInfo, state.currentBytes, state.totalBytes, state.speed, DownloadStatus.RUNNING);
+
         if (state.currentBytes - state.bytesNotified > Constants.MIN_PROGRESS_STEP &&
                 now - state.timeLastNotification > Constants.MIN_PROGRESS_TIME) {
-            updateCurrentBytesValues(state);
-            contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+            progressFlusher.offer(downloadInfo.getId(), state.currentBytes);
+            if (state.digest != null) {
+                progressFlusher.offerChecksumState(downloadInfo.getId(), state.digest.saveState());
+            }
+            if (state.blockVerifier != null) {
+                progressFlusher.offerBlockState(downloadInfo.getId(), state.blockVerifier.saveState());
+            }
             state.bytesNotified = state.currentBytes;
             state.timeLastNotification = now;
         }
         return state;
     }
 
-    private void updateCurrentBytesValues(DownloadTask.State state) {
-        values.put(COLUMN_CURRENT_BYTES, state.currentBytes);
-    }
-
     public interface WriteChunkListener {
         void chunkWritten(FileDownloadInfo downloadInfo) throws StopRequestException;
     }
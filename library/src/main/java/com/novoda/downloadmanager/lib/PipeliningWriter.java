@@ -0,0 +1,38 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Asks the {@link ConnectionPipeline} to prepare the next download of the batch once the current download
+ * has less than {@link ConnectionPipeline#NEAR_COMPLETION_BYTES} left to write.
+ */
+class PipeliningWriter implements DataWriter {
+
+    private final ConnectionPipeline connectionPipeline;
+    private final DownloadBatch batch;
+    private final long downloadId;
+    private final DataWriter dataWriter;
+
+    private boolean nextDownloadRequested;
+
+    PipeliningWriter(ConnectionPipeline connectionPipeline, DownloadBatch batch, long downloadId, DataWriter dataWriter) {
+        this.connectionPipeline = connectionPipeline;
+        this.batch = batch;
+        this.downloadId = downloadId;
+        this.dataWriter = dataWriter;
+    }
+
+    @Override
+    public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+        DownloadTask.State newState = dataWriter.write(state, buffer, count);
+        if (!nextDownloadRequested && isNearCompletion(newState)) {
+            nextDownloadRequested = true;
+            connectionPipeline.prepareNextOf(batch, downloadId);
+        }
+        return newState;
+    }
+
+    private static boolean isNearCompletion(DownloadTask.State state) {
+        return state.contentLength != Constants.UNKNOWN_BYTE_SIZE
+                && state.contentLength - state.currentBytes <= ConnectionPipeline.NEAR_COMPLETION_BYTES;
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.novoda.downloadmanager.lib;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+import com.squareup.okhttp.Protocol;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens every connection from a single client, so the downloads share kept-alive connections and
+ * TLS sessions per host and multiplex their requests over HTTP/2 when the server supports it.
+ */
+class PooledHttpTransport implements HttpTransport {
+
+    static final long KEEP_ALIVE_DURATION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final OkUrlFactory urlFactory;
+
+    PooledHttpTransport(int maxIdleConnections) {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(new ConnectionPool(maxIdleConnections, KEEP_ALIVE_DURATION_MILLIS));
+        client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+        this.urlFactory = new OkUrlFactory(client);
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) {
+        return urlFactory.open(url);
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.Random;
+
+/**
+ * Decides how long a download waits before reconnecting when its response stream fails mid-transfer.
+ * <p/>
+ * The delays are in milliseconds and double on every attempt, with a random half of each delay so the
+ * downloads that failed together don't reconnect together. Once {@link #MAX_ATTEMPTS} are used up the
+ * download falls back to the persisted retry, which waits {@link Constants#RETRY_FIRST_DELAY} seconds or more.
+ */
+class ReconnectBackoff {
+
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long BASE_DELAY_MILLIS = 100;
+
+    private final Random random;
+
+    ReconnectBackoff(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @param attempt the number of reconnections already attempted
+     */
+    boolean canReconnect(int attempt) {
+        return attempt < MAX_ATTEMPTS;
+    }
+
+    /**
+     * @param attempt the number of reconnections already attempted
+     */
+    long delayMillisFor(int attempt) {
+        long delayMillis = BASE_DELAY_MILLIS << attempt;
+        long halfDelayMillis = delayMillis / 2;
+        return halfDelayMillis + (long) (random.nextDouble() * halfDelayMillis);
+    }
+
+}
@@ -3,6 +3,10 @@ package com.novoda.downloadmanager.lib;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Copies the response through a small buffer, handing every read to the {@link DataWriter}s.
+ * Used when the application opts out of {@link BulkDataTransferer}.
+ */
 class RegularDataTransferer implements DataTransferer {
 
     private final DataWriter dataWriter;
@@ -14,16 +18,20 @@ class RegularDataTransferer implements DataTransferer {
     @Override
     public DownloadTask.State transferData(DownloadTask.State state, InputStream in) throws StopRequestException {
         DownloadTask.State newState = state;
+        newState.streamFailed = false;
         try {
             byte[] buffer = new byte[Constants.BUFFER_SIZE];
             int readLast = in.read(buffer);
             while (readLast != Constants.NO_BYTES_READ) {
                 newState = dataWriter.write(newState, buffer, readLast);
+                if (newState.streamFailed) {
+                    return newState;
+                }
                 readLast = in.read(buffer);
             }
             return newState;
         } catch (IOException e) {
-            // It was doing the same thing in regular and exception cases
+            newState.streamFailed = true;
             return newState;
         }
     }
@@ -12,6 +12,7 @@ import java.io.File;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This class contains all the information necessary to request a new download. The URI is the
@@ -59,6 +60,13 @@ public class Request {
     private boolean alwaysResume;
     private boolean allowTarUpdates;
     private boolean noIntegrity;
+    private int priority;
+    private boolean revalidate;
+    private String checksumAlgorithm;
+    private String expectedChecksum;
+    private String blockChecksumAlgorithm;
+    private long blockSize;
+    private String blockChecksums;
 
     /**
      * if a file is designated as a MediaScanner scannable file, the following value is
@@ -290,6 +298,83 @@ public class Request {
         return this;
     }
 
+    /**
+     * Set the priority of this download within its batch. Downloads with a higher priority are
+     * started before the rest of the batch, downloads with the same priority keep their enqueue order.
+     * Defaults to 0.
+     *
+     * @param priority the priority of this download
+     * @return this object
+     */
+    public Request setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Revalidate an earlier completed download of the same URI and destination instead of downloading
+     * it again. The request is sent with its ETag as If-None-Match and its Last-Modified date as
+     * If-Modified-Since, when the server answers 304 Not Modified the download completes straight away
+     * with the content of the earlier one and the bytes saved are reported in
+     * {@link DownloadManager#COLUMN_BYTES_SAVED}. Without such a download it is a normal request.
+     *
+     * @return this object
+     */
+    public Request revalidate() {
+        revalidate = true;
+        return this;
+    }
+
+    /**
+     * Verify the downloaded file against a checksum, computed as the data is written so the file
+     * doesn't have to be read again. A download that doesn't match fails with
+     * {@link DownloadManager#ERROR_CHECKSUM_MISMATCH} and its file is deleted.
+     *
+     * @param algorithm one of {@link DownloadManager#CHECKSUM_SHA_256}, {@link DownloadManager#CHECKSUM_MD5}
+     *                  or {@link DownloadManager#CHECKSUM_CRC32C}
+     * @param checksum  the expected checksum as hex
+     * @return this object
+     */
+    public Request setExpectedChecksum(String algorithm, String checksum) {
+        if (!DownloadDigest.isSupported(algorithm)) {
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+        if (checksum == null) {
+            throw new NullPointerException("checksum cannot be null");
+        }
+        this.checksumAlgorithm = algorithm;
+        this.expectedChecksum = checksum.toLowerCase(Locale.US);
+        return this;
+    }
+
+    /**
+     * Verify the download block by block against a manifest, for example one checksum every 4 MiB.
+     * Every block is checked as soon as it is written and only the corrupt blocks are fetched again
+     * with range requests, instead of the whole file. The download fails with
+     * {@link DownloadManager#ERROR_CHECKSUM_MISMATCH} if a block stays corrupt.
+     *
+     * @param algorithm one of {@link DownloadManager#CHECKSUM_SHA_256}, {@link DownloadManager#CHECKSUM_MD5}
+     *                  or {@link DownloadManager#CHECKSUM_CRC32C}
+     * @param blockSize the size of every block but the last one, in bytes
+     * @param checksums the checksum of every block in order, as hex
+     * @return this object
+     */
+    public Request setBlockChecksums(String algorithm, long blockSize, List<String> checksums) {
+        if (!DownloadDigest.isSupported(algorithm)) {
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        if (checksums == null || checksums.isEmpty()) {
+            throw new IllegalArgumentException("checksums cannot be empty");
+        }
+        this.blockChecksumAlgorithm = algorithm;
+        this.blockSize = blockSize;
+        this.blockChecksums = BlockVerifier.serializeChecksums(checksums);
+        return this;
+    }
+
     /**
      * Add an HTTP header to be included with the download request.  The header will be added to
      * the end of the list.
@@ -516,6 +601,15 @@ public class Request {
         values.put(DownloadContract.Downloads.COLUMN_ALWAYS_RESUME, alwaysResume);
         values.put(DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES, allowTarUpdates);
         values.put(DownloadContract.Downloads.COLUMN_NO_INTEGRITY, noIntegrity);
+        values.put(DownloadContract.Downloads.COLUMN_PRIORITY, priority);
+        values.put(DownloadContract.Downloads.COLUMN_REVALIDATE, revalidate);
+        putIfNonNull(values, DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM, checksumAlgorithm);
+        putIfNonNull(values, DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM, expectedChecksum);
+        if (blockChecksums != null) {
+            values.put(DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUM_ALGORITHM, blockChecksumAlgorithm);
+            values.put(DownloadContract.Downloads.COLUMN_BLOCK_SIZE, blockSize);
+            values.put(DownloadContract.Downloads.COLUMN_BLOCK_CHECKSUMS, blockChecksums);
+        }
 
         return values;
     }
@@ -11,10 +11,12 @@ public class RequestBatch {
 
     private final BatchInfo batchInfo;
     private final List<Request> requests;
+    private final boolean revalidated;
 
-    RequestBatch(BatchInfo batchInfo, List<Request> requests) {
+    RequestBatch(BatchInfo batchInfo, List<Request> requests, boolean revalidated) {
         this.batchInfo = batchInfo;
         this.requests = requests;
+        this.revalidated = revalidated;
     }
 
     public String getTitle() {
@@ -37,6 +39,10 @@ public class RequestBatch {
         return requests;
     }
 
+    boolean isRevalidated() {
+        return revalidated;
+    }
+
     public void addRequest(Request request) {
         requests.add(request);
     }
@@ -48,6 +54,8 @@ public class RequestBatch {
         values.put(DownloadContract.Batches.COLUMN_BIG_PICTURE, batchInfo.getBigPictureUrl());
         values.put(DownloadContract.Batches.COLUMN_VISIBILITY, batchInfo.getVisibility());
         values.put(DownloadContract.Batches.COLUMN_EXTRA_DATA, batchInfo.getExtraData());
+        values.put(DownloadContract.Batches.COLUMN_PRIORITY, batchInfo.getPriority());
+        values.put(DownloadContract.Batches.COLUMN_MAX_BYTES_PER_SECOND, batchInfo.getMaxBytesPerSecond());
         return values;
     }
 
@@ -59,6 +67,9 @@ public class RequestBatch {
         @NotificationVisibility.Value
         private int visibility;
         private String extraData;
+        private int priority;
+        private long maxBytesPerSecond = BandwidthLimiter.UNLIMITED;
+        private boolean revalidated;
 
         public Builder withTitle(String title) {
             this.title = title;
@@ -85,9 +96,36 @@ public class RequestBatch {
             return this;
         }
 
+        /**
+         * Batches with a higher priority are scheduled before lower priority ones,
+         * batches sharing the same priority take turns. Defaults to 0.
+         */
+        public Builder withPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Limits the combined download speed of the downloads in this batch, it can be changed later
+         * with {@link DownloadManager#setBatchMaxBytesPerSecond(long, long)}. Not limited by default.
+         */
+        public Builder withMaxBytesPerSecond(long maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Revalidates every download of this batch, see {@link Request#revalidate()}.
+         * Useful when a whole catalogue is enqueued again and most of it hasn't changed.
+         */
+        public Builder withRevalidation() {
+            this.revalidated = true;
+            return this;
+        }
+
         public RequestBatch build() {
-            BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData);
-            return new RequestBatch(batchInfo, new ArrayList<Request>());
+            BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData, priority, maxBytesPerSecond);
+            return new RequestBatch(batchInfo, new ArrayList<Request>(), revalidated);
         }
 
     }
@@ -0,0 +1,42 @@
+package com.novoda.downloadmanager.lib;
+
+import android.util.Pair;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The headers sent with every request of a download, whoever opens the connection.
+ */
+final class RequestHeaders {
+
+    private RequestHeaders() {
+        // non-instantiable class
+    }
+
+    static void addCommonTo(HttpURLConnection conn, FileDownloadInfo downloadInfo) {
+        for (Pair<String, String> header : downloadInfo.getHeaders()) {
+            conn.addRequestProperty(header.first, header.second);
+        }
+
+        // Only splice in user agent when not already defined
+        if (conn.getRequestProperty("User-Agent") == null) {
+            conn.addRequestProperty("User-Agent", userAgentOf(downloadInfo));
+        }
+
+        // Defeat transparent gzip compression, since it doesn't allow us to
+        // easily resume partial downloads.
+        conn.setRequestProperty("Accept-Encoding", "identity");
+    }
+
+    /**
+     * Returns the user agent provided by the initiating app, or use the default one
+     */
+    private static String userAgentOf(FileDownloadInfo downloadInfo) {
+        String userAgent = downloadInfo.getUserAgent();
+        if (userAgent == null) {
+            userAgent = Constants.DEFAULT_USER_AGENT;
+        }
+        return userAgent;
+    }
+
+}
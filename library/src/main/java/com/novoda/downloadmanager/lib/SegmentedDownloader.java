@@ -0,0 +1,269 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.novoda.downloadmanager.lib.IOHelpers.closeAfterWrite;
+import static com.novoda.downloadmanager.lib.IOHelpers.closeQuietly;
+
+/**
+ * Fetches the incomplete {@link DownloadSegment}s of a download in parallel, each one over its own
+ * connection and written at its own offset of the destination file. No more segments are fetched at once
+ * than the connections the download was given.
+ * <p/>
+ * The calling thread doesn't transfer any data, it reports progress to the {@link ProgressListener}
+ * until every segment is complete. Any failure, or the listener stopping the download, stops every segment.
+ * <p/>
+ * The segments run on an executor shared by every download of the {@link DownloadService}, so the threads
+ * transferring segments are bounded however many downloads are split at once.
+ */
+class SegmentedDownloader {
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final SegmentConnector segmentConnector;
+    private final SpaceVerifier spaceVerifier;
+    private final BandwidthLimiter.Throttle throttle;
+    private final ProgressListener progressListener;
+    private final ExecutorService executor;
+    private final boolean bulkTransferEnabled;
+
+    private volatile boolean stopped;
+    private int runningTransfers;
+
+    SegmentedDownloader(SegmentConnector segmentConnector,
+                        SpaceVerifier spaceVerifier,
+                        BandwidthLimiter.Throttle throttle,
+                        ProgressListener progressListener,
+                        ExecutorService executor,
+                        boolean bulkTransferEnabled) {
+        this.segmentConnector = segmentConnector;
+        this.spaceVerifier = spaceVerifier;
+        this.throttle = throttle;
+        this.progressListener = progressListener;
+        this.executor = executor;
+        this.bulkTransferEnabled = bulkTransferEnabled;
+    }
+
+    /**
+     * @return the executor to share between the segmented downloads, running at most {@code maxParallelSegments} segments at once
+     */
+    static ExecutorService newSharedExecutor(int maxParallelSegments) {
+        return Executors.newFixedThreadPool(maxParallelSegments);
+    }
+
+    /**
+     * @param connections how many segments are fetched at once, the next one starts as soon as one completes
+     */
+    void download(String filename, List<DownloadSegment> segments, int connections) throws StopRequestException {
+        Deque<DownloadSegment> queuedSegments = new ArrayDeque<>();
+        for (DownloadSegment segment : segments) {
+            if (!segment.isComplete()) {
+                queuedSegments.add(segment);
+            }
+        }
+        if (queuedSegments.isEmpty()) {
+            return;
+        }
+
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> transfers = new ArrayList<>();
+        int runningSegments = 0;
+        while (runningSegments < connections && !queuedSegments.isEmpty()) {
+            transfers.add(completionService.submit(new SegmentTransfer(filename, queuedSegments.removeFirst())));
+            runningSegments++;
+        }
+
+        try {
+            while (runningSegments > 0) {
+                Future<Void> completedSegment = completionService.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (completedSegment != null) {
+                    runningSegments--;
+                    rethrowFailureOf(completedSegment);
+                    if (!queuedSegments.isEmpty()) {
+                        transfers.add(completionService.submit(new SegmentTransfer(filename, queuedSegments.removeFirst())));
+                        runningSegments++;
+                    }
+                }
+                progressListener.onProgress(segments);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "interrupted while downloading segments", e);
+        } finally {
+            synchronized (this) {
+                stopped = true;
+            }
+            for (Future<Void> transfer : transfers) {
+                transfer.cancel(true);
+            }
+            awaitStop();
+        }
+    }
+
+    private static void rethrowFailureOf(Future<Void> completedSegment) throws StopRequestException, InterruptedException {
+        try {
+            completedSegment.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StopRequestException) {
+                throw (StopRequestException) cause;
+            }
+            throw new StopRequestException(DownloadStatus.UNKNOWN_ERROR, cause);
+        }
+    }
+
+    /**
+     * Gives the segments a chance to flush what they have written so the progress reported afterwards is accurate.
+     */
+    private synchronized void awaitStop() {
+        long deadlineMillis = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        try {
+            long remainingMillis = STOP_TIMEOUT_MILLIS;
+            while (runningTransfers > 0 && remainingMillis > 0) {
+                wait(remainingMillis);
+                remainingMillis = deadlineMillis - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean startTransfer() {
+        if (stopped) {
+            return false;
+        }
+        runningTransfers++;
+        return true;
+    }
+
+    private synchronized void endTransfer() {
+        runningTransfers--;
+        notifyAll();
+    }
+
+    private class SegmentTransfer implements Callable<Void> {
+
+        private final String filename;
+        private final DownloadSegment segment;
+
+        SegmentTransfer(String filename, DownloadSegment segment) {
+            this.filename = filename;
+            this.segment = segment;
+        }
+
+        @Override
+        public Void call() throws StopRequestException {
+            if (!startTransfer()) {
+                return null;
+            }
+            try {
+                transfer();
+            } finally {
+                endTransfer();
+            }
+            return null;
+        }
+
+        private void transfer() throws StopRequestException {
+            HttpURLConnection connection = segmentConnector.open(segment);
+            InputStream in = null;
+            RandomAccessFile file = null;
+            FileOutputStream out = null;
+            FileDescriptor outFd = null;
+            try {
+                try {
+                    in = connection.getInputStream();
+                } catch (IOException e) {
+                    throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, e);
+                }
+
+                try {
+                    file = new RandomAccessFile(filename, "rw");
+                    file.seek(segment.nextByte());
+                    outFd = file.getFD();
+                    out = new FileOutputStream(outFd);
+                } catch (IOException e) {
+                    throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+                }
+
+                DataWriter dataWriter = new ThrottledWriter(throttle, new SegmentWriter(segment, new CheckedWriter(spaceVerifier, out)));
+                DataTransferer dataTransferer = bulkTransferEnabled ? new BulkDataTransferer(dataWriter) : new RegularDataTransferer(dataWriter);
+                dataTransferer.transferData(new DownloadTask.State(), in);
+            } finally {
+                closeQuietly(in);
+                closeAfterWrite(out, outFd);
+                closeQuietly(file);
+                connection.disconnect();
+            }
+
+            if (!segment.isComplete() && !stopped) {
+                throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "closed socket before end of segment");
+            }
+        }
+    }
+
+    /**
+     * Keeps the segment progress up to date and never writes past the end of the segment.
+     */
+    private class SegmentWriter implements DataWriter {
+
+        private final DownloadSegment segment;
+        private final DataWriter dataWriter;
+
+        SegmentWriter(DownloadSegment segment, DataWriter dataWriter) {
+            this.segment = segment;
+            this.dataWriter = dataWriter;
+        }
+
+        @Override
+        public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+            if (stopped) {
+                throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "segmented download stopped");
+            }
+            int countInSegment = (int) Math.min(count, segment.remainingBytes());
+            if (countInSegment <= 0) {
+                return state;
+            }
+            DownloadTask.State newState = dataWriter.write(state, buffer, countInSegment);
+            segment.addBytes(countInSegment);
+            return newState;
+        }
+    }
+
+    interface SegmentConnector {
+
+        /**
+         * @return a connection whose response body starts at {@link DownloadSegment#nextByte()}
+         */
+        HttpURLConnection open(DownloadSegment segment) throws StopRequestException;
+
+    }
+
+    interface ProgressListener {
+
+        /**
+         * Called periodically on the downloading thread, throwing stops the download.
+         */
+        void onProgress(List<DownloadSegment> segments) throws StopRequestException;
+
+    }
+
+}
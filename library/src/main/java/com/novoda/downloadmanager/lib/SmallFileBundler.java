@@ -0,0 +1,117 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Groups the small downloads of a batch so a single worker fetches them back to back over one connection,
+ * instead of paying the cost of a whole {@link DownloadTask} for each of them.
+ * <p/>
+ * A download is small when its size is known and doesn't exceed the threshold. The downloads of a bundle are
+ * claimed until the bundle is done with them, the scheduler skips claimed downloads and a bundle takes a
+ * single download slot. A completed download stays claimed until an update pass has reloaded it, see
+ * {@link #releaseOnceReloaded(FileDownloadInfo)}. Downloads verified against a checksum or a block manifest, and downloads that
+ * revalidate an earlier one, are always left to a {@link DownloadTask}.
+ */
+class SmallFileBundler {
+
+    static final int MAX_BUNDLE_SIZE = 50;
+
+    private static final int MIN_BUNDLE_SIZE = 2;
+
+    private final long maxSmallFileBytes;
+    private final Set<Long> claimedDownloadIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<Long> completedDownloadIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * @param maxSmallFileBytes the size up to which a download is small, 0 disables bundling
+     */
+    SmallFileBundler(long maxSmallFileBytes) {
+        this.maxSmallFileBytes = maxSmallFileBytes;
+    }
+
+    /**
+     * Claims the download scheduled next together with the other small downloads waiting in its batch.
+     *
+     * @return the claimed downloads starting with the scheduled one, or an empty list when the download
+     * should go through a {@link DownloadTask}
+     */
+    List<FileDownloadInfo> bundle(FileDownloadInfo scheduledDownload, DownloadBatch batch) {
+        if (!isSmall(scheduledDownload)) {
+            return Collections.emptyList();
+        }
+
+        List<FileDownloadInfo> bundle = new ArrayList<>();
+        bundle.add(scheduledDownload);
+        for (FileDownloadInfo download : batch.getDownloads()) {
+            if (bundle.size() == MAX_BUNDLE_SIZE) {
+                break;
+            }
+            if (download != scheduledDownload && isSmall(download)) {
+                bundle.add(download);
+            }
+        }
+
+        if (bundle.size() < MIN_BUNDLE_SIZE) {
+            return Collections.emptyList();
+        }
+        for (FileDownloadInfo download : bundle) {
+            claimedDownloadIds.add(download.getId());
+        }
+        return bundle;
+    }
+
+    private boolean isSmall(FileDownloadInfo download) {
+        return maxSmallFileBytes > 0
+                && download.getStatus() == DownloadStatus.PENDING
+                && download.getControl() == DownloadsControl.CONTROL_RUN
+                && !download.isDeleted()
+                && download.getCurrentBytes() == 0
+                && download.getFileName() == null
+                && download.getSegments() == null
+                && !download.hasExpectedChecksum()
+                && !download.hasBlockChecksums()
+                && !download.isRevalidated()
+                && download.hasTotalBytes()
+                && download.getTotalBytes() <= maxSmallFileBytes
+                && !isClaimed(download);
+    }
+
+    boolean isClaimed(FileDownloadInfo download) {
+        return claimedDownloadIds.contains(download.getId());
+    }
+
+    void release(FileDownloadInfo download) {
+        claimedDownloadIds.remove(download.getId());
+    }
+
+    /**
+     * Keeps a completed download claimed until {@link #takeCompletedDownloadIds()} hands it to an update pass, which
+     * reloads it before releasing it. Until then the cached state of the download may still show it as pending.
+     */
+    void releaseOnceReloaded(FileDownloadInfo download) {
+        completedDownloadIds.add(download.getId());
+    }
+
+    /**
+     * @return the completed downloads to reload before releasing them with {@link #release(Collection)}
+     */
+    List<Long> takeCompletedDownloadIds() {
+        List<Long> downloadIds = new ArrayList<>();
+        for (Long downloadId : completedDownloadIds) {
+            if (completedDownloadIds.remove(downloadId)) {
+                downloadIds.add(downloadId);
+            }
+        }
+        return downloadIds;
+    }
+
+    void release(Collection<Long> downloadIds) {
+        claimedDownloadIds.removeAll(downloadIds);
+    }
+
+}
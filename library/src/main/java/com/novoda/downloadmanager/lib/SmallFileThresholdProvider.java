@@ -0,0 +1,46 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+class SmallFileThresholdProvider {
+
+    private static final int DEFAULT_SMALL_FILE_THRESHOLD_KILOBYTES = 0;
+    private static final String METADATA_SMALL_FILE_THRESHOLD_KILOBYTES = "com.novoda.downloadmanager.SmallFileThresholdKilobytes";
+    private static final int BYTES_PER_KILOBYTE = 1024;
+
+    private final PackageManager packageManager;
+    private final String packageName;
+
+    SmallFileThresholdProvider(PackageManager packageManager, String packageName) {
+        this.packageManager = packageManager;
+        this.packageName = packageName;
+    }
+
+    /**
+     * Downloads of a known size up to this many bytes are fetched together with the other small downloads of their batch,
+     * without a completion broadcast of their own, 0 disables it.
+     */
+    public long getSmallFileThresholdBytes() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return DEFAULT_SMALL_FILE_THRESHOLD_KILOBYTES * BYTES_PER_KILOBYTE;
+        }
+        int thresholdKilobytes = metaData.getInt(METADATA_SMALL_FILE_THRESHOLD_KILOBYTES, DEFAULT_SMALL_FILE_THRESHOLD_KILOBYTES);
+        return Math.max(0, thresholdKilobytes) * (long) BYTES_PER_KILOBYTE;
+    }
+
+    private Bundle getMetaData() {
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
+            return applicationInfo.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+            return null;
+        }
+    }
+
+}
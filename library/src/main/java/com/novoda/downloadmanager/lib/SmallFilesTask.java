@@ -0,0 +1,300 @@
+package com.novoda.downloadmanager.lib;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.novoda.downloadmanager.lib.Constants.UNKNOWN_BYTE_SIZE;
+
+/**
+ * Fetches a bundle of small downloads of a batch one after the other, so they share a kept-alive connection,
+ * and writes all their completions at once when the bundle is done.
+ * <p/>
+ * Only a plain 200 response of the expected size is taken. Anything else, redirects and errors included,
+ * stops the bundle and the downloads that are left go through a {@link DownloadTask} as usual.
+ * <p/>
+ * Before each download the same checks as a {@link DownloadTask} are run: the client rules of the batch stop the bundle,
+ * while a download that is paused, canceled or not allowed on the current network is skipped and left to a task.
+ */
+class SmallFilesTask implements Runnable {
+
+    private final DownloadBatch batch;
+    private final List<FileDownloadInfo> downloads;
+    private final SmallFileBundler smallFileBundler;
+    private final HttpTransport httpTransport;
+    private final HostRttEstimator hostRttEstimator;
+    private final DownloadHosts downloadHosts;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final StorageManager storageManager;
+    private final DownloadsRepository downloadsRepository;
+    private final BatchRepository batchRepository;
+    private final BatchInformationBroadcaster batchInformationBroadcaster;
+    private final DownloadProgressStream progressStream;
+    private final NetworkChecker networkChecker;
+    private final DownloadReadyChecker downloadReadyChecker;
+    private final DownloadControlRegistry controlRegistry;
+
+    private final byte[] buffer = new byte[BulkDataTransferer.MIN_CHUNK_SIZE];
+
+    SmallFilesTask(DownloadBatch batch,
+                   List<FileDownloadInfo> downloads,
+                   SmallFileBundler smallFileBundler,
+                   HttpTransport httpTransport,
+                   HostRttEstimator hostRttEstimator,
+                   DownloadHosts downloadHosts,
+                   BandwidthLimiter bandwidthLimiter,
+                   StorageManager storageManager,
+                   DownloadsRepository downloadsRepository,
+                   BatchRepository batchRepository,
+                   BatchInformationBroadcaster batchInformationBroadcaster,
+                   DownloadProgressStream progressStream,
+                   NetworkChecker networkChecker,
+                   DownloadReadyChecker downloadReadyChecker,
+                   DownloadControlRegistry controlRegistry) {
+        this.batch = batch;
+        this.downloads = downloads;
+        this.smallFileBundler = smallFileBundler;
+        this.httpTransport = httpTransport;
+        this.hostRttEstimator = hostRttEstimator;
+        this.downloadHosts = downloadHosts;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.storageManager = storageManager;
+        this.downloadsRepository = downloadsRepository;
+        this.batchRepository = batchRepository;
+        this.batchInformationBroadcaster = batchInformationBroadcaster;
+        this.progressStream = progressStream;
+        this.networkChecker = networkChecker;
+        this.downloadReadyChecker = downloadReadyChecker;
+        this.controlRegistry = controlRegistry;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        fetchAll();
+    }
+
+    void fetchAll() {
+        List<DownloadsRepository.CompletedDownload> completedDownloads = new ArrayList<>(downloads.size());
+        List<DownloadControlRegistry.Control> controls = new ArrayList<>(downloads.size());
+        for (FileDownloadInfo download : downloads) {
+            controls.add(controlRegistry.register(download.getId()));
+        }
+        BandwidthLimiter.Throttle throttle = bandwidthLimiter.register(batch);
+        String host = downloadHosts.hostOf(downloads.get(0));
+        downloadHosts.onDownloadStarted(host);
+        try {
+            for (int i = 0; i < downloads.size(); i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if (!downloadReadyChecker.clientAllowsToDownload(batch)) {
+                    LLog.d("Client denies small downloads of batch " + batch.getBatchId() + ", leaving them to download tasks");
+                    break;
+                }
+                FileDownloadInfo download = downloads.get(i);
+                if (!canFetch(download, controls.get(i))) {
+                    continue;
+                }
+                DownloadsRepository.CompletedDownload completedDownload = fetch(download, throttle);
+                if (completedDownload == null) {
+                    break;
+                }
+                completedDownloads.add(completedDownload);
+            }
+        } finally {
+            downloadHosts.onDownloadStopped(host);
+            bandwidthLimiter.unregister(throttle);
+            for (int i = 0; i < downloads.size(); i++) {
+                controlRegistry.unregister(downloads.get(i).getId(), controls.get(i));
+            }
+            commit(completedDownloads);
+        }
+    }
+
+    private boolean canFetch(FileDownloadInfo download, DownloadControlRegistry.Control control) {
+        if (control.isPaused() || control.isCanceled()) {
+            LLog.d("Small download " + download.getId() + " was paused or canceled, leaving it to a download task");
+            return false;
+        }
+        FileDownloadInfo.NetworkState networkState = networkChecker.checkCanUseNetwork(download);
+        if (networkState != FileDownloadInfo.NetworkState.OK) {
+            LLog.d("Small download " + download.getId() + " cannot use the network (" + networkState + "), leaving it to a download task");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the fetched download, or null when it has to be left to a {@link DownloadTask}
+     */
+    private DownloadsRepository.CompletedDownload fetch(FileDownloadInfo download, BandwidthLimiter.Throttle throttle) {
+        HttpURLConnection conn = null;
+        String filename = null;
+        try {
+            URL url = new URL(download.getUri());
+            conn = httpTransport.open(url);
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(hostRttEstimator.connectTimeoutMillisFor(url.getHost()));
+            conn.setReadTimeout(hostRttEstimator.readTimeoutMillisFor(url.getHost()));
+            RequestHeaders.addCommonTo(conn, download);
+
+            long start = SystemClock.elapsedRealtime();
+            int responseCode = conn.getResponseCode();
+            hostRttEstimator.sample(url.getHost(), SystemClock.elapsedRealtime() - start);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                LLog.d("Small download " + download.getId() + " got " + responseCode + ", leaving it to a download task");
+                return null;
+            }
+
+            long contentLength = contentLengthOf(conn);
+            String mimeType = mimeTypeOf(download, conn);
+            if (contentLength != download.getTotalBytes()
+                    || download.shouldAllowTarUpdate(mimeType)
+                    || DownloadDrmHelper.isDrmConvertNeeded(mimeType)) {
+                return null;
+            }
+
+            filename = Helpers.generateSaveFile(
+                    download.getUri(),
+                    download.getHint(),
+                    conn.getHeaderField("Content-Disposition"),
+                    conn.getHeaderField("Content-Location"),
+                    mimeType,
+                    download.getDestination(),
+                    contentLength,
+                    storageManager
+            );
+            storageManager.verifySpace(download.getDestination(), filename, contentLength);
+
+            if (transfer(conn, filename, throttle) != contentLength) {
+                LLog.w("Small download " + download.getId() + " ended early, leaving it to a download task");
+                delete(filename);
+                return null;
+            }
+            return new DownloadsRepository.CompletedDownload(download, filename, mimeType, contentLength);
+        } catch (IOException | StopRequestException e) {
+            LLog.w("Small download " + download.getId() + " failed, leaving it to a download task: " + e.getMessage());
+            delete(filename);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            delete(filename);
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static long contentLengthOf(HttpURLConnection conn) {
+        if (conn.getHeaderField("Transfer-Encoding") != null) {
+            return UNKNOWN_BYTE_SIZE;
+        }
+        try {
+            return Long.parseLong(conn.getHeaderField("Content-Length"));
+        } catch (NumberFormatException e) {
+            return UNKNOWN_BYTE_SIZE;
+        }
+    }
+
+    private static String mimeTypeOf(FileDownloadInfo download, HttpURLConnection conn) {
+        if (download.getMimeType() != null) {
+            return DownloadTask.normalizeMimeType(download.getMimeType());
+        }
+        return DownloadTask.normalizeMimeType(conn.getContentType());
+    }
+
+    /**
+     * Reads the response body to its end, so the connection can be reused by the next download of the bundle.
+     *
+     * @return the number of bytes written
+     */
+    private long transfer(HttpURLConnection conn, String filename, BandwidthLimiter.Throttle throttle)
+            throws IOException, InterruptedException {
+        long bytesWritten = 0;
+        InputStream in = conn.getInputStream();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(filename);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                throttle.acquire(count);
+                out.write(buffer, 0, count);
+                bytesWritten += count;
+            }
+        } finally {
+            IOHelpers.closeQuietly(out);
+            IOHelpers.closeQuietly(in);
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Writes the completions and releases every download of the bundle, those not completed go back to the scheduler.
+     * The completed ones are only released once an update pass has reloaded them, so a pass still seeing them as pending
+     * doesn't fetch them again.
+     */
+    private void commit(List<DownloadsRepository.CompletedDownload> completedDownloads) {
+        Set<Long> completedDownloadIds = new HashSet<>();
+        for (DownloadsRepository.CompletedDownload completedDownload : completedDownloads) {
+            completedDownloadIds.add(completedDownload.getDownloadInfo().getId());
+        }
+        List<Long> unfinishedDownloadIds = new ArrayList<>();
+        for (FileDownloadInfo download : downloads) {
+            if (!completedDownloadIds.contains(download.getId())) {
+                unfinishedDownloadIds.add(download.getId());
+                smallFileBundler.release(download);
+            }
+        }
+
+        List<DownloadsRepository.CompletedDownload> writtenDownloads = downloadsRepository.completeDownloads(completedDownloads, unfinishedDownloadIds);
+        for (DownloadsRepository.CompletedDownload completedDownload : completedDownloads) {
+            FileDownloadInfo download = completedDownload.getDownloadInfo();
+            if (writtenDownloads.contains(completedDownload)) {
+                progressStream.publish(download, completedDownload.getTotalBytes(), completedDownload.getTotalBytes(), 0, DownloadStatus.SUCCESS);
+                smallFileBundler.releaseOnceReloaded(download);
+            } else {
+                LLog.d("Small download " + download.getId() + " changed while fetched, discarding it");
+                delete(completedDownload.getFilename());
+                smallFileBundler.release(download);
+            }
+        }
+
+        String host = downloadHosts.hostOf(downloads.get(0));
+        if (host != null) {
+            downloadHosts.onConnectionReleased(host);
+        }
+        updateBatchStatus();
+    }
+
+    private void updateBatchStatus() {
+        long batchId = batch.getBatchId();
+        int batchStatus = batchRepository.calculateBatchStatus(batchId);
+        batchRepository.updateBatchStatus(batchId, batchStatus);
+        if (DownloadStatus.isSuccess(batchStatus)) {
+            batchInformationBroadcaster.notifyBatchCompletedFor(batchId);
+        }
+    }
+
+    private static void delete(String filename) {
+        if (filename != null && !new File(filename).delete()) {
+            LLog.e("File not deleted: " + filename);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells when a connection slowed down to a trickle compared to what it delivered before.
+ * <p/>
+ * The speed over the last {@link #WINDOW_MILLIS} is compared to the speed over the last {@link #HISTORY_MILLIS},
+ * the connection is stalled when it drops below the threshold fraction of it. A connection that has always been
+ * slow is left alone, a connection that stopped delivering altogether is caught by its read timeout instead.
+ */
+class StallDetector {
+
+    static final long WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    static final long HISTORY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final float threshold;
+    private final Deque<Sample> samples = new ArrayDeque<>();
+
+    private long bytesPerSecondLimit = BandwidthLimiter.UNLIMITED;
+
+    /**
+     * A detector that never flags a stall, for connections that can't be replaced.
+     */
+    static StallDetector disabled() {
+        return new StallDetector(0);
+    }
+
+    /**
+     * @param threshold the fraction of the historical speed under which the connection is stalled
+     */
+    StallDetector(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param bytesPerSecondLimit the rate the download is throttled to, the history is forgotten when it
+     *                            changes as a lower limit would otherwise look like a stall
+     */
+    void sample(long nowMillis, long currentBytes, long bytesPerSecondLimit) {
+        if (bytesPerSecondLimit != this.bytesPerSecondLimit) {
+            reset();
+            this.bytesPerSecondLimit = bytesPerSecondLimit;
+        }
+        samples.addLast(new Sample(nowMillis, currentBytes));
+        while (samples.size() > 2 && nowMillis - secondOldestSample().timeMillis >= HISTORY_MILLIS) {
+            samples.removeFirst();
+        }
+    }
+
+    private Sample secondOldestSample() {
+        Iterator<Sample> iterator = samples.iterator();
+        iterator.next();
+        return iterator.next();
+    }
+
+    /**
+     * Only decides once there is a full window of history before the current window.
+     */
+    boolean isStalled() {
+        if (samples.size() < 2) {
+            return false;
+        }
+        Sample latest = samples.peekLast();
+        Sample oldest = samples.peekFirst();
+        long historyMillis = latest.timeMillis - oldest.timeMillis;
+        if (historyMillis < 2 * WINDOW_MILLIS) {
+            return false;
+        }
+
+        Sample windowStart = windowStartBefore(latest);
+        long windowMillis = latest.timeMillis - windowStart.timeMillis;
+        long windowBytes = latest.bytes - windowStart.bytes;
+        long historyBytes = latest.bytes - oldest.bytes;
+        return (double) windowBytes * historyMillis < threshold * (double) historyBytes * windowMillis;
+    }
+
+    private Sample windowStartBefore(Sample latest) {
+        Iterator<Sample> iterator = samples.descendingIterator();
+        Sample windowStart = iterator.next();
+        while (iterator.hasNext() && latest.timeMillis - windowStart.timeMillis < WINDOW_MILLIS) {
+            windowStart = iterator.next();
+        }
+        return windowStart;
+    }
+
+    /**
+     * Forgets the history, to be called when the download moves to a new connection.
+     */
+    void reset() {
+        samples.clear();
+    }
+
+    private static class Sample {
+
+        private final long timeMillis;
+        private final long bytes;
+
+        Sample(long timeMillis, long bytes) {
+            this.timeMillis = timeMillis;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+class StallThresholdProvider {
+
+    private static final int DEFAULT_STALL_THRESHOLD_PERCENT = 10;
+    private static final String METADATA_STALL_THRESHOLD_PERCENT = "com.novoda.downloadmanager.StallThresholdPercent";
+
+    private final PackageManager packageManager;
+    private final String packageName;
+
+    StallThresholdProvider(PackageManager packageManager, String packageName) {
+        this.packageManager = packageManager;
+        this.packageName = packageName;
+    }
+
+    /**
+     * A connection whose recent speed drops below this fraction of its speed over the last minute is replaced,
+     * 0 disables the detection.
+     */
+    public float getStallThreshold() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return DEFAULT_STALL_THRESHOLD_PERCENT / 100f;
+        }
+        int thresholdPercent = metaData.getInt(METADATA_STALL_THRESHOLD_PERCENT, DEFAULT_STALL_THRESHOLD_PERCENT);
+        return Math.max(0, Math.min(thresholdPercent, 100)) / 100f;
+    }
+
+    private Bundle getMetaData() {
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
+            return applicationInfo.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Holds the data back to the rate of its {@link BandwidthLimiter.Throttle}.
+ * <p/>
+ * While throttled, large chunks are passed on in slices of a tenth of a second worth of data, so the
+ * writers after it still report progress and check for pauses as often as when nothing is throttled.
+ */
+class ThrottledWriter implements DataWriter {
+
+    private static final int SLICES_PER_SECOND = 10;
+
+    private final BandwidthLimiter.Throttle throttle;
+    private final DataWriter dataWriter;
+
+    private byte[] slice;
+
+    public ThrottledWriter(BandwidthLimiter.Throttle throttle, DataWriter dataWriter) {
+        this.throttle = throttle;
+        this.dataWriter = dataWriter;
+    }
+
+    @Override
+    public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+        try {
+            int sliceSize = sliceSize();
+            if (count <= sliceSize) {
+                throttle.acquire(count);
+                return dataWriter.write(state, buffer, count);
+            }
+            return writeInSlices(state, buffer, count, sliceSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "interrupted while throttled", e);
+        }
+    }
+
+    private int sliceSize() {
+        long bytesPerSecond = throttle.getRate();
+        if (bytesPerSecond == BandwidthLimiter.UNLIMITED) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytesPerSecond / SLICES_PER_SECOND));
+    }
+
+    private DownloadTask.State writeInSlices(DownloadTask.State state, byte[] buffer, int count, int sliceSize)
+            throws StopRequestException, InterruptedException {
+        if (slice == null || slice.length < sliceSize) {
+            slice = new byte[sliceSize];
+        }
+
+        DownloadTask.State newState = state;
+        for (int offset = 0; offset < count; offset += sliceSize) {
+            int length = Math.min(sliceSize, count - offset);
+            System.arraycopy(buffer, offset, slice, 0, length);
+            throttle.acquire(length);
+            newState = dataWriter.write(newState, slice, length);
+        }
+        return newState;
+    }
+
+}
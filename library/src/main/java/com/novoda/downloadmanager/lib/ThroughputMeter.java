@@ -0,0 +1,43 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latest smoothed speed of every running download, so their combined throughput can be sampled.
+ */
+class ThroughputMeter {
+
+    private final ConcurrentHashMap<Long, Long> speeds = new ConcurrentHashMap<>();
+
+    private static class LazyInitialisationHelper {
+        private static final ThroughputMeter INSTANCE = new ThroughputMeter();
+    }
+
+    static ThroughputMeter getInstance() {
+        return LazyInitialisationHelper.INSTANCE;
+    }
+
+    void update(long downloadId, long bytesPerSecond) {
+        speeds.put(downloadId, bytesPerSecond);
+    }
+
+    void remove(long downloadId) {
+        speeds.remove(downloadId);
+    }
+
+    /**
+     * @return the sum of the speeds of the running downloads, in bytes per second
+     */
+    long getAggregateSpeed() {
+        long aggregateSpeed = 0;
+        for (long speed : speeds.values()) {
+            aggregateSpeed += speed;
+        }
+        return aggregateSpeed;
+    }
+
+    int getRunningDownloads() {
+        return speeds.size();
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which bytes are consumed, allowing bursts of up to one second of the rate.
+ * <p/>
+ * Consumers take the bytes they need upfront and sleep off any debt outside of the lock, so several
+ * threads can share a bucket without ever spinning.
+ */
+class TokenBucket {
+
+    static final long UNLIMITED = 0;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Timer timer;
+
+    private long bytesPerSecond = UNLIMITED;
+    private double availableBytes;
+    private long lastRefillNanos;
+
+    TokenBucket(Timer timer) {
+        this.timer = timer;
+        this.lastRefillNanos = timer.nanoTime();
+    }
+
+    synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        availableBytes = Math.min(availableBytes, bytesPerSecond);
+    }
+
+    /**
+     * @return the rate in bytes per second, or {@link #UNLIMITED}
+     */
+    synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    void acquire(int bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (bytesPerSecond == UNLIMITED) {
+                return;
+            }
+            refill();
+            availableBytes -= bytes;
+            if (availableBytes >= 0) {
+                return;
+            }
+            waitNanos = (long) (-availableBytes * NANOS_PER_SECOND / bytesPerSecond);
+        }
+        timer.sleep(waitNanos);
+    }
+
+    private void refill() {
+        long now = timer.nanoTime();
+        if (bytesPerSecond != UNLIMITED) {
+            double refilledBytes = (double) (now - lastRefillNanos) * bytesPerSecond / NANOS_PER_SECOND;
+            availableBytes = Math.min(bytesPerSecond, availableBytes + refilledBytes);
+        }
+        lastRefillNanos = now;
+    }
+
+    interface Timer {
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+
+    }
+
+    static class SystemTimer implements Timer {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+}
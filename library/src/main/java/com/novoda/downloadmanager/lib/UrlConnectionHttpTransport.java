@@ -0,0 +1,14 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+class UrlConnectionHttpTransport implements HttpTransport {
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+}
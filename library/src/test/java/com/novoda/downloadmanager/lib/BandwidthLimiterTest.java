@@ -0,0 +1,96 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.notifications.NotificationVisibility;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BandwidthLimiterTest {
+
+    private static final int NO_PRIORITY = 0;
+    private static final long UNLIMITED = BandwidthLimiter.UNLIMITED;
+
+    private final BandwidthLimiter limiter = new BandwidthLimiter(new FakeTimer());
+
+    @Test
+    public void givenNoLimitsWhenADownloadStartsThenItIsNotThrottled() {
+        BandwidthLimiter.Throttle throttle = limiter.register(batch(1, NO_PRIORITY, UNLIMITED));
+
+        assertThat(throttle.getRate()).isEqualTo(UNLIMITED);
+    }
+
+    @Test
+    public void givenABatchLimitWhenSeveralDownloadsOfTheBatchRunThenTheySplitIt() {
+        DownloadBatch batch = batch(1, NO_PRIORITY, 1000);
+
+        BandwidthLimiter.Throttle first = limiter.register(batch);
+        BandwidthLimiter.Throttle second = limiter.register(batch);
+
+        assertThat(first.getRate()).isEqualTo(500);
+        assertThat(second.getRate()).isEqualTo(500);
+    }
+
+    @Test
+    public void givenAGlobalLimitWhenBatchesOfDifferentPrioritiesRunThenTheHigherPriorityGetsALargerShare() {
+        limiter.setGlobalLimit(900);
+
+        BandwidthLimiter.Throttle background = limiter.register(batch(1, NO_PRIORITY, UNLIMITED));
+        BandwidthLimiter.Throttle userVisible = limiter.register(batch(2, NO_PRIORITY + 1, UNLIMITED));
+
+        assertThat(background.getRate()).isEqualTo(300);
+        assertThat(userVisible.getRate()).isEqualTo(600);
+    }
+
+    @Test
+    public void givenAGlobalLimitWhenABatchIsLimitedBelowItsShareThenTheOtherBatchesGetWhatItLeaves() {
+        limiter.setGlobalLimit(1000);
+
+        BandwidthLimiter.Throttle limited = limiter.register(batch(1, NO_PRIORITY, 100));
+        BandwidthLimiter.Throttle unlimited = limiter.register(batch(2, NO_PRIORITY, UNLIMITED));
+
+        assertThat(limited.getRate()).isEqualTo(100);
+        assertThat(unlimited.getRate()).isEqualTo(900);
+    }
+
+    @Test
+    public void givenARunningDownloadWhenTheBatchLimitChangesThenItAppliesStraightAway() {
+        BandwidthLimiter.Throttle throttle = limiter.register(batch(1, NO_PRIORITY, UNLIMITED));
+
+        limiter.setBatchLimit(1, 2000);
+
+        assertThat(throttle.getRate()).isEqualTo(2000);
+    }
+
+    @Test
+    public void givenADownloadStopsWhenTheOthersAreThrottledThenTheyShareItsBandwidth() {
+        limiter.setGlobalLimit(1000);
+        BandwidthLimiter.Throttle remaining = limiter.register(batch(1, NO_PRIORITY, UNLIMITED));
+        BandwidthLimiter.Throttle stopping = limiter.register(batch(2, NO_PRIORITY, UNLIMITED));
+
+        limiter.unregister(stopping);
+
+        assertThat(remaining.getRate()).isEqualTo(1000);
+    }
+
+    private static DownloadBatch batch(long batchId, int priority, long maxBytesPerSecond) {
+        BatchInfo batchInfo = new BatchInfo("title", "description", null, NotificationVisibility.ONLY_WHEN_ACTIVE, null, priority, maxBytesPerSecond);
+        return new DownloadBatch(batchId, batchInfo, Collections.<FileDownloadInfo>emptyList(), DownloadStatus.RUNNING, -1L, 0L);
+    }
+
+    private static class FakeTimer implements TokenBucket.Timer {
+
+        @Override
+        public long nanoTime() {
+            return 0;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            // never called
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(SQLiteDatabase.class)
+public class BatchTransactionTest {
+
+    private static final long DOWNLOAD_ID = 7;
+    private static final long OTHER_DOWNLOAD_ID = 8;
+
+    private final Uri batchesUri = mock(Uri.class);
+
+    private SQLiteDatabase db;
+    private BatchTransaction.Notifier notifier;
+    private BatchTransaction batchTransaction;
+
+    @Before
+    public void setUp() {
+        db = PowerMockito.mock(SQLiteDatabase.class);
+        notifier = mock(BatchTransaction.Notifier.class);
+        batchTransaction = new BatchTransaction(notifier);
+    }
+
+    @Test
+    public void givenOperationsStartingTheServiceWhenAppliedThenItIsStartedOnceAfterTheCommit() throws Exception {
+        batchTransaction.apply(db, new BatchTransaction.Operations<Void>() {
+            @Override
+            public Void apply() {
+                batchTransaction.startDownloadService();
+                batchTransaction.startDownloadService();
+                verify(notifier, never()).startDownloadService();
+                return null;
+            }
+        });
+
+        InOrder inOrder = inOrder(db, notifier);
+        inOrder.verify(db).setTransactionSuccessful();
+        inOrder.verify(db).endTransaction();
+        inOrder.verify(notifier).startDownloadService();
+    }
+
+    @Test
+    public void givenOperationsChangingSeveralDownloadsWhenAppliedThenTheyAreNotifiedOnceTogether() throws Exception {
+        batchTransaction.apply(db, new BatchTransaction.Operations<Void>() {
+            @Override
+            public Void apply() {
+                batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+                batchTransaction.notifyDownloadsChanged(OTHER_DOWNLOAD_ID);
+                batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+                batchTransaction.notifyChange(batchesUri);
+                batchTransaction.notifyChange(batchesUri);
+                return null;
+            }
+        });
+
+        verify(notifier).notifySeveralDownloadsChanged(new TreeSet<>(Arrays.asList(DOWNLOAD_ID, OTHER_DOWNLOAD_ID)));
+        verify(notifier, never()).notifyDownloadsChanged(anyLong());
+        verify(notifier).notifyChange(batchesUri);
+    }
+
+    @Test
+    public void givenOperationsChangingASingleDownloadWhenAppliedThenItIsNotifiedWithItsId() throws Exception {
+        batchTransaction.apply(db, new BatchTransaction.Operations<Void>() {
+            @Override
+            public Void apply() {
+                batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+                batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+                return null;
+            }
+        });
+
+        verify(notifier).notifyDownloadsChanged(DOWNLOAD_ID);
+    }
+
+    @Test
+    public void givenAnOperationThatMayChangeAnyDownloadWhenAppliedThenAllDownloadsAreNotifiedOnce() throws Exception {
+        batchTransaction.apply(db, new BatchTransaction.Operations<Void>() {
+            @Override
+            public Void apply() {
+                batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+                batchTransaction.notifyDownloadsChanged(null);
+                return null;
+            }
+        });
+
+        verify(notifier).notifyDownloadsChanged(null);
+        verify(notifier, never()).notifyDownloadsChanged(DOWNLOAD_ID);
+    }
+
+    @Test
+    public void givenAFailingOperationWhenAppliedThenTheWholeBatchIsRolledBackWithoutNotifications() throws Exception {
+        final OperationApplicationException failure = mock(OperationApplicationException.class);
+
+        try {
+            batchTransaction.apply(db, new BatchTransaction.Operations<Void>() {
+                @Override
+                public Void apply() throws OperationApplicationException {
+                    batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+                    batchTransaction.startDownloadService();
+                    throw failure;
+                }
+            });
+            fail("The failure should be rethrown");
+        } catch (OperationApplicationException e) {
+            assertThat(e).isSameAs(failure);
+        }
+
+        verify(db, never()).setTransactionSuccessful();
+        verify(db).endTransaction();
+        verifyZeroInteractions(notifier);
+    }
+
+    @Test
+    public void givenARolledBackBatchWhenADownloadChangesAfterwardsThenItIsNotifiedStraightAway() throws Exception {
+        try {
+            batchTransaction.apply(db, new BatchTransaction.Operations<Void>() {
+                @Override
+                public Void apply() {
+                    throw new IllegalStateException("constraint failed");
+                }
+            });
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        batchTransaction.notifyDownloadsChanged(DOWNLOAD_ID);
+
+        verify(notifier).notifyDownloadsChanged(DOWNLOAD_ID);
+    }
+
+    @Test
+    public void givenNoBatchWhenTheServiceIsStartedThenItIsStartedStraightAway() {
+        batchTransaction.startDownloadService();
+
+        verify(notifier).startDownloadService();
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BlockVerifierTest {
+
+    private static final String ALGORITHM = DownloadManager.CHECKSUM_CRC32C;
+    private static final long BLOCK_SIZE = 4;
+    private static final byte[] DATA = "0123456789".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] CORRUPT_DATA = "0123x56789".getBytes(Charset.forName("US-ASCII"));
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final String manifest = BlockVerifier.serializeChecksums(Arrays.asList(
+            checksumOf(0, 4),
+            checksumOf(4, 4),
+            checksumOf(8, 2)
+    ));
+
+    @Test
+    public void givenTheBytesOfTheManifestWhenTheyAreWrittenThenNoBlockIsCorrupt() {
+        BlockVerifier blockVerifier = BlockVerifier.resume(ALGORITHM, BLOCK_SIZE, manifest, null);
+
+        blockVerifier.update(DATA, 0, 3);
+        blockVerifier.update(DATA, 3, 7);
+
+        assertThat(blockVerifier.finish()).isTrue();
+        assertThat(blockVerifier.hasCorruptBlocks()).isFalse();
+        assertThat(blockVerifier.saveState()).isEqualTo("3:");
+    }
+
+    @Test
+    public void givenACorruptBlockWhenItIsWrittenThenOnlyThatBlockIsFetchedAgain() {
+        BlockVerifier blockVerifier = BlockVerifier.resume(ALGORITHM, BLOCK_SIZE, manifest, null);
+
+        blockVerifier.update(CORRUPT_DATA, 0, CORRUPT_DATA.length);
+        blockVerifier.finish();
+
+        List<DownloadSegment> segments = blockVerifier.corruptSegments(CORRUPT_DATA.length);
+        assertThat(segments).hasSize(1);
+        assertThat(segments.get(0).getStartByte()).isEqualTo(4);
+        assertThat(segments.get(0).getEndByte()).isEqualTo(7);
+    }
+
+    @Test
+    public void givenTheCorruptBlockWasFetchedAgainWhenRecheckingThenNoBlockIsCorrupt() throws IOException {
+        BlockVerifier blockVerifier = BlockVerifier.resume(ALGORITHM, BLOCK_SIZE, manifest, "3:1");
+
+        blockVerifier.recheckCorruptBlocks(fileWith(DATA), DATA.length);
+
+        assertThat(blockVerifier.hasCorruptBlocks()).isFalse();
+    }
+
+    @Test
+    public void givenASavedStateWhenCatchingUpThenTheBlocksWrittenAfterItAreChecked() throws IOException {
+        BlockVerifier blockVerifier = BlockVerifier.resume(ALGORITHM, BLOCK_SIZE, manifest, "1:");
+
+        blockVerifier.catchUp(fileWith(CORRUPT_DATA), CORRUPT_DATA.length);
+
+        assertThat(blockVerifier.finish()).isTrue();
+        assertThat(blockVerifier.saveState()).isEqualTo("3:1");
+    }
+
+    @Test
+    public void givenAFileShorterThanTheSavedStateWhenCatchingUpThenTheMissingBlocksAreNoLongerChecked() throws IOException {
+        BlockVerifier blockVerifier = BlockVerifier.resume(ALGORITHM, BLOCK_SIZE, manifest, "2:1");
+
+        blockVerifier.catchUp(fileWith(DATA), 5);
+
+        assertThat(blockVerifier.saveState()).isEqualTo("1:");
+    }
+
+    @Test
+    public void givenAFileWithMoreBlocksThanTheManifestWhenFinishingThenItDoesNotMatch() {
+        BlockVerifier blockVerifier = BlockVerifier.resume(ALGORITHM, BLOCK_SIZE, checksumOf(0, 4), null);
+
+        blockVerifier.update(DATA, 0, DATA.length);
+
+        assertThat(blockVerifier.finish()).isFalse();
+    }
+
+    private static String checksumOf(int offset, int count) {
+        DownloadDigest digest = DownloadDigest.newInstance(ALGORITHM);
+        digest.update(DATA, offset, count);
+        return digest.digest();
+    }
+
+    private File fileWith(byte[] data) throws IOException {
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
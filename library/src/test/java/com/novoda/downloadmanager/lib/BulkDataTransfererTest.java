@@ -0,0 +1,172 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BulkDataTransfererTest {
+
+    private static final int KIB = 1024;
+
+    private final RecordingWriter dataWriter = new RecordingWriter();
+    private final FakeTimer timer = new FakeTimer();
+
+    private BulkDataTransferer dataTransferer;
+
+    @Before
+    public void setUp() {
+        dataTransferer = new BulkDataTransferer(dataWriter, timer);
+    }
+
+    @Test
+    public void givenDataIsAlwaysAvailableWhenTransferringThenTheChunksGrowUpToTheLimit() throws Exception {
+        int size = BulkDataTransferer.MIN_CHUNK_SIZE * 16;
+
+        dataTransferer.transferData(new DownloadTask.State(), new ByteArrayInputStream(new byte[size]));
+
+        assertThat(dataWriter.counts).containsExactly(
+                BulkDataTransferer.MIN_CHUNK_SIZE,
+                BulkDataTransferer.MIN_CHUNK_SIZE * 2,
+                BulkDataTransferer.MIN_CHUNK_SIZE * 4,
+                BulkDataTransferer.MAX_CHUNK_SIZE,
+                BulkDataTransferer.MIN_CHUNK_SIZE
+        );
+    }
+
+    @Test
+    public void givenTheStreamDeliversSmallReadsWithNothingBufferedWhenTransferringThenTheChunksAreStillFilled() throws Exception {
+        InputStream in = new TrickleInputStream(16 * KIB, 8, 0);
+
+        dataTransferer.transferData(new DownloadTask.State(), in);
+
+        assertThat(dataWriter.counts).containsExactly(BulkDataTransferer.MIN_CHUNK_SIZE, BulkDataTransferer.MIN_CHUNK_SIZE);
+    }
+
+    @Test
+    public void givenTheStreamIsSlowWhenTransferringThenTheDataReadWithinTheTimeBoundIsWritten() throws Exception {
+        long readMillis = BulkDataTransferer.MAX_CHUNK_DELAY_MILLIS * 2 / 5;
+        InputStream in = new TrickleInputStream(1000, 6, readMillis);
+
+        dataTransferer.transferData(new DownloadTask.State(), in);
+
+        assertThat(dataWriter.counts).containsExactly(3000, 3000);
+    }
+
+    @Test
+    public void givenTheStreamFailsWhenTransferringThenTheDataReadBeforeTheFailureIsWritten() throws Exception {
+        InputStream in = new FailingInputStream(new byte[1000]);
+
+        dataTransferer.transferData(new DownloadTask.State(), in);
+
+        assertThat(dataWriter.counts).containsExactly(1000);
+    }
+
+    @Test
+    public void givenTheStreamFailsWhenTransferringThenTheFailureIsFlaggedForAReconnection() throws Exception {
+        InputStream in = new FailingInputStream(new byte[1000]);
+
+        DownloadTask.State state = dataTransferer.transferData(new DownloadTask.State(), in);
+
+        assertThat(state.streamFailed).isTrue();
+    }
+
+    @Test
+    public void givenTheStreamEndsWhenTransferringThenNoFailureIsFlagged() throws Exception {
+        InputStream in = new TrickleInputStream(1000, 3, 0);
+
+        DownloadTask.State state = dataTransferer.transferData(new DownloadTask.State(), in);
+
+        assertThat(state.streamFailed).isFalse();
+    }
+
+    private static class RecordingWriter implements DataWriter {
+
+        private final List<Integer> counts = new ArrayList<>();
+
+        @Override
+        public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) {
+            counts.add(count);
+            return state;
+        }
+    }
+
+    private static class FakeTimer implements TokenBucket.Timer {
+
+        private long nanoTime;
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            nanoTime += nanos;
+        }
+    }
+
+    /**
+     * Delivers a number of reads of the given size, each taking the given time, reporting no data available after each of them.
+     */
+    private class TrickleInputStream extends InputStream {
+
+        private final int readSize;
+        private final long readMillis;
+        private int readsLeft;
+
+        TrickleInputStream(int readSize, int reads, long readMillis) {
+            this.readSize = readSize;
+            this.readsLeft = reads;
+            this.readMillis = readMillis;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (readsLeft == 0) {
+                return -1;
+            }
+            readsLeft--;
+            timer.sleep(TimeUnit.MILLISECONDS.toNanos(readMillis));
+            return Math.min(readSize, length);
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+
+    /**
+     * Delivers its data, then fails instead of ending.
+     */
+    private static class FailingInputStream extends FilterInputStream {
+
+        FailingInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read == -1) {
+                throw new IOException("connection reset");
+            }
+            return read;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ConcurrencyControllerTest {
+
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 8;
+
+    private final ThroughputMeter throughputMeter = new ThroughputMeter();
+    private final RecordingListener listener = new RecordingListener();
+    private final ConcurrencyController controller = new ConcurrencyController(
+            MIN_LIMIT,
+            MAX_LIMIT,
+            throughputMeter,
+            mock(ScheduledExecutorService.class),
+            listener
+    );
+
+    @Test
+    public void givenANewControllerWhenTheLimitIsReadThenItStartsAtTheLowerBound() {
+        assertThat(controller.getConcurrentDownloadsLimit()).isEqualTo(MIN_LIMIT);
+    }
+
+    @Test
+    public void givenEverySlotIsUsedWhenThroughputGrowsThenTheLimitIncreasesByOne() {
+        runDownloads(1, 1000);
+        controller.evaluate();
+
+        runDownloads(2, 1000);
+        ConcurrencyDecision decision = controller.evaluate();
+
+        assertThat(decision.getAction()).isEqualTo(ConcurrencyDecision.Action.INCREASE);
+        assertThat(controller.getConcurrentDownloadsLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void givenFreeSlotsWhenEvaluatingThenTheLimitIsHeld() {
+        growLimitTo(4);
+        runDownloads(2, 1000);
+
+        ConcurrencyDecision decision = controller.evaluate();
+
+        assertThat(decision.getAction()).isEqualTo(ConcurrencyDecision.Action.HOLD);
+        assertThat(controller.getConcurrentDownloadsLimit()).isEqualTo(4);
+    }
+
+    @Test
+    public void givenAnIncreaseWhenThroughputDoesNotGrowThenTheIncreaseIsTakenBack() {
+        long throughputBeforeIncrease = growLimitTo(4);
+
+        runDownloads(4, throughputBeforeIncrease / 4);
+        ConcurrencyDecision decision = controller.evaluate();
+
+        assertThat(decision.getAction()).isEqualTo(ConcurrencyDecision.Action.DECREASE);
+        assertThat(controller.getConcurrentDownloadsLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void givenEverySlotIsUsedWhenThroughputDropsSharplyThenTheLimitIsHalved() {
+        long throughputBeforeIncrease = growLimitTo(6);
+
+        runDownloads(6, throughputBeforeIncrease / 6 / 2);
+        ConcurrencyDecision decision = controller.evaluate();
+
+        assertThat(decision.getAction()).isEqualTo(ConcurrencyDecision.Action.DECREASE);
+        assertThat(controller.getConcurrentDownloadsLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void givenTheUpperBoundWhenThroughputGrowsThenTheLimitStaysWithinBounds() {
+        growLimitTo(MAX_LIMIT);
+
+        runDownloads(MAX_LIMIT, Integer.MAX_VALUE);
+        controller.evaluate();
+
+        assertThat(controller.getConcurrentDownloadsLimit()).isEqualTo(MAX_LIMIT);
+    }
+
+    @Test
+    public void givenAnEvaluationWhenItCompletesThenTheDecisionIsDeliveredToTheListener() {
+        runDownloads(1, 1000);
+
+        ConcurrencyDecision decision = controller.evaluate();
+
+        assertThat(listener.received).hasSize(1);
+        assertThat(listener.received.get(0)).isSameAs(decision);
+        assertThat(decision.getPreviousLimit()).isEqualTo(MIN_LIMIT);
+        assertThat(decision.getRunningDownloads()).isEqualTo(1);
+        assertThat(decision.getThroughput()).isEqualTo(1000);
+    }
+
+    /**
+     * @return the throughput measured by the last evaluation
+     */
+    private long growLimitTo(int limit) {
+        long speed = 1000;
+        long throughput = 0;
+        while (controller.getConcurrentDownloadsLimit() < limit) {
+            int runningDownloads = controller.getConcurrentDownloadsLimit();
+            runDownloads(runningDownloads, speed);
+            throughput = controller.evaluate().getThroughput();
+            speed *= 2;
+        }
+        return throughput;
+    }
+
+    private void runDownloads(int count, long speedPerDownload) {
+        for (long id = 0; id < MAX_LIMIT * 2; id++) {
+            throughputMeter.remove(id);
+        }
+        for (long id = 0; id < count; id++) {
+            throughputMeter.update(id, speedPerDownload);
+        }
+    }
+
+    private static class RecordingListener implements ConcurrencyDecisionListener {
+
+        private final List<ConcurrencyDecision> received = new ArrayList<>();
+
+        @Override
+        public void onConcurrencyDecision(ConcurrencyDecision decision) {
+            received.add(decision);
+        }
+    }
+
+}
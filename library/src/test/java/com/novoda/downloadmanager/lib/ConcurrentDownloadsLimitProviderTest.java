@@ -20,6 +20,8 @@ public class ConcurrentDownloadsLimitProviderTest {
 
     private static final String PACKAGE_NAME = "PACKAGE_NAME";
     private static final String METADATA_MAX_CONCURRENT_DOWNLOADS = "com.novoda.downloadmanager.MaxConcurrentDownloads";
+    private static final String METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH = "com.novoda.downloadmanager.MaxConcurrentDownloadsPerBatch";
+    private static final String METADATA_MIN_CONCURRENT_DOWNLOADS = "com.novoda.downloadmanager.MinConcurrentDownloads";
 
     @Mock
     PackageManager packageManager;
@@ -64,6 +66,62 @@ public class ConcurrentDownloadsLimitProviderTest {
         assertThat(concurrentDownloadsLimit).isEqualTo(expected);
     }
 
+    @Test
+    public void givenANullMetadataBundleWhenThePerBatchLimitIsRetrievedThenTheGlobalLimitIsUsed() throws Exception {
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(null));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        int perBatchLimit = provider.getConcurrentDownloadsPerBatchLimit();
+
+        assertThat(perBatchLimit).isEqualTo(5);
+    }
+
+    @Test
+    public void givenAPerBatchLimitAboveTheGlobalLimitWhenThePerBatchLimitIsRetrievedThenTheGlobalLimitIsUsed() throws Exception {
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS), anyInt())).thenReturn(3);
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH), anyInt())).thenReturn(8);
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(bundle));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        int perBatchLimit = provider.getConcurrentDownloadsPerBatchLimit();
+
+        assertThat(perBatchLimit).isEqualTo(3);
+    }
+
+    @Test
+    public void givenAPerBatchLimitWhenThePerBatchLimitIsRetrievedThenTheValueFromTheBundleIsUsed() throws Exception {
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS), anyInt())).thenReturn(8);
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH), anyInt())).thenReturn(2);
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(bundle));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        int perBatchLimit = provider.getConcurrentDownloadsPerBatchLimit();
+
+        assertThat(perBatchLimit).isEqualTo(2);
+    }
+
+    @Test
+    public void givenANullMetadataBundleWhenCheckingForAdaptiveConcurrencyThenItIsDisabled() throws Exception {
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(null));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        boolean adaptiveConcurrencyEnabled = provider.isAdaptiveConcurrencyEnabled();
+
+        assertThat(adaptiveConcurrencyEnabled).isFalse();
+    }
+
+    @Test
+    public void givenAMinimumLimitAboveTheGlobalLimitWhenTheMinimumLimitIsRetrievedThenTheGlobalLimitIsUsed() throws Exception {
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS), anyInt())).thenReturn(3);
+        when(bundle.getInt(eq(METADATA_MIN_CONCURRENT_DOWNLOADS), anyInt())).thenReturn(6);
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(bundle));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        int minLimit = provider.getMinConcurrentDownloadsLimit();
+
+        assertThat(minLimit).isEqualTo(3);
+    }
+
     static class StubApplicationInfo extends ApplicationInfo {
         StubApplicationInfo(Bundle metaData) {
             this.metaData = metaData;
@@ -0,0 +1,207 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.notifications.NotificationVisibility;
+import com.novoda.notils.logger.simple.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ConnectionPipelineTest {
+
+    private static final long CURRENT_DOWNLOAD_ID = 1;
+    private static final long NEXT_DOWNLOAD_ID = 2;
+    private static final String NEXT_DOWNLOAD_URI = "http://cdn.example.com/next";
+
+    @Mock
+    private HttpTransport httpTransport;
+    @Mock
+    private ExecutorService executor;
+    @Mock
+    private HttpURLConnection connection;
+    @Mock
+    private NetworkChecker networkChecker;
+    @Mock
+    private DownloadReadyChecker downloadReadyChecker;
+    @Mock
+    private SmallFileBundler smallFileBundler;
+
+    private final DownloadHosts downloadHosts = new DownloadHosts(new Clock());
+
+    private FileDownloadInfo nextDownload;
+    private DownloadBatch batch;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setShowLogs(false);
+        initMocks(this);
+        when(httpTransport.open(any(URL.class))).thenReturn(connection);
+        FileDownloadInfo currentDownload = pending(CURRENT_DOWNLOAD_ID, "http://cdn.example.com/current");
+        nextDownload = pending(NEXT_DOWNLOAD_ID, NEXT_DOWNLOAD_URI);
+        BatchInfo batchInfo = new BatchInfo("title", "description", null, NotificationVisibility.ONLY_WHEN_ACTIVE, null, 0, BandwidthLimiter.UNLIMITED);
+        batch = new DownloadBatch(1, batchInfo, Arrays.asList(currentDownload, nextDownload), DownloadStatus.RUNNING, -1L, 0L);
+        when(networkChecker.checkCanUseNetwork(any(FileDownloadInfo.class))).thenReturn(FileDownloadInfo.NetworkState.OK);
+        when(downloadReadyChecker.clientAllowsToDownload(batch)).thenReturn(true);
+    }
+
+    @Test
+    public void givenAPendingDownloadInTheBatchWhenTheCurrentOneNearsCompletionThenItsResponseIsWaitingForIt() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        ConnectionPipeline pipeline = pipeline(true);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+        runPreparation();
+
+        assertThat(pipeline.take(NEXT_DOWNLOAD_ID, new URL(NEXT_DOWNLOAD_URI))).isSameAs(connection);
+    }
+
+    @Test
+    public void givenAResponseThatIsNotReadyToTransferWhenPreparingThenItIsClosed() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_MOVED_TEMP);
+        ConnectionPipeline pipeline = pipeline(true);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+        runPreparation();
+
+        verify(connection).disconnect();
+        assertThat(pipeline.take(NEXT_DOWNLOAD_ID, new URL(NEXT_DOWNLOAD_URI))).isNull();
+    }
+
+    @Test
+    public void givenAPreparedResponseWhenTheDownloadAsksForAnotherUrlThenItIsClosed() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        ConnectionPipeline pipeline = pipeline(true);
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+        runPreparation();
+
+        HttpURLConnection preparedConnection = pipeline.take(NEXT_DOWNLOAD_ID, new URL("http://mirror.example.com/next"));
+
+        assertThat(preparedConnection).isNull();
+        verify(connection).disconnect();
+    }
+
+    @Test
+    public void givenTheHostHasNoConnectionToSpareWhenPreparingThenNothingIsOpened() throws Exception {
+        downloadHosts.setMaxConnectionsPerHost(1);
+        downloadHosts.onDownloadStarted("cdn.example.com");
+        ConnectionPipeline pipeline = pipeline(true);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+        runPreparation();
+
+        verify(httpTransport, never()).open(any(URL.class));
+    }
+
+    @Test
+    public void givenAPreparedResponseWhenTheDownloadTakesItThenItNoLongerHoldsAnExtraConnection() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        ConnectionPipeline pipeline = pipeline(true);
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+        runPreparation();
+        assertThat(downloadHosts.extraConnectionsTo("cdn.example.com")).isEqualTo(1);
+
+        pipeline.take(NEXT_DOWNLOAD_ID, new URL(NEXT_DOWNLOAD_URI));
+
+        assertThat(downloadHosts.extraConnectionsTo("cdn.example.com")).isEqualTo(0);
+    }
+
+    @Test
+    public void givenTheNextDownloadCannotUseTheNetworkWhenTheCurrentOneNearsCompletionThenNothingIsPrepared() {
+        when(networkChecker.checkCanUseNetwork(nextDownload)).thenReturn(FileDownloadInfo.NetworkState.CANNOT_USE_ROAMING);
+        ConnectionPipeline pipeline = pipeline(true);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+
+        verify(executor, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenTheClientDeniesTheBatchWhenTheCurrentDownloadNearsCompletionThenNothingIsPrepared() {
+        when(downloadReadyChecker.clientAllowsToDownload(batch)).thenReturn(false);
+        ConnectionPipeline pipeline = pipeline(true);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+
+        verify(executor, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenTheNextDownloadIsBundledWhenTheCurrentOneNearsCompletionThenNothingIsPrepared() {
+        when(smallFileBundler.isClaimed(nextDownload)).thenReturn(true);
+        ConnectionPipeline pipeline = pipeline(true);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+
+        verify(executor, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenAPreparedResponseWhenItsDownloadEndsWithoutTakingItThenItIsClosed() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        ConnectionPipeline pipeline = pipeline(true);
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+        runPreparation();
+
+        pipeline.discard(NEXT_DOWNLOAD_ID);
+
+        verify(connection).disconnect();
+        assertThat(downloadHosts.extraConnectionsTo("cdn.example.com")).isEqualTo(0);
+    }
+
+    @Test
+    public void givenADownloadThatEndedWhileBeingPreparedWhenItsResponseArrivesThenItIsClosed() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        ConnectionPipeline pipeline = pipeline(true);
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+
+        pipeline.discard(NEXT_DOWNLOAD_ID);
+        runPreparation();
+
+        verify(connection).disconnect();
+        assertThat(pipeline.take(NEXT_DOWNLOAD_ID, new URL(NEXT_DOWNLOAD_URI))).isNull();
+    }
+
+    @Test
+    public void givenADisabledPipelineWhenTheCurrentDownloadNearsCompletionThenNothingIsPrepared() {
+        ConnectionPipeline pipeline = pipeline(false);
+
+        pipeline.prepareNextOf(batch, CURRENT_DOWNLOAD_ID);
+
+        verify(executor, never()).execute(any(Runnable.class));
+    }
+
+    private ConnectionPipeline pipeline(boolean enabled) {
+        return new ConnectionPipeline(
+                httpTransport, new HostRttEstimator(), downloadHosts, networkChecker, downloadReadyChecker, smallFileBundler, executor, new Clock(), enabled
+        );
+    }
+
+    private void runPreparation() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).execute(captor.capture());
+        captor.getValue().run();
+    }
+
+    private static FileDownloadInfo pending(long id, String uri) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getUri()).thenReturn(uri);
+        when(download.getStatus()).thenReturn(DownloadStatus.PENDING);
+        return download;
+    }
+
+}
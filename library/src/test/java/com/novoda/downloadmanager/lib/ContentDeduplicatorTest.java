@@ -0,0 +1,101 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ContentDeduplicatorTest {
+
+    private static final String URI = "http://cdn.example.com/catalogue.json";
+    private static final String ETAG = "\"abc\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+    private static final byte[] DATA = new byte[]{1, 2, 3, 4};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final DownloadsRepository downloadsRepository = mock(DownloadsRepository.class);
+    private final ContentDeduplicator contentDeduplicator = new ContentDeduplicator(downloadsRepository);
+    private final FileDownloadInfo download = download(1);
+
+    @Test
+    public void givenACompletedDownloadWithTheSameETagWhenLookingForTheSameContentThenItIsFound() throws IOException {
+        FileDownloadInfo completed = completed(2, ETAG, null);
+        when(downloadsRepository.getCompletedDownloadsOf(URI)).thenReturn(Arrays.asList(completed));
+
+        assertThat(contentDeduplicator.findSameContentAs(download, ETAG, DATA.length)).isSameAs(completed);
+    }
+
+    @Test
+    public void givenAWeakETagWhenLookingForTheSameContentThenNothingIsFound() throws IOException {
+        FileDownloadInfo completed = completed(2, "W/" + ETAG, null);
+        when(downloadsRepository.getCompletedDownloadsOf(URI)).thenReturn(Arrays.asList(completed));
+
+        assertThat(contentDeduplicator.findSameContentAs(download, "W/" + ETAG, DATA.length)).isNull();
+    }
+
+    @Test
+    public void givenACompletedDownloadWhoseFileChangedWhenLookingForTheSameContentThenItIsSkipped() throws IOException {
+        FileDownloadInfo completed = completed(2, ETAG, null);
+        when(completed.getTotalBytes()).thenReturn(DATA.length + 1L);
+        when(downloadsRepository.getCompletedDownloadsOf(URI)).thenReturn(Arrays.asList(completed));
+
+        assertThat(contentDeduplicator.findSameContentAs(download, ETAG, Constants.UNKNOWN_BYTE_SIZE)).isNull();
+    }
+
+    @Test
+    public void givenACompletedDownloadWithALastModifiedDateWhenLookingForAnEarlierVersionThenItIsFound() throws IOException {
+        FileDownloadInfo withoutValidator = completed(3, null, null);
+        FileDownloadInfo completed = completed(2, null, LAST_MODIFIED);
+        when(downloadsRepository.getCompletedDownloadsOf(URI)).thenReturn(Arrays.asList(withoutValidator, completed));
+
+        assertThat(contentDeduplicator.findEarlierVersionOf(download)).isSameAs(completed);
+    }
+
+    @Test
+    public void givenACompletedDownloadToAnotherDestinationWhenLookingForAnEarlierVersionThenNothingIsFound() throws IOException {
+        FileDownloadInfo completed = completed(2, ETAG, null);
+        when(completed.getDestination()).thenReturn(DownloadsDestination.DESTINATION_EXTERNAL);
+        when(downloadsRepository.getCompletedDownloadsOf(URI)).thenReturn(Arrays.asList(completed));
+
+        assertThat(contentDeduplicator.findEarlierVersionOf(download)).isNull();
+    }
+
+    private static FileDownloadInfo download(long id) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getUri()).thenReturn(URI);
+        when(download.getDestination()).thenReturn(DownloadsDestination.DESTINATION_CACHE_PARTITION);
+        return download;
+    }
+
+    private FileDownloadInfo completed(long id, String eTag, String lastModified) throws IOException {
+        FileDownloadInfo completed = download(id);
+        when(completed.getETag()).thenReturn(eTag);
+        when(completed.getHeaderLastModified()).thenReturn(lastModified);
+        when(completed.getFileName()).thenReturn(fileWith(DATA).getPath());
+        when(completed.getTotalBytes()).thenReturn((long) DATA.length);
+        return completed;
+    }
+
+    private File fileWith(byte[] data) throws IOException {
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
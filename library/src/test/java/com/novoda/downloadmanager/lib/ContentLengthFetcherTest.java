@@ -0,0 +1,129 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ContentLengthFetcherTest {
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    @Mock
+    private HttpTransport httpTransport;
+    @Mock
+    private HttpURLConnection connection;
+    @Mock
+    private FileDownloadInfo downloadInfo;
+    @Mock
+    private InputStream responseBody;
+
+    private ContentLengthFetcher fetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(downloadInfo.getUri()).thenReturn("http://example.com/file");
+        when(httpTransport.open(any(URL.class))).thenReturn(connection);
+        fetcher = new ContentLengthFetcher(httpTransport);
+    }
+
+    @Test
+    public void givenTheServerAnswersWithALengthWhenFetchingThenItIsReturned() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(connection.getHeaderField("Content-Length")).thenReturn("1024");
+
+        long totalBytes = fetcher.fetchContentLengthFor(downloadInfo);
+
+        assertThat(totalBytes).isEqualTo(1024);
+        verify(connection).disconnect();
+    }
+
+    @Test
+    public void givenTheServerAnswersWithoutALengthWhenFetchingThenItIsUnknown() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+
+        long totalBytes = fetcher.fetchContentLengthFor(downloadInfo);
+
+        assertThat(totalBytes).isEqualTo(Constants.UNKNOWN_BYTE_SIZE);
+    }
+
+    @Test
+    public void givenTheServerDoesNotAllowHeadRequestsWhenFetchingThenTheLengthIsUnknown() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_BAD_METHOD);
+
+        long totalBytes = fetcher.fetchContentLengthFor(downloadInfo);
+
+        assertThat(totalBytes).isEqualTo(Constants.UNKNOWN_BYTE_SIZE);
+    }
+
+    @Test
+    public void givenTheServerDoesNotImplementHeadRequestsWhenFetchingThenTheLengthIsUnknown() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_IMPLEMENTED);
+
+        long totalBytes = fetcher.fetchContentLengthFor(downloadInfo);
+
+        assertThat(totalBytes).isEqualTo(Constants.UNKNOWN_BYTE_SIZE);
+    }
+
+    @Test
+    public void givenTheServerIsUnavailableWhenFetchingThenTheFetchFails() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+
+        assertFetchFails();
+    }
+
+    @Test
+    public void givenTheServerIsThrottlingWhenFetchingThenTheFetchFails() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HTTP_TOO_MANY_REQUESTS);
+
+        assertFetchFails();
+    }
+
+    @Test
+    public void givenTheServerAnswersWhenFetchingThenTheResponseBodyIsClosedBeforeDisconnecting() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(connection.getInputStream()).thenReturn(responseBody);
+
+        fetcher.fetchContentLengthFor(downloadInfo);
+
+        InOrder inOrder = inOrder(responseBody, connection);
+        inOrder.verify(responseBody).close();
+        inOrder.verify(connection).disconnect();
+    }
+
+    @Test
+    public void givenTheServerAnswersWithAnErrorWhenFetchingThenTheErrorBodyIsClosedBeforeDisconnecting() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+        when(connection.getErrorStream()).thenReturn(responseBody);
+
+        assertFetchFails();
+
+        InOrder inOrder = inOrder(responseBody, connection);
+        inOrder.verify(responseBody).close();
+        inOrder.verify(connection).disconnect();
+    }
+
+    private void assertFetchFails() {
+        try {
+            fetcher.fetchContentLengthFor(downloadInfo);
+            fail("The fetch should fail");
+        } catch (IOException e) {
+            verify(connection).disconnect();
+        }
+    }
+
+}
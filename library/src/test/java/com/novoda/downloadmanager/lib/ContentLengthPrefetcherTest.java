@@ -0,0 +1,194 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.novoda.notils.logger.simple.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ContentLengthPrefetcherTest {
+
+    private static final String HOST = "example.com";
+
+    @Mock
+    private ContentLengthFetcher contentLengthFetcher;
+    @Mock
+    private DownloadsRepository downloadsRepository;
+    @Mock
+    private HeadUnsupportedHosts headUnsupportedHosts;
+    @Mock
+    private ExecutorService executor;
+
+    private final DownloadHosts downloadHosts = new DownloadHosts(new Clock());
+
+    private ContentLengthPrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        Log.setShowLogs(false);
+        initMocks(this);
+        prefetcher = new ContentLengthPrefetcher(contentLengthFetcher, downloadsRepository, headUnsupportedHosts, downloadHosts, executor);
+    }
+
+    @Test
+    public void givenADownloadOfUnknownSizeWhenPrefetchingTwiceThenItIsOnlyFetchedOnce() {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+
+        prefetcher.prefetchFor(Collections.singletonList(download));
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        verify(executor, times(1)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenAHostThatDoesNotAnswerHeadRequestsWhenPrefetchingThenNothingIsFetched() {
+        when(headUnsupportedHosts.contains(HOST)).thenReturn(true);
+
+        prefetcher.prefetchFor(Collections.singletonList(downloadOfUnknownSize(1)));
+
+        verify(executor, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenSeveralDownloadsWhenTheirFetchesFinishThenTheSizesAreWrittenAtOnce() throws Exception {
+        FileDownloadInfo first = downloadOfUnknownSize(1);
+        FileDownloadInfo second = downloadOfUnknownSize(2);
+        when(contentLengthFetcher.fetchContentLengthFor(first)).thenReturn(100L);
+        when(contentLengthFetcher.fetchContentLengthFor(second)).thenReturn(200L);
+        prefetcher.prefetchFor(Arrays.asList(first, second));
+
+        List<Runnable> fetches = startedFetches(2);
+        fetches.get(0).run();
+        verify(downloadsRepository, never()).updateTotalBytes(any(LongSparseArray.class));
+        fetches.get(1).run();
+
+        LongSparseArray<Long> written = writtenTotalBytes();
+        assertThat(written.size()).isEqualTo(2);
+        assertThat(written.get(1)).isEqualTo(100L);
+        assertThat(written.get(2)).isEqualTo(200L);
+    }
+
+    @Test
+    public void givenTheServerAnswersWithoutASizeWhenTheFetchFinishesThenTheHostIsRemembered() throws Exception {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        when(contentLengthFetcher.fetchContentLengthFor(download)).thenReturn((long) Constants.UNKNOWN_BYTE_SIZE);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        startedFetches(1).get(0).run();
+
+        verify(headUnsupportedHosts).add(HOST);
+        verify(downloadsRepository, never()).updateTotalBytes(any(LongSparseArray.class));
+    }
+
+    @Test
+    public void givenTheServerCannotBeReachedWhenTheFetchFinishesThenTheHostIsNotRemembered() throws Exception {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        when(contentLengthFetcher.fetchContentLengthFor(download)).thenThrow(new IOException("offline"));
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        startedFetches(1).get(0).run();
+
+        verify(headUnsupportedHosts, never()).add(HOST);
+    }
+
+    @Test
+    public void givenTheServerCannotBeReachedWhenPrefetchingAgainThenTheDownloadIsFetchedAgain() throws Exception {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        when(contentLengthFetcher.fetchContentLengthFor(download)).thenThrow(new IOException("HEAD request answered with 503"));
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        startedFetches(1).get(0).run();
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        verify(executor, times(2)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenADownloadHasEndedWhenPrefetchingThenItIsNotFetched() {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        when(download.getStatus()).thenReturn(DownloadStatus.CANCELED);
+
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        verify(executor, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenAFetchedDownloadHasEndedWhenItIsRestartedThenItIsFetchedAgain() {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+        when(download.getStatus()).thenReturn(DownloadStatus.CANCELED);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        when(download.getStatus()).thenReturn(DownloadStatus.PENDING);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        verify(executor, times(2)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenAFetchedDownloadIsNoLongerListedWhenItIsListedAgainThenItIsFetchedAgain() {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+        prefetcher.prefetchFor(Collections.<FileDownloadInfo>emptyList());
+
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        verify(executor, times(2)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void givenTheHostHasNoConnectionToSpareWhenFetchingThenTheDownloadIsFetchedOnALaterPass() throws Exception {
+        FileDownloadInfo download = downloadOfUnknownSize(1);
+        downloadHosts.setMaxConnectionsPerHost(1);
+        downloadHosts.onDownloadStarted(HOST);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        startedFetches(1).get(0).run();
+        verify(contentLengthFetcher, never()).fetchContentLengthFor(download);
+        prefetcher.prefetchFor(Collections.singletonList(download));
+
+        verify(executor, times(2)).execute(any(Runnable.class));
+    }
+
+    private List<Runnable> startedFetches(int count) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(count)).execute(captor.capture());
+        return captor.getAllValues();
+    }
+
+    @SuppressWarnings("unchecked")
+    private LongSparseArray<Long> writtenTotalBytes() {
+        ArgumentCaptor<LongSparseArray> captor = ArgumentCaptor.forClass(LongSparseArray.class);
+        verify(downloadsRepository).updateTotalBytes(captor.capture());
+        return captor.getValue();
+    }
+
+    private static FileDownloadInfo downloadOfUnknownSize(long id) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getStatus()).thenReturn(DownloadStatus.PENDING);
+        when(download.hasTotalBytes()).thenReturn(false);
+        when(download.getUri()).thenReturn("http://" + HOST + "/file" + id);
+        return download;
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.novoda.downloadmanager.lib;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(SQLiteDatabase.class)
+public class DatabaseHelperTest {
+
+    private SQLiteDatabase db;
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        db = PowerMockito.mock(SQLiteDatabase.class);
+        databaseHelper = Whitebox.newInstance(DatabaseHelper.class);
+    }
+
+    @Test
+    public void givenAVersionFourDatabaseWhenUpgradingToVersionFiveThenTheQueriedColumnsAreIndexed() {
+        databaseHelper.onUpgrade(db, 4, 5);
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(db, atLeastOnce()).execSQL(captor.capture());
+        assertThat(captor.getAllValues()).containsOnly(
+                "CREATE INDEX IF NOT EXISTS downloads_batch_id_index ON Downloads(batch_id, current_bytes, total_bytes);",
+                "CREATE INDEX IF NOT EXISTS downloads_status_index ON Downloads(status, control, batch_id);",
+                "CREATE INDEX IF NOT EXISTS downloads_deleted_index ON Downloads(deleted);",
+                "CREATE INDEX IF NOT EXISTS batches_deleted_index ON batches(deleted);",
+                "CREATE INDEX IF NOT EXISTS request_headers_download_id_index ON request_headers(download_id);"
+        );
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DownloadControlRegistryTest {
+
+    private static final long DOWNLOAD_ID = 1;
+
+    private final DownloadControlRegistry registry = new DownloadControlRegistry();
+
+    @Test
+    public void givenARegisteredDownloadWhenItIsPausedThenItsControlIsPaused() {
+        DownloadControlRegistry.Control control = registry.register(DOWNLOAD_ID);
+
+        registry.pause(DOWNLOAD_ID);
+
+        assertThat(control.isPaused()).isTrue();
+    }
+
+    @Test
+    public void givenARegisteredDownloadWhenItIsCanceledThenItsControlIsCanceled() {
+        DownloadControlRegistry.Control control = registry.register(DOWNLOAD_ID);
+
+        registry.cancel(DOWNLOAD_ID);
+
+        assertThat(control.isCanceled()).isTrue();
+    }
+
+    @Test
+    public void givenAnUnregisteredDownloadWhenItIsPausedThenNothingIsRegistered() {
+        registry.pause(DOWNLOAD_ID);
+
+        assertThat(registry.hasRunningDownloads()).isFalse();
+    }
+
+    @Test
+    public void givenADownloadRegisteredAgainWhenTheOldControlIsUnregisteredThenTheNewControlStillReceivesRequests() {
+        DownloadControlRegistry.Control oldControl = registry.register(DOWNLOAD_ID);
+        DownloadControlRegistry.Control newControl = registry.register(DOWNLOAD_ID);
+
+        registry.unregister(DOWNLOAD_ID, oldControl);
+        registry.pause(DOWNLOAD_ID);
+
+        assertThat(newControl.isPaused()).isTrue();
+    }
+
+    @Test
+    public void givenARunningDownloadWhenItsBatchIsRemovedThenItIsCanceled() {
+        DownloadControlRegistry.Control control = registry.register(DOWNLOAD_ID);
+
+        registry.update(DOWNLOAD_ID, null, DownloadStatus.DELETING, null);
+
+        assertThat(control.isCanceled()).isTrue();
+    }
+
+    @Test
+    public void givenARunningDownloadWhenItIsMarkedDeletedThenItIsCanceled() {
+        DownloadControlRegistry.Control control = registry.register(DOWNLOAD_ID);
+
+        registry.update(DOWNLOAD_ID, null, null, 1);
+
+        assertThat(control.isCanceled()).isTrue();
+    }
+
+    @Test
+    public void givenARunningDownloadWhenItIsResumedThenItIsNeitherPausedNorCanceled() {
+        DownloadControlRegistry.Control control = registry.register(DOWNLOAD_ID);
+        registry.pause(DOWNLOAD_ID);
+
+        registry.update(DOWNLOAD_ID, DownloadsControl.CONTROL_RUN, DownloadStatus.RUNNING, null);
+
+        assertThat(control.isPaused()).isFalse();
+        assertThat(control.isCanceled()).isFalse();
+    }
+
+    @Test
+    public void givenAPausedDownloadInTheDatabaseWhenTheControlIsUpdatedThenItIsPaused() {
+        DownloadControlRegistry.Control control = registry.register(DOWNLOAD_ID);
+
+        control.update(new FileDownloadInfo.ControlStatus(DownloadsControl.CONTROL_PAUSED, DownloadStatus.RUNNING));
+
+        assertThat(control.isPaused()).isTrue();
+        assertThat(control.isCanceled()).isFalse();
+    }
+
+}
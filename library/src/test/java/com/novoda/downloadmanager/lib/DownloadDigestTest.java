@@ -0,0 +1,144 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DownloadDigestTest {
+
+    private static final byte[] DATA = "123456789".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] LONG_DATA = Arrays.copyOf(
+            "123456789123456789123456789123456789123456789123456789123456789123456789123456789123456789123456789123456789"
+                    .getBytes(Charset.forName("US-ASCII")), 100
+    );
+    private static final String LONG_DATA_SHA_256 = "3fa7c1a24c82ba22eeadaca096e74251d8138ebf51131ed208057d7590919404";
+    private static final String LONG_DATA_MD5 = "d7c62ce24c3d8d5e48690a53035a1f8e";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void givenTheCheckDataWhenDigestingWithCrc32cThenTheKnownChecksumIsReturned() {
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_CRC32C);
+
+        digest.update(DATA, 0, DATA.length);
+
+        assertThat(digest.digest()).isEqualTo("e3069283");
+    }
+
+    @Test
+    public void givenTheCheckDataWhenDigestingWithSha256ThenTheKnownChecksumIsReturned() {
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_SHA_256);
+
+        digest.update(DATA, 0, DATA.length);
+
+        assertThat(digest.digest()).isEqualTo("15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225");
+    }
+
+    @Test
+    public void givenTheCheckDataWhenDigestingWithMd5ThenTheKnownChecksumIsReturned() {
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_MD5);
+
+        digest.update(DATA, 0, DATA.length);
+
+        assertThat(digest.digest()).isEqualTo("25f9e794323b453885f5181f1b624d0b");
+    }
+
+    @Test
+    public void givenASavedCrc32cStateWhenResumingThenTheChecksumCarriesOnFromIt() {
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_CRC32C);
+        digest.update(DATA, 0, 4);
+
+        DownloadDigest resumed = DownloadDigest.resume(DownloadManager.CHECKSUM_CRC32C, digest.saveState());
+        resumed.update(DATA, 4, DATA.length - 4);
+
+        assertThat(resumed.getDigestedBytes()).isEqualTo(DATA.length);
+        assertThat(resumed.digest()).isEqualTo("e3069283");
+    }
+
+    @Test
+    public void givenASavedSha256StateWhenResumingThenOnlyThePartialBlockIsReadBack() throws IOException {
+        File file = fileWith(LONG_DATA);
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_SHA_256);
+        digest.update(LONG_DATA, 0, 70);
+
+        DownloadDigest resumed = DownloadDigest.resume(DownloadManager.CHECKSUM_SHA_256, digest.saveState());
+
+        assertThat(resumed.getDigestedBytes()).isEqualTo(64);
+        resumed.catchUp(file, LONG_DATA.length);
+        assertThat(resumed.digest()).isEqualTo(LONG_DATA_SHA_256);
+    }
+
+    @Test
+    public void givenASavedMd5StateWhenResumingThenTheChecksumCarriesOnFromIt() throws IOException {
+        File file = fileWith(LONG_DATA);
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_MD5);
+        digest.update(LONG_DATA, 0, 64);
+
+        DownloadDigest resumed = DownloadDigest.resume(DownloadManager.CHECKSUM_MD5, digest.saveState());
+        resumed.catchUp(file, LONG_DATA.length);
+
+        assertThat(resumed.getDigestedBytes()).isEqualTo(LONG_DATA.length);
+        assertThat(resumed.digest()).isEqualTo(LONG_DATA_MD5);
+    }
+
+    @Test
+    public void givenAnMd5StateWhenResumingASha256ThenTheChecksumStartsOver() {
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_MD5);
+        digest.update(LONG_DATA, 0, 64);
+
+        DownloadDigest resumed = DownloadDigest.resume(DownloadManager.CHECKSUM_SHA_256, digest.saveState());
+
+        assertThat(resumed.getDigestedBytes()).isZero();
+    }
+
+    @Test
+    public void givenAnUnreadableStateWhenResumingThenTheChecksumStartsOver() {
+        DownloadDigest digest = DownloadDigest.resume(DownloadManager.CHECKSUM_CRC32C, "not a state");
+
+        assertThat(digest.getDigestedBytes()).isZero();
+    }
+
+    @Test
+    public void givenAFileWrittenPastTheSavedStateWhenCatchingUpThenOnlyTheRemainingBytesAreRead() throws IOException {
+        File file = fileWith(DATA);
+        DownloadDigest digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_CRC32C);
+        digest.update(DATA, 0, 4);
+        DownloadDigest resumed = DownloadDigest.resume(DownloadManager.CHECKSUM_CRC32C, digest.saveState());
+
+        resumed.catchUp(file, DATA.length);
+
+        assertThat(resumed.getDigestedBytes()).isEqualTo(DATA.length);
+        assertThat(resumed.digest()).isEqualTo("e3069283");
+    }
+
+    @Test
+    public void givenNoSavedStateWhenCatchingUpThenTheWholePrefixIsRead() throws IOException {
+        File file = fileWith(DATA);
+        DownloadDigest digest = DownloadDigest.resume(DownloadManager.CHECKSUM_SHA_256, null);
+
+        digest.catchUp(file, DATA.length);
+
+        assertThat(digest.digest()).isEqualTo("15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225");
+    }
+
+    private File fileWith(byte[] data) throws IOException {
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DownloadHostsTest {
+
+    private static final String ORIGIN_URI = "http://origin.example.com/file";
+
+    private final DownloadHosts downloadHosts = new DownloadHosts(new Clock());
+
+    @Test
+    public void givenAHostThatRedirectedWhenGettingTheHostOfADownloadFromItThenTheRedirectedHostIsReturned() throws Exception {
+        downloadHosts.onRedirected(ORIGIN_URI, new URL("http://cdn.example.com/file"));
+
+        String host = downloadHosts.hostOf(download(ORIGIN_URI));
+
+        assertThat(host).isEqualTo("cdn.example.com");
+    }
+
+    @Test
+    public void givenADownloadWithoutAValidUriWhenGettingItsHostThenItIsUnknown() {
+        String host = downloadHosts.hostOf(download("not a url"));
+
+        assertThat(host).isNull();
+    }
+
+    @Test
+    public void givenAReleasedConnectionWhenItIsClaimedThenItIsNoLongerIdle() {
+        downloadHosts.onConnectionReleased("origin.example.com");
+
+        downloadHosts.claimIdleConnectionTo("origin.example.com");
+
+        assertThat(downloadHosts.hasIdleConnectionTo("origin.example.com")).isFalse();
+    }
+
+    @Test
+    public void givenRunningDownloadsToAHostWhenAcquiringExtraConnectionsThenOnlyTheFreeOnesAreGranted() {
+        downloadHosts.setMaxConnectionsPerHost(4);
+        downloadHosts.onDownloadStarted("origin.example.com");
+
+        int granted = downloadHosts.acquireExtraConnectionsTo("origin.example.com", 5);
+
+        assertThat(granted).isEqualTo(3);
+        assertThat(downloadHosts.acquireExtraConnectionsTo("origin.example.com", 1)).isEqualTo(0);
+    }
+
+    @Test
+    public void givenReleasedExtraConnectionsWhenAcquiringAgainThenTheyAreGranted() {
+        downloadHosts.setMaxConnectionsPerHost(2);
+        downloadHosts.acquireExtraConnectionsTo("origin.example.com", 2);
+
+        downloadHosts.releaseExtraConnectionsTo("origin.example.com", 2);
+
+        assertThat(downloadHosts.acquireExtraConnectionsTo("origin.example.com", 2)).isEqualTo(2);
+    }
+
+    private static FileDownloadInfo download(String uri) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getUri()).thenReturn(uri);
+        return download;
+    }
+
+}
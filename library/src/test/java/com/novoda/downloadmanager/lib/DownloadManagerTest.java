@@ -0,0 +1,134 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+
+import com.evernote.android.job.JobManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@SuppressStaticInitializationFor("com.novoda.downloadmanager.lib.DownloadProvider")
+@PrepareForTest({ContentProviderOperation.class, ContentProviderOperation.Builder.class, ContentUris.class, ContentValues.class, JobManager.class})
+public class DownloadManagerTest {
+
+    private static final long BATCH_ID = 42;
+    private static final Uri BATCHES_URI = mock(Uri.class);
+    private static final Uri DOWNLOADS_URI = mock(Uri.class);
+    private static final Uri BATCH_URI = mock(Uri.class);
+
+    private ContentResolver contentResolver;
+    private ContentProviderOperation.Builder downloadInsert;
+    private DownloadManager downloadManager;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = mock(Context.class);
+        mockStatic(JobManager.class);
+        when(JobManager.create(context)).thenReturn(PowerMockito.mock(JobManager.class));
+        mockStatic(ContentUris.class);
+        when(ContentUris.parseId(BATCH_URI)).thenReturn(BATCH_ID);
+
+        mockStatic(ContentProviderOperation.class);
+        ContentProviderOperation.Builder batchInsert = givenInsertBuilder();
+        downloadInsert = givenInsertBuilder();
+        when(ContentProviderOperation.newInsert(BATCHES_URI)).thenReturn(batchInsert);
+        when(ContentProviderOperation.newInsert(DOWNLOADS_URI)).thenReturn(downloadInsert);
+
+        contentResolver = mock(ContentResolver.class);
+        ContentProviderResult batchResult = PowerMockito.mock(ContentProviderResult.class);
+        Whitebox.setInternalState(batchResult, "uri", BATCH_URI);
+        when(contentResolver.applyBatch(any(String.class), any(ArrayList.class)))
+                .thenReturn(new ContentProviderResult[]{batchResult});
+
+        DownloadsUriProvider downloadsUriProvider = mock(DownloadsUriProvider.class);
+        when(downloadsUriProvider.getBatchesUri()).thenReturn(BATCHES_URI);
+        when(downloadsUriProvider.getContentUri()).thenReturn(DOWNLOADS_URI);
+        downloadManager = new DownloadManager(
+                context, contentResolver, downloadsUriProvider, mock(SystemFacade.class),
+                mock(BatchPauseResumeController.class), mock(DownloadManagerJobCreator.class), false
+        );
+    }
+
+    @Test
+    public void givenABatchOfRequestsWhenEnqueuedThenEveryDownloadRowReferencesTheBatchRow() {
+        RequestBatch batch = givenBatchOf(givenRequest(), givenRequest(), givenRequest());
+
+        downloadManager.enqueue(batch);
+
+        verify(downloadInsert, times(3)).withValueBackReference(DownloadContract.Downloads.COLUMN_BATCH_ID, 0);
+    }
+
+    @Test
+    public void givenABatchOfRequestsWhenEnqueuedThenTheyAreAllAppliedAtOnce() throws Exception {
+        RequestBatch batch = givenBatchOf(givenRequest(), givenRequest());
+
+        downloadManager.enqueue(batch);
+
+        ArgumentCaptor<ArrayList> operations = ArgumentCaptor.forClass(ArrayList.class);
+        verify(contentResolver).applyBatch(any(String.class), operations.capture());
+        assertThat(operations.getValue()).hasSize(3);
+    }
+
+    @Test
+    public void givenABatchOfRequestsWhenEnqueuedThenTheBatchIdIsReturnedAndGivenToEveryRequest() {
+        Request first = givenRequest();
+        Request second = givenRequest();
+
+        long batchId = downloadManager.enqueue(givenBatchOf(first, second));
+
+        assertThat(batchId).isEqualTo(BATCH_ID);
+        verify(first).setBatchId(BATCH_ID);
+        verify(second).setBatchId(BATCH_ID);
+    }
+
+    private static ContentProviderOperation.Builder givenInsertBuilder() {
+        ContentProviderOperation.Builder builder = PowerMockito.mock(ContentProviderOperation.Builder.class);
+        when(builder.withValues(any(ContentValues.class))).thenReturn(builder);
+        when(builder.withValueBackReference(anyString(), anyInt())).thenReturn(builder);
+        when(builder.build()).thenReturn(PowerMockito.mock(ContentProviderOperation.class));
+        return builder;
+    }
+
+    private static RequestBatch givenBatchOf(Request... requests) {
+        RequestBatch batch = mock(RequestBatch.class);
+        List<Request> requestList = Arrays.asList(requests);
+        when(batch.getRequests()).thenReturn(requestList);
+        when(batch.toContentValues()).thenReturn(PowerMockito.mock(ContentValues.class));
+        return batch;
+    }
+
+    private static Request givenRequest() {
+        Request request = mock(Request.class);
+        when(request.toContentValues()).thenReturn(PowerMockito.mock(ContentValues.class));
+        return request;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.novoda.downloadmanager.lib;
+
+import android.support.v4.util.LongSparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class DownloadProgressFlusherTest {
+
+    @Mock
+    private DownloadsRepository downloadsRepository;
+    @Mock
+    private ScheduledExecutorService executor;
+
+    private DownloadProgressFlusher progressFlusher;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        progressFlusher = new DownloadProgressFlusher(downloadsRepository, executor);
+    }
+
+    @Test
+    public void givenProgressOfSeveralDownloadsWhenOfferedThenASingleFlushIsScheduled() {
+        progressFlusher.offer(1, 100);
+        progressFlusher.offer(2, 200);
+
+        verify(executor, times(1)).schedule(any(Runnable.class), eq(DownloadProgressFlusher.FLUSH_INTERVAL_MILLIS), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void givenProgressOfSeveralDownloadsWhenFlushingThenTheLatestProgressOfEachIsWrittenAtOnce() {
+        progressFlusher.offer(1, 100);
+        progressFlusher.offer(2, 200);
+        progressFlusher.offer(1, 300);
+
+        scheduledFlush().run();
+
+        LongSparseArray<Long> written = writtenCurrentBytes();
+        assertThat(written.size()).isEqualTo(2);
+        assertThat(written.get(1)).isEqualTo(300L);
+        assertThat(written.get(2)).isEqualTo(200L);
+    }
+
+    @Test
+    public void givenAFlushHappenedWhenProgressIsOfferedThenAnotherFlushIsScheduled() {
+        progressFlusher.offer(1, 100);
+        scheduledFlush().run();
+
+        progressFlusher.offer(1, 200);
+
+        verify(executor, times(2)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void givenNothingWasOfferedWhenFlushingThenNothingIsWritten() {
+        progressFlusher.offer(1, 100);
+        Runnable flush = scheduledFlush();
+        flush.run();
+
+        flush.run();
+
+        verify(downloadsRepository, times(1)).updateProgress(any(LongSparseArray.class), any(LongSparseArray.class), any(LongSparseArray.class));
+    }
+
+    @Test
+    public void givenProgressAndStatesOfSeveralDownloadsWhenFlushingThenTheyAreWrittenInASingleUpdate() {
+        progressFlusher.offer(1, 100);
+        progressFlusher.offerChecksumState(2, "checksum");
+        progressFlusher.offerBlockState(3, "blocks");
+
+        scheduledFlush().run();
+
+        verify(downloadsRepository, times(1)).updateProgress(any(LongSparseArray.class), any(LongSparseArray.class), any(LongSparseArray.class));
+    }
+
+    @Test
+    public void givenADownloadWroteItsFinalStateWhenFlushingThenItsOlderProgressIsNotWritten() {
+        progressFlusher.offer(1, 100);
+        progressFlusher.offer(2, 200);
+
+        progressFlusher.discard(1);
+        scheduledFlush().run();
+
+        LongSparseArray<Long> written = writtenCurrentBytes();
+        assertThat(written.size()).isEqualTo(1);
+        assertThat(written.get(2)).isEqualTo(200L);
+    }
+
+    @Test
+    public void givenADownloadWroteItsFinalStateWhenFlushingThenItsOlderChecksumAndBlockStatesAreNotWritten() {
+        progressFlusher.offerChecksumState(1, "checksum");
+        progressFlusher.offerBlockState(1, "blocks");
+
+        progressFlusher.discard(1);
+        scheduledFlush().run();
+
+        verify(downloadsRepository, never()).updateProgress(any(LongSparseArray.class), any(LongSparseArray.class), any(LongSparseArray.class));
+    }
+
+    @Test
+    public void givenNoProgressWhenShuttingDownThenNothingIsWritten() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+
+        progressFlusher.shutdown();
+
+        verify(executor).execute(captor.capture());
+        captor.getValue().run();
+        verify(downloadsRepository, never()).updateProgress(any(LongSparseArray.class), any(LongSparseArray.class), any(LongSparseArray.class));
+    }
+
+    @Test
+    public void givenTheFlusherIsShutDownWhenShuttingDownAgainThenNothingIsFlushed() {
+        progressFlusher.shutdown();
+
+        progressFlusher.shutdown();
+
+        verify(executor, times(1)).execute(any(Runnable.class));
+        verify(executor, times(1)).shutdown();
+    }
+
+    private Runnable scheduledFlush() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(captor.capture(), anyLong(), any(TimeUnit.class));
+        return captor.getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private LongSparseArray<Long> writtenCurrentBytes() {
+        ArgumentCaptor<LongSparseArray> captor = ArgumentCaptor.forClass(LongSparseArray.class);
+        verify(downloadsRepository).updateProgress(captor.capture(), any(LongSparseArray.class), any(LongSparseArray.class));
+        return captor.getValue();
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DownloadProgressStreamTest {
+
+    private static final long INTERVAL_MILLIS = 500;
+
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final RecordingListener listener = new RecordingListener();
+
+    private DownloadProgressStream progressStream;
+
+    @Before
+    public void setUp() {
+        progressStream = new DownloadProgressStream(scheduler, new PublicFacingStatusTranslator());
+    }
+
+    @Test
+    public void givenAListenerWhenProgressIsPublishedThenItIsDeliveredWithThePublicStatus() {
+        progressStream.subscribe(listener, INTERVAL_MILLIS);
+
+        progressStream.publish(download(1, 10), 100, 1000, 50, DownloadStatus.RUNNING);
+        scheduler.runDue();
+
+        assertThat(listener.received).hasSize(1);
+        DownloadProgress progress = listener.received.get(0);
+        assertThat(progress.getBatchId()).isEqualTo(10);
+        assertThat(progress.getDownloadId()).isEqualTo(1);
+        assertThat(progress.getCurrentBytes()).isEqualTo(100);
+        assertThat(progress.getTotalBytes()).isEqualTo(1000);
+        assertThat(progress.getSpeed()).isEqualTo(50);
+        assertThat(progress.getStatus()).isEqualTo(DownloadManager.STATUS_RUNNING);
+    }
+
+    @Test
+    public void givenSeveralUpdatesOfADownloadWithinAnIntervalWhenDeliveringThenOnlyTheLatestIsDelivered() {
+        progressStream.subscribe(listener, INTERVAL_MILLIS);
+        FileDownloadInfo download = download(1, 10);
+        progressStream.publish(download, 100, 1000, 0, DownloadStatus.RUNNING);
+        scheduler.runDue();
+
+        progressStream.publish(download, 200, 1000, 0, DownloadStatus.RUNNING);
+        progressStream.publish(download, 300, 1000, 0, DownloadStatus.RUNNING);
+        scheduler.runDue();
+
+        assertThat(listener.received).hasSize(1);
+
+        scheduler.advanceBy(INTERVAL_MILLIS);
+
+        assertThat(listener.received).hasSize(2);
+        assertThat(listener.received.get(1).getCurrentBytes()).isEqualTo(300);
+    }
+
+    @Test
+    public void givenUpdatesOfDifferentDownloadsWhenDeliveringThenEachDownloadIsDelivered() {
+        progressStream.subscribe(listener, INTERVAL_MILLIS);
+
+        progressStream.publish(download(1, 10), 100, 1000, 0, DownloadStatus.RUNNING);
+        progressStream.publish(download(2, 10), 100, 1000, 0, DownloadStatus.RUNNING);
+        scheduler.runDue();
+
+        assertThat(listener.received).hasSize(2);
+    }
+
+    @Test
+    public void givenARemovedListenerWhenProgressIsPublishedThenNothingIsDelivered() {
+        progressStream.subscribe(listener, INTERVAL_MILLIS);
+        progressStream.publish(download(1, 10), 100, 1000, 0, DownloadStatus.RUNNING);
+
+        progressStream.unsubscribe(listener);
+        scheduler.runDue();
+
+        assertThat(listener.received).isEmpty();
+    }
+
+    private static FileDownloadInfo download(long id, long batchId) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getBatchId()).thenReturn(batchId);
+        return download;
+    }
+
+    private static class RecordingListener implements DownloadProgressListener {
+
+        private final List<DownloadProgress> received = new ArrayList<>();
+
+        @Override
+        public void onDownloadProgress(DownloadProgress progress) {
+            received.add(progress);
+        }
+    }
+
+    private static class FakeScheduler implements DownloadProgressStream.Scheduler {
+
+        private final List<Runnable> runnables = new ArrayList<>();
+        private final List<Long> dueTimes = new ArrayList<>();
+        private long now = 10000;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable runnable, long delayMillis) {
+            runnables.add(runnable);
+            dueTimes.add(now + delayMillis);
+        }
+
+        void advanceBy(long millis) {
+            now += millis;
+            runDue();
+        }
+
+        void runDue() {
+            for (int i = 0; i < runnables.size(); i++) {
+                if (dueTimes.get(i) <= now) {
+                    Runnable runnable = runnables.remove(i);
+                    dueTimes.remove(i);
+                    runnable.run();
+                    i--;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.notifications.NotificationVisibility;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DownloadSchedulerTest {
+
+    private static final int NO_PRIORITY = 0;
+    private static final String FIRST_CDN = "http://first.cdn.example.com";
+    private static final String SECOND_CDN = "http://second.cdn.example.com";
+
+    private final DownloadHosts downloadHosts = new DownloadHosts(new Clock());
+
+    private int files;
+
+    @Test
+    public void givenFreeSlotsWhenSchedulingThenEverySlotIsFilledFromASingleBatch() {
+        DownloadScheduler scheduler = new DownloadScheduler(3, 3);
+        DownloadBatch batch = batch(1, NO_PRIORITY, pending(1, 0), pending(1, 0), pending(1, 0), pending(1, 0));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).hasSize(3);
+    }
+
+    @Test
+    public void givenARunningDownloadWhenSchedulingThenOnlyTheRemainingSlotsAreFilled() {
+        DownloadScheduler scheduler = new DownloadScheduler(3, 3);
+        DownloadBatch batch = batch(1, NO_PRIORITY, running(1), pending(1, 0), pending(1, 0), pending(1, 0));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).hasSize(2);
+    }
+
+    @Test
+    public void givenAPerBatchLimitWhenSchedulingThenTheBatchDoesNotExceedIt() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 2);
+        DownloadBatch batch = batch(1, NO_PRIORITY, pending(1, 0), pending(1, 0), pending(1, 0));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).hasSize(2);
+    }
+
+    @Test
+    public void givenBatchesWithTheSamePriorityWhenSchedulingThenTheyTakeTurns() {
+        DownloadScheduler scheduler = new DownloadScheduler(4, 4);
+        FileDownloadInfo firstOfBatchOne = pending(1, 0);
+        FileDownloadInfo secondOfBatchOne = pending(1, 0);
+        FileDownloadInfo firstOfBatchTwo = pending(2, 0);
+        FileDownloadInfo secondOfBatchTwo = pending(2, 0);
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, firstOfBatchOne, secondOfBatchOne);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, firstOfBatchTwo, secondOfBatchTwo);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batchOne, batchTwo), Arrays.asList(batchOne, batchTwo));
+
+        assertThat(scheduled).containsExactly(firstOfBatchOne, firstOfBatchTwo, secondOfBatchOne, secondOfBatchTwo);
+    }
+
+    @Test
+    public void givenASingleFreeSlotOnEachPassWhenSchedulingThenTheNextBatchIsServed() {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1);
+        FileDownloadInfo downloadOfBatchOne = pending(1, 0);
+        FileDownloadInfo downloadOfBatchTwo = pending(2, 0);
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, downloadOfBatchOne);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, downloadOfBatchTwo);
+        List<DownloadBatch> batches = Arrays.asList(batchOne, batchTwo);
+
+        List<FileDownloadInfo> firstPass = scheduler.scheduleDownloads(batches, batches);
+        List<FileDownloadInfo> secondPass = scheduler.scheduleDownloads(batches, batches);
+
+        assertThat(firstPass).containsExactly(downloadOfBatchOne);
+        assertThat(secondPass).containsExactly(downloadOfBatchTwo);
+    }
+
+    @Test
+    public void givenAHigherPriorityBatchWhenSchedulingThenItIsServedFirst() {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 2);
+        FileDownloadInfo lowPriorityDownload = pending(1, 0);
+        FileDownloadInfo firstHighPriorityDownload = pending(2, 0);
+        FileDownloadInfo secondHighPriorityDownload = pending(2, 0);
+        DownloadBatch lowPriorityBatch = batch(1, NO_PRIORITY, lowPriorityDownload);
+        DownloadBatch highPriorityBatch = batch(2, 10, firstHighPriorityDownload, secondHighPriorityDownload);
+        List<DownloadBatch> batches = Arrays.asList(lowPriorityBatch, highPriorityBatch);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(batches, batches);
+
+        assertThat(scheduled).containsExactly(firstHighPriorityDownload, secondHighPriorityDownload);
+    }
+
+    @Test
+    public void givenAHigherPriorityDownloadWhenSchedulingThenItIsStartedBeforeTheRestOfItsBatch() {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1);
+        FileDownloadInfo normalDownload = pending(1, 0);
+        FileDownloadInfo urgentDownload = pending(1, 5);
+        DownloadBatch batch = batch(1, NO_PRIORITY, normalDownload, urgentDownload);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).containsExactly(urgentDownload);
+    }
+
+    @Test
+    public void givenNoFreeSlotsWhenSchedulingThenNothingIsScheduled() {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1);
+        DownloadBatch runningBatch = batch(1, NO_PRIORITY, running(1));
+        DownloadBatch waitingBatch = batch(2, NO_PRIORITY, pending(2, 0));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(runningBatch, waitingBatch), Arrays.asList(waitingBatch));
+
+        assertThat(scheduled).isEmpty();
+    }
+
+    @Test
+    public void givenAPerHostLimitWhenSchedulingThenNoHostExceedsIt() {
+        DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.FixedConcurrencyLimit(5), 5, 2, downloadHosts, new SmallFileBundler(0));
+        FileDownloadInfo fromSecondCdn = pendingFrom(1, SECOND_CDN);
+        DownloadBatch batch = batch(1, NO_PRIORITY, pendingFrom(1, FIRST_CDN), pendingFrom(1, FIRST_CDN), pendingFrom(1, FIRST_CDN), fromSecondCdn);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).hasSize(3);
+        assertThat(scheduled).contains(fromSecondCdn);
+    }
+
+    @Test
+    public void givenARunningDownloadFromAHostWhenSchedulingThenItCountsAgainstThePerHostLimit() {
+        DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.FixedConcurrencyLimit(5), 5, 2, downloadHosts, new SmallFileBundler(0));
+        FileDownloadInfo running = running(1);
+        when(running.getUri()).thenReturn(FIRST_CDN + "/running");
+        DownloadBatch batch = batch(1, NO_PRIORITY, running, pendingFrom(1, FIRST_CDN), pendingFrom(1, FIRST_CDN));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).hasSize(1);
+    }
+
+    @Test
+    public void givenExtraConnectionsOpenToAHostWhenSchedulingThenTheyCountAgainstThePerHostLimit() {
+        DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.FixedConcurrencyLimit(5), 5, 2, downloadHosts, new SmallFileBundler(0));
+        downloadHosts.acquireExtraConnectionsTo("first.cdn.example.com", 1);
+        DownloadBatch batch = batch(1, NO_PRIORITY, pendingFrom(1, FIRST_CDN), pendingFrom(1, FIRST_CDN));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).hasSize(1);
+    }
+
+    @Test
+    public void givenASegmentedDownloadToResumeWhenSchedulingThenEachIncompleteSegmentCountsAgainstThePerHostLimit() {
+        DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.FixedConcurrencyLimit(5), 5, 3, downloadHosts, new SmallFileBundler(0));
+        FileDownloadInfo segmented = pendingFrom(1, FIRST_CDN);
+        when(segmented.getSegments()).thenReturn("0-99:0,100-199:100,200-299:50,300-399:0");
+        DownloadBatch batch = batch(1, NO_PRIORITY, segmented, pendingFrom(1, FIRST_CDN));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).containsExactly(segmented);
+    }
+
+    @Test
+    public void givenAHostWithAnIdleConnectionWhenSchedulingThenADownloadFromThatHostIsPickedFirst() {
+        DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.FixedConcurrencyLimit(1), 1, 1, downloadHosts, new SmallFileBundler(0));
+        FileDownloadInfo fromSecondCdn = pendingFrom(1, SECOND_CDN);
+        DownloadBatch batch = batch(1, NO_PRIORITY, pendingFrom(1, FIRST_CDN), pendingFrom(1, FIRST_CDN), fromSecondCdn);
+        downloadHosts.onConnectionReleased("second.cdn.example.com");
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).containsExactly(fromSecondCdn);
+    }
+
+    @Test
+    public void givenDownloadsClaimedByASmallFileBundleWhenSchedulingThenTheyAreSkipped() {
+        SmallFileBundler smallFileBundler = new SmallFileBundler(1024);
+        DownloadScheduler scheduler = new DownloadScheduler(new DownloadScheduler.FixedConcurrencyLimit(5), 5, 5, downloadHosts, smallFileBundler);
+        FileDownloadInfo firstSmallFile = smallPending(1, 1);
+        FileDownloadInfo secondSmallFile = smallPending(1, 2);
+        FileDownloadInfo largeFile = pending(1, NO_PRIORITY);
+        DownloadBatch batch = batch(1, NO_PRIORITY, firstSmallFile, secondSmallFile, largeFile);
+        smallFileBundler.bundle(firstSmallFile, batch);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batch), Arrays.asList(batch));
+
+        assertThat(scheduled).containsExactly(largeFile);
+    }
+
+    @Test
+    public void givenAUriAlreadyBeingFetchedWhenSchedulingThenAnotherDownloadOfItWaits() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 5);
+        String uri = FIRST_CDN + "/shared";
+        FileDownloadInfo running = running(1);
+        when(running.getUri()).thenReturn(uri);
+        FileDownloadInfo other = pendingFrom(2, FIRST_CDN);
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, running);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, pendingOf(2, uri), other);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batchOne, batchTwo), Arrays.asList(batchOne, batchTwo));
+
+        assertThat(scheduled).containsExactly(other);
+    }
+
+    @Test
+    public void givenTwoPendingDownloadsOfTheSameUriWhenSchedulingThenOnlyOneIsSubmitted() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 5);
+        String uri = FIRST_CDN + "/shared";
+        FileDownloadInfo first = pendingOf(1, uri);
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, first);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, pendingOf(2, uri));
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batchOne, batchTwo), Arrays.asList(batchOne, batchTwo));
+
+        assertThat(scheduled).containsExactly(first);
+    }
+
+    @Test
+    public void givenAUriBeingFetchedWhenADownloadOfItCannotReuseContentThenItIsNotDeferred() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 5);
+        String uri = FIRST_CDN + "/shared";
+        FileDownloadInfo running = running(1);
+        when(running.getUri()).thenReturn(uri);
+        FileDownloadInfo repair = pendingOf(2, uri);
+        when(repair.hasBlockChecksums()).thenReturn(true);
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, running);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, repair);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batchOne, batchTwo), Arrays.asList(batchOne, batchTwo));
+
+        assertThat(scheduled).containsExactly(repair);
+    }
+
+    @Test
+    public void givenAUriBeingFetchedWhenADownloadOfItHasAWeakETagThenItIsNotDeferred() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 5);
+        String uri = FIRST_CDN + "/shared";
+        FileDownloadInfo running = running(1);
+        when(running.getUri()).thenReturn(uri);
+        FileDownloadInfo weaklyTagged = pendingOf(2, uri);
+        when(weaklyTagged.getETag()).thenReturn("W/\"v1\"");
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, running);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, weaklyTagged);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batchOne, batchTwo), Arrays.asList(batchOne, batchTwo));
+
+        assertThat(scheduled).containsExactly(weaklyTagged);
+    }
+
+    @Test
+    public void givenAUriBeingFetchedWhenADownloadOfItExpectsAChecksumThenItWaits() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 5);
+        String uri = FIRST_CDN + "/shared";
+        FileDownloadInfo running = running(1);
+        when(running.getUri()).thenReturn(uri);
+        FileDownloadInfo verified = pendingOf(2, uri);
+        when(verified.getETag()).thenReturn("W/\"v1\"");
+        when(verified.hasExpectedChecksum()).thenReturn(true);
+        DownloadBatch batchOne = batch(1, NO_PRIORITY, running);
+        DownloadBatch batchTwo = batch(2, NO_PRIORITY, verified);
+
+        List<FileDownloadInfo> scheduled = scheduler.scheduleDownloads(Arrays.asList(batchOne, batchTwo), Arrays.asList(batchOne, batchTwo));
+
+        assertThat(scheduled).isEmpty();
+    }
+
+    private static DownloadBatch batch(long batchId, int priority, FileDownloadInfo... downloads) {
+        BatchInfo batchInfo = new BatchInfo("title", "description", null, NotificationVisibility.ONLY_WHEN_ACTIVE, null, priority, BandwidthLimiter.UNLIMITED);
+        return new DownloadBatch(batchId, batchInfo, Arrays.asList(downloads), DownloadStatus.PENDING, -1L, 0L);
+    }
+
+    private static FileDownloadInfo pending(long batchId, int priority) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getBatchId()).thenReturn(batchId);
+        when(download.getStatus()).thenReturn(DownloadStatus.PENDING);
+        when(download.getPriority()).thenReturn(priority);
+        return download;
+    }
+
+    private FileDownloadInfo pendingFrom(long batchId, String host) {
+        return pendingOf(batchId, host + "/file" + files++);
+    }
+
+    private static FileDownloadInfo pendingOf(long batchId, String uri) {
+        FileDownloadInfo download = pending(batchId, NO_PRIORITY);
+        when(download.getUri()).thenReturn(uri);
+        return download;
+    }
+
+    private static FileDownloadInfo smallPending(long batchId, long downloadId) {
+        FileDownloadInfo download = pending(batchId, NO_PRIORITY);
+        when(download.getId()).thenReturn(downloadId);
+        when(download.getControl()).thenReturn(DownloadsControl.CONTROL_RUN);
+        when(download.hasTotalBytes()).thenReturn(true);
+        when(download.getTotalBytes()).thenReturn(512L);
+        return download;
+    }
+
+    private static FileDownloadInfo running(long batchId) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getBatchId()).thenReturn(batchId);
+        when(download.getStatus()).thenReturn(DownloadStatus.RUNNING);
+        when(download.isSubmittedOrRunning()).thenReturn(true);
+        return download;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DownloadSegmentsTest {
+
+    @Test
+    public void givenASmallFileWhenSplittingThenNoSegmentsAreCreated() {
+        List<DownloadSegment> segments = DownloadSegments.split(Constants.MIN_DOWNLOAD_SEGMENT_SIZE);
+
+        assertThat(segments).isEmpty();
+    }
+
+    @Test
+    public void givenALargeFileWhenSplittingThenTheSegmentsAreLimited() {
+        List<DownloadSegment> segments = DownloadSegments.split(Constants.MIN_DOWNLOAD_SEGMENT_SIZE * 100);
+
+        assertThat(segments).hasSize(Constants.MAX_DOWNLOAD_SEGMENTS);
+    }
+
+    @Test
+    public void givenAFileWhenSplittingThenTheSegmentsCoverEveryByteOnce() {
+        long totalBytes = Constants.MIN_DOWNLOAD_SEGMENT_SIZE * 3 + 7;
+
+        List<DownloadSegment> segments = DownloadSegments.split(totalBytes);
+
+        long expectedStartByte = 0;
+        for (DownloadSegment segment : segments) {
+            assertThat(segment.getStartByte()).isEqualTo(expectedStartByte);
+            expectedStartByte = segment.getEndByte() + 1;
+        }
+        assertThat(expectedStartByte).isEqualTo(totalBytes);
+    }
+
+    @Test
+    public void givenSegmentsWithProgressWhenSerializingAndParsingThenTheyAreRestored() {
+        List<DownloadSegment> segments = Arrays.asList(new DownloadSegment(0, 99, 10), new DownloadSegment(100, 199, 100));
+
+        List<DownloadSegment> restored = DownloadSegments.parse(DownloadSegments.serialize(segments));
+
+        assertThat(restored).hasSize(2);
+        assertThat(restored.get(0).nextByte()).isEqualTo(10);
+        assertThat(restored.get(1).isComplete()).isTrue();
+        assertThat(DownloadSegments.currentBytesOf(restored)).isEqualTo(110);
+    }
+
+    @Test
+    public void givenNoSegmentsWhenParsingThenTheListIsEmpty() {
+        assertThat(DownloadSegments.parse(null)).isEmpty();
+        assertThat(DownloadSegments.parse("")).isEmpty();
+    }
+
+    @Test
+    public void givenMalformedSegmentsWhenParsingThenTheListIsEmpty() {
+        assertThat(DownloadSegments.parse("0-99:10,garbage")).isEmpty();
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class DownloadStateCacheTest {
+
+    @Mock
+    private DownloadsRepository downloadsRepository;
+
+    private DownloadStateCache downloadStateCache;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        downloadStateCache = new DownloadStateCache(downloadsRepository);
+    }
+
+    @Test
+    public void givenNothingIsCachedWhenGettingDownloadsThenEveryDownloadIsLoaded() {
+        FileDownloadInfo download = download(1);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(download));
+
+        List<FileDownloadInfo> downloads = downloadStateCache.getDownloads();
+
+        assertThat(downloads).containsExactly(download);
+    }
+
+    @Test
+    public void givenNoChangesWhenGettingDownloadsAgainThenNothingIsQueried() {
+        FileDownloadInfo download = download(1);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(download));
+        downloadStateCache.getDownloads();
+
+        downloadStateCache.getDownloads();
+
+        verify(downloadsRepository, times(1)).getAllDownloads();
+        verify(downloadsRepository, never()).getDownloadsFor(anyCollectionOf(Long.class));
+    }
+
+    @Test
+    public void givenADownloadChangedWhenGettingDownloadsThenOnlyThatDownloadIsReloaded() {
+        FileDownloadInfo first = download(1);
+        FileDownloadInfo second = download(2);
+        FileDownloadInfo updatedSecond = download(2);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(first, second));
+        when(downloadsRepository.getDownloadsFor(Collections.singleton(2L))).thenReturn(Arrays.asList(updatedSecond));
+        downloadStateCache.getDownloads();
+
+        downloadStateCache.invalidate(2);
+        List<FileDownloadInfo> downloads = downloadStateCache.getDownloads();
+
+        verify(downloadsRepository, times(1)).getAllDownloads();
+        assertThat(downloads).containsExactly(first, updatedSecond);
+    }
+
+    @Test
+    public void givenAChangedDownloadNoLongerExistsWhenGettingDownloadsThenItIsRemoved() {
+        FileDownloadInfo first = download(1);
+        FileDownloadInfo second = download(2);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(first, second));
+        when(downloadsRepository.getDownloadsFor(anyCollectionOf(Long.class))).thenReturn(Collections.<FileDownloadInfo>emptyList());
+        downloadStateCache.getDownloads();
+
+        downloadStateCache.invalidate(2);
+        List<FileDownloadInfo> downloads = downloadStateCache.getDownloads();
+
+        assertThat(downloads).containsExactly(first);
+    }
+
+    @Test
+    public void givenAnInsertedDownloadWhenGettingDownloadsThenItIsOrderedById() {
+        FileDownloadInfo first = download(1);
+        FileDownloadInfo third = download(3);
+        FileDownloadInfo inserted = download(2);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(first, third));
+        when(downloadsRepository.getDownloadsFor(anyCollectionOf(Long.class))).thenReturn(Arrays.asList(inserted));
+        downloadStateCache.getDownloads();
+
+        downloadStateCache.invalidate(2);
+        List<FileDownloadInfo> downloads = downloadStateCache.getDownloads();
+
+        assertThat(downloads).containsExactly(first, inserted, third);
+    }
+
+    @Test
+    public void givenSeveralDownloadsChangedAtOnceWhenGettingDownloadsThenTheyAreReloadedTogether() {
+        FileDownloadInfo first = download(1);
+        FileDownloadInfo second = download(2);
+        FileDownloadInfo updatedFirst = download(1);
+        FileDownloadInfo updatedSecond = download(2);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(first, second));
+        when(downloadsRepository.getDownloadsFor(new HashSet<>(Arrays.asList(1L, 2L)))).thenReturn(Arrays.asList(updatedFirst, updatedSecond));
+        downloadStateCache.getDownloads();
+
+        downloadStateCache.invalidate(Arrays.asList(1L, 2L));
+        List<FileDownloadInfo> downloads = downloadStateCache.getDownloads();
+
+        assertThat(downloads).containsExactly(updatedFirst, updatedSecond);
+    }
+
+    @Test
+    public void givenUnknownChangesWhenGettingDownloadsThenEveryDownloadIsReloaded() {
+        FileDownloadInfo download = download(1);
+        when(downloadsRepository.getAllDownloads()).thenReturn(Arrays.asList(download));
+        downloadStateCache.getDownloads();
+
+        downloadStateCache.invalidateAll();
+        downloadStateCache.getDownloads();
+
+        verify(downloadsRepository, times(2)).getAllDownloads();
+        verify(downloadsRepository, never()).getDownloadsFor(anyCollectionOf(Long.class));
+    }
+
+    private static FileDownloadInfo download(long id) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        return download;
+    }
+
+}
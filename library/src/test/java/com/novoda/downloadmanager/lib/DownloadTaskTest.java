@@ -0,0 +1,216 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.novoda.downloadmanager.notifications.DownloadNotifier;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(SystemClock.class)
+public class DownloadTaskTest {
+
+    private static final long DOWNLOAD_ID = 12;
+    private static final String STRONG_ETAG = "\"v1\"";
+    private static final String WEAK_ETAG = "W/\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+    private static final byte[] CONTENT = "0123456789".getBytes(Charset.forName("US-ASCII"));
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private Context context;
+    @Mock
+    private SystemFacade systemFacade;
+    @Mock
+    private FileDownloadInfo downloadInfo;
+    @Mock
+    private DownloadBatch downloadBatch;
+    @Mock
+    private StorageManager storageManager;
+    @Mock
+    private DownloadNotifier downloadNotifier;
+    @Mock
+    private BatchInformationBroadcaster batchInformationBroadcaster;
+    @Mock
+    private BatchRepository batchRepository;
+    @Mock
+    private DownloadsUriProvider downloadsUriProvider;
+    @Mock
+    private NetworkChecker networkChecker;
+    @Mock
+    private DownloadReadyChecker downloadReadyChecker;
+    @Mock
+    private Clock clock;
+    @Mock
+    private DownloadsRepository downloadsRepository;
+    @Mock
+    private DownloadProgressStream progressStream;
+    @Mock
+    private DownloadControlRegistry controlRegistry;
+    @Mock
+    private DownloadProgressFlusher progressFlusher;
+    @Mock
+    private HttpTransport httpTransport;
+    @Mock
+    private BandwidthLimiter bandwidthLimiter;
+    @Mock
+    private ThroughputMeter throughputMeter;
+    @Mock
+    private DownloadHosts downloadHosts;
+    @Mock
+    private HostRttEstimator hostRttEstimator;
+    @Mock
+    private ConnectionPipeline connectionPipeline;
+    @Mock
+    private ContentDeduplicator contentDeduplicator;
+    @Mock
+    private ExecutorService segmentExecutor;
+    @Mock
+    private HttpURLConnection connection;
+
+    private DownloadTask downloadTask;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        mockStatic(SystemClock.class);
+        when(downloadInfo.getId()).thenReturn(DOWNLOAD_ID);
+        FileDownloadInfo.ControlStatus.Reader controlReader = new FileDownloadInfo.ControlStatus.Reader(mock(ContentResolver.class), mock(Uri.class));
+
+        DownloadTransferModules transferModules = new DownloadTransferModules.Builder()
+                .withHttpTransport(httpTransport)
+                .withBandwidthLimiter(bandwidthLimiter)
+                .withThroughputMeter(throughputMeter)
+                .withDownloadHosts(downloadHosts)
+                .withHostRttEstimator(hostRttEstimator)
+                .withConnectionPipeline(connectionPipeline)
+                .withContentDeduplicator(contentDeduplicator)
+                .withSegmentExecutor(segmentExecutor)
+                .build();
+
+        downloadTask = new DownloadTask(
+                context, systemFacade, downloadInfo, downloadBatch, storageManager, downloadNotifier, batchInformationBroadcaster,
+                batchRepository, downloadsUriProvider, controlReader, networkChecker, downloadReadyChecker, clock, downloadsRepository,
+                progressStream, controlRegistry, progressFlusher, transferModules
+        );
+    }
+
+    @Test
+    public void givenAStrongETagWhenResumingThenTheRangeIsConditionalOnIt() {
+        DownloadTask.State state = resumingAt(100, STRONG_ETAG, LAST_MODIFIED);
+
+        downloadTask.addRequestHeaders(state, connection);
+
+        verify(connection).addRequestProperty("If-Range", STRONG_ETAG);
+        verify(connection).addRequestProperty("Range", "bytes=100-");
+    }
+
+    @Test
+    public void givenAWeakETagAndALastModifiedDateWhenResumingThenTheRangeIsConditionalOnTheDate() {
+        DownloadTask.State state = resumingAt(100, WEAK_ETAG, LAST_MODIFIED);
+
+        downloadTask.addRequestHeaders(state, connection);
+
+        verify(connection).addRequestProperty("If-Range", LAST_MODIFIED);
+        verify(connection, never()).addRequestProperty(eq("If-Match"), anyString());
+    }
+
+    @Test
+    public void givenOnlyAWeakETagWhenResumingThenTheRangeRequiresItToMatch() {
+        DownloadTask.State state = resumingAt(100, WEAK_ETAG, null);
+
+        downloadTask.addRequestHeaders(state, connection);
+
+        verify(connection).addRequestProperty("If-Match", WEAK_ETAG);
+        verify(connection, never()).addRequestProperty(eq("If-Range"), anyString());
+        verify(connection).addRequestProperty("Range", "bytes=100-");
+    }
+
+    @Test
+    public void givenAPartialFileWhenTheWholeFileIsSentInsteadOfTheRangeThenTheDownloadStartsOver() throws Exception {
+        File file = fileWith(CONTENT);
+        DownloadTask.State state = resumingAt(CONTENT.length, STRONG_ETAG, null);
+        state.filename = file.getPath();
+        state.digest = DownloadDigest.newInstance(DownloadManager.CHECKSUM_CRC32C);
+
+        downloadTask.startOverPartialFile(state);
+
+        assertThat(file.length()).isZero();
+        assertThat(state.currentBytes).isZero();
+        assertThat(state.continuingDownload).isFalse();
+        assertThat(state.digest).isNull();
+        verify(progressFlusher).discard(DOWNLOAD_ID);
+    }
+
+    @Test
+    public void givenARangeStartingBeforeTheBytesWrittenWhenOpeningTheResponseThenTheyAreSkipped() throws Exception {
+        when(connection.getHeaderField("Content-Range")).thenReturn("bytes 4-9/10");
+        when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(CONTENT, 4, 6));
+
+        InputStream in = downloadTask.openAt(7, connection);
+
+        assertThat(in.read()).isEqualTo('7');
+    }
+
+    @Test
+    public void givenARangeStartingAtTheBytesWrittenWhenOpeningTheResponseThenNothingIsSkipped() throws Exception {
+        when(connection.getHeaderField("Content-Range")).thenReturn("bytes 7-9/10");
+        when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(CONTENT, 7, 3));
+
+        InputStream in = downloadTask.openAt(7, connection);
+
+        assertThat(in.read()).isEqualTo('7');
+    }
+
+    private static DownloadTask.State resumingAt(long currentBytes, String eTag, String lastModified) {
+        DownloadTask.State state = new DownloadTask.State();
+        state.continuingDownload = true;
+        state.currentBytes = currentBytes;
+        state.headerETag = eTag;
+        state.headerLastModified = lastModified;
+        return state;
+    }
+
+    private File fileWith(byte[] data) throws IOException {
+        File file = temporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
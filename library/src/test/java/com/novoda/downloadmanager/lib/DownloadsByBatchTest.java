@@ -0,0 +1,112 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DownloadsByBatchTest {
+
+    private static final int DOWNLOADS_PER_BATCH = 100;
+    private static final int TIMED_RUNS = 5;
+
+    @Test
+    public void givenDownloadsOfSeveralBatchesWhenGroupingThenEachBatchGetsItsDownloadsInOrder() {
+        FileDownloadInfo firstOfBatchOne = download(1);
+        FileDownloadInfo onlyOfBatchTwo = download(2);
+        FileDownloadInfo secondOfBatchOne = download(1);
+
+        DownloadsByBatch downloadsByBatch = DownloadsByBatch.from(Arrays.asList(firstOfBatchOne, onlyOfBatchTwo, secondOfBatchOne));
+
+        assertThat(downloadsByBatch.getDownloadsFor(1)).containsExactly(firstOfBatchOne, secondOfBatchOne);
+        assertThat(downloadsByBatch.getDownloadsFor(2)).containsExactly(onlyOfBatchTwo);
+    }
+
+    @Test
+    public void givenABatchWithoutDownloadsWhenGroupingThenItsDownloadsAreEmpty() {
+        DownloadsByBatch downloadsByBatch = DownloadsByBatch.from(Arrays.asList(download(1)));
+
+        assertThat(downloadsByBatch.getDownloadsFor(3)).isEmpty();
+    }
+
+    @Test
+    public void givenManyBatchesWhenLookingUpEveryBatchThenEachDownloadIsOnlyReadOnce() {
+        int batchCount = 50;
+        List<FileDownloadInfo> downloads = new ArrayList<>();
+        for (int batchId = 0; batchId < batchCount; batchId++) {
+            for (int i = 0; i < 4; i++) {
+                downloads.add(download(batchId));
+            }
+        }
+
+        DownloadsByBatch downloadsByBatch = DownloadsByBatch.from(downloads);
+        for (int batchId = 0; batchId < batchCount; batchId++) {
+            assertThat(downloadsByBatch.getDownloadsFor(batchId)).hasSize(4);
+        }
+
+        for (FileDownloadInfo download : downloads) {
+            verify(download, times(1)).getBatchId();
+        }
+    }
+
+    /**
+     * A coarse benchmark of assembling every batch: with eight times the batches, and so eight times the downloads,
+     * a linear assembly takes about eight times as long where the former nested scan took about 64 times as long.
+     */
+    @Test
+    public void givenEightTimesTheBatchesWhenAssemblingThemAllThenItTakesAboutEightTimesAsLong() {
+        List<FileDownloadInfo> fewBatches = realDownloadsOf(100);
+        List<FileDownloadInfo> manyBatches = realDownloadsOf(800);
+        fastestAssemblyNanosOf(manyBatches, 800);
+
+        long fewBatchesNanos = fastestAssemblyNanosOf(fewBatches, 800);
+        long manyBatchesNanos = fastestAssemblyNanosOf(manyBatches, 800);
+
+        assertThat(manyBatchesNanos).isLessThan(fewBatchesNanos * 24);
+    }
+
+    private static long fastestAssemblyNanosOf(List<FileDownloadInfo> downloads, int batchCount) {
+        long fastestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < TIMED_RUNS; run++) {
+            long startNanos = System.nanoTime();
+            DownloadsByBatch downloadsByBatch = DownloadsByBatch.from(downloads);
+            int assembled = 0;
+            for (int batchId = 0; batchId < batchCount; batchId++) {
+                assembled += downloadsByBatch.getDownloadsFor(batchId).size();
+            }
+            fastestNanos = Math.min(fastestNanos, System.nanoTime() - startNanos);
+            assertThat(assembled).isEqualTo(downloads.size());
+        }
+        return fastestNanos;
+    }
+
+    private static List<FileDownloadInfo> realDownloadsOf(int batchCount) {
+        List<FileDownloadInfo> downloads = new ArrayList<>(batchCount * DOWNLOADS_PER_BATCH);
+        for (int batchId = 0; batchId < batchCount; batchId++) {
+            for (int i = 0; i < DOWNLOADS_PER_BATCH; i++) {
+                FileDownloadInfo download = new FileDownloadInfo(null, null, null);
+                Whitebox.setInternalState(download, "batchId", (long) batchId);
+                downloads.add(download);
+            }
+        }
+        Collections.shuffle(downloads, new Random(batchCount));
+        return downloads;
+    }
+
+    private static FileDownloadInfo download(long batchId) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getBatchId()).thenReturn(batchId);
+        return download;
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.novoda.notils.string.QueryUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Uri.class)
+public class DownloadsRepositoryTest {
+
+    private static final String ID_SELECTION = DownloadContract.Downloads._ID + " IN (" + QueryUtils.createSelectionPlaceholdersOfSize(2) + ")";
+
+    @Mock
+    private ContentResolver contentResolver;
+    @Mock
+    private DownloadsUriProvider downloadsUriProvider;
+    @Mock
+    private DownloadsRepository.DownloadInfoCreator downloadInfoCreator;
+    @Mock
+    private Uri allDownloadsUri;
+    @Mock
+    private Uri headersUri;
+    @Mock
+    private Cursor downloadsCursor;
+    @Mock
+    private Cursor headersCursor;
+
+    private DownloadsRepository downloadsRepository;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        mockStatic(Uri.class);
+        when(Uri.withAppendedPath(allDownloadsUri, DownloadContract.RequestHeaders.URI_SEGMENT)).thenReturn(headersUri);
+        when(downloadsUriProvider.getAllDownloadsUri()).thenReturn(allDownloadsUri);
+        when(contentResolver.query(eq(allDownloadsUri), any(String[].class), anyString(), any(String[].class), anyString()))
+                .thenReturn(downloadsCursor);
+        when(contentResolver.query(eq(headersUri), any(String[].class), anyString(), any(String[].class), anyString()))
+                .thenReturn(headersCursor);
+        when(downloadsCursor.moveToNext()).thenReturn(true, true, true, false);
+        when(downloadInfoCreator.create(any(FileDownloadInfo.Reader.class))).thenReturn(mock(FileDownloadInfo.class));
+
+        downloadsRepository = new DownloadsRepository(mock(SystemFacade.class), contentResolver, downloadInfoCreator, downloadsUriProvider);
+    }
+
+    @Test
+    public void givenSeveralDownloadsWhenLoadingThemAllThenTheirHeadersAreLoadedInASingleQuery() {
+        List<FileDownloadInfo> downloads = downloadsRepository.getAllDownloads();
+
+        assertThat(downloads).hasSize(3);
+        verify(contentResolver, times(1)).query(headersUri, null, null, null, null);
+    }
+
+    @Test
+    public void givenSeveralChangedDownloadsWhenLoadingThemThenTheirHeadersAreSelectedLikeTheDownloads() {
+        downloadsRepository.getDownloadsFor(Arrays.asList(1L, 2L));
+
+        String[] ids = {"1", "2"};
+        verify(contentResolver).query(allDownloadsUri, null, ID_SELECTION, ids, DownloadContract.Downloads._ID + " ASC");
+        verify(contentResolver, times(1)).query(headersUri, null, ID_SELECTION, ids, null);
+    }
+
+    @Test
+    public void givenTheDownloadsWereReadWhenLoadingThemThenBothCursorsAreClosed() {
+        downloadsRepository.getAllDownloads();
+
+        verify(downloadsCursor).close();
+        verify(headersCursor).close();
+    }
+
+}
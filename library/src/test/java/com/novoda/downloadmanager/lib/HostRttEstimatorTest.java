@@ -0,0 +1,42 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HostRttEstimatorTest {
+
+    private static final String HOST = "cdn.example.com";
+
+    private final HostRttEstimator estimator = new HostRttEstimator();
+
+    @Test
+    public void givenAnUnmeasuredHostWhenGettingItsTimeoutsThenTheMaximumIsUsed() {
+        assertThat(estimator.connectTimeoutMillisFor(HOST)).isEqualTo(HostRttEstimator.MAX_TIMEOUT_MILLIS);
+        assertThat(estimator.readTimeoutMillisFor(HOST)).isEqualTo(HostRttEstimator.MAX_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void givenAModeratelySlowHostWhenGettingItsTimeoutsThenTheyFollowItsResponseTime() {
+        estimator.sample(HOST, 400);
+
+        assertThat(estimator.connectTimeoutMillisFor(HOST)).isEqualTo(4800);
+        assertThat(estimator.readTimeoutMillisFor(HOST)).isEqualTo(9600);
+    }
+
+    @Test
+    public void givenAFastHostWhenGettingItsTimeoutsThenTheyAreKeptAboveTheMinimum() {
+        estimator.sample(HOST, 20);
+
+        assertThat(estimator.connectTimeoutMillisFor(HOST)).isEqualTo(3000);
+        assertThat(estimator.readTimeoutMillisFor(HOST)).isEqualTo(5000);
+    }
+
+    @Test
+    public void givenAVerySlowHostWhenGettingItsTimeoutsThenTheyAreCappedAtTheMaximum() {
+        estimator.sample(HOST, 5000);
+
+        assertThat(estimator.readTimeoutMillisFor(HOST)).isEqualTo(HostRttEstimator.MAX_TIMEOUT_MILLIS);
+    }
+
+}
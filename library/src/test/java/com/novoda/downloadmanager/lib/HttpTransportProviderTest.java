@@ -0,0 +1,78 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import com.novoda.notils.logger.simple.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HttpTransportProviderTest {
+
+    private static final String PACKAGE_NAME = "PACKAGE_NAME";
+    private static final String METADATA_POOLED_CONNECTIONS = "com.novoda.downloadmanager.PooledConnections";
+    private static final String METADATA_BULK_TRANSFER = "com.novoda.downloadmanager.BulkTransfer";
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    @Mock
+    PackageManager packageManager;
+    @Mock
+    Bundle bundle;
+
+    @Before
+    public void setUp() {
+        Log.setShowLogs(false);
+        initMocks(this);
+    }
+
+    @Test
+    public void givenANullMetadataBundleWhenTheTransportIsRetrievedThenConnectionsArePooled() throws Exception {
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA))
+                .thenReturn(new ConcurrentDownloadsLimitProviderTest.StubApplicationInfo(null));
+        HttpTransportProvider provider = new HttpTransportProvider(packageManager, PACKAGE_NAME);
+
+        HttpTransport httpTransport = provider.getHttpTransport(MAX_IDLE_CONNECTIONS);
+
+        assertThat(httpTransport).isInstanceOf(PooledHttpTransport.class);
+    }
+
+    @Test
+    public void givenTheApplicationOptsOutOfPoolingWhenTheTransportIsRetrievedThenPlainConnectionsAreUsed() throws Exception {
+        when(bundle.getBoolean(eq(METADATA_POOLED_CONNECTIONS), anyBoolean())).thenReturn(false);
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA))
+                .thenReturn(new ConcurrentDownloadsLimitProviderTest.StubApplicationInfo(bundle));
+        HttpTransportProvider provider = new HttpTransportProvider(packageManager, PACKAGE_NAME);
+
+        HttpTransport httpTransport = provider.getHttpTransport(MAX_IDLE_CONNECTIONS);
+
+        assertThat(httpTransport).isInstanceOf(UrlConnectionHttpTransport.class);
+    }
+
+    @Test
+    public void givenANullMetadataBundleWhenCheckingForBulkTransfersThenTheyAreEnabled() throws Exception {
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA))
+                .thenReturn(new ConcurrentDownloadsLimitProviderTest.StubApplicationInfo(null));
+        HttpTransportProvider provider = new HttpTransportProvider(packageManager, PACKAGE_NAME);
+
+        assertThat(provider.isBulkTransferEnabled()).isTrue();
+    }
+
+    @Test
+    public void givenTheApplicationOptsOutOfBulkTransfersWhenCheckingForThemThenTheyAreDisabled() throws Exception {
+        when(bundle.getBoolean(eq(METADATA_BULK_TRANSFER), anyBoolean())).thenReturn(false);
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA))
+                .thenReturn(new ConcurrentDownloadsLimitProviderTest.StubApplicationInfo(bundle));
+        HttpTransportProvider provider = new HttpTransportProvider(packageManager, PACKAGE_NAME);
+
+        assertThat(provider.isBulkTransferEnabled()).isFalse();
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void givenTheLowestJitterWhenGettingTheDelaysThenTheyDoubleOnEveryAttempt() {
+        ReconnectBackoff backoff = new ReconnectBackoff(new FixedRandom(0));
+
+        assertThat(backoff.delayMillisFor(0)).isEqualTo(50);
+        assertThat(backoff.delayMillisFor(1)).isEqualTo(100);
+        assertThat(backoff.delayMillisFor(2)).isEqualTo(200);
+    }
+
+    @Test
+    public void givenTheHighestJitterWhenGettingADelayThenItStaysBelowTheFullDelay() {
+        ReconnectBackoff backoff = new ReconnectBackoff(new FixedRandom(0.999));
+
+        assertThat(backoff.delayMillisFor(0)).isLessThan(100);
+    }
+
+    @Test
+    public void givenEveryAttemptIsUsedWhenCheckingForAnotherOneThenTheDownloadFallsBackToTheRetry() {
+        ReconnectBackoff backoff = new ReconnectBackoff(new FixedRandom(0));
+
+        assertThat(backoff.canReconnect(ReconnectBackoff.MAX_ATTEMPTS - 1)).isTrue();
+        assertThat(backoff.canReconnect(ReconnectBackoff.MAX_ATTEMPTS)).isFalse();
+    }
+
+    private static class FixedRandom extends Random {
+
+        private final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RegularDataTransfererTest {
+
+    private final DataWriter dataWriter = mock(DataWriter.class);
+
+    @Test
+    public void givenTheStreamEndsWhenTransferringThenEveryBufferIsWrittenAndNoFailureIsFlagged() throws Exception {
+        DownloadTask.State state = new DownloadTask.State();
+        when(dataWriter.write(any(DownloadTask.State.class), any(byte[].class), anyInt())).thenReturn(state);
+        InputStream in = new ByteArrayInputStream(new byte[Constants.BUFFER_SIZE * 2]);
+
+        new RegularDataTransferer(dataWriter).transferData(state, in);
+
+        verify(dataWriter, times(2)).write(any(DownloadTask.State.class), any(byte[].class), anyInt());
+        assertThat(state.streamFailed).isFalse();
+    }
+
+    @Test
+    public void givenTheStreamFailsWhenTransferringThenTheFailureIsFlaggedForAReconnection() throws Exception {
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(new byte[0])) {
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+
+        DownloadTask.State state = new RegularDataTransferer(dataWriter).transferData(new DownloadTask.State(), in);
+
+        assertThat(state.streamFailed).isTrue();
+    }
+
+}
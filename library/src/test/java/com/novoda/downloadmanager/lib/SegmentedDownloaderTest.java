@@ -0,0 +1,198 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.notils.logger.simple.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SegmentedDownloaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ExecutorService executor = SegmentedDownloader.newSharedExecutor(Constants.MAX_DOWNLOAD_SEGMENTS);
+    private final BandwidthLimiter.Throttle throttle = new BandwidthLimiter.Throttle(1, 0, new TokenBucket(new FakeTimer()));
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Log.setShowLogs(false);
+        file = temporaryFolder.newFile();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenAFileSplitIntoSegmentsWhenDownloadedThenEachSegmentIsFetchedOnceAndWrittenAtItsOffset() throws Exception {
+        byte[] content = contentOf((int) Constants.MIN_DOWNLOAD_SEGMENT_SIZE * 2);
+        List<DownloadSegment> segments = DownloadSegments.split(content.length);
+        FakeSegmentConnector connector = new FakeSegmentConnector(content);
+
+        downloaderWith(connector).download(file.getPath(), segments, segments.size());
+
+        assertThat(segments).hasSize(2);
+        assertThat(connector.requestedBytes()).containsOnly(0L, Constants.MIN_DOWNLOAD_SEGMENT_SIZE);
+        assertThat(DownloadSegments.countIncomplete(segments)).isZero();
+        assertThat(contentOfFile()).isEqualTo(content);
+    }
+
+    @Test
+    public void givenPartlyFetchedSegmentsWhenResumedThenOnlyTheirRemainingBytesAreFetched() throws Exception {
+        byte[] content = contentOf(30);
+        writeToFile(content, 14);
+        List<DownloadSegment> segments = Arrays.asList(
+                new DownloadSegment(0, 9, 10),
+                new DownloadSegment(10, 19, 4),
+                new DownloadSegment(20, 29, 0)
+        );
+        FakeSegmentConnector connector = new FakeSegmentConnector(content);
+
+        downloaderWith(connector).download(file.getPath(), segments, segments.size());
+
+        assertThat(connector.requestedBytes()).containsOnly(14L, 20L);
+        assertThat(DownloadSegments.currentBytesOf(segments)).isEqualTo(30);
+        assertThat(contentOfFile()).isEqualTo(content);
+    }
+
+    @Test
+    public void givenASegmentFailsWhenDownloadingThenTheDownloadStopsWithItsFailureAndTheExecutorIsKept() throws Exception {
+        byte[] content = contentOf(30);
+        final StopRequestException failure = new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "connection refused");
+        List<DownloadSegment> segments = Arrays.asList(
+                new DownloadSegment(0, 9, 0),
+                new DownloadSegment(10, 19, 0),
+                new DownloadSegment(20, 29, 0)
+        );
+        FakeSegmentConnector connector = new FakeSegmentConnector(content) {
+            @Override
+            public HttpURLConnection open(DownloadSegment segment) throws StopRequestException {
+                if (segment.getStartByte() == 10) {
+                    throw failure;
+                }
+                return super.open(segment);
+            }
+        };
+
+        try {
+            downloaderWith(connector).download(file.getPath(), segments, segments.size());
+            fail("The failure of the segment should stop the download");
+        } catch (StopRequestException e) {
+            assertThat(e).isSameAs(failure);
+        }
+
+        assertThat(segments.get(1).getCurrentBytes()).isZero();
+        assertThat(executor.isShutdown()).isFalse();
+        assertThat(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // checks the executor still runs the segments of other downloads
+            }
+        }).get(1, TimeUnit.SECONDS)).isNull();
+    }
+
+    private SegmentedDownloader downloaderWith(SegmentedDownloader.SegmentConnector connector) {
+        return new SegmentedDownloader(
+                connector,
+                mock(SpaceVerifier.class),
+                throttle,
+                mock(SegmentedDownloader.ProgressListener.class),
+                executor,
+                true
+        );
+    }
+
+    private static byte[] contentOf(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    private void writeToFile(byte[] content, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] contentOfFile() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class FakeSegmentConnector implements SegmentedDownloader.SegmentConnector {
+
+        private final byte[] content;
+        private final List<Long> requestedBytes = Collections.synchronizedList(new ArrayList<Long>());
+
+        FakeSegmentConnector(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public HttpURLConnection open(DownloadSegment segment) throws StopRequestException {
+            requestedBytes.add(segment.nextByte());
+            int offset = (int) segment.nextByte();
+            int length = (int) segment.getEndByte() + 1 - offset;
+            HttpURLConnection connection = mock(HttpURLConnection.class);
+            try {
+                when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(content, offset, length));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return connection;
+        }
+
+        List<Long> requestedBytes() {
+            return new ArrayList<>(requestedBytes);
+        }
+    }
+
+    private static class FakeTimer implements TokenBucket.Timer {
+
+        @Override
+        public long nanoTime() {
+            return 0;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            // never called, the throttle is unlimited
+        }
+    }
+
+}
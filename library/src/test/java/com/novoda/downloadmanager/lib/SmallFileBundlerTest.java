@@ -0,0 +1,164 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.notifications.NotificationVisibility;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SmallFileBundlerTest {
+
+    private static final long THRESHOLD_BYTES = 128 * 1024;
+    private static final long SMALL_FILE_BYTES = 20 * 1024;
+    private static final long LARGE_FILE_BYTES = 1024 * 1024;
+
+    private final SmallFileBundler bundler = new SmallFileBundler(THRESHOLD_BYTES);
+
+    @Test
+    public void givenSmallPendingDownloadsWhenBundlingThenTheyAreBundledStartingWithTheScheduledOne() {
+        FileDownloadInfo scheduled = pending(1, SMALL_FILE_BYTES);
+        FileDownloadInfo other = pending(2, SMALL_FILE_BYTES);
+        DownloadBatch batch = batch(other, scheduled);
+
+        List<FileDownloadInfo> bundle = bundler.bundle(scheduled, batch);
+
+        assertThat(bundle).containsExactly(scheduled, other);
+    }
+
+    @Test
+    public void givenALargeScheduledDownloadWhenBundlingThenNothingIsBundled() {
+        FileDownloadInfo scheduled = pending(1, LARGE_FILE_BYTES);
+        DownloadBatch batch = batch(scheduled, pending(2, SMALL_FILE_BYTES));
+
+        List<FileDownloadInfo> bundle = bundler.bundle(scheduled, batch);
+
+        assertThat(bundle).isEmpty();
+    }
+
+    @Test
+    public void givenDownloadsOfUnknownSizeWhenBundlingThenTheyAreLeftOut() {
+        FileDownloadInfo scheduled = pending(1, SMALL_FILE_BYTES);
+        FileDownloadInfo unknownSize = pending(2, Constants.UNKNOWN_BYTE_SIZE);
+        when(unknownSize.hasTotalBytes()).thenReturn(false);
+        DownloadBatch batch = batch(scheduled, unknownSize, pending(3, SMALL_FILE_BYTES));
+
+        List<FileDownloadInfo> bundle = bundler.bundle(scheduled, batch);
+
+        assertThat(bundle).doesNotContain(unknownSize);
+    }
+
+    @Test
+    public void givenASingleSmallDownloadWhenBundlingThenItIsLeftToADownloadTask() {
+        FileDownloadInfo scheduled = pending(1, SMALL_FILE_BYTES);
+        DownloadBatch batch = batch(scheduled, pending(2, LARGE_FILE_BYTES));
+
+        List<FileDownloadInfo> bundle = bundler.bundle(scheduled, batch);
+
+        assertThat(bundle).isEmpty();
+        assertThat(bundler.isClaimed(scheduled)).isFalse();
+    }
+
+    @Test
+    public void givenManySmallDownloadsWhenBundlingThenTheBundleIsCapped() {
+        List<FileDownloadInfo> downloads = new ArrayList<>();
+        for (int id = 1; id <= SmallFileBundler.MAX_BUNDLE_SIZE * 2; id++) {
+            downloads.add(pending(id, SMALL_FILE_BYTES));
+        }
+        DownloadBatch batch = batch(downloads.toArray(new FileDownloadInfo[downloads.size()]));
+
+        List<FileDownloadInfo> bundle = bundler.bundle(downloads.get(0), batch);
+
+        assertThat(bundle).hasSize(SmallFileBundler.MAX_BUNDLE_SIZE);
+    }
+
+    @Test
+    public void givenABundledDownloadWhenBundlingAgainThenItIsNotBundledTwice() {
+        FileDownloadInfo first = pending(1, SMALL_FILE_BYTES);
+        FileDownloadInfo second = pending(2, SMALL_FILE_BYTES);
+        FileDownloadInfo third = pending(3, SMALL_FILE_BYTES);
+        FileDownloadInfo fourth = pending(4, SMALL_FILE_BYTES);
+        DownloadBatch batch = batch(first, second, third, fourth);
+        bundler.bundle(first, batch);
+
+        List<FileDownloadInfo> bundle = bundler.bundle(second, batch);
+
+        assertThat(bundle).isEmpty();
+    }
+
+    @Test
+    public void givenAReleasedDownloadWhenBundlingThenItCanBeBundledAgain() {
+        FileDownloadInfo first = pending(1, SMALL_FILE_BYTES);
+        FileDownloadInfo second = pending(2, SMALL_FILE_BYTES);
+        DownloadBatch batch = batch(first, second);
+        bundler.bundle(first, batch);
+
+        bundler.release(first);
+        bundler.release(second);
+
+        assertThat(bundler.bundle(second, batch)).containsExactly(second, first);
+    }
+
+    @Test
+    public void givenACompletedDownloadWhenItHasNotBeenReloadedYetThenItStaysClaimed() {
+        FileDownloadInfo first = pending(1, SMALL_FILE_BYTES);
+        FileDownloadInfo second = pending(2, SMALL_FILE_BYTES);
+        DownloadBatch batch = batch(first, second);
+        bundler.bundle(first, batch);
+
+        bundler.releaseOnceReloaded(first);
+        bundler.releaseOnceReloaded(second);
+
+        assertThat(bundler.isClaimed(first)).isTrue();
+        assertThat(bundler.bundle(second, batch)).isEmpty();
+    }
+
+    @Test
+    public void givenCompletedDownloadsWhenTakenAndReleasedThenTheyAreNoLongerClaimedOrTakenAgain() {
+        FileDownloadInfo first = pending(1, SMALL_FILE_BYTES);
+        FileDownloadInfo second = pending(2, SMALL_FILE_BYTES);
+        bundler.bundle(first, batch(first, second));
+        bundler.releaseOnceReloaded(first);
+        bundler.releaseOnceReloaded(second);
+
+        List<Long> completedDownloadIds = bundler.takeCompletedDownloadIds();
+        bundler.release(completedDownloadIds);
+
+        assertThat(completedDownloadIds).containsOnly(1L, 2L);
+        assertThat(bundler.isClaimed(first)).isFalse();
+        assertThat(bundler.isClaimed(second)).isFalse();
+        assertThat(bundler.takeCompletedDownloadIds()).isEmpty();
+    }
+
+    @Test
+    public void givenNoThresholdWhenBundlingThenNothingIsBundled() {
+        SmallFileBundler disabledBundler = new SmallFileBundler(0);
+        FileDownloadInfo scheduled = pending(1, SMALL_FILE_BYTES);
+        DownloadBatch batch = batch(scheduled, pending(2, SMALL_FILE_BYTES));
+
+        List<FileDownloadInfo> bundle = disabledBundler.bundle(scheduled, batch);
+
+        assertThat(bundle).isEmpty();
+    }
+
+    private static DownloadBatch batch(FileDownloadInfo... downloads) {
+        BatchInfo batchInfo = new BatchInfo("title", "description", null, NotificationVisibility.ONLY_WHEN_ACTIVE, null, 0, BandwidthLimiter.UNLIMITED);
+        return new DownloadBatch(1, batchInfo, Arrays.asList(downloads), DownloadStatus.PENDING, -1L, 0L);
+    }
+
+    private static FileDownloadInfo pending(long id, long totalBytes) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getStatus()).thenReturn(DownloadStatus.PENDING);
+        when(download.getControl()).thenReturn(DownloadsControl.CONTROL_RUN);
+        when(download.hasTotalBytes()).thenReturn(true);
+        when(download.getTotalBytes()).thenReturn(totalBytes);
+        return download;
+    }
+
+}
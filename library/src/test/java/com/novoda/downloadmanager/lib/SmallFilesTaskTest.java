@@ -0,0 +1,169 @@
+package com.novoda.downloadmanager.lib;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(SystemClock.class)
+public class SmallFilesTaskTest {
+
+    private static final long FIRST_ID = 1;
+    private static final long SECOND_ID = 2;
+    private static final String FIRST_URI = "http://example.com/first";
+    private static final String SECOND_URI = "http://example.com/second";
+
+    @Mock
+    private DownloadBatch batch;
+    @Mock
+    private SmallFileBundler smallFileBundler;
+    @Mock
+    private HttpTransport httpTransport;
+    @Mock
+    private HostRttEstimator hostRttEstimator;
+    @Mock
+    private DownloadHosts downloadHosts;
+    @Mock
+    private BandwidthLimiter bandwidthLimiter;
+    @Mock
+    private StorageManager storageManager;
+    @Mock
+    private DownloadsRepository downloadsRepository;
+    @Mock
+    private BatchRepository batchRepository;
+    @Mock
+    private BatchInformationBroadcaster batchInformationBroadcaster;
+    @Mock
+    private DownloadProgressStream progressStream;
+    @Mock
+    private NetworkChecker networkChecker;
+    @Mock
+    private DownloadReadyChecker downloadReadyChecker;
+    @Mock
+    private DownloadControlRegistry controlRegistry;
+    @Mock
+    private HttpURLConnection connection;
+
+    private FileDownloadInfo firstDownload;
+    private FileDownloadInfo secondDownload;
+    private DownloadControlRegistry.Control firstControl;
+    private SmallFilesTask smallFilesTask;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        mockStatic(SystemClock.class);
+        firstDownload = givenDownload(FIRST_ID, FIRST_URI);
+        secondDownload = givenDownload(SECOND_ID, SECOND_URI);
+        firstControl = new DownloadControlRegistry.Control();
+        when(controlRegistry.register(FIRST_ID)).thenReturn(firstControl);
+        when(controlRegistry.register(SECOND_ID)).thenReturn(new DownloadControlRegistry.Control());
+        when(networkChecker.checkCanUseNetwork(any(FileDownloadInfo.class))).thenReturn(FileDownloadInfo.NetworkState.OK);
+        when(downloadReadyChecker.clientAllowsToDownload(batch)).thenReturn(true);
+        when(httpTransport.open(any(URL.class))).thenReturn(connection);
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_FOUND);
+
+        List<FileDownloadInfo> downloads = Arrays.asList(firstDownload, secondDownload);
+        smallFilesTask = new SmallFilesTask(
+                batch, downloads, smallFileBundler, httpTransport, hostRttEstimator, downloadHosts, bandwidthLimiter, storageManager,
+                downloadsRepository, batchRepository, batchInformationBroadcaster, progressStream,
+                networkChecker, downloadReadyChecker, controlRegistry
+        );
+    }
+
+    @Test
+    public void givenTheNetworkCannotBeUsedWhenFetchingThenNoDownloadIsFetched() throws Exception {
+        when(networkChecker.checkCanUseNetwork(any(FileDownloadInfo.class))).thenReturn(FileDownloadInfo.NetworkState.CANNOT_USE_ROAMING);
+
+        smallFilesTask.fetchAll();
+
+        verify(httpTransport, never()).open(any(URL.class));
+        verify(downloadsRepository).completeDownloads(
+                Collections.<DownloadsRepository.CompletedDownload>emptyList(), Arrays.asList(FIRST_ID, SECOND_ID)
+        );
+    }
+
+    @Test
+    public void givenTheClientDeniesWhenFetchingThenNoDownloadIsFetched() throws Exception {
+        when(downloadReadyChecker.clientAllowsToDownload(batch)).thenReturn(false);
+
+        smallFilesTask.fetchAll();
+
+        verify(httpTransport, never()).open(any(URL.class));
+        verify(downloadsRepository).completeDownloads(
+                Collections.<DownloadsRepository.CompletedDownload>emptyList(), Arrays.asList(FIRST_ID, SECOND_ID)
+        );
+    }
+
+    @Test
+    public void givenADownloadThatCannotUseTheNetworkWhenFetchingThenItIsSkippedAndTheNextIsFetched() throws Exception {
+        when(networkChecker.checkCanUseNetwork(firstDownload)).thenReturn(FileDownloadInfo.NetworkState.UNUSABLE_DUE_TO_SIZE);
+
+        smallFilesTask.fetchAll();
+
+        assertThat(openedUris()).containsExactly(SECOND_URI);
+    }
+
+    @Test
+    public void givenAPausedDownloadWhenFetchingThenItIsSkippedAndTheNextIsFetched() throws Exception {
+        firstControl.update(new FileDownloadInfo.ControlStatus(DownloadsControl.CONTROL_PAUSED, DownloadStatus.RUNNING));
+
+        smallFilesTask.fetchAll();
+
+        assertThat(openedUris()).containsExactly(SECOND_URI);
+    }
+
+    @Test
+    public void givenACanceledDownloadWhenFetchingThenItIsSkippedAndTheNextIsFetched() throws Exception {
+        firstControl.update(new FileDownloadInfo.ControlStatus(DownloadsControl.CONTROL_RUN, DownloadStatus.CANCELED));
+
+        smallFilesTask.fetchAll();
+
+        assertThat(openedUris()).containsExactly(SECOND_URI);
+    }
+
+    @Test
+    public void givenASkippedDownloadWhenFetchingThenItIsLeftToADownloadTask() throws Exception {
+        firstControl.update(new FileDownloadInfo.ControlStatus(DownloadsControl.CONTROL_PAUSED, DownloadStatus.RUNNING));
+
+        smallFilesTask.fetchAll();
+
+        verify(smallFileBundler).release(firstDownload);
+        verify(controlRegistry).unregister(FIRST_ID, firstControl);
+    }
+
+    private List<String> openedUris() throws Exception {
+        ArgumentCaptor<URL> urlCaptor = ArgumentCaptor.forClass(URL.class);
+        verify(httpTransport).open(urlCaptor.capture());
+        return Collections.singletonList(urlCaptor.getValue().toString());
+    }
+
+    private static FileDownloadInfo givenDownload(long id, String uri) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getUri()).thenReturn(uri);
+        return download;
+    }
+
+}
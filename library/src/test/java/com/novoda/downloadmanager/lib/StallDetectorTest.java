@@ -0,0 +1,89 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class StallDetectorTest {
+
+    private static final float THRESHOLD = 0.1f;
+    private static final long SAMPLE_INTERVAL_MILLIS = 500;
+
+    private final StallDetector stallDetector = new StallDetector(THRESHOLD);
+
+    private long nowMillis;
+    private long currentBytes;
+    private long bytesPerSecondLimit = BandwidthLimiter.UNLIMITED;
+
+    @Test
+    public void givenASteadyConnectionWhenSamplingThenItIsNotStalled() {
+        transferAt(100000, StallDetector.HISTORY_MILLIS);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenAConnectionThatDropsToATrickleWhenSamplingThenItIsStalled() {
+        transferAt(100000, StallDetector.HISTORY_MILLIS);
+
+        transferAt(1000, StallDetector.WINDOW_MILLIS);
+
+        assertThat(stallDetector.isStalled()).isTrue();
+    }
+
+    @Test
+    public void givenAConnectionThatHasAlwaysBeenSlowWhenSamplingThenItIsNotStalled() {
+        transferAt(1000, StallDetector.HISTORY_MILLIS);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenNotEnoughHistoryWhenSamplingThenItIsNotStalled() {
+        transferAt(100000, StallDetector.WINDOW_MILLIS / 2);
+
+        transferAt(0, StallDetector.WINDOW_MILLIS);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenAStalledConnectionWhenResetThenItIsNoLongerStalled() {
+        transferAt(100000, StallDetector.HISTORY_MILLIS);
+        transferAt(1000, StallDetector.WINDOW_MILLIS);
+
+        stallDetector.reset();
+        transferAt(1000, SAMPLE_INTERVAL_MILLIS);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenTheRateLimitIsLoweredWhenTheConnectionSlowsDownToItThenItIsNotStalled() {
+        transferAt(100000, StallDetector.HISTORY_MILLIS);
+
+        bytesPerSecondLimit = 1000;
+        transferAt(1000, StallDetector.HISTORY_MILLIS);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenADisabledDetectorWhenTheConnectionDropsToATrickleThenItIsNotStalled() {
+        StallDetector disabled = StallDetector.disabled();
+        disabled.sample(0, 0, BandwidthLimiter.UNLIMITED);
+        disabled.sample(StallDetector.HISTORY_MILLIS, 6000000, BandwidthLimiter.UNLIMITED);
+        disabled.sample(StallDetector.HISTORY_MILLIS + StallDetector.WINDOW_MILLIS, 6000001, BandwidthLimiter.UNLIMITED);
+
+        assertThat(disabled.isStalled()).isFalse();
+    }
+
+    private void transferAt(long bytesPerSecond, long durationMillis) {
+        for (long elapsed = 0; elapsed < durationMillis; elapsed += SAMPLE_INTERVAL_MILLIS) {
+            nowMillis += SAMPLE_INTERVAL_MILLIS;
+            currentBytes += bytesPerSecond * SAMPLE_INTERVAL_MILLIS / 1000;
+            stallDetector.sample(nowMillis, currentBytes, bytesPerSecondLimit);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final FakeTimer timer = new FakeTimer();
+    private final TokenBucket bucket = new TokenBucket(timer);
+
+    @Test
+    public void givenNoRateWhenAcquiringThenItNeverWaits() throws Exception {
+        bucket.acquire(Integer.MAX_VALUE);
+
+        assertThat(timer.sleptNanos).isZero();
+    }
+
+    @Test
+    public void givenAnEmptyBucketWhenAcquiringThenItWaitsForTheBytesAtTheRate() throws Exception {
+        bucket.setRate(1000);
+
+        bucket.acquire(500);
+
+        assertThat(timer.sleptNanos).isEqualTo(ONE_SECOND_NANOS / 2);
+    }
+
+    @Test
+    public void givenTheBucketRefilledWhenAcquiringWithinTheBurstThenItDoesNotWait() throws Exception {
+        bucket.setRate(1000);
+        timer.advanceBy(ONE_SECOND_NANOS);
+
+        bucket.acquire(1000);
+
+        assertThat(timer.sleptNanos).isZero();
+    }
+
+    @Test
+    public void givenALongIdleTimeWhenAcquiringThenTheBurstIsCappedAtOneSecondOfTheRate() throws Exception {
+        bucket.setRate(1000);
+        timer.advanceBy(10 * ONE_SECOND_NANOS);
+
+        bucket.acquire(2000);
+
+        assertThat(timer.sleptNanos).isEqualTo(ONE_SECOND_NANOS);
+    }
+
+    private static class FakeTimer implements TokenBucket.Timer {
+
+        private long nowNanos;
+        private long sleptNanos;
+
+        @Override
+        public long nanoTime() {
+            return nowNanos;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            sleptNanos += nanos;
+            nowNanos += nanos;
+        }
+
+        void advanceBy(long nanos) {
+            nowNanos += nanos;
+        }
+    }
+
+}